@@ -0,0 +1,66 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures ConnectionKMethod.readLine reading the request line and header fields of a typical
+ * browser request, as it does for every request it handles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ConnectionKMethodBenchmark
+{
+	public static final String REQUEST = "GET /docs/index.html?section=httpd&page=2 HTTP/1.1\r\n"
+		+"Host: www.cometway.com\r\n"
+		+"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+		+"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+		+"Accept-Language: en-US,en;q=0.5\r\n"
+		+"Accept-Encoding: gzip, deflate\r\n"
+		+"Referer: http://www.cometway.com/docs/\r\n"
+		+"Cookie: session_id=6a4ffea80df889bd7bfe6a592c0789d8; member_id=67\r\n"
+		+"Connection: keep-alive\r\n"
+		+"\r\n";
+
+	protected byte[] request;
+	protected ConnectionKMethod kMethod;
+
+
+	@Setup
+	public void setup()
+	{
+		WebServer server = new WebServer();
+		Props p = new Props();
+		p.setProperty("hide_debug","true");
+		server.setProps(p);
+		server.initProps();
+
+		request = REQUEST.getBytes();
+		kMethod = new ConnectionKMethod(server,null,0);
+	}
+
+
+	@Benchmark
+	public void readRequestHeader(Blackhole blackhole) throws IOException
+	{
+		HTTPRequestParser in = new HTTPRequestParser(new ByteArrayInputStream(request));
+
+		String line = kMethod.readLine(in,2048);
+		while(line!=null && line.length()>0) {
+			blackhole.consume(line);
+			line = kMethod.readLine(in,0);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.cometway.httpd;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Measures HTMLStringTools.encode and decode with the paths the ConnectionKMethod decodes on
+ * every request, and with the form values the form writers encode. The plain inputs need no
+ * escaping, the escaped ones do. The appendable benchmarks write into a reused StringBuffer, as
+ * a page being built would be.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class HTMLStringToolsBenchmark
+{
+	public String plainPath = "/images/products/catalog_2004/index.html";
+	public String escapedPath = "/docs/Annual%20Report%20%282004%29/summary+page.html";
+	public String plainValue = "agent_kernel_3.0-release";
+	public String escapedValue = "Tom & Jerry's <b>\"Caf\u00e9\"</b> 100% = done?";
+
+	protected StringBuffer page = new StringBuffer(1024);
+
+
+	@Benchmark
+	public String encodePlain()
+	{
+		return(HTMLStringTools.encode(plainValue));
+	}
+
+
+	@Benchmark
+	public String encodeEscaped()
+	{
+		return(HTMLStringTools.encode(escapedValue));
+	}
+
+
+	@Benchmark
+	public String decodePlain()
+	{
+		return(HTMLStringTools.decode(plainPath));
+	}
+
+
+	@Benchmark
+	public String decodeEscaped()
+	{
+		return(HTMLStringTools.decode(escapedPath));
+	}
+
+
+	@Benchmark
+	public StringBuffer encodeEscapedAppendable() throws IOException
+	{
+		page.setLength(0);
+		HTMLStringTools.encode(escapedValue,page);
+
+		return(page);
+	}
+
+
+	@Benchmark
+	public StringBuffer decodeEscapedAppendable() throws IOException
+	{
+		page.setLength(0);
+		HTMLStringTools.decode(escapedPath,page);
+
+		return(page);
+	}
+}
@@ -0,0 +1,104 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Measures an agent writing a small page through HTTPAgentRequest.print and close, with each of
+ * the output modes, and HTTPAgentRequest.getCookies parsing the Cookie field of the request.
+ * The response is written to a stream which discards it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class HTTPAgentRequestBenchmark
+{
+	public static final String REQUEST = "GET /account.agent HTTP/1.1\r\n"
+		+"Host: www.cometway.com\r\n"
+		+"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+		+"Cookie: session_id=6a4ffea80df889bd7bfe6a592c0789d8; member_id=67; pass_hash=4b8e908578ba4bc4ef26740b39bb8831; theme\r\n"
+		+"Connection: keep-alive\r\n"
+		+"\r\n";
+
+	public String[] lines = {
+		"<HTML><HEAD><TITLE>Account</TITLE></HEAD><BODY>",
+		"<H1>Account Summary</H1>",
+		"<TABLE><TR><TD>Member</TD><TD>67</TD></TR>",
+		"<TR><TD>Session</TD><TD>6a4ffea80df889bd7bfe6a592c0789d8</TD></TR></TABLE>",
+		"<P>The agent kernel has handled this request.</P>",
+		"</BODY></HTML>"};
+
+	protected Props props;
+	protected HTTPAgentRequest cookieRequest;
+	protected OutputStream out;
+
+
+	@Setup
+	public void setup()
+	{
+		props = new Props();
+		props.setProperty("request",REQUEST);
+
+		cookieRequest = new HTTPAgentRequest(props,null,null);
+
+		out = new OutputStream() {
+			public void write(int b) {;}
+			public void write(byte[] b, int off, int len) {;}
+		};
+	}
+
+
+	@Benchmark
+	public HTTPAgentRequest printAndClose() throws IOException
+	{
+		return(writePage(new HTTPAgentRequest(props,out,null)));
+	}
+
+
+	@Benchmark
+	public HTTPAgentRequest printAndCloseBuffered() throws IOException
+	{
+		HTTPAgentRequest request = new HTTPAgentRequest(props,out,null);
+		request.bufferOutput = true;
+
+		return(writePage(request));
+	}
+
+
+	@Benchmark
+	public HTTPAgentRequest printAndCloseChunked() throws IOException
+	{
+		HTTPAgentRequest request = new HTTPAgentRequest(props,out,null);
+		request.chunkedOutput = true;
+
+		return(writePage(request));
+	}
+
+
+	@Benchmark
+	public Props getCookies()
+	{
+		return(cookieRequest.getCookies());
+	}
+
+
+	protected HTTPAgentRequest writePage(HTTPAgentRequest request) throws IOException
+	{
+		for(int x=0;x<lines.length;x++) {
+			request.print(lines[x]);
+		}
+		request.close();
+
+		return(request);
+	}
+}
@@ -0,0 +1,78 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures WebServer.getMimeType for the kinds of paths a file server is asked for, and
+ * WebServer.getExtensions for a domain with a few WebServerExtensions, which is done for
+ * every request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class WebServerBenchmark
+{
+	public String[] paths = {"/index.html", "/images/Logo.GIF", "/docs/manual.pdf", "/downloads/ak.tar.gz", "/cgi-bin/", "/style/site.css"};
+
+	protected WebServer server;
+
+
+	@Setup
+	public void setup()
+	{
+		WebServer.loadDefaultMimeTypes();
+
+		server = new WebServer();
+		Props p = new Props();
+		p.setProperty("hide_debug","true");
+		p.setProperty("hide_println","true");
+		server.setProps(p);
+		server.initProps();
+		server.clearExtensionsCache();
+
+		for(int x=0;x<4;x++) {
+			NullExtension extension = new NullExtension();
+			p = new Props();
+			p.setProperty("agent_id","10"+x);
+			p.setProperty("hide_println","true");
+			extension.setProps(p);
+			extension.initProps();
+			server.addExtension("default",extension.getString("agent_id"),extension);
+		}
+	}
+
+
+	@Benchmark
+	public void getMimeType(Blackhole blackhole)
+	{
+		for(int x=0;x<paths.length;x++) {
+			blackhole.consume(WebServer.getMimeType(paths[x]));
+		}
+	}
+
+
+	@Benchmark
+	public Vector getExtensions()
+	{
+		return(server.getExtensions("default"));
+	}
+
+
+	/**
+	 * An extension which handles nothing.
+	 */
+	public static class NullExtension extends WebServerExtension
+	{
+	}
+}
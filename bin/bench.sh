@@ -0,0 +1,42 @@
+#!/bin/sh
+
+# This is a shell script for running the JMH benchmarks in ../bench/src, which measure the
+# request parsing and response writing the web server does for every request.
+# The JMH jars are downloaded into ../bench/lib the first time it is run.
+# Arguments are passed to JMH, for example:
+#
+#   ./bench.sh -f 1 -wi 3 -i 5 HTMLStringTools
+#
+# The baseline results are in ../bench/results. Run the benchmarks before and after
+# a change to the web server, on the same machine, and compare them.
+
+JMH_VERSION=1.37
+MAVEN=https://repo1.maven.org/maven2
+LIB=../bench/lib
+
+mkdir -p $LIB
+
+for JAR in org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar \
+	org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar \
+	net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+	org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar
+do
+	if [ ! -f $LIB/`basename $JAR` ]; then
+		echo Downloading `basename $JAR`...
+		curl -s -f -o $LIB/`basename $JAR` $MAVEN/$JAR || exit 1
+	fi
+done
+
+echo Creating temporary classes directory
+rm -rf ../bench_classes
+mkdir ../bench_classes
+
+echo Compiling benchmarks...
+CLASSPATH=../import/jakarta-oro-2.0.7/jakarta-oro-2.0.7.jar:`ls $LIB/*.jar | tr '\n' ':'`
+javac -nowarn -classpath $CLASSPATH -sourcepath ../src -d ../bench_classes `find ../bench/src -name '*.java' -print` || exit 1
+
+echo Running benchmarks...
+java -classpath ../bench_classes:$CLASSPATH org.openjdk.jmh.Main "$@"
+
+echo Removing temporary classes directory
+rm -r ../bench_classes
@@ -185,7 +185,10 @@ public class SecureServiceManager extends RequestAgent
 
 				if (p == null)
 				{
-					debug("Not found: " + service_name + " " + getTimeStamp());
+					if (debugReporter != null)
+					{
+						debug("Not found: " + service_name + " " + getTimeStamp());
+					}
 				}
 				else
 				{
@@ -193,7 +196,10 @@ public class SecureServiceManager extends RequestAgent
 					p.setProperty("last_accessed", getTimeStamp());
 					o = p.getProperty("service_impl");
 
-					debug("Requested: " + service_name + " " + getDateTimeStr());
+					if (debugReporter != null)
+					{
+						debug("Requested: " + service_name + " " + getDateTimeStr());
+					}
 				}
 			}
 			else
@@ -0,0 +1,25 @@
+package com.cometway.ak;
+
+/**
+ * A standard interface for objects that need to know when service implementations are
+ * registered or unregistered with the service manager.
+ * Listeners are added using ServiceManager.addServiceListener.
+ */
+
+public interface ServiceListener
+{
+
+
+	/**
+	 * Called after the service implementation has been registered under the service name.
+	 */
+
+	public void serviceRegistered(String serviceName, Object serviceImpl);
+
+
+	/**
+	 * Called after the service implementation has been unregistered from the service name.
+	 */
+
+	public void serviceUnregistered(String serviceName, Object serviceImpl);
+}
@@ -15,6 +15,9 @@ public class ServiceManager extends Agent
 {
 	protected ServiceManagerInterface sm;
 
+	/** The ServiceListeners notified by the static register and unregister methods. */
+	protected static Vector serviceListeners = new Vector();
+
 
 	/**
 	* Starts the service manager.
@@ -86,13 +89,16 @@ public class ServiceManager extends Agent
 			{
 				o = services.get(serviceName);
 
-				if (o == null)
-				{
-					debug("Not found: " + serviceName + " " + getDateTimeStr());
-				}
-				else
+				if (debugReporter != null)
 				{
-					debug("Requested: " + serviceName + " " + getDateTimeStr());
+					if (o == null)
+					{
+						debug("Not found: " + serviceName + " " + getDateTimeStr());
+					}
+					else
+					{
+						debug("Requested: " + serviceName + " " + getDateTimeStr());
+					}
 				}
 			}
 			else
@@ -257,7 +263,14 @@ public class ServiceManager extends Agent
 			throw new RuntimeException("Service Manager is not loaded");
 		}
 
-		return (sm.registerService(serviceName, serviceImpl, null));
+		boolean success = sm.registerService(serviceName, serviceImpl, null);
+
+		if (success)
+		{
+			fireServiceRegistered(serviceName, serviceImpl);
+		}
+
+		return (success);
 	}
 
 
@@ -275,7 +288,14 @@ public class ServiceManager extends Agent
 			throw new RuntimeException("Service Manager is not loaded");
 		}
 
-		return (sm.registerService(serviceName, serviceImpl, authorization));
+		boolean success = sm.registerService(serviceName, serviceImpl, authorization);
+
+		if (success)
+		{
+			fireServiceRegistered(serviceName, serviceImpl);
+		}
+
+		return (success);
 	}
 
 
@@ -293,7 +313,14 @@ public class ServiceManager extends Agent
 			throw new RuntimeException("Service Manager is not loaded");
 		}
 
-		return (sm.unregisterService(serviceName, serviceImpl, null));
+		boolean success = sm.unregisterService(serviceName, serviceImpl, null);
+
+		if (success)
+		{
+			fireServiceUnregistered(serviceName, serviceImpl);
+		}
+
+		return (success);
 	}
 
 
@@ -311,7 +338,62 @@ public class ServiceManager extends Agent
 			throw new RuntimeException("Service Manager is not loaded");
 		}
 
-		return (sm.unregisterService(serviceName, serviceImpl, authorization));
+		boolean success = sm.unregisterService(serviceName, serviceImpl, authorization);
+
+		if (success)
+		{
+			fireServiceUnregistered(serviceName, serviceImpl);
+		}
+
+		return (success);
 	}
-}
 
+
+	/**
+	* Adds a ServiceListener which is notified whenever a service implementation is
+	* registered or unregistered using the static register and unregister methods.
+	*/
+
+	public static void addServiceListener(ServiceListener listener)
+	{
+		synchronized (serviceListeners)
+		{
+			if (!serviceListeners.contains(listener))
+			{
+				serviceListeners.addElement(listener);
+			}
+		}
+	}
+
+
+	/**
+	* Removes a ServiceListener added using addServiceListener.
+	*/
+
+	public static void removeServiceListener(ServiceListener listener)
+	{
+		serviceListeners.removeElement(listener);
+	}
+
+
+	protected static void fireServiceRegistered(String serviceName, Object serviceImpl)
+	{
+		Object[] listeners = serviceListeners.toArray();
+
+		for (int i = 0; i < listeners.length; i++)
+		{
+			((ServiceListener) listeners[i]).serviceRegistered(serviceName, serviceImpl);
+		}
+	}
+
+
+	protected static void fireServiceUnregistered(String serviceName, Object serviceImpl)
+	{
+		Object[] listeners = serviceListeners.toArray();
+
+		for (int i = 0; i < listeners.length; i++)
+		{
+			((ServiceListener) listeners[i]).serviceUnregistered(serviceName, serviceImpl);
+		}
+	}
+}
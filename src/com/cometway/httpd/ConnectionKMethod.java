@@ -41,6 +41,17 @@ public class ConnectionKMethod extends KMethod
 	int socket_linger_time;
 	Socket socket;
 	WebServer server;
+
+	// These are only used when the WebServer is running the nio connection engine
+	ConnectionSelector selector;
+	byte[] prefetched;
+
+	// The System.nanoTime() the connection was handed to the ThreadPool, for the queue_wait metric
+	long queuedAt;
+
+	// Set by the HTTPAdmissionControl for connections served by its priority threads, which
+	// handle one request and close the connection rather than keep it alive
+	boolean closeAfterRequest;
 	
 	public static final String KEEP_ALIVE = "__CONNECTION_KEEP_ALIVE";
 	public static final String KEEP_ALIVE_FIELD = "__KEEP_ALIVE_FIELD";
@@ -60,6 +71,18 @@ public class ConnectionKMethod extends KMethod
 		server.debug("++ Kmethods: "+server.counter);
 	}
 
+	/**
+	 * This constructor is used by the ConnectionSelector. The request header will already have
+	 * been read by the selector and is set in the prefetched field before each execution. When
+	 * a keep-alive request has been handled, the connection is parked in the selector rather
+	 * than blocking this thread while waiting for the next request.
+	 */
+	public ConnectionKMethod(WebServer server, Socket sock, int linger_time, ConnectionSelector selector)
+	{
+		this(server, sock, linger_time);
+		this.selector = selector;
+	}
+
 	protected void finalize() throws Throwable
 	{
 		if(socket!=null) {
@@ -78,78 +101,19 @@ public class ConnectionKMethod extends KMethod
 		return("Keep-Alive: timeout="+((int)(server.getInteger("socket_timeout")/1000))+", max="+(keepAliveLimit-keepAliveCount));
 	}
 
-	protected String readLine(PushbackInputStream in, int maxLength) throws IOException
+	/**
+	 * Reads a line of the request. Returns null at the end of the stream. Lines longer than
+	 * maxLength are returned with the "@@@overflow@@" prefix, a maxLength of 0 means there is no limit.
+	 */
+	protected String readLine(HTTPRequestParser in, int maxLength) throws IOException
 	{
-		if(maxLength>0) {
-			StringBuffer rval = new StringBuffer();
-			boolean overflow = true;
-			boolean eof = false;
-			for(int x=0;x<maxLength;x++) {
-				int i = in.read();
-				if(i==-1) {
-					eof = true;
-					break;
-				}
-				char c = (char)i;
-				if(c=='\n') {
-					overflow = false;
-					break;
-				}
-				else {
-					if(c!='\r') {
-						rval.append(c);
-					}
-				}
-			}
-			if(!overflow) {
-				return(rval.toString());
-			}
-			else if(eof) {
-				return(null);
-			}
-			else {
-				return("@@@overflow@@"+rval.toString());
-			}
-		}
-		else {
-			return(socketReadLine(in));
-		}
-	}
+		String rval = in.readLine(maxLength);
 
-	protected String socketReadLine(PushbackInputStream in) throws IOException
-	{
-		StringBuffer rval = new StringBuffer();
-		byte[] buffer = new byte[1024];
-		int bytesRead = in.read(buffer);
-		boolean bailout = false;
-		boolean bailoutLF = false;
-		while(bytesRead>0) {
-			for(int x=0;x<bytesRead;x++) {
-				if(((char)buffer[x]) == '\r') {
-					rval.append(new String(buffer,0,x-1,"ISO-8859-1"));
-					bailoutLF = true;
-				}
-				else if(((char)buffer[x]) == '\n') {
-					if(!bailoutLF) {
-						rval.append(new String(buffer,0,x-1,"ISO-8859-1"));
-					}
-					bailout = true;
-				}
-				else if(bailout || bailoutLF) {
-					in.unread(buffer,x,bytesRead-x);
-					bailout = true;
-					break;
-				}
-			}
-			if(bailout) {
-				break;
-			}
-			else {
-				bytesRead = in.read(buffer);
-			}
+		if(rval!=null && in.lineOverflowed()) {
+			rval = "@@@overflow@@"+rval;
 		}
 
-		return(rval.toString());
+		return(rval);
 	}
 
 
@@ -158,11 +122,11 @@ public class ConnectionKMethod extends KMethod
 	 */ 
 	public void execute()
 	{
-		PushbackInputStream socketIn = null;
-		BufferedOutputStream socketOut = null;
+		HTTPRequestParser socketIn = null;
+		HTTPPipelineOutputStream socketOut = null;
 
 		// Handler State flags and variables
-		String response = "HTTP/1.1 500 Server Error.\r\nDate: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\nConnection: close\r\n\r\n";
+		String response = "HTTP/1.1 500 Server Error.\r\nDate: "+HTTPDate.getDate()+"\r\nConnection: close\r\n\r\n";
 		String returnVal = null;
 		InetAddress cachedInetAddress = null;
 		boolean responded = false;
@@ -182,15 +146,29 @@ public class ConnectionKMethod extends KMethod
 		Props p = null;
 		long latency = System.currentTimeMillis();
 		String requestContentType = "application/x-www-form-urlencoded";
+		HTTPHeaders headers = null;
+		boolean clientKeepAlive = false;
+
+		// These are read once per connection rather than once per line
+		int max_uri_length = server.getInteger("max_uri_length");
+		int max_field_length = server.getInteger("max_field_length");
 
 		server.debug("Socket: "+socket);
 
+		HTTPMetrics metrics = server.metrics;
+		long requestStart = 0;
+		if(metrics!=null && queuedAt!=0) {
+			metrics.recordQueueWait((System.nanoTime()-queuedAt)/1000);
+		}
+		queuedAt = 0;
+
 		// Set the initial timeout and init the streams
 		try {
 			socket.setSoTimeout(server.getInteger("socket_initial_timeout"));
 			
-			socketIn = new PushbackInputStream(socket.getInputStream());
-			socketOut = new BufferedOutputStream(socket.getOutputStream());
+			socketIn = new HTTPRequestParser(socket.getInputStream(), prefetched);
+			prefetched = null;
+			socketOut = new HTTPPipelineOutputStream(socket.getOutputStream());
 		}
 		catch(Exception e) {
 			socketIn = null;
@@ -209,13 +187,15 @@ public class ConnectionKMethod extends KMethod
 			if(socketIn!=null && socketOut!=null) {
 				// this needs to be reset each time around the keep-alive
 				p = new Props();
+				headers = new HTTPHeaders();
 
 				/////////////////////////////////////////////////////////////////////////
 				// This first block deals with reading the first line of the request (whether keep-alive or not)
 				try {
 					// FIRST read in the request line. Is it POST or GET?
 					//					String line = socketIn.readLine();
-					String line = readLine(socketIn, server.getInteger("max_uri_length"));
+					String line = readLine(socketIn, max_uri_length);
+					requestStart = System.nanoTime();
 					socket.setSoTimeout(server.getInteger("socket_timeout"));
 					if(line==null) {
 						try {
@@ -230,7 +210,7 @@ public class ConnectionKMethod extends KMethod
 					}
 					else if(line.startsWith("@@@overflow@@")) {
 						try {
-							socketOut.write(WebServer.getHTMLByCode(WebServer.REQUEST_URI_TOO_LONG).getBytes());
+							WebServer.writeHTMLByCode(socketOut,WebServer.REQUEST_URI_TOO_LONG);
 							socketOut.flush();
 						}
 						catch(Exception e) {;}
@@ -255,7 +235,7 @@ public class ConnectionKMethod extends KMethod
 					if(keepAliveCount>0) {
 						while(line!=null && line.trim().length()==0) {
 							//							line = socketIn.readLine();
-							line = socketReadLine(socketIn);
+							line = readLine(socketIn, 0);
 						}
 						if(line==null) {
 							throw(new InterruptedIOException());
@@ -264,7 +244,7 @@ public class ConnectionKMethod extends KMethod
 
 					if(line.startsWith("@@@overflow@@")) {
 						try {
-							socketOut.write(WebServer.getHTMLByCode(WebServer.REQUEST_URI_TOO_LONG).getBytes());
+							WebServer.writeHTMLByCode(socketOut,WebServer.REQUEST_URI_TOO_LONG);
 							socketOut.flush();
 						}
 						catch(Exception e) {;}
@@ -311,7 +291,7 @@ public class ConnectionKMethod extends KMethod
 							fullpath = path;
 
 							try {
-								socketOut.write(WebServer.getHTMLByCode(WebServer.VERSION_NOT_SUPPORTED).getBytes());
+								WebServer.writeHTMLByCode(socketOut,WebServer.VERSION_NOT_SUPPORTED);
 								socketOut.flush();
 							}
 							catch(Exception e) {;}
@@ -402,49 +382,52 @@ public class ConnectionKMethod extends KMethod
 
 							// This is a POST request, read until the post stuff
 							try {
-								String tmp = readLine(socketIn,server.getInteger("max_field_length"));
-								if(!tmp.startsWith("@@@overflow@@")) {
-									httpRequest.append(tmp);
-									httpRequest.append("\n");
+								String tmp = "";
+								int status = socketIn.readHeaders(headers, max_field_length, httpRequest);
+								if(status==HTTPRequestParser.END_OF_STREAM) {
+									throw(new InterruptedIOException());
+								}
+								else if(status==HTTPRequestParser.HEADERS_COMPLETE) {
 									int contentLength = -1;
 									String multipartBoundary = null;
-									
-									while(tmp.length()!=0) {
-										if(tmp.toLowerCase().startsWith("content-length:")) {
-											contentLength = Integer.parseInt(tmp.substring(15).trim());
-										}
-										else if(tmp.toLowerCase().startsWith("content-type:")) {
-											tmp = tmp.substring(13).trim();
-											requestContentType = tmp;
-											if(tmp.toLowerCase().startsWith("multipart/form-data; boundary=")) {
-												multipartBoundary = tmp.substring(30).trim();
-											}
-										}
-										httpRequest.append(tmp);
-										httpRequest.append("\n");
-										
-										tmp=readLine(socketIn, server.getInteger("max_field_length"));
-										if(tmp.startsWith("@@@overflow@@")) {
-											overflowed = true;
-											break;
+
+									tmp = headers.get("Content-Length");
+									if(tmp!=null) {
+										contentLength = Integer.parseInt(tmp);
+									}
+									tmp = headers.get("Content-Type");
+									if(tmp!=null) {
+										requestContentType = tmp;
+										if(tmp.toLowerCase().startsWith("multipart/form-data; boundary=")) {
+											multipartBoundary = tmp.substring(30).trim();
 										}
 									}
+									tmp = "";
 
 									if(!overflowed) {
 										if(contentLength==-1) {
-											//											tmpParams = socketIn.readLine();
-											tmpParams = socketReadLine(socketIn);
-											httpRequest.append(tmpParams);
-											httpRequest.append("\n");
+											if(headers.containsToken("Connection","keep-alive")) {
+												// Without a Content-Length the body of a keep-alive request is empty,
+												// reading a line here would consume the next pipelined request
+												tmpParams = "";
+											}
+											else {
+												//											tmpParams = socketIn.readLine();
+												tmpParams = readLine(socketIn, 0);
+												httpRequest.append(tmpParams);
+												httpRequest.append("\n");
+											}
 										}
 										else {
 											if(multipartBoundary==null) {
 												byte[] buffer = new byte[contentLength];
-												int bytesRead = socketIn.read(buffer);
-												if(bytesRead < contentLength) {
-													for(int x=bytesRead;x<contentLength;x++) {
-														buffer[x] = (byte)socketIn.read();
+												int bytesRead = 0;
+												while(bytesRead < contentLength) {
+													int count = socketIn.read(buffer,bytesRead,contentLength-bytesRead);
+													if(count==-1) {
+														break;
 													}
+													bytesRead = bytesRead + count;
 												}
 												tmpParams = new String(buffer,"ISO-8859-1");
 
@@ -483,11 +466,13 @@ public class ConnectionKMethod extends KMethod
 													//														content[x] = socket.getInputStream().read();
 													//														contentStr.append((char)(content[x]&0x00FF));
 													//													}
-													int bytesRead = socketIn.read(content);
-													if(bytesRead < contentLength) {
-														for(int x=bytesRead;x<contentLength;x++) {
-															content[x] = (byte)socketIn.read();
+													int bytesRead = 0;
+													while(bytesRead < contentLength) {
+														int count = socketIn.read(content,bytesRead,contentLength-bytesRead);
+														if(count==-1) {
+															break;
 														}
+														bytesRead = bytesRead + count;
 													}
 													contentStr.append(new String(content,"ISO-8859-1"));
 
@@ -590,7 +575,7 @@ public class ConnectionKMethod extends KMethod
 
 								if(overflowed) {
 									try {
-										socketOut.write(WebServer.getHTMLByCode(WebServer.REQUEST_ENTITY_TOO_LARGE).getBytes());
+										WebServer.writeHTMLByCode(socketOut,WebServer.REQUEST_ENTITY_TOO_LARGE);
 										socketOut.flush();
 									}
 									catch(Exception e) {;}
@@ -628,13 +613,11 @@ public class ConnectionKMethod extends KMethod
 						}
 						else {
 							try {
-								String tmp = readLine(socketIn, server.getInteger("max_field_length"));
-								while(tmp!=null && tmp.length()!=0 && !tmp.startsWith("@@@overflow@@")) {
-									httpRequest.append(tmp);
-									httpRequest.append("\n");
-									tmp = readLine(socketIn, server.getInteger("max_field_length"));
+								int status = socketIn.readHeaders(headers, max_field_length, httpRequest);
+								if(status==HTTPRequestParser.END_OF_STREAM) {
+									throw(new InterruptedIOException());
 								}
-								if(tmp.startsWith("@@@overflow@@")) {
+								else if(status==HTTPRequestParser.LINE_TOO_LONG) {
 									overflowed = true;
 								}
 							}
@@ -650,7 +633,7 @@ public class ConnectionKMethod extends KMethod
 
 							if(overflowed) {
 								try {
-									socketOut.write(WebServer.getHTMLByCode(WebServer.REQUEST_ENTITY_TOO_LARGE).getBytes());
+									WebServer.writeHTMLByCode(socketOut,WebServer.REQUEST_ENTITY_TOO_LARGE);
 									socketOut.flush();
 								}
 								catch(Exception e) {;}
@@ -757,35 +740,16 @@ public class ConnectionKMethod extends KMethod
 
 						String host = "";
 						{
-							String requestString = httpRequest.toString();
-							if(requestString.indexOf("Host:")!=-1) {
-								requestString = requestString.substring(requestString.indexOf("Host:")+5);
-								int index1 = requestString.indexOf("\n");
-								if(index1==-1) {
-									index1 = requestString.length();
-								}
-								requestString = requestString.substring(0,index1);
-								hostField = requestString.trim();
-								index1 = requestString.indexOf(":");
+							String requestString = headers.get("Host");
+							if(requestString!=null) {
+								hostField = requestString;
+								int index1 = requestString.indexOf(":");
 								if(index1!=-1) {
 									requestString = requestString.substring(0,index1);
 								}
 								host = requestString.toLowerCase().trim();
-
-								if(server.getInteger("bind_port")==443) {
-									try {
-										host = host.substring(0,host.indexOf(":"));
-									}
-									catch(Exception e) {;}
-								}
-								else if(server.getInteger("bind_port")==80) {
-									try {
-										host = host.substring(0,host.indexOf(":"));
-									}
-									catch(Exception e) {;}
-								}					    
 							}
-						}							
+						}
 
 						path = HTMLStringTools.decode(path);
 						fullpath = HTMLStringTools.decode(path);
@@ -804,8 +768,9 @@ public class ConnectionKMethod extends KMethod
 							p.setProperty("request_id","HTTP:"+cachedInetAddress.getHostName());
 						}
 				
-						if(httpRequest.toString().toLowerCase().indexOf("connection: keep-alive")!=-1) {
-							if(keepAliveLimit-keepAliveCount>0) {
+						clientKeepAlive = headers.containsToken("Connection","keep-alive");
+						if(clientKeepAlive) {
+							if(keepAliveLimit-keepAliveCount>0 && !closeAfterRequest) {
 								p.setProperty(KEEP_ALIVE_FIELD,getKeepAliveField());
 							}
 						}
@@ -813,17 +778,30 @@ public class ConnectionKMethod extends KMethod
 						HTTPAgentRequest agentRequest = null;
 
 						try {
+							// If the client has already sent its next request, this response is held in the
+							// buffer and written together with the responses which follow it. Nothing is
+							// consumed here, the bytes available may be a request body read by the agent.
+							try {
+								socketOut.setHoldFlush(socketIn.available()>0);
+							}
+							catch(IOException e) {
+								socketOut.setHoldFlush(false);
+							}
+
 							agentRequest = new HTTPAgentRequest(p,socketOut,System.out,socketIn);
 							agentRequest.headRequest = request.equalsIgnoreCase("HEAD");
+							agentRequest.socket = socket;
+							agentRequest.headers = headers;
 
 							// look through all relevant WebServerExtensions
-							Vector extensions = server.getExtensions(host);
-							for(int x=0;x<extensions.size();x++) {
-								WebServerExtension extension = (WebServerExtension)extensions.elementAt(x);
+							WebServerExtension[] extensions = server.getExtensionChain(host);
+							for(int x=0;x<extensions.length;x++) {
+								WebServerExtension extension = extensions[x];
+								long handlerStart = System.nanoTime();
 								if(extension.handleRequest(agentRequest)) {
 									responded = true;
 									try {
-										if(agentRequest.bufferOutput) {
+										if(agentRequest.bufferOutput || agentRequest.chunkedOutput) {
 											agentRequest.close();
 										}
 										
@@ -832,6 +810,9 @@ public class ConnectionKMethod extends KMethod
 										}
 									}
 									catch(Exception e) {;}
+									if(metrics!=null) {
+										metrics.recordExtension(extension,(System.nanoTime()-handlerStart)/1000);
+									}
 									break;
 								}
 							}
@@ -846,10 +827,11 @@ public class ConnectionKMethod extends KMethod
 									RequestAgent agent = server.getRequestAgent(host,path);
 									
 									if(agent!=null) {
+										long handlerStart = System.nanoTime();
 										agent.handleRequest(agentRequest);
 										responded = true;
 										try {
-											if(agentRequest.bufferOutput) {
+											if(agentRequest.bufferOutput || agentRequest.chunkedOutput) {
 												agentRequest.close();
 											}
 											
@@ -858,6 +840,9 @@ public class ConnectionKMethod extends KMethod
 											}
 										}
 										catch(Exception e) {;}								
+										if(metrics!=null) {
+											metrics.recordAgent(agent.getString("service_name"),(System.nanoTime()-handlerStart)/1000);
+										}
 									}
 								}
 							}
@@ -867,7 +852,7 @@ public class ConnectionKMethod extends KMethod
 							if(!responded) {
 								// These are the 3 request types that should always be handled
 								if(!request.equalsIgnoreCase("GET") && !request.equalsIgnoreCase("HEAD") && !request.equalsIgnoreCase("POST")) {
-									socketOut.write(WebServer.getHTMLByCode(WebServer.METHOD_NOT_ALLOWED).getBytes());
+									WebServer.writeHTMLByCode(socketOut,WebServer.METHOD_NOT_ALLOWED);
 									socketOut.flush();
 									responded = true;
 									socketOut.close();
@@ -876,7 +861,7 @@ public class ConnectionKMethod extends KMethod
 									agentRequest.returnVal = "405";
 								}
 								else {
-									socketOut.write(WebServer.getHTMLByCode(WebServer.URL_NOT_FOUND).getBytes());
+									WebServer.writeHTMLByCode(socketOut,WebServer.URL_NOT_FOUND);
 									socketOut.flush();
 									responded = true;
 									agentRequest.returnVal = "404";
@@ -897,13 +882,13 @@ public class ConnectionKMethod extends KMethod
 							server.error("Error processing request:\n"+p.getString("request"),e);
 						}
 						if(agentRequest!=null) {
-							if(agentRequest.bufferOutput) {
+							if(agentRequest.bufferOutput || agentRequest.chunkedOutput) {
 								agentRequest.close();
 							}
 						}
 
 						// Check keepalive property here, if not there, then exit
-						if(httpRequest.toString().toLowerCase().indexOf("connection: keep-alive")!=-1) {
+						if(clientKeepAlive) {
 							if(!p.hasProperty(KEEP_ALIVE)) {
 								keepAlive = false;
 							}
@@ -911,7 +896,7 @@ public class ConnectionKMethod extends KMethod
 								// remove the property in case the next session is not keepalive
 								p.removeProperty(KEEP_ALIVE);
 								keepAlive = true;
-								if(keepAliveLimit-keepAliveCount==0) {
+								if(keepAliveLimit-keepAliveCount==0 || closeAfterRequest) {
 									keepAlive = false;
 								}
 								keepAliveCount++;
@@ -924,7 +909,7 @@ public class ConnectionKMethod extends KMethod
 						server.error("Error handling connection, requested Agent is not a RequestAgent: "+cachedInetAddress+" "+request+" "+path);
 						if(!responded) {
 							try {
-								socketOut.write(WebServer.getHTMLByCode(WebServer.SERVER_ERROR).getBytes());
+								WebServer.writeHTMLByCode(socketOut,WebServer.SERVER_ERROR);
 								socketOut.flush();
 								responded = true;
 								returnVal = "500";
@@ -939,7 +924,7 @@ public class ConnectionKMethod extends KMethod
 						server.error("Error handling connection: "+cachedInetAddress+" "+request+" "+path,e);
 						if(!responded) {
 							try {
-								socketOut.write(WebServer.getHTMLByCode(WebServer.SERVER_ERROR).getBytes());
+								WebServer.writeHTMLByCode(socketOut,WebServer.SERVER_ERROR);
 								socketOut.flush();
 								responded = true;
 								returnVal = "500";
@@ -977,50 +962,27 @@ public class ConnectionKMethod extends KMethod
 							server.println(cachedInetAddress + " > " + request + ' ' + hostField + fullpath + " (" + (System.currentTimeMillis()-latency) + "ms)");
 						}
 	
+						if(metrics!=null && returnVal!=null && requestStart!=0) {
+							metrics.recordRequest(hostField,returnVal,(System.nanoTime()-requestStart)/1000);
+						}
+
 						//					System.out.println("returnVal="+returnVal);
 						if(server.logger!=null && returnVal!=null) {
 							if(System.currentTimeMillis()-latency < server.getInteger("socket_timeout")) {
-								String httpReqStr = httpRequest.toString();
-								int tmpIndex = httpReqStr.indexOf("Host:");
+								String note = null;
 								if(dropped) {
-									logString = cachedInetAddress.getHostAddress()+" - (request dropped) - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
+									note = "request dropped";
 								}
 								else if(refused) {
-									logString = cachedInetAddress.getHostAddress()+" - (request refused) - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
+									note = "request refused";
 								}
 								else if(timedOut) {
-									logString = cachedInetAddress.getHostAddress()+" - (request timed out) - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
+									note = "request timed out";
 								}
 								else if(overflowed) {
-									logString = cachedInetAddress.getHostAddress()+" - (request was too long) - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
-								}
-								else {
-									if(server.multihome && tmpIndex!=-1) {
-										int tmpIndex2 = httpReqStr.indexOf("\n",tmpIndex);
-										logString = cachedInetAddress.getHostAddress()+" - "+httpReqStr.substring(tmpIndex+5,tmpIndex2).trim()+" - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
-									}
-									else {
-										logString = cachedInetAddress.getHostAddress()+" - - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
-									}
-									tmpIndex = httpReqStr.indexOf("Referer:");
-									if(tmpIndex!=-1) {
-										int tmpIndex2 = httpReqStr.indexOf("\n",tmpIndex);
-										logString = logString + " \""+httpReqStr.substring(tmpIndex+8,tmpIndex2).trim()+"\" ";
-									}
-									else {
-										logString = logString + " \"\" ";
-									}
-									tmpIndex = httpReqStr.indexOf("User-Agent:");
-									if(tmpIndex!=-1) {
-										int tmpIndex2 = httpReqStr.indexOf("\n",tmpIndex);
-										logString = logString + "\""+httpReqStr.substring(tmpIndex+11,tmpIndex2).trim()+"\"";
-									}
-									else {
-										logString = logString + "\"\"";
-									}
+									note = "request was too long";
 								}
-							
-								server.logger.log(logString);
+								logRequest(cachedInetAddress.getHostAddress(),note,logString,returnVal,System.currentTimeMillis()-latency,httpRequest.toString());
 							}
 						}
 					}
@@ -1038,7 +1000,23 @@ public class ConnectionKMethod extends KMethod
 					hostField = "";
 					fullpath = "/";
 					cgiParams = null;
+					tmpParams = null;
+					requestContentType = "application/x-www-form-urlencoded";
+					clientKeepAlive = false;
 					latency = System.currentTimeMillis();
+
+					// Write out the held responses unless more pipelined requests are waiting
+					if(!hasPipelinedRequest(socketIn)) {
+						socketOut.setHoldFlush(false);
+						try {
+							socketOut.flushBuffer();
+						}
+						catch(Exception e) {;}
+					}
+
+					if(selector!=null && park(socketIn,socketOut)) {
+						return;
+					}
 				}
 			}
 		}
@@ -1053,12 +1031,12 @@ public class ConnectionKMethod extends KMethod
 			try {
 				if(timedOut) {
 					if(!keepAliveTimedOut) {
-						socketOut.write(WebServer.getHTMLByCode(WebServer.REQUEST_TIMED_OUT).getBytes());
+						WebServer.writeHTMLByCode(socketOut,WebServer.REQUEST_TIMED_OUT);
 						socketOut.flush();
 					}
 				}
 				else if(httpRequest.toString().trim().length()>0) {
-					socketOut.write(WebServer.getHTMLByCode(WebServer.URL_NOT_FOUND).getBytes());
+					WebServer.writeHTMLByCode(socketOut,WebServer.URL_NOT_FOUND);
 					socketOut.flush();
 				}
 			}
@@ -1069,38 +1047,13 @@ public class ConnectionKMethod extends KMethod
 					if(httpRequest.toString().trim().length()>0 && !keepAliveTimedOut) {
 						//						logString = cachedInetAddress.getHostAddress()+" "+logString;
 						//						logString = "400 RESPONSE: "+logString+"\nREQUEST----------------------------------------------\n"+httpRequest+"-----------------------------------------------------\n";
-						String httpReqStr = httpRequest.toString();
-						int tmpIndex = httpReqStr.indexOf("Host:");
 						if(timedOut) {
 							returnVal = "408";
 						}
 						else {
 							returnVal = "404";
 						}
-						if(server.multihome && tmpIndex!=-1) {
-							int tmpIndex2 = httpReqStr.indexOf("\n",tmpIndex);
-							logString = cachedInetAddress.getHostAddress()+" - "+httpReqStr.substring(tmpIndex+5,tmpIndex2).trim()+" - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
-						}
-						else {
-							logString = cachedInetAddress.getHostAddress()+" - - ["+getLogDate()+"] "+logString+" "+returnVal+" "+(System.currentTimeMillis()-latency);
-						}
-						tmpIndex = httpReqStr.indexOf("Referer:");
-						if(tmpIndex!=-1) {
-							int tmpIndex2 = httpReqStr.indexOf("\n",tmpIndex);
-							logString = logString + " \""+httpReqStr.substring(tmpIndex+8,tmpIndex2).trim()+"\" ";
-						}
-						else {
-							logString = logString + " \"\" ";
-						}
-						tmpIndex = httpReqStr.indexOf("User-Agent:");
-						if(tmpIndex!=-1) {
-							int tmpIndex2 = httpReqStr.indexOf("\n",tmpIndex);
-							logString = logString + "\""+httpReqStr.substring(tmpIndex+11,tmpIndex2).trim()+"\"";
-						}
-						else {
-							logString = logString + "\"\"";
-						}
-						server.logger.log(logString);
+						logRequest(cachedInetAddress.getHostAddress(),null,logString,returnVal,System.currentTimeMillis()-latency,httpRequest.toString());
 					}
 				}
 			}
@@ -1136,6 +1089,100 @@ public class ConnectionKMethod extends KMethod
 
 
 
+	/**
+	 * This is called by the ThreadPool when the server is too busy to handle this connection.
+	 * A 503 response is sent and the connection is closed.
+	 */
+	public void reject()
+	{
+		reject(1);
+	}
+
+
+	/**
+	 * Sends a 503 response asking the client to retry after retryAfter seconds, and closes the connection.
+	 */
+	public void reject(int retryAfter)
+	{
+		if(socket!=null) {
+			try {
+				OutputStream out = socket.getOutputStream();
+				WebServer.writeHTMLByCode(out,WebServer.SERVICE_UNAVAILABLE,null,"Retry-After: "+retryAfter+"\n");
+				out.flush();
+			}
+			catch(Exception e) {;}
+			try {
+				socket.close();
+			}
+			catch(Exception e) {;}
+
+			server.warning(socket.getInetAddress() + " > [request was refused, server busy]");
+			socket = null;
+		}
+	}
+
+
+	/**
+	 * Hands this connection back to the ConnectionSelector if the client has not already sent
+	 * more data. Returns true if the connection was parked, in which case the streams must
+	 * not be closed.
+	 */
+	protected boolean park(HTTPRequestParser socketIn, HTTPPipelineOutputStream socketOut)
+	{
+		boolean rval = false;
+
+		try {
+			socketOut.flushBuffer();
+			if(socketIn.available()==0) {
+				selector.park(this);
+				rval = true;
+			}
+		}
+		catch(IOException e) {
+			server.debug("Could not park keep-alive connection: "+e);
+		}
+
+		return(rval);
+	}
+
+
+
+	/**
+	 * Returns true if the client has already sent data following the current request, which
+	 * means it is pipelining its requests. Line breaks following the request are skipped, so
+	 * they are not mistaken for another request while the responses are held back.
+	 */
+	protected boolean hasPipelinedRequest(HTTPRequestParser socketIn)
+	{
+		boolean rval = false;
+
+		try {
+			rval = (socketIn.skipLineBreaks()>0);
+		}
+		catch(IOException e) {;}
+
+		return(rval);
+	}
+
+
+
+	/**
+	 * Writes an entry to the access log. An HTTPAccessLogAgent formats and writes it in its own
+	 * thread, other loggers are given the formatted entry.
+	 */
+	protected void logRequest(String remoteAddr, String note, String logString, String returnVal, long latency, String request)
+	{
+		if(server.logger instanceof HTTPAccessLogAgent) {
+			((HTTPAccessLogAgent)server.logger).logRequest(remoteAddr,note,logString,returnVal,latency,request,server.multihome);
+		}
+		else {
+			StringBuffer entry = new StringBuffer(256);
+			HTTPAccessLogAgent.formatEntry(entry,remoteAddr,note,getLogDate(),logString,returnVal,latency,request,server.multihome);
+			server.logger.log(entry.toString());
+		}
+	}
+
+
 	protected String getLogDate()
 	{
 		Calendar c = Calendar.getInstance();
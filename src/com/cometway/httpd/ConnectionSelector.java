@@ -0,0 +1,454 @@
+package com.cometway.httpd;
+
+import com.cometway.util.KMethod;
+import com.cometway.util.ThreadPool;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+
+
+/**
+ * This is the java.nio connection engine used by the WebServer when its 'connection_engine'
+ * property is set to 'nio'. New connections and idle keep-alive connections are parked in
+ * a Selector, and a ConnectionKMethod is only given a PooledThread once a complete request
+ * header has arrived. After a keep-alive request has been handled, the ConnectionKMethod
+ * hands its connection back to this selector instead of blocking its thread in readLine().
+ *
+ * The bytes read by the selector are handed to the ConnectionKMethod, which reads them
+ * back before reading from the socket, so WebServerExtensions and RequestAgents see the
+ * same blocking streams they always have.
+ */
+public class ConnectionSelector implements Runnable
+{
+	/** The maximum time the selector waits before checking for expired connections. */
+	protected static final int SELECT_TIMEOUT = 1000;
+
+	/** The selector timeout used while connections are waiting for a free PooledThread. */
+	protected static final int DISPATCH_RETRY_TIMEOUT = 100;
+
+	protected WebServer server;
+	protected ServerSocketChannel serverChannel;
+	protected Selector selector;
+	protected ByteBuffer readBuffer;
+	protected boolean stopped;
+
+	// ConnectionKMethods which have finished a keep-alive request and need to be registered again
+	protected Vector parked = new Vector();
+
+	// Connections which have a complete request header and whose keys have been cancelled
+	protected Vector cancelled = new Vector();
+
+	// Connections which are in blocking mode waiting for a PooledThread
+	protected Vector waiting = new Vector();
+
+	protected int socket_initial_timeout;
+	protected int socket_timeout;
+	protected int socket_linger_time;
+	protected int header_buffer_size;
+	protected long lastExpireCheck;
+
+
+	/**
+	 * The selector requires the WebServer which owns it and an open, bound ServerSocketChannel.
+	 */
+	public ConnectionSelector(WebServer server, ServerSocketChannel serverChannel)
+	{
+		this.server = server;
+		this.serverChannel = serverChannel;
+
+		socket_initial_timeout = server.getInteger("socket_initial_timeout");
+		socket_timeout = server.getInteger("socket_timeout");
+		socket_linger_time = server.getInteger("socket_linger_time");
+		header_buffer_size = server.getInteger("nio_header_buffer_size");
+
+		readBuffer = ByteBuffer.allocateDirect(8192);
+	}
+
+
+	/**
+	 * Accepts connections and reads request headers until stop() is called.
+	 */
+	public void run()
+	{
+		try {
+			selector = Selector.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch(Exception e) {
+			server.error("Could not open the connection selector", e);
+			return;
+		}
+
+		while(!stopped) {
+			try {
+				if(waiting.size()>0) {
+					selector.select(DISPATCH_RETRY_TIMEOUT);
+				}
+				else {
+					selector.select(SELECT_TIMEOUT);
+				}
+
+				registerParked();
+				handleSelectedKeys();
+
+				// Cancelled keys are only deregistered by the next select, the channels
+				// cannot be put back into blocking mode until that has happened.
+				while(cancelled.size()>0) {
+					selector.selectNow();
+
+					for(int x=0;x<cancelled.size();x++) {
+						Connection conn = (Connection)cancelled.elementAt(x);
+						try {
+							conn.channel.configureBlocking(true);
+							waiting.addElement(conn);
+						}
+						catch(Exception e) {
+							close(conn);
+						}
+					}
+					cancelled.removeAllElements();
+
+					handleSelectedKeys();
+				}
+
+				dispatch();
+				expireIdleConnections();
+			}
+			catch(Exception e) {
+				server.error("Error in connection selector loop", e);
+			}
+		}
+
+		try {
+			selector.close();
+		}
+		catch(Exception e) {;}
+	}
+
+
+	/**
+	 * Stops the selector loop.
+	 */
+	public void stop()
+	{
+		stopped = true;
+
+		if(selector!=null) {
+			selector.wakeup();
+		}
+	}
+
+
+	/**
+	 * Called by a ConnectionKMethod when it has finished a keep-alive request and there is no
+	 * more data to read from the client. The connection will be watched by the selector until
+	 * the client sends its next request.
+	 */
+	public void park(ConnectionKMethod kMethod)
+	{
+		synchronized(parked) {
+			parked.addElement(kMethod);
+		}
+
+		selector.wakeup();
+	}
+
+
+	protected void registerParked()
+	{
+		Vector tmp = null;
+
+		synchronized(parked) {
+			if(parked.size()>0) {
+				tmp = parked;
+				parked = new Vector();
+			}
+		}
+
+		if(tmp!=null) {
+			for(int x=0;x<tmp.size();x++) {
+				ConnectionKMethod kMethod = (ConnectionKMethod)tmp.elementAt(x);
+				Connection conn = new Connection(kMethod.socket.getChannel(), kMethod);
+				try {
+					conn.channel.configureBlocking(false);
+					conn.channel.register(selector, SelectionKey.OP_READ, conn);
+				}
+				catch(Exception e) {
+					server.debug("Could not park keep-alive connection: "+e);
+					close(conn);
+				}
+			}
+		}
+	}
+
+
+	protected void handleSelectedKeys()
+	{
+		Iterator keys = selector.selectedKeys().iterator();
+		while(keys.hasNext()) {
+			SelectionKey key = (SelectionKey)keys.next();
+			keys.remove();
+
+			if(key.isValid()) {
+				if(key.isAcceptable()) {
+					accept();
+				}
+				else if(key.isReadable()) {
+					read(key);
+				}
+			}
+		}
+	}
+
+
+	protected void accept()
+	{
+		try {
+			SocketChannel channel = serverChannel.accept();
+			while(channel!=null) {
+				Connection conn = new Connection(channel, null);
+				try {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, conn);
+				}
+				catch(Exception e) {
+					close(conn);
+				}
+				channel = serverChannel.accept();
+			}
+		}
+		catch(IOException e) {
+			server.error("Error accepting connection", e);
+		}
+	}
+
+
+	protected void read(SelectionKey key)
+	{
+		Connection conn = (Connection)key.attachment();
+		int bytesRead = -1;
+
+		try {
+			readBuffer.clear();
+			bytesRead = conn.channel.read(readBuffer);
+		}
+		catch(IOException e) {
+			bytesRead = -1;
+		}
+
+		if(bytesRead==-1) {
+			key.cancel();
+			close(conn);
+		}
+		else if(bytesRead>0) {
+			readBuffer.flip();
+			conn.append(readBuffer);
+
+			if(conn.headerComplete() || conn.length>=header_buffer_size) {
+				// The header is complete, (or the worker has to report it as too long)
+				key.cancel();
+				conn.ready = System.nanoTime();
+				cancelled.addElement(conn);
+			}
+		}
+	}
+
+
+	/**
+	 * Hands connections with complete request headers to PooledThreads while there is room in
+	 * the ThreadPool. Connections that do not fit stay in blocking mode and are retried on the
+	 * next pass through the selector loop, unless the WebServer's HTTPAdmissionControl refuses them.
+	 */
+	protected void dispatch()
+	{
+		ThreadPool threadPool = server.threadPool;
+		HTTPAdmissionControl admission = server.admission;
+
+		while(waiting.size()>0) {
+			if(threadPool.freeThreads()==0 && threadPool.totalThreads()>=threadPool.getMaxThreads()) {
+				break;
+			}
+
+			Connection conn = (Connection)waiting.elementAt(0);
+			ConnectionKMethod kMethod = getKMethod(conn);
+
+			if(threadPool.getThread(admission==null ? (KMethod)kMethod : admission.getAdmitted(kMethod))) {
+				waiting.removeElementAt(0);
+			}
+			else {
+				kMethod.prefetched = null;
+				break;
+			}
+		}
+
+		if(admission!=null) {
+			admit(admission);
+		}
+	}
+
+
+	/**
+	 * Hands the waiting connections with priority requests to priority threads, and refuses the
+	 * connections which cannot wait any longer for a PooledThread.
+	 */
+	protected void admit(HTTPAdmissionControl admission)
+	{
+		int x = 0;
+
+		while(x<waiting.size()) {
+			Connection conn = (Connection)waiting.elementAt(x);
+
+			if(admission.isPriority(conn.data,conn.length)) {
+				if(admission.hasPriorityThread() && admission.runPriority(getKMethod(conn))) {
+					waiting.removeElementAt(x);
+					continue;
+				}
+			}
+			else if(!admission.canWait(x+1,conn.ready)) {
+				waiting.removeElementAt(x);
+				admission.reject(getKMethod(conn),x+1);
+				continue;
+			}
+
+			x++;
+		}
+	}
+
+
+	/**
+	 * Returns the ConnectionKMethod of a connection with a complete request header, ready to execute.
+	 */
+	protected ConnectionKMethod getKMethod(Connection conn)
+	{
+		ConnectionKMethod rval = conn.kMethod;
+
+		if(rval==null) {
+			rval = new ConnectionKMethod(server, conn.channel.socket(), socket_linger_time, this);
+		}
+		rval.prefetched = conn.getData();
+		rval.queuedAt = conn.ready;
+
+		return(rval);
+	}
+
+
+	/**
+	 * Closes connections which have not sent a complete request in time. New connections
+	 * use the 'socket_initial_timeout', parked keep-alive connections use the 'socket_timeout'.
+	 */
+	protected void expireIdleConnections()
+	{
+		long now = System.currentTimeMillis();
+
+		if(now-lastExpireCheck >= SELECT_TIMEOUT) {
+			lastExpireCheck = now;
+
+			Iterator keys = selector.keys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = (SelectionKey)keys.next();
+				Object o = key.attachment();
+				if(key.isValid() && o instanceof Connection) {
+					Connection conn = (Connection)o;
+					int timeout = socket_initial_timeout;
+					if(conn.kMethod!=null) {
+						timeout = socket_timeout;
+					}
+					if(now-conn.lastActivity > timeout) {
+						key.cancel();
+						close(conn);
+					}
+				}
+			}
+		}
+	}
+
+
+	protected void close(Connection conn)
+	{
+		try {
+			conn.channel.close();
+		}
+		catch(Exception e) {;}
+	}
+
+
+
+	/**
+	 * The request header bytes read so far from a single connection.
+	 */
+	protected static class Connection
+	{
+		SocketChannel channel;
+		ConnectionKMethod kMethod;
+		byte[] data = new byte[512];
+		int length;
+		int scanned;
+		long lastActivity;
+		long ready;
+
+
+		Connection(SocketChannel channel, ConnectionKMethod kMethod)
+		{
+			this.channel = channel;
+			this.kMethod = kMethod;
+			lastActivity = System.currentTimeMillis();
+		}
+
+
+		void append(ByteBuffer buffer)
+		{
+			// Blank lines sent between keep-alive requests are dropped
+			while(length==0 && buffer.hasRemaining()) {
+				byte b = buffer.get(buffer.position());
+				if(b=='\r' || b=='\n') {
+					buffer.get();
+				}
+				else {
+					break;
+				}
+			}
+
+			int count = buffer.remaining();
+			if(length+count>data.length) {
+				byte[] tmp = new byte[Math.max(data.length*2, length+count)];
+				System.arraycopy(data,0,tmp,0,length);
+				data = tmp;
+			}
+			buffer.get(data,length,count);
+			length = length + count;
+			lastActivity = System.currentTimeMillis();
+		}
+
+
+		boolean headerComplete()
+		{
+			for(int x=Math.max(1,scanned);x<length;x++) {
+				if(data[x]=='\n') {
+					if(data[x-1]=='\n') {
+						return(true);
+					}
+					else if(x>1 && data[x-1]=='\r' && data[x-2]=='\n') {
+						return(true);
+					}
+				}
+			}
+			scanned = length;
+			return(false);
+		}
+
+
+		byte[] getData()
+		{
+			byte[] rval = new byte[length];
+			System.arraycopy(data,0,rval,0,length);
+			return(rval);
+		}
+	}
+}
+
@@ -457,38 +457,41 @@ public class HTMLFormWriter
 
     protected String encode(String in)
     {
-		StringBuffer rval = new StringBuffer();
-		int index = in.indexOf("&");
-		int lastIndex = 0;
+		int x = 0;
+		int length = in.length();
 
-		while (index != -1)
+		while ((x < length) && (in.charAt(x) != '&') && (in.charAt(x) != '"'))
 		{
-			index++;
-			rval.append(in.substring(lastIndex,index));
-			rval.append("amp;");
-			lastIndex = index;
-			index = in.indexOf("&",index);
+			x++;
 		}
 
-		rval.append(in.substring(lastIndex));
+		if (x == length)
+		{
+			return (in);
+		}
 
-		in = rval.toString();
-		rval = new StringBuffer();
-		index = in.indexOf("\"");
-		lastIndex = 0;
+		StringBuffer rval = new StringBuffer(length + 16);
+		rval.append(in, 0, x);
 
-		while (index != -1)
+		for (; x < length; x++)
 		{
-			rval.append(in.substring(lastIndex,index));
-			index++;
-			rval.append("&quot;");
-			lastIndex = index;
-			index = in.indexOf("\"",index);
+			char c = in.charAt(x);
+
+			if (c == '&')
+			{
+				rval.append("&amp;");
+			}
+			else if (c == '"')
+			{
+				rval.append("&quot;");
+			}
+			else
+			{
+				rval.append(c);
+			}
 		}
 
-		rval.append(in.substring(lastIndex));
-
-		return(rval.toString());
+		return (rval.toString());
     }
 }
 
@@ -1,6 +1,8 @@
 
 package com.cometway.httpd;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Vector;
 
 import com.cometway.props.Props;
@@ -19,6 +21,22 @@ public class HTMLStringTools
 {
 	protected final static String EOL = System.getProperty("line.separator");
 
+	protected final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/** The value of each hexadecimal digit, and -1 for the other ASCII characters */
+	protected final static int[] HEX_VALUES = new int[128];
+
+	/** The ASCII characters encode() leaves as they are, other than the forward slash */
+	protected final static boolean[] UNENCODED = new boolean[128];
+
+	static
+	{
+		for(int x=0;x<128;x++) {
+			HEX_VALUES[x] = Character.digit((char)x,16);
+			UNENCODED[x] = (x>='0' && x<='9') || (x>='@' && x<='Z') || (x>='a' && x<='z') || x=='*' || x=='-' || x=='.' || x=='_';
+		}
+	}
+
 
 	/**
 	 * This method extracts the first img tag that is in the data
@@ -499,6 +517,7 @@ public class HTMLStringTools
 
 	/**
 	 * This method encodes a URL and the data embedded in the URL so that it can be requested.
+	 * The String is returned as it is if nothing in it needs to be encoded.
 	 */
 	public static String encode(String in)
 	{
@@ -513,78 +532,264 @@ public class HTMLStringTools
 	 * Currently, the encoding scheme works like this:<br>
 	 * spaces are encoded as '+'  <br>
 	 * all letters, numbers, and the '*', '-', '.', '@', and '_' characters are not encoded   <br>
-	 * everything else will be encoded as '%XY' where X and Y are the hex value of the character
+	 * everything else will be encoded as '%XY' where X and Y are the hex value of the character,
+	 * characters above 127 are encoded as the '%XY' of each byte of their UTF-8 encoding
 	 */
 	public static String encode(String in, boolean fullEncode, boolean encodeForwardSlash)
 	{
-		StringBuffer rval = new StringBuffer();
+		if(!fullEncode && getEncodeIndex(in,encodeForwardSlash)==-1) {
+			return(in);
+		}
 
-		int[] inArray = new int[in.length()];
-		for(int x=0;x<inArray.length;x++) {
-			inArray[x] = (int)in.charAt(x);
+		StringBuilder rval = new StringBuilder(in.length()+16);
+
+		try {
+			encode(in,fullEncode,encodeForwardSlash,rval);
 		}
+		catch(IOException e) {;}
 
-		if(fullEncode) {
-			for(int x=0;x<inArray.length;x++) {
-				rval.append("%");
-				rval.append(intToHex(inArray[x]));
+		return(rval.toString());
+	}
+
+	/**
+	 * This method encodes a URL as encode(String) does, appending it to the Appendable rather than
+	 * creating a String, so it can be written straight into a response or page being built.
+	 */
+	public static void encode(String in, Appendable out) throws IOException
+	{
+		encode(in,false,false,out);
+	}
+
+	/**
+	 * This method encodes a URL as encode(String, boolean, boolean) does, appending it to the Appendable
+	 * rather than creating a String.
+	 */
+	public static void encode(String in, boolean fullEncode, boolean encodeForwardSlash, Appendable out) throws IOException
+	{
+		int length = in.length();
+		int run = 0;
+
+		for(int x=0;x<length;x++) {
+			char c = in.charAt(x);
+			if(!fullEncode && c<128 && (UNENCODED[c] || (c=='/' && !encodeForwardSlash))) {
+				continue;
 			}
-		}
-		else {
-			for(int x=0;x<inArray.length;x++) {
-				if(inArray[x] == 42 ||
-					inArray[x] == 45 ||
-					inArray[x] == 46 ||
-					(inArray[x] >= 48 && inArray[x] <= 57) ||
-					(inArray[x] >= 64 && inArray[x] <= 90) ||
-					inArray[x] == 95 ||
-					(inArray[x] >= 97 && inArray[x] <= 122)) {
-					rval.append(in.charAt(x));
-				}
-				else if(inArray[x] == 47) {
-					if(encodeForwardSlash) {
-						rval.append("%");
-						rval.append(intToHex(inArray[x]));
-					}
-					else {
-						rval.append(in.charAt(x));
-					}
-				}
-				else if(inArray[x] == 32) {
-					rval.append("+");
+
+			append(in,run,x,out);
+			run = x+1;
+
+			if(fullEncode || c>=128 || c!=' ') {
+				int codePoint = c;
+				if(Character.isHighSurrogate(c) && x+1<length && Character.isLowSurrogate(in.charAt(x+1))) {
+					codePoint = Character.toCodePoint(c,in.charAt(x+1));
+					x++;
+					run = x+1;
 				}
-				else {
-					rval.append("%");
-					rval.append(intToHex(inArray[x]));
+				else if(Character.isSurrogate(c)) {
+					// An unpaired surrogate has no UTF-8 encoding
+					codePoint = '?';
 				}
+				appendUTF8(codePoint,out);
+			}
+			else {
+				out.append('+');
 			}
 		}
 
-		return(rval.toString());
+		append(in,run,length,out);
 	}
 
 	/**
-	 * This method decodes an encoded URL.
+	 * This method decodes an encoded URL. Sequences of '%XY' bytes which are valid UTF-8 are decoded
+	 * as the characters they encode, any other '%XY' is decoded as the character with the value XY.
+	 * The String is returned as it is if nothing in it needs to be decoded.
 	 */
 	public static String decode(String in)
 	{
-		StringBuffer rval = new StringBuffer();
+		int length = in.length();
+		int x = 0;
+		while(x<length) {
+			char c = in.charAt(x);
+			if(c=='%' || c=='+') {
+				break;
+			}
+			x++;
+		}
+		if(x==length) {
+			return(in);
+		}
+
+		StringBuilder rval = new StringBuilder(length);
+
+		try {
+			decode(in,rval);
+		}
+		catch(IOException e) {;}
+
+		return(rval.toString());
+	}
+
+	/**
+	 * This method decodes an encoded URL as decode(String) does, appending it to the Appendable rather
+	 * than creating a String.
+	 */
+	public static void decode(String in, Appendable out) throws IOException
+	{
+		int length = in.length();
+		int run = 0;
+		int x = 0;
 
-		for(int x=0;x<in.length();x++) {
+		while(x<length) {
 			char c = in.charAt(x);
 			if(c=='+') {
-				rval.append(" ");
+				append(in,run,x,out);
+				out.append(' ');
+				x++;
+				run = x;
 			}
-			else if(c=='%') {
-				rval.append((char)hexToInt(in.substring(x+1,x+3)));
-				x = x+2;
+			else if(c=='%' && getEncodedByte(in,x)!=-1) {
+				append(in,run,x,out);
+				x = x+decodeUTF8(in,x,out);
+				run = x;
 			}
 			else {
-				rval.append(c);
+				// A '%' which does not start a '%XY' is left as it is
+				x++;
 			}
-		}				
+		}
 
-		return(rval.toString());
+		append(in,run,length,out);
+	}
+
+	/**
+	 * Returns the index of the first character of the String which encode() changes, or -1 if there is none.
+	 */
+	protected static int getEncodeIndex(String in, boolean encodeForwardSlash)
+	{
+		int length = in.length();
+
+		for(int x=0;x<length;x++) {
+			char c = in.charAt(x);
+			if(c>=128 || !(UNENCODED[c] || (c=='/' && !encodeForwardSlash))) {
+				return(x);
+			}
+		}
+
+		return(-1);
+	}
+
+	/**
+	 * Appends characters start to end of the String, writing them directly to a Writer so no substring is created.
+	 */
+	protected static void append(String in, int start, int end, Appendable out) throws IOException
+	{
+		if(end>start) {
+			if(out instanceof Writer) {
+				((Writer)out).write(in,start,end-start);
+			}
+			else {
+				out.append(in,start,end);
+			}
+		}
+	}
+
+	/**
+	 * Appends the '%XY' encoding of each byte of the UTF-8 encoding of a character.
+	 */
+	protected static void appendUTF8(int codePoint, Appendable out) throws IOException
+	{
+		if(codePoint<0x80) {
+			appendEncodedByte(codePoint,out);
+		}
+		else if(codePoint<0x800) {
+			appendEncodedByte(0xC0 | (codePoint>>6),out);
+			appendEncodedByte(0x80 | (codePoint & 0x3F),out);
+		}
+		else if(codePoint<0x10000) {
+			appendEncodedByte(0xE0 | (codePoint>>12),out);
+			appendEncodedByte(0x80 | ((codePoint>>6) & 0x3F),out);
+			appendEncodedByte(0x80 | (codePoint & 0x3F),out);
+		}
+		else {
+			appendEncodedByte(0xF0 | (codePoint>>18),out);
+			appendEncodedByte(0x80 | ((codePoint>>12) & 0x3F),out);
+			appendEncodedByte(0x80 | ((codePoint>>6) & 0x3F),out);
+			appendEncodedByte(0x80 | (codePoint & 0x3F),out);
+		}
+	}
+
+	protected static void appendEncodedByte(int b, Appendable out) throws IOException
+	{
+		out.append('%');
+		out.append(HEX_DIGITS[b>>4]);
+		out.append(HEX_DIGITS[b & 0x0F]);
+	}
+
+	/**
+	 * Returns the value of the '%XY' at the index of the String, or -1 if there is not a '%XY' there.
+	 */
+	protected static int getEncodedByte(String in, int index)
+	{
+		if(index+2<in.length() && in.charAt(index)=='%') {
+			char first = in.charAt(index+1);
+			char second = in.charAt(index+2);
+			if(first<128 && second<128 && HEX_VALUES[first]!=-1 && HEX_VALUES[second]!=-1) {
+				return((HEX_VALUES[first]<<4) | HEX_VALUES[second]);
+			}
+		}
+
+		return(-1);
+	}
+
+	/**
+	 * Decodes the '%XY' at the index of the String, and the '%XY' following it if they are a UTF-8
+	 * sequence, appending the character. Returns the number of characters of the String decoded.
+	 */
+	protected static int decodeUTF8(String in, int index, Appendable out) throws IOException
+	{
+		int b = getEncodedByte(in,index);
+		int count = 0;
+		int codePoint = b;
+
+		if(b>=0xC2 && b<=0xDF) {
+			count = 1;
+			codePoint = b & 0x1F;
+		}
+		else if(b>=0xE0 && b<=0xEF) {
+			count = 2;
+			codePoint = b & 0x0F;
+		}
+		else if(b>=0xF0 && b<=0xF4) {
+			count = 3;
+			codePoint = b & 0x07;
+		}
+
+		for(int x=1;x<=count;x++) {
+			int next = getEncodedByte(in,index+x*3);
+			if(next==-1 || (next & 0xC0)!=0x80) {
+				count = 0;
+				break;
+			}
+			codePoint = (codePoint<<6) | (next & 0x3F);
+		}
+
+		// Overlong encodings, surrogates and values above U+10FFFF are not UTF-8
+		if((count==2 && (codePoint<0x800 || (codePoint>=0xD800 && codePoint<=0xDFFF))) || (count==3 && (codePoint<0x10000 || codePoint>0x10FFFF))) {
+			count = 0;
+		}
+
+		if(count==0) {
+			out.append((char)b);
+		}
+		else if(codePoint>=0x10000) {
+			out.append(Character.highSurrogate(codePoint));
+			out.append(Character.lowSurrogate(codePoint));
+		}
+		else {
+			out.append((char)codePoint);
+		}
+
+		return((count+1)*3);
 	}
 
 
@@ -0,0 +1,550 @@
+package com.cometway.httpd;
+
+import com.cometway.io.FileLoggerAgent;
+import com.cometway.props.Props;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This agent writes the access log of the WebServer without holding up the connections being
+ * logged. It replaces the FileLoggerAgent as the logger_agent, and writes the same log files.
+ *
+ * The ConnectionKMethod hands each request to logRequest(), which only stores its fields in the
+ * next free slot of a ring buffer; claiming a slot takes no lock. A single writer thread takes the
+ * records out in batches, formats them, and writes them through a large buffer, which is flushed
+ * every flush_interval milliseconds and when it fills. The log file is synced to the disk every
+ * sync_interval milliseconds.
+ *
+ * When the ring buffer is full, records are dropped and counted if overflow_policy is drop, or the
+ * request thread waits for the writer to make room if it is block.
+ */
+public class HTTPAccessLogAgent extends FileLoggerAgent implements Runnable
+{
+	public static final String DROP = "drop";
+	public static final String BLOCK = "block";
+
+	// How long a request thread waits before checking for room again when the buffer is full
+	protected static final long BLOCK_WAIT_NANOS = 50000;
+
+	protected Record[] records;
+	protected AtomicLongArray sequences;
+	protected int mask;
+	protected AtomicLong tail = new AtomicLong();
+	protected volatile long head;
+
+	protected boolean block;
+	protected int flush_interval;
+	protected int sync_interval;
+	protected int logs_per_file;
+
+	protected Thread writer;
+	protected volatile boolean running;
+	protected volatile boolean sleeping;
+
+	protected FileOutputStream file;
+	protected BufferedOutputStream stream;
+
+	protected AtomicLong dropped = new AtomicLong();
+	protected AtomicLong blocked = new AtomicLong();
+	protected long logged;
+	protected long flushes;
+	protected long syncs;
+
+	// Used by the writer thread only
+	protected StringBuffer batch = new StringBuffer(65536);
+	protected SimpleDateFormat dateFormat;
+	protected String zoneOffset;
+	protected long dateSecond = -1;
+	protected String date;
+
+
+	/**
+	 * Initializes the properties of the FileLoggerAgent, and these:
+	 * ring_buffer_size - The number of records which can wait to be written, rounded up to a power of 2 (default: 8192)
+	 * overflow_policy - drop or block, what happens to a record when the ring buffer is full (default: drop)
+	 * write_buffer_size - The size of the buffer the log file is written through (default: 65536)
+	 * flush_interval - Milliseconds between writing out what has been logged (default: 1000)
+	 * sync_interval - Milliseconds between syncing the log file to the disk, 0 to leave it to the OS (default: 5000)
+	 */
+	public void initProps()
+	{
+		super.initProps();
+
+		setDefault("ring_buffer_size","8192");
+		setDefault("overflow_policy",DROP);
+		setDefault("write_buffer_size","65536");
+		setDefault("flush_interval","1000");
+		setDefault("sync_interval","5000");
+	}
+
+
+	/**
+	 * Creates the ring buffer and the log file, starts the writer thread, and registers.
+	 */
+	public void start()
+	{
+		int capacity = 1;
+		while(capacity<getInteger("ring_buffer_size") && capacity<(1<<30)) {
+			capacity = capacity<<1;
+		}
+
+		records = new Record[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for(int x=0;x<capacity;x++) {
+			records[x] = new Record();
+			sequences.set(x,x);
+		}
+		mask = capacity-1;
+
+		block = getTrimmedString("overflow_policy").equalsIgnoreCase(BLOCK);
+		flush_interval = Math.max(getInteger("flush_interval"),1);
+		sync_interval = getInteger("sync_interval");
+
+		dateFormat = new SimpleDateFormat("d/MMM/yyyy:HH:mm:ss ",Locale.US);
+		zoneOffset = getZoneOffset();
+
+		logs_per_file = getInteger("logs_per_file");
+		createLogFile();
+
+		running = true;
+		writer = new Thread(this,"HTTPAccessLogAgent");
+		writer.setDaemon(true);
+		writer.start();
+
+		register();
+	}
+
+
+	/**
+	 * Unregisters, then stops the writer thread once it has written every record logged.
+	 */
+	public void stop()
+	{
+		unregister();
+
+		running = false;
+		if(writer!=null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			}
+			catch(InterruptedException e) {;}
+			writer = null;
+		}
+	}
+
+
+	/**
+	 * Logs a request handled by the WebServer. The entry is formatted by formatEntry() when it is written.
+	 */
+	public void logRequest(String remoteAddr, String note, String requestLine, String returnVal, long latency, String request, boolean multihome)
+	{
+		long pos = claim();
+
+		if(pos!=-1) {
+			Record record = records[(int)(pos&mask)];
+			record.time = System.currentTimeMillis();
+			record.remoteAddr = remoteAddr;
+			record.note = note;
+			record.requestLine = requestLine;
+			record.returnVal = returnVal;
+			record.latency = latency;
+			record.request = request;
+			record.multihome = multihome;
+			record.message = null;
+			publish(pos);
+		}
+	}
+
+
+	/**
+	 * Logs a line as it is.
+	 */
+	public void log(String s)
+	{
+		long pos = claim();
+
+		if(pos!=-1) {
+			Record record = records[(int)(pos&mask)];
+			record.message = s;
+			publish(pos);
+		}
+	}
+
+
+	/**
+	 * Returns the counters of this logger: logged (records written), dropped (records lost because
+	 * the ring buffer was full), blocked (times a request thread waited for room), queued (records
+	 * waiting to be written), capacity, flushes, and syncs.
+	 */
+	public Props getMetrics()
+	{
+		Props rval = new Props();
+		long queued = tail.get()-head;
+
+		rval.setLong("logged",logged);
+		rval.setLong("dropped",dropped.get());
+		rval.setLong("blocked",blocked.get());
+		rval.setLong("queued",queued>0 ? queued : 0);
+		rval.setInteger("capacity",records.length);
+		rval.setLong("flushes",flushes);
+		rval.setLong("syncs",syncs);
+		rval.setProperty("overflow_policy",block ? BLOCK : DROP);
+
+		return(rval);
+	}
+
+
+	/**
+	 * Formats an access log entry in the format of the WebServer: the client address, the Host
+	 * field when multihome is true or a note saying why the request was not handled, the date,
+	 * the request line, the status, the time taken in milliseconds, and the Referer and User-Agent
+	 * fields of the request.
+	 */
+	public static void formatEntry(StringBuffer buffer, String remoteAddr, String note, String date, String requestLine, String returnVal, long latency, String request, boolean multihome)
+	{
+		buffer.append(remoteAddr);
+		if(note!=null) {
+			buffer.append(" - (");
+			buffer.append(note);
+			buffer.append(") - [");
+		}
+		else {
+			String host = null;
+			if(multihome) {
+				host = getField(request,"Host:");
+			}
+			if(host!=null) {
+				buffer.append(" - ");
+				buffer.append(host);
+				buffer.append(" - [");
+			}
+			else {
+				buffer.append(" - - [");
+			}
+		}
+		buffer.append(date);
+		buffer.append("] ");
+		buffer.append(requestLine);
+		buffer.append(' ');
+		buffer.append(returnVal);
+		buffer.append(' ');
+		buffer.append(latency);
+
+		if(note==null) {
+			String field = getField(request,"Referer:");
+			buffer.append(" \"");
+			buffer.append(field!=null ? field : "");
+			buffer.append("\" \"");
+			field = getField(request,"User-Agent:");
+			buffer.append(field!=null ? field : "");
+			buffer.append('"');
+		}
+	}
+
+
+	/**
+	 * Returns the value of the first field of the request starting with name, or null.
+	 */
+	protected static String getField(String request, String name)
+	{
+		String rval = null;
+		int index = request.indexOf(name);
+
+		if(index!=-1) {
+			int end = request.indexOf('\n',index);
+			if(end==-1) {
+				end = request.length();
+			}
+			rval = request.substring(index+name.length(),end).trim();
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the position of a free slot in the ring buffer, or -1 if the record is dropped.
+	 */
+	protected long claim()
+	{
+		boolean waited = false;
+		long pos = tail.get();
+
+		while(true) {
+			long diff = sequences.get((int)(pos&mask))-pos;
+
+			if(diff==0) {
+				if(tail.compareAndSet(pos,pos+1)) {
+					return(pos);
+				}
+				pos = tail.get();
+			}
+			else if(diff<0) {
+				// The buffer is full
+				if(!block || !running) {
+					dropped.incrementAndGet();
+					return(-1);
+				}
+				if(!waited) {
+					blocked.incrementAndGet();
+					waited = true;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+				pos = tail.get();
+			}
+			else {
+				// Another thread claimed the slot first
+				pos = tail.get();
+			}
+		}
+	}
+
+
+	/**
+	 * Hands the filled slot to the writer, which is woken once the buffer is half full.
+	 */
+	protected void publish(long pos)
+	{
+		sequences.set((int)(pos&mask),pos+1);
+
+		if(sleeping && pos-head>=(mask>>1)) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+
+	/**
+	 * The writer thread.
+	 */
+	public void run()
+	{
+		long now = System.currentTimeMillis();
+		long nextFlush = now+flush_interval;
+		long nextSync = now+sync_interval;
+		boolean unsynced = false;
+
+		while(true) {
+			boolean stopping = !running;
+			int count = writeBatch();
+			if(count>0) {
+				unsynced = true;
+			}
+
+			now = System.currentTimeMillis();
+			try {
+				if(now>=nextFlush || stopping) {
+					stream.flush();
+					flushes++;
+					nextFlush = now+flush_interval;
+				}
+				if(unsynced && ((sync_interval>0 && now>=nextSync) || stopping)) {
+					stream.flush();
+					file.getFD().sync();
+					syncs++;
+					nextSync = now+sync_interval;
+					unsynced = false;
+				}
+			}
+			catch(Exception e) {
+				error("Could not write the access log",e);
+			}
+
+			if(stopping && count==0) {
+				break;
+			}
+
+			if(count==0) {
+				sleeping = true;
+				if(sequences.get((int)(head&mask))!=head+1 && running) {
+					LockSupport.parkNanos((nextFlush-now)*1000000);
+				}
+				sleeping = false;
+			}
+		}
+
+		closeLogFile();
+	}
+
+
+	/**
+	 * Formats and writes the records waiting in the ring buffer. Returns the number written.
+	 */
+	protected int writeBatch()
+	{
+		int count = 0;
+
+		batch.setLength(0);
+		while(sequences.get((int)(head&mask))==head+1) {
+			Record record = records[(int)(head&mask)];
+
+			if(record.message!=null) {
+				batch.append(record.message);
+			}
+			else {
+				formatEntry(batch,record.remoteAddr,record.note,getLogDate(record.time),record.requestLine,record.returnVal,record.latency,record.request,record.multihome);
+			}
+			batch.append(EOL);
+
+			record.clear();
+			sequences.set((int)(head&mask),head+mask+1);
+			head++;
+			count++;
+
+			logCount++;
+			if(logCount>logs_per_file || batch.length()>=65536) {
+				break;
+			}
+		}
+
+		if(count>0) {
+			try {
+				stream.write(batch.toString().getBytes("ISO-8859-1"));
+				logged = logged + count;
+
+				if(logCount>logs_per_file) {
+					createLogFile();
+				}
+			}
+			catch(Exception e) {
+				error("Could not write the access log",e);
+			}
+		}
+
+		return(count);
+	}
+
+
+	/**
+	 * Returns the date of an entry in the format of ConnectionKMethod.getLogDate(), which is
+	 * formatted once a second.
+	 */
+	protected String getLogDate(long time)
+	{
+		long second = time/1000;
+
+		if(second!=dateSecond) {
+			date = dateFormat.format(new Date(time))+zoneOffset;
+			dateSecond = second;
+		}
+
+		return(date);
+	}
+
+
+	/**
+	 * Returns the time zone offset the way ConnectionKMethod.getLogDate() writes it.
+	 */
+	protected String getZoneOffset()
+	{
+		String rval = "";
+		int zoffset = TimeZone.getDefault().getRawOffset();
+
+		if(zoffset<0) {
+			rval = "-";
+			zoffset = zoffset*-1;
+		}
+
+		zoffset = zoffset/(60*600);
+		if((""+zoffset).length()<3) {
+			rval = rval+"00"+zoffset;
+		}
+		else if((""+zoffset).length()<4) {
+			rval = rval+"0"+zoffset;
+		}
+		else {
+			rval = rval+zoffset;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Creates a new log file, closing the current one.
+	 */
+	protected void createLogFile()
+	{
+		String filename = null;
+
+		try {
+			String log_file_dir = getTrimmedString("log_file_dir");
+			SimpleDateFormat sdf = new SimpleDateFormat(getTrimmedString("log_file_date_format"));
+			filename = sdf.format(new Date())+getTrimmedString("log_file_suffix");
+
+			closeLogFile();
+
+			file = new FileOutputStream(new File(log_file_dir,filename));
+			stream = new BufferedOutputStream(file,Math.max(getInteger("write_buffer_size"),512));
+
+			logCount = 0;
+		}
+		catch(Exception e) {
+			error("Could not create log file: "+filename,e);
+		}
+	}
+
+
+	/**
+	 * Writes out and closes the current log file.
+	 */
+	protected void closeLogFile()
+	{
+		if(stream==null) {
+			return;
+		}
+
+		try {
+			stream.flush();
+			file.getFD().sync();
+			stream.close();
+		}
+		catch(IOException e) {
+			error("Could not close the access log",e);
+		}
+		finally {
+			stream = null;
+			file = null;
+		}
+	}
+
+
+
+	/**
+	 * A slot of the ring buffer.
+	 */
+	protected static class Record
+	{
+		long time;
+		String remoteAddr;
+		String note;
+		String requestLine;
+		String returnVal;
+		long latency;
+		String request;
+		boolean multihome;
+		String message;
+
+
+		void clear()
+		{
+			remoteAddr = null;
+			note = null;
+			requestLine = null;
+			returnVal = null;
+			request = null;
+			message = null;
+		}
+	}
+}
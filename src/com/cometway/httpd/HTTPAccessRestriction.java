@@ -210,7 +210,7 @@ public class HTTPAccessRestriction extends WebServerExtension
 					int responseCode = getInteger("deny_response");
 					request.returnVal = ""+responseCode;
 					try {
-						request.getOutputStream().write(WebServer.getHTMLByCode(responseCode).getBytes());
+						WebServer.writeHTMLByCode(request.getOutputStream(),responseCode);
 						request.getOutputStream().flush();
 						request.getOutputStream().close();
 					}
@@ -0,0 +1,495 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import com.cometway.util.KMethod;
+import com.cometway.util.ThreadPool;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class decides which connections a WebServer handles once its ThreadPool is exhausted, so
+ * that overload is answered with quick 503 responses instead of clients timing out in the listen
+ * backlog. A connection which finds no free PooledThread waits in a bounded queue, and is refused
+ * with a 503 response and a Retry-After field when the queue is full, when its estimated wait is
+ * longer than the 'admission_wait_budget', or once it has waited the 'admission_queue_timeout'.
+ * The estimated wait is the average time a connection holds a PooledThread, times the connections
+ * ahead of it, divided by the number of threads.
+ *
+ * Requests whose paths start with one of the 'priority_paths', such as health checks and admin
+ * agents, are not refused while one of the 'priority_threads' is free. A connection about to be
+ * refused is handed to that small ThreadPool, which reads its request line and either handles the
+ * request or sends the 503 response. The nio connection engine has already read the request
+ * header, so priority requests are handed to it straight away. Priority threads handle a single
+ * request and close the connection, so a client cannot keep one busy with a keep-alive connection.
+ *
+ * The 'thread_pool_timeout' of the WebServer is not used while admission control is on, the
+ * 'admission_queue_timeout' is how long a connection may wait for a PooledThread.
+ */
+public class HTTPAdmissionControl implements Runnable
+{
+	/** How often the queue is retried when no PooledThread has been released. */
+	protected static final int DISPATCH_RETRY_TIMEOUT = 10;
+
+	/** The most bytes read while looking for the request line of a connection about to be refused. */
+	protected static final int MAX_REQUEST_LINE_LENGTH = 8192;
+
+	/** The longest Retry-After, in seconds. */
+	protected static final int MAX_RETRY_AFTER = 60;
+
+	protected WebServer server;
+	protected ThreadPool threadPool;
+	protected ThreadPool priorityPool;
+	protected byte[][] priorityPaths;
+	protected int queueSize;
+	protected long queueTimeout;
+	protected long waitBudget;
+	protected int socket_initial_timeout;
+
+	// Admitted methods waiting for a PooledThread, oldest first
+	protected Vector queue = new Vector();
+	protected boolean stopped;
+
+	// The average nanoseconds a connection holds a PooledThread, and a priority thread
+	protected volatile long averageHold;
+	protected volatile long averagePriorityHold;
+
+	protected AtomicLong admitted = new AtomicLong();
+	protected AtomicLong queued = new AtomicLong();
+	protected AtomicLong refused = new AtomicLong();
+	protected AtomicLong expired = new AtomicLong();
+	protected AtomicLong priority = new AtomicLong();
+
+
+	/**
+	 * Creates the admission control of the WebServer's ThreadPool, configured by the
+	 * 'admission_queue_size', 'admission_queue_timeout', 'admission_wait_budget',
+	 * 'priority_paths' and 'priority_threads' properties of the WebServer.
+	 */
+	public HTTPAdmissionControl(WebServer server, ThreadPool threadPool)
+	{
+		this.server = server;
+		this.threadPool = threadPool;
+
+		queueSize = server.getInteger("admission_queue_size");
+		queueTimeout = server.getInteger("admission_queue_timeout")*1000000L;
+		waitBudget = server.getInteger("admission_wait_budget")*1000000L;
+		socket_initial_timeout = server.getInteger("socket_initial_timeout");
+
+		Vector paths = new Vector();
+		String[] s = server.getTrimmedString("priority_paths").split(",");
+		for(int x=0;x<s.length;x++) {
+			if(s[x].trim().length()>0) {
+				paths.addElement(HTTPCannedResponse.getBytes(s[x].trim()));
+			}
+		}
+		priorityPaths = new byte[paths.size()][];
+		paths.copyInto(priorityPaths);
+
+		priorityPool = new ThreadPool(Math.max(1,server.getInteger("priority_threads")));
+		priorityPool.setName("Priority-"+server.getString("service_name"));
+	}
+
+
+	/**
+	 * Hands a newly accepted connection to a PooledThread, or queues it if none is free and its
+	 * estimated wait is within budget, or else refuses it. Used by the blocking connection engine.
+	 */
+	public void admit(ConnectionKMethod kMethod)
+	{
+		Admitted method = new Admitted(this,kMethod);
+		long wait = 0;
+
+		synchronized(queue) {
+			if(queue.size()==0 && hasFreeThread(threadPool) && threadPool.getThread(method)) {
+				admitted.incrementAndGet();
+				return;
+			}
+
+			wait = getEstimatedWait(queue.size()+1);
+			if(queue.size()<queueSize && wait<=waitBudget) {
+				method.deadline = System.nanoTime()+queueTimeout;
+				queue.addElement(method);
+				queued.incrementAndGet();
+				queue.notify();
+				return;
+			}
+		}
+
+		refuse(kMethod,wait);
+	}
+
+
+	/**
+	 * Hands queued connections to PooledThreads as they are released, and refuses the connections
+	 * which have waited too long. Run by its own thread for the blocking connection engine.
+	 */
+	public void run()
+	{
+		while(!stopped) {
+			Admitted method = null;
+			long wait = 0;
+
+			try {
+				synchronized(queue) {
+					while(queue.size()==0 && !stopped) {
+						queue.wait();
+					}
+					if(stopped) {
+						break;
+					}
+
+					Admitted head = (Admitted)queue.elementAt(0);
+					if(System.nanoTime()>head.deadline) {
+						queue.removeElementAt(0);
+						expired.incrementAndGet();
+						method = head;
+						wait = getEstimatedWait(queue.size()+1);
+					}
+					else if(hasFreeThread(threadPool) && threadPool.getThread(head)) {
+						queue.removeElementAt(0);
+						admitted.incrementAndGet();
+					}
+					else {
+						queue.wait(DISPATCH_RETRY_TIMEOUT);
+					}
+				}
+
+				if(method!=null) {
+					refuse(method.kMethod,wait);
+				}
+			}
+			catch(Exception e) {
+				server.error("Error in admission control",e);
+			}
+		}
+	}
+
+
+	/**
+	 * Stops the dispatching thread, refuses the queued connections and stops the priority threads.
+	 */
+	public void stop()
+	{
+		Vector remaining = new Vector();
+
+		synchronized(queue) {
+			stopped = true;
+			for(int x=0;x<queue.size();x++) {
+				remaining.addElement(queue.elementAt(x));
+			}
+			queue.removeAllElements();
+			queue.notifyAll();
+		}
+
+		for(int x=0;x<remaining.size();x++) {
+			((Admitted)remaining.elementAt(x)).kMethod.reject(1);
+		}
+		priorityPool.stop();
+	}
+
+
+	/**
+	 * Wraps a ConnectionKMethod being handed to a PooledThread, so it is counted and the time it
+	 * holds the thread is averaged. Used by the nio connection engine, which queues connections itself.
+	 */
+	public KMethod getAdmitted(ConnectionKMethod kMethod)
+	{
+		admitted.incrementAndGet();
+		return(new Admitted(this,kMethod));
+	}
+
+
+	/**
+	 * Returns true if a connection position places from the front of the queue, which has been
+	 * ready since the System.nanoTime() ready, may keep waiting for a PooledThread.
+	 */
+	public boolean canWait(int position, long ready)
+	{
+		return(position<=queueSize && getEstimatedWait(position)<=waitBudget && System.nanoTime()-ready<=queueTimeout);
+	}
+
+
+	/**
+	 * Returns true if a priority thread is free.
+	 */
+	public boolean hasPriorityThread()
+	{
+		return(hasFreeThread(priorityPool));
+	}
+
+
+	/**
+	 * Hands a connection whose request header has already been read to a priority thread.
+	 * Returns false if no priority thread is free.
+	 */
+	public boolean runPriority(ConnectionKMethod kMethod)
+	{
+		Admitted method = new Admitted(this,kMethod);
+		method.priority = true;
+		kMethod.closeAfterRequest = true;
+
+		if(hasFreeThread(priorityPool) && priorityPool.getThread(method)) {
+			priority.incrementAndGet();
+			return(true);
+		}
+
+		kMethod.closeAfterRequest = false;
+
+		return(false);
+	}
+
+
+	/**
+	 * Sends a 503 response with a Retry-After field to a connection position places from the
+	 * front of the queue.
+	 */
+	public void reject(ConnectionKMethod kMethod, int position)
+	{
+		refused.incrementAndGet();
+		kMethod.reject(getRetryAfter(getEstimatedWait(position)));
+	}
+
+
+	/**
+	 * Returns true if the request line in the first length bytes of data has one of the
+	 * 'priority_paths'.
+	 */
+	public boolean isPriority(byte[] data, int length)
+	{
+		int start = 0;
+		while(start<length && data[start]!=' ') {
+			start++;
+		}
+		start++;
+
+		for(int x=0;x<priorityPaths.length;x++) {
+			byte[] path = priorityPaths[x];
+			if(start+path.length<=length) {
+				int y = 0;
+				while(y<path.length && data[start+y]==path[y]) {
+					y++;
+				}
+				if(y==path.length) {
+					return(true);
+				}
+			}
+		}
+
+		return(false);
+	}
+
+
+	/**
+	 * Returns the estimated nanoseconds a connection position places from the front of the
+	 * queue waits for a PooledThread.
+	 */
+	public long getEstimatedWait(int position)
+	{
+		return(averageHold*position/Math.max(1,threadPool.getMaxThreads()));
+	}
+
+
+	/**
+	 * Returns the number of connections waiting in the queue.
+	 */
+	public int getQueueLength()
+	{
+		return(queue.size());
+	}
+
+
+	/**
+	 * Returns the counts of the connections admitted, queued, refused, expired (refused after
+	 * waiting the 'admission_queue_timeout') and handled by priority threads, the connections
+	 * waiting and the average milliseconds a connection holds a PooledThread and a priority thread.
+	 */
+	public Props getMetrics()
+	{
+		Props p = new Props();
+
+		p.setLong("admitted",admitted.get());
+		p.setLong("queued",queued.get());
+		p.setLong("refused",refused.get());
+		p.setLong("expired",expired.get());
+		p.setLong("priority",priority.get());
+		p.setInteger("waiting",queue.size());
+		p.setLong("average_hold_ms",averageHold/1000000);
+		p.setLong("average_priority_hold_ms",averagePriorityHold/1000000);
+
+		return(p);
+	}
+
+
+	/**
+	 * Refuses a connection which could not be admitted, unless a priority thread is free to
+	 * read its request line.
+	 */
+	protected void refuse(ConnectionKMethod kMethod, long wait)
+	{
+		int retryAfter = getRetryAfter(wait);
+
+		if(priorityPaths.length==0 || !hasFreeThread(priorityPool) || !priorityPool.getThread(new Triage(this,kMethod,retryAfter))) {
+			refused.incrementAndGet();
+			kMethod.reject(retryAfter);
+		}
+	}
+
+
+	protected void finishedPriority(long hold)
+	{
+		long average = averagePriorityHold;
+		averagePriorityHold = average+(hold-average)/8;
+	}
+
+
+	protected void finished(long hold)
+	{
+		long average = averageHold;
+		averageHold = average+(hold-average)/8;
+
+		synchronized(queue) {
+			if(queue.size()>0) {
+				queue.notify();
+			}
+		}
+	}
+
+
+	// ThreadPool.getThread() warns every time it finds no thread, so it is only called when one is free
+	protected static boolean hasFreeThread(ThreadPool pool)
+	{
+		return(pool.freeThreads()>0 || pool.totalThreads()<pool.getMaxThreads());
+	}
+
+
+	protected static int getRetryAfter(long wait)
+	{
+		int rval = (int)((wait+999999999L)/1000000000L);
+
+		return(Math.max(1,Math.min(MAX_RETRY_AFTER,rval)));
+	}
+
+
+
+	/**
+	 * A connection handed to a PooledThread or a priority thread, timed for the average hold.
+	 */
+	protected static class Admitted extends KMethod
+	{
+		HTTPAdmissionControl admission;
+		ConnectionKMethod kMethod;
+		long deadline;
+		boolean priority;
+
+
+		Admitted(HTTPAdmissionControl admission, ConnectionKMethod kMethod)
+		{
+			this.admission = admission;
+			this.kMethod = kMethod;
+		}
+
+
+		public void execute()
+		{
+			long started = System.nanoTime();
+
+			try {
+				kMethod.execute();
+			}
+			finally {
+				if(priority) {
+					admission.finishedPriority(System.nanoTime()-started);
+				}
+				else {
+					admission.finished(System.nanoTime()-started);
+				}
+			}
+		}
+
+
+		public void reject()
+		{
+			admission.refused.incrementAndGet();
+			kMethod.reject(1);
+		}
+	}
+
+
+
+	/**
+	 * A connection about to be refused, which is handled if its request has a priority path.
+	 */
+	protected static class Triage extends KMethod
+	{
+		HTTPAdmissionControl admission;
+		ConnectionKMethod kMethod;
+		int retryAfter;
+
+
+		Triage(HTTPAdmissionControl admission, ConnectionKMethod kMethod, int retryAfter)
+		{
+			this.admission = admission;
+			this.kMethod = kMethod;
+			this.retryAfter = retryAfter;
+		}
+
+
+		public void execute()
+		{
+			long started = System.nanoTime();
+			byte[] data = new byte[512];
+			int length = 0;
+			boolean lineRead = false;
+
+			try {
+				Socket socket = kMethod.socket;
+				socket.setSoTimeout(admission.socket_initial_timeout);
+				InputStream in = socket.getInputStream();
+
+				while(!lineRead && length<MAX_REQUEST_LINE_LENGTH) {
+					if(length==data.length) {
+						byte[] tmp = new byte[data.length*2];
+						System.arraycopy(data,0,tmp,0,length);
+						data = tmp;
+					}
+
+					int count = in.read(data,length,data.length-length);
+					if(count<0) {
+						break;
+					}
+					for(int x=length;x<length+count;x++) {
+						if(data[x]=='\n') {
+							lineRead = true;
+						}
+					}
+					length = length+count;
+				}
+			}
+			catch(Exception e) {;}
+
+			if(lineRead && admission.isPriority(data,length)) {
+				admission.priority.incrementAndGet();
+
+				byte[] prefetched = new byte[length];
+				System.arraycopy(data,0,prefetched,0,length);
+				kMethod.prefetched = prefetched;
+				kMethod.closeAfterRequest = true;
+				kMethod.execute();
+				admission.finishedPriority(System.nanoTime()-started);
+			}
+			else {
+				reject();
+			}
+		}
+
+
+		public void reject()
+		{
+			admission.refused.incrementAndGet();
+			kMethod.reject(retryAfter);
+		}
+	}
+}
@@ -5,11 +5,11 @@ package com.cometway.httpd;
 import com.cometway.om.SessionManagerInterface;
 import com.cometway.ak.AgentRequest;
 import com.cometway.props.Props;
-import com.cometway.util.jGrep;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.OutputStream;
+import java.net.Socket;
 import java.util.Vector;
 import java.util.Date;
 
@@ -36,7 +36,17 @@ public class HTTPAgentRequest extends AgentRequest
 
 	public boolean bufferOutput = false;
 
-	private static final int OUTPUT_BLOCK_SIZE = 1024;
+	/**
+	 * When this flag is set and bufferOutput is not, the body of the response to an HTTP/1.1 request is sent
+	 * using the chunked transfer-coding as it is printed. Large responses are then streamed in bounded memory
+	 * and the connection can still be kept alive using the ConnectionKMethod.KEEP_ALIVE property. This only
+	 * applies when the HTTPAgentRequest creates the response header, and not to HEAD requests or when
+	 * byteWiseWriting is set. The last chunk is sent when close() is called.
+	 */
+
+	public boolean chunkedOutput = false;
+
+	protected HTTPChunkedOutputStream chunkedOut;
 
 	protected StringBuffer dataBuffer = new StringBuffer();
 
@@ -46,6 +56,8 @@ public class HTTPAgentRequest extends AgentRequest
 	private boolean newline;
 
 	protected InputStream browserIn;
+	protected Socket socket;
+	protected HTTPHeaders headers;
 
 	protected Vector cookies;
 	protected Props clientCookies;
@@ -91,6 +103,25 @@ public class HTTPAgentRequest extends AgentRequest
 	}
 
 
+	/**
+	 * Sets the chunkedOutput flag if the request is an HTTPAgentRequest, and asks for the connection
+	 * to be kept alive if the client allows it. This has no effect once anything has been printed.
+	 */
+
+	public static void useChunkedOutput(AgentRequest request)
+	{
+		if(request instanceof HTTPAgentRequest) {
+			HTTPAgentRequest httpRequest = (HTTPAgentRequest)request;
+			if(!httpRequest.headerSent && !httpRequest.headerSending) {
+				httpRequest.chunkedOutput = true;
+				if(request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
+					request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+				}
+			}
+		}
+	}
+
+
 	/**
 	 * Returns the User-Agent header parameter value from the specified AgentRequest.
 	 */
@@ -135,6 +166,16 @@ public class HTTPAgentRequest extends AgentRequest
 		return(browserIn);
 	}
 
+	/**
+	 * If this request was created by a ConnectionKMethod, this method returns the Socket connected
+	 * to the client; null otherwise. Data written directly to the Socket bypasses the output stream
+	 * of this request, so the output stream must be flushed first.
+	 */
+	public Socket getSocket()
+	{
+		return(socket);
+	}
+
 	/**
 	 * This method returns the body of the client's request
 	 *
@@ -348,6 +389,13 @@ public class HTTPAgentRequest extends AgentRequest
 					else {
 						super.print(response);
 					}
+
+					if(isChunked()) {
+						// The rest of the response goes through the chunked stream
+						chunkedOut = new HTTPChunkedOutputStream(out);
+						out = chunkedOut;
+						writer = null;
+					}
 				}
 				
 				headerSent = true;
@@ -411,13 +459,13 @@ public class HTTPAgentRequest extends AgentRequest
 					s = s.substring(0,s.indexOf("\r\n\r\n")+4);
 					headerSent = true;
 					headerSending = false;
-					s = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",s,false);
+					s = HTTPResponseWriter.normalizeLineEnds(s);
 				}
 				else if(s.indexOf("\n\n")!=-1) {
 					s = s.substring(0,s.indexOf("\n\n")+2);
 					headerSent = true;
 					headerSending = false;
-					s = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",s,false);
+					s = HTTPResponseWriter.normalizeLineEnds(s);
 				}
 				else if(newline && headerSending && s.startsWith("\n")) {
 					s = "\r\n";
@@ -427,11 +475,14 @@ public class HTTPAgentRequest extends AgentRequest
 			}
 			
 			if(headerSending) {
-				s = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",s,false);
+				s = HTTPResponseWriter.normalizeLineEnds(s);
 			}
 			if(bufferOutput) {
 				dataBuffer.append(s);
 			}
+			else if(chunkedOut!=null) {
+				writeChunked(s);
+			}
 			else if(byteWiseWriting) {
 				writeData(s.getBytes());
 			}
@@ -458,13 +509,13 @@ public class HTTPAgentRequest extends AgentRequest
 					s = s.substring(0,s.indexOf("\r\n\r\n")+4);
 					headerSent = true;
 					headerSending = false;
-					s = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",s,false);
+					s = HTTPResponseWriter.normalizeLineEnds(s);
 				}
 				else if(s.indexOf("\n\n")!=-1) {
 					s = s.substring(0,s.indexOf("\n\n")+1);
 					headerSent = true;
 					headerSending = false;
-					s = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",s,false);
+					s = HTTPResponseWriter.normalizeLineEnds(s);
 				}
 				else if(newline && headerSending && (s.startsWith("\n")||s.startsWith("\r\n"))) {
 					headerSent = true;
@@ -482,6 +533,9 @@ public class HTTPAgentRequest extends AgentRequest
 			if(bufferOutput) {
 				dataBuffer.append(s);
 			}
+			else if(chunkedOut!=null) {
+				writeChunked(s);
+			}
 			else {
 				if(byteWiseWriting) {
 					writeData(s.getBytes());
@@ -507,6 +561,9 @@ public class HTTPAgentRequest extends AgentRequest
 		if(bufferOutput) {
 			dataBuffer.append(s);
 		}
+		else if(chunkedOut!=null) {
+			writeChunked(s);
+		}
 		else {
 			writeData(s.getBytes());
 		}
@@ -728,40 +785,47 @@ public class HTTPAgentRequest extends AgentRequest
 	{
 		Date rval = null;
 
-		String request = getString("request");
-		String lrequest = request.toLowerCase();
+		String value = getHeader("If-Modified-Since");
+		if(value!=null) {
+			rval = parseDate(value);
+		}
 
-		if(lrequest.indexOf("if-modified-since")!=-1) {
-			int index = lrequest.indexOf("if-modified-since");
-			index = lrequest.indexOf(":",index);
-			request = request.substring(index+1);
-			index = request.indexOf("\n");
-			if(index!=-1) {
-				request = request.substring(0,index).trim();
-			}
-			else {
-				request.trim();
-			}
+		return(rval);
+	}
 
-			try {
-				rval = WebServer.dateFormat_RFC822.parse(request);
-			}
-			catch(Exception e) {;}
-			if(rval==null) {
-				try {
-					rval = WebServer.dateFormat_RFC850.parse(request);
-				}
-				catch(Exception e) {;}
-			}
-			if(rval==null) {
-				try {
-					rval = WebServer.dateFormat_ANSI.parse(request);
-				}
-				catch(Exception e) {;}
-			}
+
+	/**
+	 * Returns the header fields of the request. The WebServer parses them while reading the request,
+	 * otherwise they are parsed from the 'request' property the first time this method is called.
+	 */
+	public HTTPHeaders getHeaders()
+	{
+		if(headers==null) {
+			headers = HTTPHeaders.parse(getString("request"));
 		}
 
-		return(rval);
+		return(headers);
+	}
+
+
+	/**
+	 * Returns the value of the named request header field, or null if the client did not send it.
+	 * Field names are not case sensitive. If the field was sent more than once, the first value
+	 * is returned.
+	 */
+	public String getHeader(String name)
+	{
+		return(getHeaders().get(name));
+	}
+
+
+	/**
+	 * Parses a date in any of the three formats allowed by HTTP/1.1 (RFC 822, RFC 850 and ANSI C asctime()).
+	 * Returns null if the date could not be parsed.
+	 */
+	public static Date parseDate(String s)
+	{
+		return(HTTPDate.parse(s));
 	}
 
 
@@ -780,7 +844,7 @@ public class HTTPAgentRequest extends AgentRequest
 		StringBuffer buffer = new StringBuffer();
 		boolean keepAlive = false;
 
-		buffer.append(defaultResponse);
+		buffer.append(HTTPResponseWriter.normalizeLineEnds(defaultResponse));
 		if(props.hasProperty("content_type")) {
 			buffer.append("Content-Type: ");
 			buffer.append(props.getString("content_type"));
@@ -794,38 +858,32 @@ public class HTTPAgentRequest extends AgentRequest
 				buffer.append("Set-Cookie: "+cookies.elementAt(x)+"\r\n");
 			}
 		}
-		buffer.append("Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\n");
+		buffer.append("Date: "+HTTPDate.getDate()+"\r\n");
+
+		boolean chunked = isChunked();
+		if(chunked) {
+			buffer.append("Transfer-Encoding: chunked\r\n");
+		}
 		
-		if(bufferOutput) {
+		if(bufferOutput || chunked) {
 			if(hasProperty(ConnectionKMethod.KEEP_ALIVE)) {
 				if(hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
-					String httpRequest = getString("request").toLowerCase();
-					int index = httpRequest.indexOf("\nconnection");
-					if(index!=-1) {
-						index++;
-						index = httpRequest.indexOf(":",index);
-						if(index!=-1) {
-							httpRequest = httpRequest.substring(index+1);
-							index = httpRequest.indexOf("\n");
-							if(index!=-1) {
-								httpRequest = httpRequest.substring(0,index).trim();
-								keepAlive = httpRequest.equals("keep-alive");
-								if(keepAlive) {
-									buffer.append(getString(ConnectionKMethod.KEEP_ALIVE_FIELD));
-									buffer.append("\nConnection: Keep-Alive\n");
-								}
-								else {
-									// If client doesn't want keep-alive, we must remove this property
-									removeProperty(ConnectionKMethod.KEEP_ALIVE);
-								}
-							}
-						}
+					keepAlive = getHeaders().containsToken("Connection","keep-alive");
+					if(keepAlive) {
+						buffer.append(getString(ConnectionKMethod.KEEP_ALIVE_FIELD));
+						buffer.append("\r\nConnection: Keep-Alive\r\n");
+					}
+					else {
+						// If client doesn't want keep-alive, we must remove this property
+						removeProperty(ConnectionKMethod.KEEP_ALIVE);
 					}
 				}
 			}
 		}
 
 		if(!keepAlive) {
+			// Without a Content-Length or chunked body the response can only end when the connection is closed
+			removeProperty(ConnectionKMethod.KEEP_ALIVE);
 			buffer.append("Connection: close\r\n");
 		}
 
@@ -836,6 +894,38 @@ public class HTTPAgentRequest extends AgentRequest
 
 
 
+	/**
+	 * Returns true if the body of the response is to be sent using the chunked transfer-coding.
+	 */
+	protected boolean isChunked()
+	{
+		if(chunkedOutput && !bufferOutput && !byteWiseWriting && !headRequest) {
+			String request = getString("request");
+			int index = request.indexOf('\n');
+			if(index!=-1) {
+				request = request.substring(0,index);
+			}
+			return(request.trim().endsWith("HTTP/1.1"));
+		}
+
+		return(false);
+	}
+
+
+	/**
+	 * Writes the String to the chunked stream, which sends a chunk whenever its buffer fills.
+	 */
+	private void writeChunked(String s)
+	{
+		try {
+			chunkedOut.write(s.getBytes());
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
 	private void writeData(byte[] data)
 	{
 		try
@@ -857,76 +947,19 @@ public class HTTPAgentRequest extends AgentRequest
 		synchronized(this)
 		{
 			if (bufferOutput)	{
-				String data = dataBuffer.toString();
-
-				if (data.startsWith("HTTP/"))	{
-					int headerIndex = data.indexOf("\n\n");
-					int offset = 2;
-					if(headerIndex!=-1) {
-						if(data.indexOf("\r\n\r\n")!=-1 && data.indexOf("\r\n\r\n")<headerIndex) {
-							headerIndex = data.indexOf("\r\n\r\n");
-							offset = 4;
-						}
-					}
-					else {
-						headerIndex = data.indexOf("\r\n\r\n");
-						offset = 4;
-					}
-
-					if (headerIndex!=-1)	{
-						headerIndex = headerIndex + offset;
-
-						if (data.substring(0,headerIndex).toLowerCase().indexOf("content-length:")==-1) {
-							int contentlength = data.length()-headerIndex;
-							int newline = data.indexOf("\n");
-							data = data.substring(0,newline)+"\nContent-Length: "+contentlength+"\n"+data.substring(newline+1);
-						}
-					}
-
-					if(offset==2) {
-						headerIndex = data.indexOf("\n\n");
-						if(headerIndex!=-1) {
-							if(headRequest) {
-								data = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",data.substring(0,headerIndex+2),false);
-							}
-							else {
-								data = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",data.substring(0,headerIndex+2),false)+data.substring(headerIndex+2);
-							}
-						}
-					}
-					else if(offset==4) {
-						headerIndex = data.indexOf("\r\n\r\n");
-						if(headerIndex!=-1) {
-							if(headRequest) {
-								data = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",data.substring(0,headerIndex+4),false);
-							}
-							else {
-								data = jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",data.substring(0,headerIndex+4),false)+data.substring(headerIndex+4);
-							}
-						}
-					}
-				}
+				HTTPResponseWriter.write(this, dataBuffer, headRequest, byteWiseWriting);
 
-				if (byteWiseWriting)	{
-					writeData(data.getBytes());
+				dataBuffer.setLength(0);
+				bufferOutput = false;
+			}
+			else if(chunkedOutput) {
+				if(!headerSent && !headerSending) {
+					// Nothing was printed, the header still has to be sent to end the response
+					print("");
 				}
-				else {
-					while(data.length()>0) {
-						if (data.length()>OUTPUT_BLOCK_SIZE) {
-							String tmp = data.substring(0,OUTPUT_BLOCK_SIZE);
-							out.write(tmp.getBytes());
-							out.flush();
-							data = data.substring(OUTPUT_BLOCK_SIZE);
-						}
-						else {
-							out.write(data.getBytes());
-							out.flush();
-							data = "";
-						}
-					}
+				if(chunkedOut!=null) {
+					chunkedOut.finish();
 				}
-
-				bufferOutput = false;
 			}
 		}
 	}
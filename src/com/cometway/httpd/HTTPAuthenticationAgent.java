@@ -500,7 +500,7 @@ public class HTTPAuthenticationAgent extends WebServerExtension
 				
 				try {
 					String s = "WWW-Authenticate: Basic realm=\""+ authHash.getRealm(path)+ "\"\n";
-					out.write(WebServer.getHTMLByCode(WebServer.UNAUTHORIZED,null,s).getBytes());
+					WebServer.writeHTMLByCode(out,WebServer.UNAUTHORIZED,null,s);
 					out.flush();
 				}
 				catch (Exception e) {
@@ -0,0 +1,390 @@
+package com.cometway.httpd;
+
+import com.cometway.ak.ServiceAgent;
+import com.cometway.props.Props;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.StringTokenizer;
+
+
+/**
+ * This agent paces the output of throttled downloads using a hierarchy of token buckets.
+ * Every download is a Session with its own bucket, and is also limited by a bucket shared by all
+ * the sessions of the same virtual host and by a global bucket shared by every session. A level
+ * with a bandwidth of 0 is not limited.
+ *
+ * Each bucket holds up to burst_time milliseconds worth of its bandwidth, so a session which has
+ * been idle may send a burst before being paced. When several sessions share a bucket, none is
+ * granted more than its fair share of the bucket at once, so one fast client cannot starve the
+ * others; the bandwidth is divided between the sessions instead of turning new ones away.
+ *
+ * The scheduler registers itself with the ServiceManager so any WebServerExtension or RequestAgent
+ * can pace its output through it, and keeps counters of the bandwidth used which are returned
+ * by getMetrics().
+ */
+public class HTTPBandwidthScheduler extends ServiceAgent
+{
+	// The smallest number of bytes a session waits for when a bucket is almost empty
+	protected static final int MINIMUM_GRANT = 1024;
+
+	// These defaults are used when the scheduler is created without being started as an agent
+	protected int global_bandwidth = 0;
+	protected int host_bandwidth = 0;
+	protected Hashtable hostLimits = new Hashtable();
+	protected int burst_time = 1000;
+	protected int quantum = 16384;
+
+	protected Bucket global;
+	protected Hashtable hosts = new Hashtable();
+
+	protected long bytesSent;
+	protected long sessionCount;
+	protected int activeSessions;
+	protected long throttledTime;
+	protected long started = System.currentTimeMillis();
+
+
+	/**
+	 * Initializes this agent's properties by providing default values for each of the following missing properties:
+	 * "service_name" is used to register this agent with the ServiceManager (default: bandwidth_scheduler)
+	 * "global_bandwidth" is the number of bytes per second shared by all sessions, 0 is unlimited (default: 0)
+	 * "host_bandwidth" is the number of bytes per second shared by the sessions of each virtual host, 0 is unlimited (default: 0)
+	 * "host_bandwidth_limits" is a comma separated list of host=bytes per second pairs which override host_bandwidth (default: )
+	 * "burst_time" is the number of milliseconds of bandwidth each bucket can save up for a burst (default: 1000)
+	 * "quantum" is the largest number of bytes granted to a session at once (default: 16384)
+	 */
+	public void initProps()
+	{
+		setDefault("service_name","bandwidth_scheduler");
+		setDefault("global_bandwidth","0");
+		setDefault("host_bandwidth","0");
+		setDefault("host_bandwidth_limits","");
+		setDefault("burst_time","1000");
+		setDefault("quantum","16384");
+	}
+
+
+	public void start()
+	{
+		global_bandwidth = getInteger("global_bandwidth");
+		host_bandwidth = getInteger("host_bandwidth");
+		burst_time = getInteger("burst_time");
+		quantum = getInteger("quantum");
+
+		hostLimits = new Hashtable();
+		StringTokenizer tokens = new StringTokenizer(getString("host_bandwidth_limits"),",");
+		while(tokens.hasMoreTokens()) {
+			String token = tokens.nextToken().trim();
+			int index = token.indexOf("=");
+			if(index>0) {
+				try {
+					hostLimits.put(token.substring(0,index).trim().toLowerCase(),Integer.valueOf(token.substring(index+1).trim()));
+				}
+				catch(NumberFormatException e) {
+					error("Invalid host bandwidth limit: "+token);
+				}
+			}
+		}
+
+		synchronized(this) {
+			global = null;
+			hosts.clear();
+		}
+
+		super.start();
+	}
+
+
+	/**
+	 * Starts pacing a download for the host which may use at most bandwidth bytes per second,
+	 * 0 meaning it is only limited by the host and global bandwidth. The Session must be closed
+	 * when the download is complete.
+	 */
+	public Session openSession(String host, int bandwidth)
+	{
+		if(host==null) {
+			host = "";
+		}
+		else {
+			int index = host.indexOf(":");
+			if(index!=-1) {
+				host = host.substring(0,index);
+			}
+			host = host.trim().toLowerCase();
+		}
+
+		Session rval = new Session(host,new Bucket(bandwidth,burst_time));
+
+		synchronized(this) {
+			if(global==null) {
+				global = new Bucket(global_bandwidth,burst_time);
+			}
+
+			Bucket hostBucket = (Bucket)hosts.get(host);
+			if(hostBucket==null) {
+				int limit = host_bandwidth;
+				Integer hostLimit = (Integer)hostLimits.get(host);
+				if(hostLimit!=null) {
+					limit = hostLimit.intValue();
+				}
+				hostBucket = new Bucket(limit,burst_time);
+				hosts.put(host,hostBucket);
+			}
+
+			rval.buckets = new Bucket[] { rval.connection, hostBucket, global };
+			for(int x=0;x<rval.buckets.length;x++) {
+				rval.buckets[x].sessions++;
+			}
+
+			activeSessions++;
+			sessionCount++;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Blocks until the session may send at least one byte, and returns the number of bytes it may
+	 * send, which is at most requested.
+	 */
+	public int acquire(Session session, int requested) throws InterruptedException
+	{
+		while(true) {
+			long wait = 0;
+			int grant = Math.min(requested,quantum);
+
+			synchronized(this) {
+				long now = System.currentTimeMillis();
+				for(int x=0;x<session.buckets.length;x++) {
+					Bucket bucket = session.buckets[x];
+					if(bucket.rate>0) {
+						bucket.refill(now);
+
+						// A session may take no more than its share of a bucket used by several sessions,
+						// and waits until it can take a reasonable amount rather than a few bytes at a time
+						long share = Math.max(bucket.capacity/Math.max(bucket.sessions,1),1);
+						long minimum = Math.min(Math.min(grant,share),MINIMUM_GRANT);
+						long available = (long)Math.min(bucket.tokens,share);
+						if(available<minimum) {
+							wait = Math.max(wait,bucket.getWaitTime(minimum));
+						}
+						grant = (int)Math.max(Math.min(grant,available),0);
+					}
+				}
+
+				if(wait==0 && grant>0) {
+					for(int x=0;x<session.buckets.length;x++) {
+						session.buckets[x].take(grant);
+					}
+					bytesSent = bytesSent + grant;
+					return(grant);
+				}
+
+				throttledTime = throttledTime + wait;
+			}
+
+			Thread.sleep(wait);
+		}
+	}
+
+
+	/**
+	 * Stops pacing the session.
+	 */
+	public void closeSession(Session session)
+	{
+		synchronized(this) {
+			if(session.buckets!=null) {
+				for(int x=0;x<session.buckets.length;x++) {
+					session.buckets[x].sessions--;
+				}
+
+				// Host buckets are only kept while they are in use
+				Bucket hostBucket = session.buckets[1];
+				if(hostBucket.sessions==0 && hosts.get(session.host)==hostBucket) {
+					hosts.remove(session.host);
+				}
+
+				session.buckets = null;
+				activeSessions--;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the bandwidth counters of this scheduler:
+	 * bytes_sent, sessions_active, sessions_total, throttled_time (the total number of
+	 * milliseconds sessions were made to wait), average_bandwidth (bytes per second since the
+	 * scheduler was created), and for each virtual host with active sessions,
+	 * host.[name].bytes_sent and host.[name].sessions_active.
+	 */
+	public synchronized Props getMetrics()
+	{
+		Props rval = new Props();
+
+		long elapsed = Math.max(System.currentTimeMillis()-started,1);
+
+		rval.setLong("bytes_sent",bytesSent);
+		rval.setInteger("sessions_active",activeSessions);
+		rval.setLong("sessions_total",sessionCount);
+		rval.setLong("throttled_time",throttledTime);
+		rval.setLong("average_bandwidth",bytesSent*1000/elapsed);
+		rval.setInteger("global_bandwidth",global_bandwidth);
+
+		Enumeration e = hosts.keys();
+		while(e.hasMoreElements()) {
+			String host = (String)e.nextElement();
+			Bucket bucket = (Bucket)hosts.get(host);
+			rval.setLong("host."+host+".bytes_sent",bucket.bytes);
+			rval.setInteger("host."+host+".sessions_active",bucket.sessions);
+		}
+
+		return(rval);
+	}
+
+
+
+	/**
+	 * A token bucket which refills at rate bytes per second and holds at most burst_time
+	 * milliseconds worth of tokens. A rate of 0 is not limited.
+	 */
+	protected static class Bucket
+	{
+		int rate;
+		long capacity;
+		double tokens;
+		long updated;
+		int sessions;
+		long bytes;
+
+
+		Bucket(int rate, int burst_time)
+		{
+			this.rate = rate;
+			capacity = Math.max((long)rate*burst_time/1000,1);
+			tokens = capacity;
+			updated = System.currentTimeMillis();
+		}
+
+
+		void refill(long now)
+		{
+			if(now>updated) {
+				tokens = Math.min(capacity,tokens+((double)rate*(now-updated)/1000.0));
+				updated = now;
+			}
+		}
+
+
+		/**
+		 * Returns the number of milliseconds until the bucket holds count tokens.
+		 */
+		long getWaitTime(long count)
+		{
+			long rval = (long)Math.ceil((count-tokens)*1000.0/rate);
+			return(Math.max(rval,1));
+		}
+
+
+		void take(int count)
+		{
+			if(rate>0) {
+				tokens = tokens - count;
+			}
+			bytes = bytes + count;
+		}
+	}
+
+
+
+	/**
+	 * A paced download, returned by HTTPBandwidthScheduler.openSession().
+	 */
+	public class Session
+	{
+		String host;
+		Bucket connection;
+		Bucket[] buckets;
+		long sent;
+
+
+		Session(String host, Bucket connection)
+		{
+			this.host = host;
+			this.connection = connection;
+		}
+
+
+		/**
+		 * Returns the number of bytes sent by this session's transfer() and write() methods.
+		 */
+		public long getBytesSent()
+		{
+			return(sent);
+		}
+
+
+		/**
+		 * Sends count bytes of the file starting at position to the client of the request, at
+		 * the pace allowed by the scheduler. Returns the number of bytes sent, which is less than
+		 * count if the client closed the connection.
+		 */
+		public long transfer(FileChannel channel, long position, long count, HTTPAgentRequest request) throws IOException
+		{
+			long rval = 0;
+
+			try {
+				while(rval<count) {
+					int grant = acquire(this,(int)Math.min(count-rval,Integer.MAX_VALUE));
+					long bytes = HTTPFileTransfer.transfer(channel,position+rval,grant,request);
+					if(bytes<=0) {
+						break;
+					}
+					rval = rval + bytes;
+					sent = sent + bytes;
+				}
+			}
+			catch(InterruptedException e) {
+				throw(new InterruptedIOException("Interrupted while waiting for bandwidth"));
+			}
+
+			return(rval);
+		}
+
+
+		/**
+		 * Writes the bytes to the OutputStream at the pace allowed by the scheduler.
+		 */
+		public void write(OutputStream out, byte[] b, int off, int len) throws IOException
+		{
+			try {
+				while(len>0) {
+					int grant = acquire(this,len);
+					out.write(b,off,grant);
+					out.flush();
+					sent = sent + grant;
+					off = off + grant;
+					len = len - grant;
+				}
+			}
+			catch(InterruptedException e) {
+				throw(new InterruptedIOException("Interrupted while waiting for bandwidth"));
+			}
+		}
+
+
+		/**
+		 * Stops pacing this session.
+		 */
+		public void close()
+		{
+			closeSession(this);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.cometway.httpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.Vector;
+
+
+/**
+ * This class parses the byte ranges of an HTTP/1.1 Range request header (RFC 2616 section 14.35)
+ * and sends the requested ranges of a file as a 206 Partial Content response body, either as a
+ * single range or as a multipart/byteranges entity.
+ *
+ * Ranges are stored as long[2] arrays holding the first and last byte positions (inclusive).
+ */
+public class HTTPByteRanges
+{
+	/** Requests asking for more ranges than this are answered with the entire file. */
+	public static final int MAX_RANGES = 32;
+
+	/** The multipart boundary used for multipart/byteranges responses. */
+	public static final String BOUNDARY = "COMETWAY_BYTERANGES_BOUNDARY";
+
+
+	/**
+	 * Parses the value of a Range header for an entity of the given length. Returns null if the
+	 * header is not a valid byte range request, in which case it must be ignored. Returns an
+	 * empty array if none of the ranges can be satisfied, which is answered with a 416 response.
+	 */
+	public static long[][] parse(String range, long length)
+	{
+		range = range.trim();
+
+		if(!range.regionMatches(true,0,"bytes=",0,6)) {
+			return(null);
+		}
+
+		Vector ranges = new Vector();
+		int specs = 0;
+		int start = 6;
+		while(start<=range.length()) {
+			int end = range.indexOf(',',start);
+			if(end==-1) {
+				end = range.length();
+			}
+
+			String spec = range.substring(start,end).trim();
+			start = end+1;
+
+			if(spec.length()==0) {
+				continue;
+			}
+			specs++;
+
+			int dash = spec.indexOf('-');
+			if(dash==-1) {
+				return(null);
+			}
+
+			long first = -1;
+			long last = -1;
+
+			try {
+				if(dash==0) {
+					// suffix-byte-range-spec: the last N bytes
+					long suffix = Long.parseLong(spec.substring(1).trim());
+					if(suffix<=0 || length==0) {
+						continue;
+					}
+					first = Math.max(0,length-suffix);
+					last = length-1;
+				}
+				else {
+					first = Long.parseLong(spec.substring(0,dash).trim());
+					if(dash<spec.length()-1) {
+						last = Long.parseLong(spec.substring(dash+1).trim());
+						if(last<first) {
+							return(null);
+						}
+					}
+					else {
+						last = length-1;
+					}
+					if(first>=length) {
+						continue;
+					}
+					if(last>=length) {
+						last = length-1;
+					}
+				}
+			}
+			catch(NumberFormatException e) {
+				return(null);
+			}
+
+			if(first<0) {
+				return(null);
+			}
+
+			ranges.addElement(new long[] {first,last});
+			if(ranges.size()>MAX_RANGES) {
+				return(null);
+			}
+		}
+
+		if(specs==0) {
+			return(null);
+		}
+
+		long[][] rval = new long[ranges.size()][];
+		ranges.copyInto(rval);
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the ranges requested by the Range header of the request, or null if the entire entity
+	 * should be sent because there is no valid Range header or the If-Range header no longer matches.
+	 * Returns an empty array if none of the ranges can be satisfied.
+	 */
+	public static long[][] getRequestedRanges(HTTPAgentRequest request, long length, long lastModified, String etag)
+	{
+		long[][] rval = null;
+
+		String range = request.getHeader("Range");
+		if(range!=null && ifRangeMatches(request.getHeader("If-Range"),lastModified,etag)) {
+			rval = parse(range,length);
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if the value of an If-Range header still matches the entity, in which case the
+	 * Range header may be honored. The value is either an entity tag or an HTTP date. Weak entity
+	 * tags never match.
+	 */
+	public static boolean ifRangeMatches(String ifRange, long lastModified, String etag)
+	{
+		boolean rval = false;
+
+		if(ifRange==null) {
+			rval = true;
+		}
+		else {
+			ifRange = ifRange.trim();
+			if(ifRange.startsWith("\"")) {
+				rval = (etag!=null && etag.equals(ifRange));
+			}
+			else if(!ifRange.startsWith("W/")) {
+				Date date = HTTPAgentRequest.parseDate(ifRange);
+				if(date!=null) {
+					rval = (date.getTime()/1000 == lastModified/1000);
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the Content-Range header field value for a single range.
+	 */
+	public static String getContentRange(long[] range, long length)
+	{
+		return("bytes "+range[0]+"-"+range[1]+"/"+length);
+	}
+
+
+	/**
+	 * Returns the header of one body part of a multipart/byteranges entity. The contentType is
+	 * a complete Content-Type header line as returned by WebServer.getMimeType().
+	 */
+	protected static String getPartHeader(long[] range, long length, String contentType)
+	{
+		return("\r\n--"+BOUNDARY+"\r\n"+contentType+"Content-Range: "+getContentRange(range,length)+"\r\n\r\n");
+	}
+
+
+	/**
+	 * Returns the final boundary of a multipart/byteranges entity.
+	 */
+	protected static String getEndBoundary()
+	{
+		return("\r\n--"+BOUNDARY+"--\r\n");
+	}
+
+
+	/**
+	 * Returns the Content-Length of the multipart/byteranges entity that sendMultipart() will send.
+	 */
+	public static long getMultipartLength(long[][] ranges, long length, String contentType)
+	{
+		long rval = getEndBoundary().length();
+
+		for(int x=0;x<ranges.length;x++) {
+			rval = rval + getPartHeader(ranges[x],length,contentType).length() + (ranges[x][1]-ranges[x][0]+1);
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Sends the ranges of the file as the body parts of a multipart/byteranges entity.
+	 * Returns the number of file bytes sent.
+	 */
+	public static long sendMultipart(FileChannel channel, long[][] ranges, long length, String contentType, HTTPAgentRequest request) throws IOException
+	{
+		return(sendMultipart(channel,ranges,length,contentType,request,null));
+	}
+
+
+	/**
+	 * Sends the ranges of the file as the body parts of a multipart/byteranges entity, at the
+	 * pace allowed by the session if it is not null. Returns the number of file bytes sent.
+	 */
+	public static long sendMultipart(FileChannel channel, long[][] ranges, long length, String contentType, HTTPAgentRequest request, HTTPBandwidthScheduler.Session session) throws IOException
+	{
+		long rval = 0;
+		OutputStream out = request.getOutputStream();
+
+		for(int x=0;x<ranges.length;x++) {
+			out.write(getPartHeader(ranges[x],length,contentType).getBytes());
+			if(session!=null) {
+				rval = rval + session.transfer(channel,ranges[x][0],ranges[x][1]-ranges[x][0]+1,request);
+			}
+			else {
+				rval = rval + HTTPFileTransfer.transfer(channel,ranges[x][0],ranges[x][1]-ranges[x][0]+1,request);
+			}
+		}
+		out.write(getEndBoundary().getBytes());
+		out.flush();
+
+		return(rval);
+	}
+}
+
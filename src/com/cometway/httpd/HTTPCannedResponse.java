@@ -0,0 +1,172 @@
+package com.cometway.httpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * This class holds one of the generic responses of WebServer.getHTMLByCode() as byte arrays which
+ * are made once, so the response can be written without building it again for every request.
+ * The Date field comes from HTTPDate, and the whole response with Connection: close, which is the
+ * most common one, is also kept for the current second so it is written as a single array.
+ */
+public class HTTPCannedResponse
+{
+	protected static final byte[] CRLF = {'\r','\n'};
+	protected static final byte[] CONNECTION_CLOSE = getBytes("Connection: close\r\n");
+	protected static final byte[] CONNECTION_KEEP_ALIVE = getBytes("Connection: Keep-Alive\r\n");
+
+	protected byte[] statusLine;
+	protected byte[] contentLength;
+	protected byte[] content;
+
+	// The response with Connection: close, and the Date field it was made with
+	protected volatile Rendered closed;
+
+
+	/**
+	 * Creates a response with the status line, without its line end, and the content, which may be null.
+	 */
+	public HTTPCannedResponse(String statusLine, String content)
+	{
+		this.statusLine = getBytes(statusLine+"\r\n");
+
+		if(content!=null) {
+			this.content = getBytes(content);
+			contentLength = getBytes("Content-Length: "+this.content.length+"\r\n");
+		}
+	}
+
+
+	/**
+	 * Writes the response. If the keepAliveField starts with keep-alive, the response has a
+	 * Connection: Keep-Alive field followed by the keepAliveField, otherwise it has Connection: close
+	 * unless the extraHeaders already have a Connection field. The extraHeaders may be null.
+	 */
+	public void write(OutputStream out, String keepAliveField, String extraHeaders) throws IOException
+	{
+		boolean keepAlive = isKeepAlive(keepAliveField);
+		boolean hasExtraHeaders = extraHeaders!=null && extraHeaders.trim().length()>0;
+
+		if(!keepAlive && !hasExtraHeaders) {
+			byte[] dateField = HTTPDate.getDateField();
+			Rendered rendered = closed;
+
+			if(rendered==null || rendered.dateField!=dateField) {
+				ByteArrayOutputStream b = new ByteArrayOutputStream(getLength(dateField));
+				writeTo(b,dateField,null,null);
+				rendered = new Rendered(dateField,b.toByteArray());
+				closed = rendered;
+			}
+
+			out.write(rendered.bytes);
+		}
+		else {
+			byte[] dateField = HTTPDate.getDateField();
+			ByteArrayOutputStream b = new ByteArrayOutputStream(getLength(dateField)+256);
+			writeTo(b,dateField,keepAlive ? keepAliveField.trim() : null,hasExtraHeaders ? extraHeaders : null);
+			out.write(b.toByteArray());
+		}
+	}
+
+
+	/**
+	 * Returns the response as a String.
+	 */
+	public String toString(String keepAliveField, String extraHeaders)
+	{
+		try {
+			ByteArrayOutputStream b = new ByteArrayOutputStream(getLength(HTTPDate.getDateField())+256);
+			write(b,keepAliveField,extraHeaders);
+			return(b.toString("ISO-8859-1"));
+		}
+		catch(IOException e) {
+			return("");
+		}
+	}
+
+
+	protected void writeTo(ByteArrayOutputStream out, byte[] dateField, String keepAliveField, String extraHeaders)
+	{
+		boolean hasConnection = false;
+
+		out.write(statusLine,0,statusLine.length);
+		out.write(dateField,0,dateField.length);
+		if(contentLength!=null) {
+			out.write(contentLength,0,contentLength.length);
+		}
+
+		if(extraHeaders!=null) {
+			String headers = HTTPResponseWriter.normalizeLineEnds(extraHeaders);
+			if(!headers.endsWith("\n")) {
+				headers = headers+"\r\n";
+			}
+			hasConnection = headers.toLowerCase().startsWith("connection:") || headers.toLowerCase().indexOf("\nconnection:")!=-1;
+
+			byte[] bytes = getBytes(headers);
+			out.write(bytes,0,bytes.length);
+		}
+
+		if(keepAliveField!=null) {
+			byte[] bytes = getBytes(keepAliveField+"\r\n");
+			out.write(CONNECTION_KEEP_ALIVE,0,CONNECTION_KEEP_ALIVE.length);
+			out.write(bytes,0,bytes.length);
+		}
+		else if(!hasConnection) {
+			out.write(CONNECTION_CLOSE,0,CONNECTION_CLOSE.length);
+		}
+
+		out.write(CRLF,0,CRLF.length);
+		if(content!=null) {
+			out.write(content,0,content.length);
+		}
+	}
+
+
+	protected int getLength(byte[] dateField)
+	{
+		int rval = statusLine.length+dateField.length+CONNECTION_CLOSE.length+CRLF.length;
+
+		if(content!=null) {
+			rval = rval+contentLength.length+content.length;
+		}
+
+		return(rval);
+	}
+
+
+	protected static boolean isKeepAlive(String keepAliveField)
+	{
+		return(keepAliveField!=null && keepAliveField.trim().toLowerCase().startsWith("keep-alive"));
+	}
+
+
+	protected static byte[] getBytes(String s)
+	{
+		try {
+			return(s.getBytes("ISO-8859-1"));
+		}
+		catch(Exception e) {
+			return(s.getBytes());
+		}
+	}
+
+
+
+	/**
+	 * A response made with the Date field of one second.
+	 */
+	protected static class Rendered
+	{
+		byte[] dateField;
+		byte[] bytes;
+
+
+		Rendered(byte[] dateField, byte[] bytes)
+		{
+			this.dateField = dateField;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -121,6 +121,41 @@ public class HTTPCheckKMethod extends KMethod
 		return(rval.toString());
 	}
 
+	/**
+	* Returns the request result of a response with the status code, which is null if the
+	* response had no status line. Empty is true if the page returned was empty.
+	*/
+
+	public static int getRequestResult(String resultCode, boolean empty)
+	{
+		int rval = REQUEST_ERROR;
+
+		if(resultCode==null) {
+			rval = REQUEST_ERROR;
+		}
+		else if(resultCode.startsWith("2")) {
+			if(!empty) {
+				rval = REQUEST_SUCCESSFUL;
+			}
+			else {
+				rval = REQUESTED_EMPTY_PAGE;
+			}
+		}
+		else if(resultCode.startsWith("3")) {
+			rval = REQUEST_REDIRECTED;
+		}
+		else if(resultCode.startsWith("4")) {
+			if(resultCode.startsWith("404")) {
+				rval = REQUEST_NOT_FOUND;
+			}
+			else {
+				rval = REQUEST_DENIED;
+			}
+		}
+
+		return(rval);
+	}
+
 	/**
 	* Tests website for connection, request, and latency information.
 	*/
@@ -168,31 +203,7 @@ public class HTTPCheckKMethod extends KMethod
 
 				requestPage = response.toString();
 
-				if(resultCode==null) {
-					requestResult = REQUEST_ERROR;
-				}
-				else if(resultCode.startsWith("2")) {
-					if(response.toString().trim().length()>0) {
-						requestResult = REQUEST_SUCCESSFUL;
-					}
-					else {
-						requestResult = REQUESTED_EMPTY_PAGE;
-					}
-				}
-				else if(resultCode.startsWith("3")) {
-					requestResult = REQUEST_REDIRECTED;
-				}
-				else if(resultCode.startsWith("4")) {
-					if(resultCode.startsWith("404")) {
-						requestResult = REQUEST_NOT_FOUND;
-					}
-					else {
-						requestResult = REQUEST_DENIED;
-					}
-				}
-				else {
-					requestResult = REQUEST_ERROR;
-				}
+				requestResult = getRequestResult(resultCode,response.toString().trim().length()==0);
 
 				requestLatency = System.currentTimeMillis() - requestLatency;
 			}
@@ -0,0 +1,171 @@
+package com.cometway.httpd;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * This OutputStream sends the data written to it using the HTTP/1.1 chunked transfer-coding.
+ * Data is collected in a fixed size buffer, and a chunk is sent each time the buffer fills or
+ * the stream is flushed, so a response of any length is sent in bounded memory without its
+ * Content-Length being known in advance. The finish() method sends the last chunk which marks
+ * the end of the response, leaving the underlying stream open so the connection can be kept alive.
+ */
+public class HTTPChunkedOutputStream extends FilterOutputStream
+{
+	/** The default size of the buffer. */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	protected static final byte[] CRLF = { '\r', '\n' };
+	protected static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+	protected static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	protected byte[] buffer;
+	protected int count;
+	protected boolean finished;
+
+
+	public HTTPChunkedOutputStream(OutputStream out)
+	{
+		this(out, DEFAULT_CHUNK_SIZE);
+	}
+
+
+	/**
+	 * Creates a chunked stream which buffers up to chunkSize bytes before sending a chunk.
+	 */
+	public HTTPChunkedOutputStream(OutputStream out, int chunkSize)
+	{
+		super(out);
+
+		buffer = new byte[chunkSize];
+	}
+
+
+	public void write(int b) throws IOException
+	{
+		if(finished) {
+			throw(new IOException("The last chunk has already been sent"));
+		}
+
+		if(count==buffer.length) {
+			writeChunk(buffer,0,count);
+			count = 0;
+		}
+
+		buffer[count++] = (byte)b;
+	}
+
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if(finished) {
+			throw(new IOException("The last chunk has already been sent"));
+		}
+
+		if(len>=buffer.length-count) {
+			// Send what is buffered and the new data together as a single chunk
+			if(count>0) {
+				writeChunkHeader(count+len);
+				out.write(buffer,0,count);
+				out.write(b,off,len);
+				out.write(CRLF);
+				count = 0;
+			}
+			else {
+				writeChunk(b,off,len);
+			}
+		}
+		else {
+			System.arraycopy(b,off,buffer,count,len);
+			count = count + len;
+		}
+	}
+
+
+	/**
+	 * Sends the buffered data as a chunk and flushes the underlying stream.
+	 */
+	public void flush() throws IOException
+	{
+		if(!finished && count>0) {
+			writeChunk(buffer,0,count);
+			count = 0;
+		}
+
+		out.flush();
+	}
+
+
+	/**
+	 * Sends the buffered data and the last chunk, and flushes the underlying stream, which
+	 * is not closed. Further calls have no effect.
+	 */
+	public void finish() throws IOException
+	{
+		if(!finished) {
+			if(count>0) {
+				writeChunk(buffer,0,count);
+				count = 0;
+			}
+			out.write(LAST_CHUNK);
+			finished = true;
+		}
+
+		out.flush();
+	}
+
+
+	/**
+	 * Returns true if the last chunk has been sent.
+	 */
+	public boolean isFinished()
+	{
+		return(finished);
+	}
+
+
+	/**
+	 * Sends the last chunk and closes the underlying stream.
+	 */
+	public void close() throws IOException
+	{
+		try {
+			finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	protected void writeChunk(byte[] b, int off, int len) throws IOException
+	{
+		if(len>0) {
+			writeChunkHeader(len);
+			out.write(b,off,len);
+			out.write(CRLF);
+		}
+	}
+
+
+	/**
+	 * Writes the chunk size in hexadecimal followed by CRLF.
+	 */
+	protected void writeChunkHeader(int size) throws IOException
+	{
+		byte[] header = new byte[10];
+		int index = header.length;
+
+		header[--index] = '\n';
+		header[--index] = '\r';
+		do {
+			header[--index] = HEX_DIGITS[size&0xF];
+			size = size>>>4;
+		}
+		while(size>0);
+
+		out.write(header,index,header.length-index);
+	}
+}
@@ -0,0 +1,432 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+
+/**
+ * This class pools persistent connections to backend HTTP servers, such as the hosts the
+ * HTTPProxyAgent forwards requests to. Each host and port has its own pool, which holds at most
+ * max_per_host connections, whether they are idle or in use. When all of them are in use,
+ * getSocket() waits up to wait_timeout milliseconds for one to be returned.
+ *
+ * Idle connections are reused most recently returned first and are closed once they have been
+ * idle for idle_timeout milliseconds. Connections which have been idle for probe_time milliseconds
+ * are checked with a short read before being reused, so connections the backend has closed in the
+ * meantime are discarded rather than handed out. Connections idle for less time are only checked
+ * without waiting, so the backend may still have closed one, and a caller should retry a request
+ * which failed before any response was read on a new connection.
+ *
+ * Every Socket returned by getSocket() must be given back with either returnSocket(), if it can
+ * be reused, or discardSocket().
+ */
+public class HTTPConnectionPool
+{
+	protected int max_per_host;
+	protected int idle_timeout;
+	protected int wait_timeout;
+	protected int socket_timeout;
+	protected int probe_time = 1000;
+
+	protected Hashtable hosts = new Hashtable();
+	protected long lastSweep = System.currentTimeMillis();
+	protected boolean closed;
+
+	protected long requests;
+	protected long hits;
+	protected long waits;
+	protected long waitTime;
+	protected long waitTimeouts;
+	protected long stale;
+	protected long evicted;
+
+
+	/**
+	 * Creates a pool of at most max_per_host connections to each host, which are closed after
+	 * being idle for idle_timeout milliseconds. getSocket() waits at most wait_timeout milliseconds
+	 * for a connection, and new connections use socket_timeout for both connecting and reading.
+	 */
+	public HTTPConnectionPool(int max_per_host, int idle_timeout, int wait_timeout, int socket_timeout)
+	{
+		this.max_per_host = max_per_host;
+		this.idle_timeout = idle_timeout;
+		this.wait_timeout = wait_timeout;
+		this.socket_timeout = socket_timeout;
+	}
+
+
+	/**
+	 * Sets how long a connection must have been idle for it to be checked with a read, which waits
+	 * for a millisecond, before it is reused (default: 1000).
+	 */
+	public void setProbeTime(int probe_time)
+	{
+		this.probe_time = probe_time;
+	}
+
+
+	/**
+	 * Returns an idle connection to the host and port, or a new connection if there is none.
+	 * Returns null if all max_per_host connections stayed in use for wait_timeout milliseconds.
+	 * Throws an IOException if a new connection could not be made.
+	 */
+	public Socket getSocket(String hostname, int port) throws IOException
+	{
+		return(getSocket(hostname, port, true));
+	}
+
+
+	/**
+	 * Returns a connection to the host and port, which is a new one unless reuse is true and
+	 * there is an idle connection.
+	 */
+	public Socket getSocket(String hostname, int port, boolean reuse) throws IOException
+	{
+		return(getSocket(hostname, port, reuse, false));
+	}
+
+
+	/**
+	 * Returns a connection to the host and port, which is a new one unless reuse is true and
+	 * there is an idle connection. If probe is true, an idle connection is checked with a read
+	 * however long it has been idle, for requests which cannot be sent again if it fails.
+	 */
+	public Socket getSocket(String hostname, int port, boolean reuse, boolean probe) throws IOException
+	{
+		HostPool pool = getHostPool(hostname, port);
+		Socket rval = null;
+		long idleTime = 0;
+
+		sweep();
+
+		synchronized(this) {
+			requests++;
+		}
+
+		while(rval==null) {
+			boolean create = false;
+
+			synchronized(pool) {
+				long now = System.currentTimeMillis();
+				pool.evict(now);
+
+				if(reuse && pool.idle.size()>0) {
+					IdleSocket idle = (IdleSocket)pool.idle.remove(pool.idle.size()-1);
+					rval = idle.socket;
+					idleTime = now-idle.returned;
+					pool.leased++;
+				}
+				else if(pool.leased+pool.idle.size()<max_per_host) {
+					pool.leased++;
+					create = true;
+				}
+				else if(!reuse && pool.idle.size()>0) {
+					// Make room for the new connection
+					IdleSocket idle = (IdleSocket)pool.idle.remove(0);
+					close(idle.socket);
+					pool.leased++;
+					create = true;
+				}
+				else {
+					// Every connection is in use, wait for one to be returned
+					long waitStart = now;
+					long remaining = wait_timeout;
+					while(remaining>0 && pool.leased+pool.idle.size()>=max_per_host && pool.idle.size()==0 && !closed) {
+						try {
+							pool.wait(remaining);
+						}
+						catch(InterruptedException e) {
+							break;
+						}
+						remaining = wait_timeout-(System.currentTimeMillis()-waitStart);
+					}
+
+					long waited = System.currentTimeMillis()-waitStart;
+					boolean timedOut = (pool.leased+pool.idle.size()>=max_per_host && pool.idle.size()==0) || closed;
+					synchronized(this) {
+						waits++;
+						waitTime = waitTime + waited;
+						if(timedOut) {
+							waitTimeouts++;
+						}
+					}
+					if(timedOut) {
+						return(null);
+					}
+					continue;
+				}
+			}
+
+			if(create) {
+				try {
+					rval = new Socket();
+					rval.connect(new InetSocketAddress(hostname, port), socket_timeout);
+					rval.setSoTimeout(socket_timeout);
+				}
+				catch(IOException e) {
+					close(rval);
+					release(pool);
+					throw(e);
+				}
+			}
+			else if(isAlive(rval,probe ? Long.MAX_VALUE : idleTime)) {
+				synchronized(this) {
+					hits++;
+				}
+			}
+			else {
+				close(rval);
+				rval = null;
+				release(pool);
+				synchronized(this) {
+					stale++;
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Gives back a connection which can be reused.
+	 */
+	public void returnSocket(String hostname, int port, Socket socket)
+	{
+		HostPool pool = getHostPool(hostname, port);
+
+		synchronized(pool) {
+			if(pool.leased>0) {
+				pool.leased--;
+			}
+			if(closed || socket.isClosed()) {
+				close(socket);
+			}
+			else {
+				pool.idle.addElement(new IdleSocket(socket, System.currentTimeMillis()));
+			}
+			pool.notify();
+		}
+	}
+
+
+	/**
+	 * Closes a connection which cannot be reused and gives back its place in the pool.
+	 */
+	public void discardSocket(String hostname, int port, Socket socket)
+	{
+		close(socket);
+		release(getHostPool(hostname, port));
+	}
+
+
+	/**
+	 * Closes every idle connection, and every connection returned from now on.
+	 */
+	public void close()
+	{
+		closed = true;
+
+		Enumeration e = hosts.elements();
+		while(e.hasMoreElements()) {
+			HostPool pool = (HostPool)e.nextElement();
+			synchronized(pool) {
+				for(int x=0;x<pool.idle.size();x++) {
+					close(((IdleSocket)pool.idle.elementAt(x)).socket);
+				}
+				pool.idle.removeAllElements();
+				pool.notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the counters of this pool: requests, hits (requests answered with an idle
+	 * connection), hit_rate (percent), waits, wait_time and average_wait_time (milliseconds),
+	 * wait_timeouts, stale (idle connections found closed by the backend), evicted (idle
+	 * connections closed after idle_timeout), and the number of idle and leased connections.
+	 */
+	public Props getMetrics()
+	{
+		Props rval = new Props();
+		int idle = 0;
+		int leased = 0;
+
+		Enumeration e = hosts.elements();
+		while(e.hasMoreElements()) {
+			HostPool pool = (HostPool)e.nextElement();
+			synchronized(pool) {
+				idle = idle + pool.idle.size();
+				leased = leased + pool.leased;
+			}
+		}
+
+		synchronized(this) {
+			rval.setLong("requests",requests);
+			rval.setLong("hits",hits);
+			rval.setLong("hit_rate",requests>0 ? hits*100/requests : 0);
+			rval.setLong("waits",waits);
+			rval.setLong("wait_time",waitTime);
+			rval.setLong("average_wait_time",waits>0 ? waitTime/waits : 0);
+			rval.setLong("wait_timeouts",waitTimeouts);
+			rval.setLong("stale",stale);
+			rval.setLong("evicted",evicted);
+		}
+		rval.setInteger("idle",idle);
+		rval.setInteger("leased",leased);
+
+		return(rval);
+	}
+
+
+	protected HostPool getHostPool(String hostname, int port)
+	{
+		String key = hostname+":"+port;
+		HostPool rval = (HostPool)hosts.get(key);
+
+		if(rval==null) {
+			synchronized(hosts) {
+				rval = (HostPool)hosts.get(key);
+				if(rval==null) {
+					rval = new HostPool();
+					hosts.put(key,rval);
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	protected void release(HostPool pool)
+	{
+		synchronized(pool) {
+			if(pool.leased>0) {
+				pool.leased--;
+			}
+			pool.notify();
+		}
+	}
+
+
+	/**
+	 * Closes the connections of every host which have been idle for too long, at most once
+	 * every idle_timeout milliseconds.
+	 */
+	protected void sweep()
+	{
+		long now = System.currentTimeMillis();
+
+		synchronized(this) {
+			if(now-lastSweep<idle_timeout) {
+				return;
+			}
+			lastSweep = now;
+		}
+
+		Enumeration e = hosts.elements();
+		while(e.hasMoreElements()) {
+			HostPool pool = (HostPool)e.nextElement();
+			synchronized(pool) {
+				pool.evict(now);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns true if the backend has not closed the idle connection. An idle connection
+	 * should have nothing to read. If it has been idle for probe_time milliseconds, a read
+	 * is tried, and one that does not time out means it is unusable.
+	 */
+	protected boolean isAlive(Socket socket, long idleTime)
+	{
+		boolean rval = false;
+
+		if(!socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown()) {
+			try {
+				InputStream in = socket.getInputStream();
+				int available = in.available();
+				if(available==0 && idleTime<probe_time) {
+					rval = true;
+				}
+				else if(available==0) {
+					socket.setSoTimeout(1);
+					try {
+						in.read();
+					}
+					catch(SocketTimeoutException e) {
+						rval = true;
+					}
+					socket.setSoTimeout(socket_timeout);
+				}
+			}
+			catch(IOException e) {
+				rval = false;
+			}
+		}
+
+		return(rval);
+	}
+
+
+	protected void close(Socket socket)
+	{
+		if(socket!=null) {
+			try {
+				socket.close();
+			}
+			catch(Exception e) {;}
+		}
+	}
+
+
+
+	/**
+	 * The connections to one host and port.
+	 */
+	protected class HostPool
+	{
+		Vector idle = new Vector();
+		int leased;
+
+
+		/**
+		 * Closes the connections which have been idle for idle_timeout milliseconds. The
+		 * oldest connections are at the start of the Vector.
+		 */
+		void evict(long now)
+		{
+			while(idle.size()>0 && now-((IdleSocket)idle.elementAt(0)).returned>=idle_timeout) {
+				IdleSocket old = (IdleSocket)idle.remove(0);
+				close(old.socket);
+				synchronized(HTTPConnectionPool.this) {
+					evicted++;
+				}
+			}
+		}
+	}
+
+
+
+	protected static class IdleSocket
+	{
+		Socket socket;
+		long returned;
+
+
+		IdleSocket(Socket socket, long returned)
+		{
+			this.socket = socket;
+			this.returned = returned;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.cometway.httpd;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+
+/**
+ * This class formats dates in the format of WebServer.dateFormat_RFC822 safely from any thread.
+ * The current date is only formatted once a second, when the clock moves on to the next second,
+ * and is kept both as a String and as the bytes of a complete Date field, so responses can write
+ * it without formatting or allocating anything. Dates in any of the three formats allowed by
+ * HTTP/1.1 are parsed safely from any thread as well.
+ */
+public class HTTPDate
+{
+	protected static final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
+	protected static final SimpleDateFormat[] parseFormats = {
+		new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz"),
+		new SimpleDateFormat("EEEEEEEEE, dd-MMM-yy HH:mm:ss zzz"),
+		new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy")};
+
+	protected static volatile Current current = new Current(System.currentTimeMillis()/1000);
+
+
+	/**
+	 * Returns the current date.
+	 */
+	public static String getDate()
+	{
+		return(getCurrent().date);
+	}
+
+
+	/**
+	 * Returns the bytes of the Date field of the current date, including the line end. The
+	 * array is shared and must not be changed.
+	 */
+	public static byte[] getDateField()
+	{
+		return(getCurrent().field);
+	}
+
+
+	/**
+	 * Returns the date in milliseconds since the epoch, such as a Last-Modified date.
+	 */
+	public static String format(long time)
+	{
+		Current now = getCurrent();
+
+		if(time/1000==now.second) {
+			return(now.date);
+		}
+
+		synchronized(format) {
+			return(format.format(new Date(time)));
+		}
+	}
+
+
+	/**
+	 * Parses a date in any of the three formats allowed by HTTP/1.1 (RFC 822, RFC 850 and ANSI C asctime()).
+	 * Returns null if the date could not be parsed.
+	 */
+	public static Date parse(String s)
+	{
+		Date rval = null;
+
+		s = s.trim();
+
+		for(int x=0;x<parseFormats.length && rval==null;x++) {
+			// SimpleDateFormat keeps the date it is parsing in its own fields
+			synchronized(parseFormats[x]) {
+				try {
+					rval = parseFormats[x].parse(s);
+				}
+				catch(Exception e) {;}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	protected static Current getCurrent()
+	{
+		Current rval = current;
+		long second = System.currentTimeMillis()/1000;
+
+		if(rval.second!=second) {
+			// Threads which get here at the same time format the same date, any of them will do
+			rval = new Current(second);
+			current = rval;
+		}
+
+		return(rval);
+	}
+
+
+
+	/**
+	 * The formatted date of one second.
+	 */
+	protected static class Current
+	{
+		long second;
+		String date;
+		byte[] field;
+
+
+		Current(long second)
+		{
+			this.second = second;
+			synchronized(format) {
+				date = format.format(new Date(second*1000));
+			}
+			try {
+				field = ("Date: "+date+"\r\n").getBytes("ISO-8859-1");
+			}
+			catch(Exception e) {
+				field = ("Date: "+date+"\r\n").getBytes();
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.cometway.httpd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+
+/**
+ * This class sends requests to a FastCGI responder over a connection and reads back its
+ * responses, such as a php-cgi or python worker which stays running between requests. One request
+ * is sent at a time on each connection, and the responder is asked to keep the connection open
+ * afterwards so it can be used for the next request.
+ *
+ * The standard output of the responder is written to an OutputStream as each record arrives, so
+ * it can be passed on to the client while the script is still running.
+ */
+public class HTTPFastCGIClient
+{
+	public static final int FCGI_VERSION_1 = 1;
+
+	public static final int FCGI_BEGIN_REQUEST = 1;
+	public static final int FCGI_ABORT_REQUEST = 2;
+	public static final int FCGI_END_REQUEST = 3;
+	public static final int FCGI_PARAMS = 4;
+	public static final int FCGI_STDIN = 5;
+	public static final int FCGI_STDOUT = 6;
+	public static final int FCGI_STDERR = 7;
+
+	public static final int FCGI_RESPONDER = 1;
+	public static final int FCGI_KEEP_CONN = 1;
+
+	public static final int FCGI_REQUEST_COMPLETE = 0;
+
+	// The largest content of a single record
+	protected static final int MAX_RECORD_LENGTH = 65535;
+
+	protected static final int REQUEST_ID = 1;
+
+	protected Socket socket;
+	protected DataInputStream in;
+	protected OutputStream out;
+	protected byte[] buffer = new byte[MAX_RECORD_LENGTH];
+
+	protected int appStatus;
+	protected int protocolStatus;
+
+
+	/**
+	 * Creates a client which talks to the responder over the socket.
+	 */
+	public HTTPFastCGIClient(Socket socket) throws IOException
+	{
+		this.socket = socket;
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),8192));
+		out = new BufferedOutputStream(socket.getOutputStream(),8192);
+	}
+
+
+	/**
+	 * Sends a request to the responder with the environment, as NAME=value strings, and the
+	 * request body, which may be null.
+	 */
+	public void sendRequest(String[] environment, byte[] body) throws IOException
+	{
+		byte[] begin = new byte[8];
+		begin[1] = FCGI_RESPONDER;
+		begin[2] = FCGI_KEEP_CONN;
+		writeRecord(FCGI_BEGIN_REQUEST,begin,0,begin.length);
+
+		ByteArrayOutputStream params = new ByteArrayOutputStream(2048);
+		for(int x=0;x<environment.length;x++) {
+			int index = environment[x].indexOf('=');
+			if(index>0) {
+				writeNameValue(params,environment[x].substring(0,index),environment[x].substring(index+1));
+			}
+		}
+		writeStream(FCGI_PARAMS,params.toByteArray());
+
+		writeStream(FCGI_STDIN,body);
+		out.flush();
+	}
+
+
+	/**
+	 * Reads the response to the request sent, writing the standard output of the responder to
+	 * stdout as it arrives, and its standard error to stderr. Returns the exit status of the
+	 * script. Throws an EOFException if the connection closes before the request is complete.
+	 */
+	public int readResponse(OutputStream stdout, OutputStream stderr) throws IOException
+	{
+		while(true) {
+			int version = in.readUnsignedByte();
+			int type = in.readUnsignedByte();
+			int requestId = in.readUnsignedShort();
+			int length = in.readUnsignedShort();
+			int padding = in.readUnsignedByte();
+			in.readUnsignedByte();
+
+			if(version!=FCGI_VERSION_1) {
+				throw(new IOException("Unsupported FastCGI version: "+version));
+			}
+
+			in.readFully(buffer,0,length);
+			in.skipBytes(padding);
+
+			if(requestId!=REQUEST_ID) {
+				// Management records are not requested, so there should be none
+				continue;
+			}
+
+			if(type==FCGI_STDOUT) {
+				if(length>0) {
+					stdout.write(buffer,0,length);
+				}
+			}
+			else if(type==FCGI_STDERR) {
+				if(length>0) {
+					stderr.write(buffer,0,length);
+				}
+			}
+			else if(type==FCGI_END_REQUEST) {
+				if(length<5) {
+					throw(new IOException("Invalid FastCGI end request record"));
+				}
+				appStatus = ((buffer[0]&0xFF)<<24)|((buffer[1]&0xFF)<<16)|((buffer[2]&0xFF)<<8)|(buffer[3]&0xFF);
+				protocolStatus = buffer[4]&0xFF;
+				break;
+			}
+		}
+
+		return(appStatus);
+	}
+
+
+	/**
+	 * Returns true if the responder completed the last request, rather than refusing it because
+	 * it was overloaded or does not support the responder role.
+	 */
+	public boolean isComplete()
+	{
+		return(protocolStatus==FCGI_REQUEST_COMPLETE);
+	}
+
+
+	/**
+	 * Sends the data as records of the type, followed by the empty record which ends the stream.
+	 */
+	protected void writeStream(int type, byte[] data) throws IOException
+	{
+		if(data!=null) {
+			for(int offset=0;offset<data.length;offset=offset+MAX_RECORD_LENGTH) {
+				writeRecord(type,data,offset,Math.min(MAX_RECORD_LENGTH,data.length-offset));
+			}
+		}
+		writeRecord(type,data,0,0);
+	}
+
+
+	protected void writeRecord(int type, byte[] data, int offset, int length) throws IOException
+	{
+		// Records are padded to a multiple of 8 bytes
+		int padding = (8-(length&7))&7;
+
+		out.write(FCGI_VERSION_1);
+		out.write(type);
+		out.write((REQUEST_ID>>8)&0xFF);
+		out.write(REQUEST_ID&0xFF);
+		out.write((length>>8)&0xFF);
+		out.write(length&0xFF);
+		out.write(padding);
+		out.write(0);
+		if(length>0) {
+			out.write(data,offset,length);
+		}
+		for(int x=0;x<padding;x++) {
+			out.write(0);
+		}
+	}
+
+
+	protected void writeNameValue(ByteArrayOutputStream params, String name, String value) throws IOException
+	{
+		byte[] nameBytes = name.getBytes("ISO-8859-1");
+		byte[] valueBytes = value.getBytes("ISO-8859-1");
+
+		writeLength(params,nameBytes.length);
+		writeLength(params,valueBytes.length);
+		params.write(nameBytes);
+		params.write(valueBytes);
+	}
+
+
+	/**
+	 * Lengths under 128 are sent in one byte, longer ones in four with the high bit set.
+	 */
+	protected void writeLength(ByteArrayOutputStream params, int length)
+	{
+		if(length<128) {
+			params.write(length);
+		}
+		else {
+			params.write(((length>>24)&0x7F)|0x80);
+			params.write((length>>16)&0xFF);
+			params.write((length>>8)&0xFF);
+			params.write(length&0xFF);
+		}
+	}
+}
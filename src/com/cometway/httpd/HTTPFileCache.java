@@ -0,0 +1,345 @@
+package com.cometway.httpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * This class is a size bounded, least recently used cache of small files for the
+ * HTTPFileServerAgent. Each entry holds the file's response header fields (Content-Length,
+ * Last-Modified, ETag, Accept-Ranges and Content-Type) followed by the file data in a single
+ * ByteBuffer, so a cached file is answered with one write and no disk access.
+ *
+ * Entries are validated against the file's timestamp and length at most once every check
+ * interval, requests in between are served without touching the file system.
+ *
+ * This class also provides the strong entity tags and the If-None-Match and
+ * If-Modified-Since checks used for files that are not cached.
+ */
+public class HTTPFileCache
+{
+	protected LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+	protected long max_size;
+	protected int max_file_size;
+	protected int check_interval;
+	protected long size;
+
+
+	/**
+	 * Creates a cache holding at most max_size bytes of responses for files of at most
+	 * max_file_size bytes. Entries are checked against their files at most once every
+	 * check_interval milliseconds.
+	 */
+	public HTTPFileCache(long max_size, int max_file_size, int check_interval)
+	{
+		this.max_size = max_size;
+		this.max_file_size = max_file_size;
+		this.check_interval = check_interval;
+	}
+
+
+	/**
+	 * Returns the entry cached for the key, or null if there is none or the file has changed
+	 * since it was cached.
+	 */
+	public Entry get(String key)
+	{
+		Entry rval = null;
+		boolean check = false;
+		long now = System.currentTimeMillis();
+
+		synchronized(this) {
+			rval = (Entry)entries.get(key);
+			if(rval!=null && now-rval.checked>=check_interval) {
+				// Only one request checks the file, the others keep using the entry meanwhile
+				rval.checked = now;
+				check = true;
+			}
+		}
+
+		if(check && !rval.isCurrent()) {
+			remove(key);
+			rval = null;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Reads the file into a new entry and caches it under the key. Returns null if the file
+	 * is too large to be cached or could not be read. The contentType is a complete Content-Type
+	 * header line as returned by WebServer.getMimeType().
+	 */
+	public Entry put(String key, File file, String contentType)
+	{
+		Entry rval = null;
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		if(length<=max_file_size && length<=max_size) {
+			try {
+				rval = new Entry(file,lastModified,length,contentType);
+			}
+			catch(IOException e) {
+				rval = null;
+			}
+
+			if(rval!=null) {
+				synchronized(this) {
+					Entry old = (Entry)entries.put(key,rval);
+					if(old!=null) {
+						size = size - old.getSize();
+					}
+					size = size + rval.getSize();
+
+					Iterator i = entries.values().iterator();
+					while(size>max_size && i.hasNext()) {
+						Entry eldest = (Entry)i.next();
+						i.remove();
+						size = size - eldest.getSize();
+					}
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Removes the entry cached for the key.
+	 */
+	public synchronized void remove(String key)
+	{
+		Entry old = (Entry)entries.remove(key);
+		if(old!=null) {
+			size = size - old.getSize();
+		}
+	}
+
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+
+
+	/**
+	 * Returns the number of bytes held by the cached entries.
+	 */
+	public synchronized long getSize()
+	{
+		return(size);
+	}
+
+
+	/**
+	 * Returns the number of cached entries.
+	 */
+	public synchronized int getEntryCount()
+	{
+		return(entries.size());
+	}
+
+
+	/**
+	 * Returns the strong entity tag of a file with the given length and modification time.
+	 */
+	public static String getETag(long length, long lastModified)
+	{
+		return("\""+Long.toHexString(length)+"-"+Long.toHexString(lastModified)+"\"");
+	}
+
+
+	/**
+	 * Returns true if the entity tag is listed in the value of an If-None-Match header.
+	 * Weak comparison is used, as allowed for GET and HEAD requests.
+	 */
+	public static boolean etagMatches(String ifNoneMatch, String etag)
+	{
+		boolean rval = false;
+
+		int start = 0;
+		while(start<=ifNoneMatch.length()) {
+			int end = ifNoneMatch.indexOf(',',start);
+			if(end==-1) {
+				end = ifNoneMatch.length();
+			}
+
+			String tag = ifNoneMatch.substring(start,end).trim();
+			if(tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if(tag.equals("*") || tag.equals(etag)) {
+				rval = true;
+				break;
+			}
+			start = end+1;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if the client already has the current version of the entity and should be
+	 * sent a 304 response. If-None-Match takes precedence over If-Modified-Since.
+	 */
+	public static boolean isNotModified(HTTPAgentRequest request, long lastModified, String etag)
+	{
+		boolean rval = false;
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if(ifNoneMatch!=null) {
+			rval = etagMatches(ifNoneMatch,etag);
+		}
+		else {
+			Date modDate = request.getIfModifiedSince();
+			if(modDate!=null) {
+				// HTTP dates only have a resolution of one second
+				rval = (lastModified/1000 <= modDate.getTime()/1000);
+			}
+		}
+
+		return(rval);
+	}
+
+
+
+	/**
+	 * A cached file and its preassembled response header fields.
+	 */
+	public static class Entry
+	{
+		File file;
+		long lastModified;
+		long length;
+		String etag;
+		ByteBuffer response;
+		int headerLength;
+		long checked;
+
+
+		Entry(File file, long lastModified, long length, String contentType) throws IOException
+		{
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+
+			etag = HTTPFileCache.getETag(length,lastModified);
+
+			StringBuffer header = new StringBuffer();
+			header.append("Content-Length: "+length+"\r\n");
+			header.append("Last-Modified: "+HTTPDate.format(lastModified)+"\r\n");
+			header.append("ETag: "+etag+"\r\n");
+			header.append("Accept-Ranges: bytes\r\n");
+			header.append(contentType);
+			header.append("\r\n");
+
+			byte[] headerBytes = header.toString().getBytes();
+			headerLength = headerBytes.length;
+
+			byte[] data = new byte[headerLength+(int)length];
+			System.arraycopy(headerBytes,0,data,0,headerLength);
+
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				int offset = headerLength;
+				while(offset<data.length) {
+					int bytesRead = fis.read(data,offset,data.length-offset);
+					if(bytesRead==-1) {
+						throw(new IOException("File is shorter than expected: "+file));
+					}
+					offset = offset + bytesRead;
+				}
+			}
+			finally {
+				try {
+					fis.close();
+				}
+				catch(Exception e) {;}
+			}
+
+			response = ByteBuffer.wrap(data);
+			checked = System.currentTimeMillis();
+		}
+
+
+		/**
+		 * Returns true if the file has not been changed or removed since it was cached.
+		 */
+		boolean isCurrent()
+		{
+			return(file.lastModified()==lastModified && file.length()==length && file.canRead());
+		}
+
+
+		/**
+		 * Returns the number of bytes held by this entry.
+		 */
+		long getSize()
+		{
+			return(response.capacity());
+		}
+
+
+		public String getETag()
+		{
+			return(etag);
+		}
+
+
+		public long getLastModified()
+		{
+			return(lastModified);
+		}
+
+
+		public long getLength()
+		{
+			return(length);
+		}
+
+
+		/**
+		 * Writes the cached header fields, and the file data unless headerOnly is true, to the
+		 * client. The status line and any other header fields must already have been written.
+		 */
+		public void write(HTTPAgentRequest request, boolean headerOnly) throws IOException
+		{
+			OutputStream out = request.getOutputStream();
+			int count = response.capacity();
+			if(headerOnly) {
+				count = headerLength;
+			}
+
+			SocketChannel socketChannel = HTTPFileTransfer.getSocketChannel(request);
+			if(socketChannel!=null) {
+				out.flush();
+
+				ByteBuffer buffer = response.duplicate();
+				buffer.limit(count);
+				while(buffer.hasRemaining()) {
+					socketChannel.write(buffer);
+				}
+			}
+			else {
+				out.write(response.array(),0,count);
+				out.flush();
+			}
+		}
+	}
+}
+
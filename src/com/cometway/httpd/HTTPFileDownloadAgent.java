@@ -19,14 +19,17 @@ public class HTTPFileDownloadAgent extends RequestAgent
 	protected int currentSessions;
 	protected Object sync;
 	protected FileWriter logOut;
+	protected HTTPBandwidthScheduler localScheduler;
 
 	/**
 	 * Initializes this agent's properties by providing default values for each of the following missing properties:
 	 * "service_name" is used to register this agent with the ServiceManager (default: download.agent)
 	 * "html_directory" points to the root directory where HTML files are served (default: public_html)
-	 * "max_sessions" denotes the maximum amount of concurrent connections downloading content at a single time (default: 4)
+	 * "max_sessions" denotes the maximum amount of concurrent connections downloading content at a single time, 0 is unlimited (default: 4)
 	 * "max_bandwidth" denotes the amount of bytes per second allowed for each connection (default: 5000)
 	 * "log_file" denotes the file which bandwidth usage is to be logged (default: downloads.log)
+	 * "bandwidth_scheduler" is the service name of the HTTPBandwidthScheduler which paces the downloads, if it is not
+	 * registered each connection is only limited by max_bandwidth (default: bandwidth_scheduler)
 	 */
 	public void initProps()
 	{
@@ -35,6 +38,7 @@ public class HTTPFileDownloadAgent extends RequestAgent
 		setDefault("html_directory","public_html");
 		setDefault("max_sessions","4");
 		setDefault("max_bandwidth","5000");
+		setDefault("bandwidth_scheduler","bandwidth_scheduler");
 
 		setDefault("log_file","downloads.log");
 		setDefault("default_content_type","application/octet-stream");
@@ -47,6 +51,7 @@ public class HTTPFileDownloadAgent extends RequestAgent
 	{
 		html_directory=getString("html_directory");
 		sync = new Object();
+		localScheduler = new HTTPBandwidthScheduler();
 
 		try {
 			logOut = new FileWriter(new File(getString("log_file")),true);
@@ -82,7 +87,8 @@ public class HTTPFileDownloadAgent extends RequestAgent
 		boolean rval = false;
 		try {
 			synchronized(sync) {
-				if(currentSessions < getInteger("max_sessions")) {
+				int max_sessions = getInteger("max_sessions");
+				if(max_sessions<=0 || currentSessions < max_sessions) {
 					rval = true;
 					currentSessions++;
 				}
@@ -127,9 +133,14 @@ public class HTTPFileDownloadAgent extends RequestAgent
 				request.print(WebServer.getHTMLByCode(WebServer.URL_NOT_FOUND));
 			}
 			if(downloadFile.exists()) {
-				if(addSession()) {
+				long[][] ranges = HTTPByteRanges.getRequestedRanges(request,downloadFile.length(),downloadFile.lastModified(),null);
+				if(ranges!=null && ranges.length==0) {
+					request.print(WebServer.getHTMLByCode(WebServer.CANNOT_SATISFY_REQUEST_RANGE,null,"Content-Range: bytes */"+downloadFile.length()+"\n"));
+					printLog("---------- Requested a range that cannot be satisfied, sent 416 response",request);
+				}
+				else if(addSession()) {
 					FileInputStream fis = null;
-					int bytesSent = 0;
+					long bytesSent = 0;
 					boolean success = false;
 					try {
 						String mimeType = WebServer.getMimeType(filename);
@@ -137,35 +148,37 @@ public class HTTPFileDownloadAgent extends RequestAgent
 						//							mimeType = "Content-Type: "+getString("default_content_type")+"\n";
 						//						}
 						//						println("+++++++++++ MIME TYPE = "+mimeType);
-						socketOut.write(("HTTP/1.1 200 Ok.\r\nConnection: close\r\n").getBytes());
-						socketOut.write(("Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\n").getBytes());
-						socketOut.write(("Content-Length: "+downloadFile.length()+"\r\n").getBytes());
+						// Only a single range is honored so interrupted downloads can be resumed,
+						// requests for several ranges are sent the entire file.
+						long first = 0;
+						long length = downloadFile.length();
+						if(ranges!=null && ranges.length==1) {
+							first = ranges[0][0];
+							socketOut.write(("HTTP/1.1 206 Partial Content.\r\nConnection: close\r\n").getBytes());
+							socketOut.write(("Content-Range: "+HTTPByteRanges.getContentRange(ranges[0],length)+"\r\n").getBytes());
+							length = ranges[0][1]+1;
+						}
+						else {
+							socketOut.write(("HTTP/1.1 200 Ok.\r\nConnection: close\r\n").getBytes());
+						}
+						socketOut.write(HTTPDate.getDateField());
+						socketOut.write(("Last-Modified: "+HTTPDate.format(downloadFile.lastModified())+"\r\n").getBytes());
+						socketOut.write(("Accept-Ranges: bytes\r\n").getBytes());
+						socketOut.write(("Content-Length: "+(length-first)+"\r\n").getBytes());
 						socketOut.write(("Content-Disposition: inline; filename="+filename+"\r\n").getBytes());
 						socketOut.write((mimeType+"\r\n").getBytes());
 						socketOut.flush();
 
 						fis = new FileInputStream(downloadFile);
-						byte[] data = new byte[getInteger("max_bandwidth")];
-						int bytesRead = fis.read(data);
-						while(bytesRead>0) {
-							long timestamp = System.currentTimeMillis();
-							socketOut.write(data,0,bytesRead);
-
-							bytesSent = bytesSent+bytesRead;
-							
-							bytesRead = fis.read(data);
-
-							long time = System.currentTimeMillis()-timestamp;
-							if(time<1000) {
-								try {
-									//									wait(1000-time);
-									Thread.sleep(1000-time);
-								}
-								catch(Exception e) {;}
-								//								println("Slept for "+(1000-time)+" milliseconds, sent="+bytesRead);
-							}
+						HTTPBandwidthScheduler.Session session = getBandwidthScheduler().openSession(request.getString("host"),getInteger("max_bandwidth"));
+						try {
+							session.transfer(fis.getChannel(),first,length-first,request);
+						}
+						finally {
+							bytesSent = session.getBytesSent();
+							session.close();
 						}
-						if(bytesSent==downloadFile.length()) {
+						if(bytesSent==length-first) {
 							success = true;
 						}
 					}
@@ -186,7 +199,7 @@ public class HTTPFileDownloadAgent extends RequestAgent
 				}
 				else {
 					request.println("HTTP/1.1 200 Ok");
-					request.println("Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\n");
+					request.println("Date: "+HTTPDate.getDate()+"\n");
 					request.println("Connection: close");
 					request.println("Content-Type: text/html\n");
 					request.println("<HTML><HEAD><TITLE>Please Try again Later</TITLE></HEAD><BODY><H1>The Download Server has reached its maximum number of connections</H1>Please wait a few minutes and try again. You should be able to try again by refreshing or reloading the current page. Sorry for the inconvenience.</BODY></HTML>");
@@ -205,6 +218,22 @@ public class HTTPFileDownloadAgent extends RequestAgent
 
 	}
 	
+	/**
+	 * Returns the HTTPBandwidthScheduler registered as the bandwidth_scheduler service, or a scheduler
+	 * which only limits each connection if none is registered.
+	 */
+	protected HTTPBandwidthScheduler getBandwidthScheduler()
+	{
+		Object scheduler = ServiceManager.getService(getString("bandwidth_scheduler"));
+		if(scheduler instanceof HTTPBandwidthScheduler) {
+			return((HTTPBandwidthScheduler)scheduler);
+		}
+		else {
+			return(localScheduler);
+		}
+	}
+
+
 	/**
     * This method is used by this Agent to log bandwidth related information to the log file.
 	 */
@@ -9,6 +9,7 @@ import java.io.*;
 import com.cometway.util.*;
 import com.cometway.net.*;
 import com.cometway.io.RegExpFilenameFilter;
+import java.nio.channels.FileChannel;
 
 /**
 * This agent is used by the WebServer to handle requests for HTML files and
@@ -18,6 +19,7 @@ import com.cometway.io.RegExpFilenameFilter;
 public class HTTPFileServerAgent extends WebServerExtension
 {
 	protected String html_directory;
+	protected HTTPFileCache fileCache;
 
 	/** 
 	*Initializes this agent's properties by providing default
@@ -27,6 +29,9 @@ public class HTTPFileServerAgent extends WebServerExtension
 	* "default_index" is the default file served when no filename is specified, can be more than one index (default: index.html),
 	* "allow_directory_lists" when enabled, allows this agent to display links to files in a directory (default: yes)
 	* "domains" used for registering extension, can be more than one domain (default: default)
+	* "file_cache_size" is the number of bytes of small files kept in memory, 0 disables the cache (default: 8388608)
+	* "max_cached_file_size" is the size of the largest file kept in the cache (default: 65536)
+	* "file_cache_check_interval" is the number of milliseconds between checks of a cached file's timestamp (default: 2000)
 	*/
 
 	public void initProps()
@@ -43,6 +48,10 @@ public class HTTPFileServerAgent extends WebServerExtension
 		setDefault("dont_index_list","^\\.$,~\\.\\.$,^#[A-Za-z0-9\\.]*#$,^[A-Za-z0-9\\.]*~$");
 		// This alpha sorts the directory listings if set to true
 		setDefault("alpha_sort_index","true");
+
+		setDefault("file_cache_size","8388608");
+		setDefault("max_cached_file_size","65536");
+		setDefault("file_cache_check_interval","2000");
 	}
 	
 	/**
@@ -53,6 +62,10 @@ public class HTTPFileServerAgent extends WebServerExtension
 	{
 		html_directory = getString("html_directory");
 
+		if(getInteger("file_cache_size")>0) {
+			fileCache = new HTTPFileCache(getInteger("file_cache_size"),getInteger("max_cached_file_size"),getInteger("file_cache_check_interval"));
+		}
+
 		try {
 			if(!hasProperty("service_url")) {
 				setProperty("service_url","http://"+java.net.InetAddress.getLocalHost().getHostName()+"/");
@@ -138,7 +151,7 @@ public class HTTPFileServerAgent extends WebServerExtension
 				// This is a file. fetch the file from the "html_directory"
 				if(!hasProperty("html_directory")) {
 					request.returnVal = ""+WebServer.FORBIDDEN;
-					socketOut.write(WebServer.getHTMLByCode(WebServer.FORBIDDEN).getBytes());
+					WebServer.writeHTMLByCode(socketOut,WebServer.FORBIDDEN);
 					socketOut.flush();
 					responded = true;
 				}
@@ -152,8 +165,17 @@ public class HTTPFileServerAgent extends WebServerExtension
 						fullpath = fullpath+"/";
 					}
 					File file = new File(fullpath+path);
+					String cacheKey = fullpath+path;
 
-					if(file.isDirectory()) {
+					if(fileCache!=null && request.getHeader("Range")==null) {
+						HTTPFileCache.Entry entry = fileCache.get(cacheKey);
+						if(entry!=null) {
+							sendCachedFile(entry,request,keepAlive);
+							responded = true;
+						}
+					}
+
+					if(!responded && file.isDirectory()) {
 						if(path.length()==0 || (path.charAt(path.length()-1) == '/')) {
 							String defaultIndex = null;
 							String[] indeces = StringTools.commaToArray(getString("default_index"));
@@ -171,7 +193,7 @@ public class HTTPFileServerAgent extends WebServerExtension
 									socketOut.write(("HTTP/1.1 200 Ok.\r\n").getBytes());
 									String directoryList = generateDirectoryList(new File(fullpath+path),path);
 									socketOut.write(("Content-Length: "+directoryList.length()+"\r\n").getBytes());
-									socketOut.write(("Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\n").getBytes());
+									socketOut.write(HTTPDate.getDateField());
 									if(keepAlive) {
 										if(request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
 											socketOut.write((request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD)+"\r\n").getBytes());
@@ -272,45 +294,108 @@ public class HTTPFileServerAgent extends WebServerExtension
 							responded = true;
 						}
 						else if(file.exists()) {
-							Date modDate = request.getIfModifiedSince();
-							if(modDate!=null && file.lastModified() < modDate.getTime()) {
-								socketOut.write(WebServer.getHTMLByCode(WebServer.NOT_MODIFIED,request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD)).getBytes());
-								request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
-								socketOut.flush();
+							HTTPFileCache.Entry entry = null;
+							if(fileCache!=null && request.getHeader("Range")==null) {
+								entry = fileCache.put(cacheKey,file,WebServer.getMimeType(path));
+							}
+
+							if(entry!=null) {
+								sendCachedFile(entry,request,keepAlive);
 								responded = true;
-								request.returnVal = ""+WebServer.NOT_MODIFIED;
 							}
 							else {
-								FileInputStream fis = null;
-								try {
-									socketOut.write(("HTTP/1.1 200 Ok.\r\n").getBytes());						
-									socketOut.write(("Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\n").getBytes());
-									socketOut.write(("Content-Length: "+file.length()+"\r\n").getBytes());
-									if(keepAlive) {
-										if(request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
-											socketOut.write((request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD)+"\r\n").getBytes());
+								long lastModified = file.lastModified();
+								String etag = HTTPFileCache.getETag(file.length(),lastModified);
+								if(HTTPFileCache.isNotModified(request,lastModified,etag)) {
+									WebServer.writeHTMLByCode(socketOut,WebServer.NOT_MODIFIED,request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD),"ETag: "+etag+"\n");
+									request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+									socketOut.flush();
+									responded = true;
+									request.returnVal = ""+WebServer.NOT_MODIFIED;
+								}
+								else {
+									long length = file.length();
+									long[][] ranges = HTTPByteRanges.getRequestedRanges(request,length,lastModified,etag);
+									if(ranges!=null && ranges.length==0) {
+										String keepAliveField = null;
+										if(keepAlive) {
+											keepAliveField = request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD);
 											request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
 										}
-										socketOut.write(("Connection: Keep-Alive\r\n").getBytes());
+										String response = WebServer.getHTMLByCode(WebServer.CANNOT_SATISFY_REQUEST_RANGE,keepAliveField,"Content-Range: bytes */"+length+"\n");
+										if(request.isHeadRequest()) {
+											int tmpIndex = response.indexOf("\r\n\r\n");
+											if(tmpIndex!=-1) {
+												response = response.substring(0,tmpIndex+4);
+											}
+										}
+										socketOut.write(response.getBytes());
+										socketOut.flush();
+										responded = true;
+										request.returnVal = ""+WebServer.CANNOT_SATISFY_REQUEST_RANGE;
 									}
 									else {
-										socketOut.write(("Connection: Close\r\n").getBytes());
-									}
-									socketOut.write((WebServer.getMimeType(path)+"\r\n").getBytes());
-									socketOut.flush();
-									responded = true;
-									request.returnVal = "200";
-								
-									if(!request.isHeadRequest()) {
-										sendFile(file,request);
+										FileInputStream fis = null;
+										try {
+											String contentType = WebServer.getMimeType(path);
+											if(ranges==null) {
+												socketOut.write(("HTTP/1.1 200 Ok.\r\n").getBytes());
+												socketOut.write(("Content-Length: "+length+"\r\n").getBytes());
+											}
+											else if(ranges.length==1) {
+												socketOut.write(("HTTP/1.1 206 Partial Content.\r\n").getBytes());
+												socketOut.write(("Content-Range: "+HTTPByteRanges.getContentRange(ranges[0],length)+"\r\n").getBytes());
+												socketOut.write(("Content-Length: "+(ranges[0][1]-ranges[0][0]+1)+"\r\n").getBytes());
+											}
+											else {
+												socketOut.write(("HTTP/1.1 206 Partial Content.\r\n").getBytes());
+												socketOut.write(("Content-Length: "+HTTPByteRanges.getMultipartLength(ranges,length,contentType)+"\r\n").getBytes());
+											}
+											socketOut.write(HTTPDate.getDateField());
+											socketOut.write(("Last-Modified: "+HTTPDate.format(lastModified)+"\r\n").getBytes());
+											socketOut.write(("ETag: "+etag+"\r\n").getBytes());
+											socketOut.write(("Accept-Ranges: bytes\r\n").getBytes());
+											if(keepAlive) {
+												if(request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
+													socketOut.write((request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD)+"\r\n").getBytes());
+													request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+												}
+												socketOut.write(("Connection: Keep-Alive\r\n").getBytes());
+											}
+											else {
+												socketOut.write(("Connection: Close\r\n").getBytes());
+											}
+											if(ranges!=null && ranges.length>1) {
+												socketOut.write(("Content-Type: multipart/byteranges; boundary="+HTTPByteRanges.BOUNDARY+"\r\n\r\n").getBytes());
+											}
+											else {
+												socketOut.write((contentType+"\r\n").getBytes());
+											}
+											socketOut.flush();
+											responded = true;
+
+											if(ranges==null) {
+												request.returnVal = "200";
+												if(!request.isHeadRequest()) {
+													sendFile(file,request);
+												}
+											}
+											else {
+												request.returnVal = ""+WebServer.PARTIAL_CONTENT;
+												if(!request.isHeadRequest()) {
+													fis = new FileInputStream(file);
+													sendRanges(fis.getChannel(),ranges,length,contentType,request);
+												}
+											}
+										}
+										catch(Exception e) {
+											error("Could not read file or send file data to client, URI= "+path,e);
+										}
+										finally {
+											try {fis.close();} catch(Exception e) {;}
+										}
 									}
 								}
-								catch(Exception e) {
-									error("Could not read file or send file data to client, URI= "+path,e);
-								}
-								finally {
-									try {fis.close();} catch(Exception e) {;}
-								}
 							}
 						}
 					}
@@ -365,16 +450,66 @@ public class HTTPFileServerAgent extends WebServerExtension
 	}
 
 
-	protected void sendFile(File file, HTTPAgentRequest request) throws IOException
+	/**
+	 * Sends a file from the file cache, or a 304 response if the client already has it.
+	 */
+	protected void sendCachedFile(HTTPFileCache.Entry entry, HTTPAgentRequest request, boolean keepAlive) throws IOException
 	{
-		FileInputStream fis = new FileInputStream(file);
 		OutputStream socketOut = request.getOutputStream();
-		byte[] fileData = new byte[1024];
-		int bytesread = fis.read(fileData);
-		while(bytesread>0) {
-			socketOut.write(fileData,0,bytesread);
+		String keepAliveField = null;
+
+		if(keepAlive && request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
+			keepAliveField = request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD);
+			request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+		}
+
+		if(HTTPFileCache.isNotModified(request,entry.getLastModified(),entry.getETag())) {
+			WebServer.writeHTMLByCode(socketOut,WebServer.NOT_MODIFIED,keepAliveField,"ETag: "+entry.getETag()+"\n");
 			socketOut.flush();
-			bytesread = fis.read(fileData);
+			request.returnVal = ""+WebServer.NOT_MODIFIED;
+		}
+		else {
+			StringBuffer header = new StringBuffer();
+			header.append("HTTP/1.1 200 Ok.\r\n");
+			header.append("Date: "+HTTPDate.getDate()+"\r\n");
+			if(keepAlive) {
+				if(keepAliveField!=null) {
+					header.append(keepAliveField+"\r\n");
+				}
+				header.append("Connection: Keep-Alive\r\n");
+			}
+			else {
+				header.append("Connection: Close\r\n");
+			}
+			socketOut.write(header.toString().getBytes());
+			request.returnVal = "200";
+
+			entry.write(request,request.isHeadRequest());
+		}
+	}
+
+
+	/**
+	 * Sends the contents of the file to the client using HTTPFileTransfer.
+	 */
+	protected void sendFile(File file, HTTPAgentRequest request) throws IOException
+	{
+		HTTPFileTransfer.transfer(file,request);
+	}
+
+
+	/**
+	 * Sends the ranges of a file of the length to the client using HTTPFileTransfer, as a
+	 * multipart/byteranges entity if there is more than one. The contentType is a complete
+	 * Content-Type header line as returned by WebServer.getMimeType().
+	 */
+	protected void sendRanges(FileChannel channel, long[][] ranges, long length, String contentType, HTTPAgentRequest request) throws IOException
+	{
+		if(ranges.length==1) {
+			HTTPFileTransfer.transfer(channel,ranges[0][0],ranges[0][1]-ranges[0][0]+1,request);
+		}
+		else {
+			HTTPByteRanges.sendMultipart(channel,ranges,length,contentType,request);
 		}
 	}
 		
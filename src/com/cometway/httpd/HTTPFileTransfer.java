@@ -0,0 +1,119 @@
+package com.cometway.httpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * This class sends file data to the client of an HTTPAgentRequest. When the client Socket has
+ * a blocking SocketChannel (connections accepted by the nio connection engine), the data is
+ * sent using FileChannel.transferTo() so the file is copied to the socket by the kernel.
+ * Otherwise, for example with the SSLSockets of the SecureWebServer, the file is copied
+ * through a large buffer and the stream is only flushed once the transfer is complete.
+ *
+ * Reads are positional, so any number of requests can transfer ranges of the same
+ * FileChannel at the same time.
+ */
+public class HTTPFileTransfer
+{
+	/** The largest block of data copied at once when transferTo() cannot be used. */
+	public static final int BUFFER_SIZE = 65536;
+
+
+	/**
+	 * Sends the entire file to the client. Returns the number of bytes sent.
+	 */
+	public static long transfer(File file, HTTPAgentRequest request) throws IOException
+	{
+		long rval = 0;
+		FileInputStream fis = new FileInputStream(file);
+
+		try {
+			FileChannel channel = fis.getChannel();
+			rval = transfer(channel, 0, channel.size(), request);
+		}
+		finally {
+			try {
+				fis.close();
+			}
+			catch(Exception e) {;}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Sends count bytes from the channel starting at position to the client. Any data already
+	 * written to the request's OutputStream is flushed first. The transfer stops early if the end
+	 * of the file is reached. Returns the number of bytes sent.
+	 */
+	public static long transfer(FileChannel channel, long position, long count, HTTPAgentRequest request) throws IOException
+	{
+		long rval = 0;
+		OutputStream out = request.getOutputStream();
+
+		out.flush();
+
+		SocketChannel socketChannel = getSocketChannel(request);
+		if(socketChannel!=null) {
+			while(rval<count) {
+				long sent = channel.transferTo(position+rval, count-rval, socketChannel);
+				if(sent<=0) {
+					break;
+				}
+				rval = rval + sent;
+			}
+		}
+		else {
+			byte[] buffer = new byte[(int)Math.max(1,Math.min(BUFFER_SIZE, count))];
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			while(rval<count) {
+				byteBuffer.clear();
+				byteBuffer.limit((int)Math.min(buffer.length, count-rval));
+				int bytesRead = channel.read(byteBuffer, position+rval);
+				if(bytesRead<=0) {
+					break;
+				}
+				out.write(buffer,0,bytesRead);
+				rval = rval + bytesRead;
+			}
+			out.flush();
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the blocking SocketChannel connected to the client of the request, or null if
+	 * the file data has to be written to the request's OutputStream. This is also the case while
+	 * responses to pipelined requests are being held in an HTTPPipelineOutputStream.
+	 */
+	protected static SocketChannel getSocketChannel(HTTPAgentRequest request)
+	{
+		SocketChannel rval = null;
+		Socket socket = request.getSocket();
+
+		if(socket!=null) {
+			rval = socket.getChannel();
+			if(rval!=null && !rval.isBlocking()) {
+				rval = null;
+			}
+
+			OutputStream out = request.getOutputStream();
+			if(out instanceof HTTPPipelineOutputStream && ((HTTPPipelineOutputStream)out).isHoldingFlush()) {
+				rval = null;
+			}
+		}
+
+		return(rval);
+	}
+}
+
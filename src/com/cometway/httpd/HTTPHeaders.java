@@ -0,0 +1,226 @@
+package com.cometway.httpd;
+
+import java.util.Vector;
+
+
+/**
+ * This class holds the header fields of an HTTP request in the order they were received.
+ * Field names are not case sensitive. A request rarely has more than a couple of dozen fields,
+ * so lookups scan the names directly rather than hashing a lower case copy of each name.
+ */
+public class HTTPHeaders
+{
+	protected String[] names;
+	protected String[] values;
+	protected int count;
+
+
+	public HTTPHeaders()
+	{
+		names = new String[16];
+		values = new String[16];
+	}
+
+
+	/**
+	 * Parses the header fields of a request in the form stored in the 'request' property of an
+	 * HTTPAgentRequest: the request line, followed by one field per line, optionally followed by a
+	 * blank line and the request body.
+	 */
+	public static HTTPHeaders parse(String request)
+	{
+		HTTPHeaders rval = new HTTPHeaders();
+
+		// skip the request line
+		int start = request.indexOf('\n')+1;
+		while(start>0 && start<request.length()) {
+			int end = request.indexOf('\n',start);
+			if(end==-1) {
+				end = request.length();
+			}
+			String line = request.substring(start,end);
+			if(line.trim().length()==0) {
+				// the blank line ends the header
+				break;
+			}
+			if(line.charAt(0)==' ' || line.charAt(0)=='\t') {
+				rval.appendToLast(line.trim());
+			}
+			else {
+				int colon = line.indexOf(':');
+				if(colon>0) {
+					rval.add(line.substring(0,colon).trim(),line.substring(colon+1).trim());
+				}
+			}
+			start = end+1;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Adds a field. Fields which already exist are not replaced.
+	 */
+	public void add(String name, String value)
+	{
+		if(count==names.length) {
+			String[] tmp = new String[count*2];
+			System.arraycopy(names,0,tmp,0,count);
+			names = tmp;
+			tmp = new String[count*2];
+			System.arraycopy(values,0,tmp,0,count);
+			values = tmp;
+		}
+		names[count] = name;
+		values[count] = value;
+		count++;
+	}
+
+
+	/**
+	 * Appends a continuation line to the value of the last field added.
+	 */
+	public void appendToLast(String value)
+	{
+		if(count>0) {
+			values[count-1] = values[count-1]+" "+value;
+		}
+	}
+
+
+	/**
+	 * Returns the value of the first field with the given name, or null if there is none.
+	 */
+	public String get(String name)
+	{
+		String rval = null;
+
+		for(int x=0;x<count;x++) {
+			if(names[x].equalsIgnoreCase(name)) {
+				rval = values[x];
+				break;
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns a Vector containing the values of all the fields with the given name.
+	 */
+	public Vector getAll(String name)
+	{
+		Vector rval = new Vector();
+
+		for(int x=0;x<count;x++) {
+			if(names[x].equalsIgnoreCase(name)) {
+				rval.addElement(values[x]);
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if there is a field with the given name.
+	 */
+	public boolean contains(String name)
+	{
+		return(get(name)!=null);
+	}
+
+
+	/**
+	 * Returns true if any field with the given name has the token in its comma separated
+	 * list of values, for example containsToken("Connection","keep-alive").
+	 */
+	public boolean containsToken(String name, String token)
+	{
+		int length = token.length();
+
+		for(int x=0;x<count;x++) {
+			if(names[x].equalsIgnoreCase(name)) {
+				String value = values[x];
+				int start = 0;
+				while(start<value.length()) {
+					while(start<value.length() && (value.charAt(start)==' ' || value.charAt(start)=='\t')) {
+						start++;
+					}
+					int end = value.indexOf(',',start);
+					if(end==-1) {
+						end = value.length();
+					}
+					int last = end;
+					while(last>start && (value.charAt(last-1)==' ' || value.charAt(last-1)=='\t')) {
+						last--;
+					}
+					if(last-start==length && value.regionMatches(true,start,token,0,length)) {
+						return(true);
+					}
+					start = end+1;
+				}
+			}
+		}
+
+		return(false);
+	}
+
+
+	/**
+	 * Returns the number of fields.
+	 */
+	public int size()
+	{
+		return(count);
+	}
+
+
+	/**
+	 * Returns the name of the field at the index.
+	 */
+	public String getName(int index)
+	{
+		return(names[index]);
+	}
+
+
+	/**
+	 * Returns the value of the field at the index.
+	 */
+	public String getValue(int index)
+	{
+		return(values[index]);
+	}
+
+
+	/**
+	 * Removes all fields.
+	 */
+	public void clear()
+	{
+		for(int x=0;x<count;x++) {
+			names[x] = null;
+			values[x] = null;
+		}
+		count = 0;
+	}
+
+
+	public String toString()
+	{
+		StringBuffer rval = new StringBuffer();
+
+		for(int x=0;x<count;x++) {
+			rval.append(names[x]);
+			rval.append(": ");
+			rval.append(values[x]);
+			rval.append("\n");
+		}
+
+		return(rval.toString());
+	}
+}
+
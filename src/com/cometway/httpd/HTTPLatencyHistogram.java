@@ -0,0 +1,172 @@
+package com.cometway.httpd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class counts latencies, in microseconds, in buckets whose width grows with the value in the
+ * manner of an HdrHistogram: values under 64 have a bucket each, and each power of 2 above that is
+ * divided into 64 buckets, so any percentile is reported within about 1.6% of the actual value.
+ * Values up to about 19 hours are counted, larger ones are counted as that.
+ *
+ * Recording a value takes no lock, so a histogram can be shared by every connection.
+ */
+public class HTTPLatencyHistogram
+{
+	// The number of bits of each value which are kept
+	protected static final int SUB_BUCKET_BITS = 6;
+	protected static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+
+	// The largest power of 2 counted
+	protected static final int MAX_EXPONENT = 36;
+
+	protected static final long MAX_VALUE = (1L<<(MAX_EXPONENT+1))-1;
+
+	protected AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT-SUB_BUCKET_BITS+2)*SUB_BUCKETS);
+	protected AtomicLong count = new AtomicLong();
+	protected AtomicLong total = new AtomicLong();
+	protected AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Counts a latency in microseconds.
+	 */
+	public void record(long value)
+	{
+		if(value<0) {
+			value = 0;
+		}
+		else if(value>MAX_VALUE) {
+			value = MAX_VALUE;
+		}
+
+		counts.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+
+		long current = max.get();
+		while(value>current && !max.compareAndSet(current,value)) {
+			current = max.get();
+		}
+	}
+
+
+	/**
+	 * Counts a latency measured by a client which waits for each response before sending the next
+	 * request, and which would have sent a request every expectedInterval microseconds. The requests
+	 * it could not send while waiting for a slow response are counted too, each with the latency it
+	 * would have had, so the histogram is corrected for coordinated omission as an HdrHistogram is.
+	 */
+	public void recordWithExpectedInterval(long value, long expectedInterval)
+	{
+		record(value);
+
+		if(expectedInterval>0) {
+			for(long missed=value-expectedInterval;missed>=expectedInterval;missed=missed-expectedInterval) {
+				record(missed);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the number of latencies counted.
+	 */
+	public long getCount()
+	{
+		return(count.get());
+	}
+
+
+	/**
+	 * Returns the average latency, or 0 if none have been counted.
+	 */
+	public long getMean()
+	{
+		long n = count.get();
+		return(n>0 ? total.get()/n : 0);
+	}
+
+
+	/**
+	 * Returns the largest latency counted.
+	 */
+	public long getMax()
+	{
+		return(max.get());
+	}
+
+
+	/**
+	 * Returns the latency which percentile percent of the latencies counted are at or under,
+	 * such as 99.9 for the 99.9th percentile, or 0 if none have been counted.
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long rval = 0;
+		long n = count.get();
+
+		if(n>0) {
+			long target = (long)Math.ceil(n*Math.min(percentile,100)/100);
+			if(target<1) {
+				target = 1;
+			}
+
+			long seen = 0;
+			for(int x=0;x<counts.length();x++) {
+				seen = seen + counts.get(x);
+				if(seen>=target) {
+					rval = getHighestValue(x);
+					break;
+				}
+			}
+			rval = Math.min(rval,max.get());
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Clears every count.
+	 */
+	public void reset()
+	{
+		for(int x=0;x<counts.length();x++) {
+			counts.set(x,0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+
+	protected static int getIndex(long value)
+	{
+		if(value<SUB_BUCKETS) {
+			return((int)value);
+		}
+
+		int exponent = 63-Long.numberOfLeadingZeros(value);
+		int shift = exponent-SUB_BUCKET_BITS;
+
+		return((shift+1)*SUB_BUCKETS+(int)((value>>shift)-SUB_BUCKETS));
+	}
+
+
+	/**
+	 * Returns the largest value counted in the bucket.
+	 */
+	protected static long getHighestValue(int index)
+	{
+		if(index<SUB_BUCKETS) {
+			return(index);
+		}
+
+		int shift = index/SUB_BUCKETS-1;
+		long lowest = ((long)(index%SUB_BUCKETS+SUB_BUCKETS))<<shift;
+
+		return(lowest+(1L<<shift)-1);
+	}
+}
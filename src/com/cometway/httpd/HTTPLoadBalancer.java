@@ -0,0 +1,404 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+
+/**
+ * This class chooses which of several backends a proxied request is sent to, and keeps track of
+ * how each backend is doing from the requests sent to it. Backends are proxy URLs, and are tracked
+ * by their host and port. The policy is one of:
+ *
+ * round_robin - the backends take turns.
+ * least_outstanding - the backend with the fewest requests in progress, taking turns on ties.
+ * ewma - the better of two backends chosen at random (power of two choices), comparing the
+ * exponentially weighted moving average of their response times multiplied by their number of
+ * requests in progress plus one. Backends without a response time yet are preferred so they are measured.
+ *
+ * Subclasses may implement other policies by overriding choose().
+ *
+ * Failures are detected passively from the proxied requests: a backend that fails
+ * failure_threshold requests in a row (it could not be connected to, did not answer, or answered
+ * 502, 503 or 504) is ejected for ejection_time milliseconds, which doubles each time it is ejected
+ * again, up to 8 times. A backend whose average response time is more than outlier_factor times the
+ * median of the other backends it is chosen among is also ejected, once it has answered enough requests,
+ * but the last backend of a list which is not ejected never is for being slow, the slowest backends are
+ * ejected first. Ejected backends are skipped unless every backend is ejected.
+ */
+public class HTTPLoadBalancer
+{
+	public static final String ROUND_ROBIN = "round_robin";
+	public static final String LEAST_OUTSTANDING = "least_outstanding";
+	public static final String EWMA = "ewma";
+
+	// The weight of a new response time in the moving average
+	protected static final double EWMA_WEIGHT = 0.3;
+
+	// The number of responses before a backend's response time is compared with the others
+	protected static final int MINIMUM_SAMPLES = 10;
+
+	// The largest multiple of ejection_time a backend is ejected for
+	protected static final int MAXIMUM_EJECTION_FACTOR = 8;
+
+	protected String policy;
+	protected int failure_threshold;
+	protected int ejection_time;
+	protected double outlier_factor;
+
+	protected Hashtable backends = new Hashtable();
+	protected Hashtable turns = new Hashtable();
+	protected Random random = new Random();
+
+
+	/**
+	 * Creates a load balancer using the policy. A failure_threshold or outlier_factor of 0
+	 * disables ejecting backends for failures or slow responses respectively.
+	 */
+	public HTTPLoadBalancer(String policy, int failure_threshold, int ejection_time, double outlier_factor)
+	{
+		this.policy = policy;
+		this.failure_threshold = failure_threshold;
+		this.ejection_time = ejection_time;
+		this.outlier_factor = outlier_factor;
+	}
+
+
+	/**
+	 * Returns the backend the next request should be sent to, or null if there is none.
+	 */
+	public String select(Vector proxies)
+	{
+		return(select("",proxies));
+	}
+
+
+	/**
+	 * Returns the backend the next request for the list of proxies, such as those of a proxied
+	 * path, should be sent to, or null if there is none. Each list takes its own turns.
+	 */
+	public synchronized String select(String list, Vector proxies)
+	{
+		String rval = null;
+
+		if(proxies.size()==1) {
+			rval = (String)proxies.elementAt(0);
+		}
+		else if(proxies.size()>1) {
+			long now = System.currentTimeMillis();
+			ejectOutliers(proxies,now);
+
+			Vector available = new Vector();
+			for(int x=0;x<proxies.size();x++) {
+				if(!getBackend((String)proxies.elementAt(x)).isEjected(now)) {
+					available.addElement(proxies.elementAt(x));
+				}
+			}
+			if(available.size()==0) {
+				// Sending the request somewhere is better than refusing it
+				available = proxies;
+			}
+
+			int[] turn = (int[])turns.get(list);
+			if(turn==null) {
+				turn = new int[1];
+				turns.put(list,turn);
+			}
+
+			rval = choose(available,turn[0]++ & Integer.MAX_VALUE);
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the backend chosen by the policy among the available ones, which are not ejected.
+	 * The turn counts the requests for the list of proxies the backends are chosen from.
+	 */
+	protected String choose(Vector available, int turn)
+	{
+		int count = available.size();
+		int start = turn;
+		int rval = start%count;
+
+		if(policy.equals(LEAST_OUTSTANDING)) {
+			int outstanding = Integer.MAX_VALUE;
+			for(int x=0;x<count;x++) {
+				int index = (start+x)%count;
+				Backend backend = getBackend((String)available.elementAt(index));
+				if(backend.outstanding<outstanding) {
+					outstanding = backend.outstanding;
+					rval = index;
+				}
+			}
+		}
+		else if(policy.equals(EWMA)) {
+			int first = random.nextInt(count);
+			int second = random.nextInt(count-1);
+			if(second>=first) {
+				second++;
+			}
+			rval = first;
+			if(getBackend((String)available.elementAt(second)).getCost()<getBackend((String)available.elementAt(first)).getCost()) {
+				rval = second;
+			}
+		}
+
+		return((String)available.elementAt(rval));
+	}
+
+
+	/**
+	 * Records the start of a request to the backend (host:port).
+	 */
+	public synchronized void begin(String key)
+	{
+		getBackendByKey(key).outstanding++;
+	}
+
+
+	/**
+	 * Records the end of a request to the backend which was started with begin().
+	 */
+	public synchronized void end(String key)
+	{
+		Backend backend = getBackendByKey(key);
+		if(backend.outstanding>0) {
+			backend.outstanding--;
+		}
+	}
+
+
+	/**
+	 * Records a response from the backend received latency milliseconds after the request was sent.
+	 */
+	public synchronized void recordResponse(String key, long latency, int status)
+	{
+		Backend backend = getBackendByKey(key);
+
+		backend.requests++;
+		if(status==502 || status==503 || status==504) {
+			recordFailure(backend);
+		}
+		else {
+			backend.consecutiveFailures = 0;
+			if(backend.samples==0) {
+				backend.latency = latency;
+			}
+			else {
+				backend.latency = backend.latency + EWMA_WEIGHT*(latency-backend.latency);
+			}
+			backend.samples++;
+		}
+	}
+
+
+	/**
+	 * Records a request the backend could not be connected to or did not answer.
+	 */
+	public synchronized void recordFailure(String key)
+	{
+		Backend backend = getBackendByKey(key);
+
+		backend.requests++;
+		recordFailure(backend);
+	}
+
+
+	/**
+	 * Returns the counters of each backend, named backend.[host:port].[counter]: requests,
+	 * failures, outstanding, latency (the moving average in milliseconds), ejections, and
+	 * ejected (true while the backend is skipped).
+	 */
+	public synchronized Props getMetrics()
+	{
+		Props rval = new Props();
+		long now = System.currentTimeMillis();
+
+		rval.setProperty("policy",policy);
+
+		Enumeration e = backends.keys();
+		while(e.hasMoreElements()) {
+			String key = (String)e.nextElement();
+			Backend backend = (Backend)backends.get(key);
+			String prefix = "backend."+key+".";
+			rval.setLong(prefix+"requests",backend.requests);
+			rval.setLong(prefix+"failures",backend.failures);
+			rval.setInteger(prefix+"outstanding",backend.outstanding);
+			rval.setLong(prefix+"latency",Math.round(backend.latency));
+			rval.setInteger(prefix+"ejections",backend.ejections);
+			rval.setBoolean(prefix+"ejected",backend.isEjected(now));
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the host:port of a proxy URL, such as http://host:port/path.
+	 */
+	public static String getBackendKey(String proxy)
+	{
+		int port = 80;
+
+		int index = proxy.indexOf("://");
+		if(index!=-1) {
+			proxy = proxy.substring(index+3);
+		}
+		index = proxy.indexOf("/");
+		if(index!=-1) {
+			proxy = proxy.substring(0,index);
+		}
+		index = proxy.indexOf(":");
+		if(index!=-1) {
+			try {
+				port = Integer.parseInt(proxy.substring(index+1));
+			}
+			catch(NumberFormatException e) {;}
+			proxy = proxy.substring(0,index);
+		}
+
+		return(proxy+":"+port);
+	}
+
+
+	protected Backend getBackend(String proxy)
+	{
+		return(getBackendByKey(getBackendKey(proxy)));
+	}
+
+
+	protected Backend getBackendByKey(String key)
+	{
+		Backend rval = (Backend)backends.get(key);
+
+		if(rval==null) {
+			rval = new Backend();
+			backends.put(key,rval);
+		}
+
+		return(rval);
+	}
+
+
+	protected void recordFailure(Backend backend)
+	{
+		backend.failures++;
+		backend.consecutiveFailures++;
+
+		if(failure_threshold>0 && backend.consecutiveFailures>=failure_threshold) {
+			eject(backend,System.currentTimeMillis());
+		}
+	}
+
+
+	/**
+	 * Ejects the backends among proxies whose average response time is more than outlier_factor
+	 * times the median of the others. Every backend is compared with the response times as they
+	 * were before any of them is ejected, and at least one backend which is not ejected is left.
+	 */
+	protected void ejectOutliers(Vector proxies, long now)
+	{
+		if(outlier_factor<=0 || proxies.size()<2) {
+			return;
+		}
+
+		Vector measured = new Vector();
+		int healthy = 0;
+		for(int x=0;x<proxies.size();x++) {
+			Backend backend = getBackend((String)proxies.elementAt(x));
+			if(!backend.isEjected(now)) {
+				healthy++;
+				if(backend.samples>=MINIMUM_SAMPLES && !measured.contains(backend)) {
+					measured.addElement(backend);
+				}
+			}
+		}
+		if(measured.size()<2) {
+			return;
+		}
+
+		// eject() clears the response time, so the comparisons use a copy
+		double[] latencies = new double[measured.size()];
+		for(int x=0;x<latencies.length;x++) {
+			latencies[x] = ((Backend)measured.elementAt(x)).latency;
+		}
+
+		Vector outliers = new Vector();
+		for(int x=0;x<latencies.length;x++) {
+			double[] others = new double[latencies.length-1];
+			int count = 0;
+			for(int y=0;y<latencies.length;y++) {
+				if(y!=x) {
+					others[count++] = latencies[y];
+				}
+			}
+			java.util.Arrays.sort(others);
+			double median = others[others.length/2];
+			if(others.length%2==0) {
+				median = (others[others.length/2-1]+median)/2;
+			}
+
+			if(latencies[x]>median*outlier_factor && latencies[x]>1) {
+				// Keep the outliers sorted slowest first
+				int index = 0;
+				while(index<outliers.size() && ((Backend)outliers.elementAt(index)).latency>=latencies[x]) {
+					index++;
+				}
+				outliers.insertElementAt(measured.elementAt(x),index);
+			}
+		}
+
+		for(int x=0;x<outliers.size() && healthy>1;x++) {
+			eject((Backend)outliers.elementAt(x),now);
+			healthy--;
+		}
+	}
+
+
+	protected void eject(Backend backend, long now)
+	{
+		backend.ejections++;
+		backend.ejectedUntil = now+(long)ejection_time*Math.min(1<<Math.min(backend.ejections-1,30),MAXIMUM_EJECTION_FACTOR);
+		backend.consecutiveFailures = 0;
+
+		// The backend is measured afresh when it returns
+		backend.samples = 0;
+		backend.latency = 0;
+	}
+
+
+
+	/**
+	 * The state of one backend.
+	 */
+	protected static class Backend
+	{
+		int outstanding;
+		long requests;
+		long failures;
+		int consecutiveFailures;
+		double latency;
+		long samples;
+		int ejections;
+		long ejectedUntil;
+
+
+		boolean isEjected(long now)
+		{
+			return(now<ejectedUntil);
+		}
+
+
+		/**
+		 * Returns the expected time a new request would take, for the ewma policy.
+		 */
+		double getCost()
+		{
+			return(samples==0 ? 0 : latency*(outstanding+1));
+		}
+	}
+}
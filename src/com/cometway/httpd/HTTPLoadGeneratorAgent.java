@@ -0,0 +1,376 @@
+package com.cometway.httpd;
+
+import com.cometway.ak.Agent;
+import com.cometway.props.Props;
+import com.cometway.util.ThreadPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This agent benchmarks a web server by sending it requests for a URL over many keep-alive
+ * connections, each run by an HTTPLoadKMethod, and reports the latency percentiles and throughput
+ * of the responses. It can be started in an agent kernel, in which case it runs once on its own
+ * thread and prints its report, or from the command line against a local WebServer:
+ *
+ * java com.cometway.httpd.HTTPLoadGeneratorAgent port=8080 path=/hello.agent mode=open rate=5000
+ *
+ * In closed mode each connection sends its next request as soon as it has read a response, which
+ * measures the throughput of the server. Its latencies leave out the requests that were not sent
+ * while a slow response was awaited, unless the expected_interval is set, in which case they are
+ * counted as an HdrHistogram corrects them. In open mode requests are sent at a constant rate
+ * spread over the connections, and each latency is measured from the time the request was meant
+ * to be sent, so a stalled server is charged for the whole of the stall (coordinated omission).
+ * The time from sending each request to reading its response is reported as the service time.
+ *
+ * Responses during the warmup are not counted. Latencies are in microseconds.
+ */
+public class HTTPLoadGeneratorAgent extends Agent implements Runnable
+{
+	protected static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+	protected static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "p9999"};
+	protected static final String[] RESULT_NAMES = {"error", "successful", "timeout", "empty", "redirected", "not_found", "denied"};
+
+	protected HTTPLatencyHistogram latency;
+	protected HTTPLatencyHistogram serviceTime;
+	protected AtomicLongArray results;
+	protected AtomicLong requests;
+	protected AtomicLong bytes;
+	protected AtomicLong connectErrors;
+	protected AtomicLong lastResponse;
+
+	protected long expectedInterval;
+	protected long measureStart;
+	protected long endTime;
+	protected int running;
+	protected volatile boolean stopped;
+	protected Props lastResults;
+
+
+	/**
+	 * host - The host requests are sent to (default: 127.0.0.1)
+	 * port - The port requests are sent to (default: 80)
+	 * path - The path and query requested (default: /)
+	 * mode - closed, or open for a constant arrival rate (default: closed)
+	 * connections - The number of connections (default: 16)
+	 * rate - The requests per second sent in open mode (default: 1000)
+	 * duration - The milliseconds responses are counted for (default: 10000)
+	 * warmup - The milliseconds requests are sent before responses are counted (default: 2000)
+	 * keep_alive - false to open a connection for every request (default: true)
+	 * timeout - The milliseconds to wait for a connection or response (default: 10000)
+	 * expected_interval - The microseconds between the requests of a closed mode connection, for correcting its latencies, 0 does not correct them (default: 0)
+	 * run_on_start - false to only run when run() or runLoad() is called (default: true)
+	 */
+	public void initProps()
+	{
+		setDefault("host","127.0.0.1");
+		setDefault("port","80");
+		setDefault("path","/");
+		setDefault("mode","closed");
+		setDefault("connections","16");
+		setDefault("rate","1000");
+		setDefault("duration","10000");
+		setDefault("warmup","2000");
+		setDefault("keep_alive","true");
+		setDefault("timeout","10000");
+		setDefault("expected_interval","0");
+		setDefault("run_on_start","true");
+	}
+
+
+	public void start()
+	{
+		if(getBoolean("run_on_start")) {
+			Thread t = new Thread(this,toString());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+
+	/**
+	 * Ends a run early.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+
+	/**
+	 * Runs the benchmark and prints its report.
+	 */
+	public void run()
+	{
+		Props p = runLoad();
+		String[] lines = formatReport(p).split("\n");
+
+		for(int x=0;x<lines.length;x++) {
+			println(lines[x]);
+		}
+	}
+
+
+	/**
+	 * Runs the benchmark, waiting until it is done, and returns its results: the requests counted,
+	 * the count of each request result (named as in HTTPCheckKMethod), the connect errors, the
+	 * throughput in requests and bytes per second, and the percentiles, mean and maximum of the
+	 * latency and the service time.
+	 */
+	public Props runLoad()
+	{
+		String host = getTrimmedString("host");
+		int port = getInteger("port");
+		String path = getTrimmedString("path");
+		boolean open = getTrimmedString("mode").equals("open");
+		int connections = Math.max(1,getInteger("connections"));
+		long duration = getLong("duration")*1000000L;
+		long warmup = getLong("warmup")*1000000L;
+
+		latency = new HTTPLatencyHistogram();
+		serviceTime = new HTTPLatencyHistogram();
+		results = new AtomicLongArray(RESULT_NAMES.length);
+		requests = new AtomicLong();
+		bytes = new AtomicLong();
+		connectErrors = new AtomicLong();
+		lastResponse = new AtomicLong();
+		expectedInterval = open ? 0 : getLong("expected_interval");
+		stopped = false;
+
+		// Each connection of an open run sends every connections/rate seconds, staggered evenly
+		long interval = 0;
+		if(open) {
+			interval = Math.max(1,connections*1000000000L/Math.max(1,getLong("rate")));
+		}
+
+		long start = System.nanoTime()+10000000L;
+		measureStart = start+warmup;
+		endTime = measureStart+duration;
+
+		ThreadPool threadPool = new ThreadPool(connections);
+		threadPool.setName("HTTPLoad");
+		synchronized(this) {
+			running = connections;
+		}
+		for(int x=0;x<connections;x++) {
+			HTTPLoadKMethod kMethod = new HTTPLoadKMethod(this,host,port,path,start+interval*x/connections,interval,getBoolean("keep_alive"));
+			kMethod.timeout = getInteger("timeout");
+			if(!threadPool.getThread(kMethod)) {
+				connectionFinished(kMethod);
+			}
+		}
+
+		synchronized(this) {
+			while(running>0) {
+				try {
+					wait(1000);
+				}
+				catch(InterruptedException e) {
+					stopped = true;
+				}
+			}
+		}
+		threadPool.stop();
+
+		// Responses to requests sent before the end may be read after it
+		long measured = Math.max(1,Math.max(Math.min(System.nanoTime(),endTime),lastResponse.get())-measureStart);
+		Props rval = new Props();
+		rval.setProperty("url","http://"+host+":"+port+path);
+		rval.setProperty("mode",open ? "open" : "closed");
+		rval.setInteger("connections",connections);
+		if(open) {
+			rval.setLong("rate",getLong("rate"));
+		}
+		rval.setLong("duration",measured/1000000);
+		rval.setLong("requests",requests.get());
+		for(int x=0;x<RESULT_NAMES.length;x++) {
+			rval.setLong(RESULT_NAMES[x],results.get(x));
+		}
+		rval.setLong("connect_errors",connectErrors.get());
+		rval.setLong("throughput",requests.get()*1000000000L/measured);
+		rval.setLong("bytes_per_second",bytes.get()*1000000000L/measured);
+		setPercentiles(rval,"latency_",latency);
+		setPercentiles(rval,"service_time_",serviceTime);
+
+		lastResults = rval;
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the results of the last run, or null if none has finished.
+	 */
+	public Props getResults()
+	{
+		return(lastResults);
+	}
+
+
+	/**
+	 * Returns the results of a run as text.
+	 */
+	public String formatReport(Props p)
+	{
+		StringBuffer rval = new StringBuffer();
+
+		rval.append(p.getString("url"));
+		rval.append(" mode=");
+		rval.append(p.getString("mode"));
+		rval.append(" connections=");
+		rval.append(p.getString("connections"));
+		if(p.hasProperty("rate")) {
+			rval.append(" rate=");
+			rval.append(p.getString("rate"));
+		}
+		rval.append(" duration_ms=");
+		rval.append(p.getString("duration"));
+		rval.append('\n');
+
+		rval.append("requests=");
+		rval.append(p.getString("requests"));
+		rval.append(" throughput=");
+		rval.append(p.getString("throughput"));
+		rval.append("/s bytes=");
+		rval.append(p.getString("bytes_per_second"));
+		rval.append("/s\n");
+
+		rval.append("results");
+		for(int x=0;x<RESULT_NAMES.length;x++) {
+			rval.append(' ');
+			rval.append(RESULT_NAMES[x]);
+			rval.append('=');
+			rval.append(p.getString(RESULT_NAMES[x]));
+		}
+		rval.append(" connect_errors=");
+		rval.append(p.getString("connect_errors"));
+		rval.append('\n');
+
+		appendPercentiles(rval,p,"latency_");
+		appendPercentiles(rval,p,"service_time_");
+
+		return(rval.toString());
+	}
+
+
+	/**
+	 * Called by an HTTPLoadKMethod with a response. The System.nanoTime() times are when the request
+	 * was meant to be sent, when it was sent and when its response had been read.
+	 */
+	public void record(long intended, long sent, long done, int requestResult, long length)
+	{
+		if(intended>=measureStart && intended<endTime) {
+			long service = (done-sent)/1000;
+
+			latency.recordWithExpectedInterval((done-intended)/1000,expectedInterval);
+			serviceTime.record(service);
+			requests.incrementAndGet();
+			bytes.addAndGet(length);
+			results.incrementAndGet(requestResult);
+
+			long last = lastResponse.get();
+			while(done>last && !lastResponse.compareAndSet(last,done)) {
+				last = lastResponse.get();
+			}
+		}
+	}
+
+
+	/**
+	 * Called by an HTTPLoadKMethod when a request failed or timed out.
+	 */
+	public void recordError(long intended, int requestResult)
+	{
+		if(intended>=measureStart && intended<endTime) {
+			results.incrementAndGet(requestResult);
+		}
+	}
+
+
+	/**
+	 * Called by an HTTPLoadKMethod when it could not connect.
+	 */
+	public void recordConnectError(int connectionResult)
+	{
+		if(System.nanoTime()>=measureStart) {
+			connectErrors.incrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Called by an HTTPLoadKMethod when it has sent its last request.
+	 */
+	public synchronized void connectionFinished(HTTPLoadKMethod kMethod)
+	{
+		running--;
+		notifyAll();
+	}
+
+
+	/**
+	 * Returns the System.nanoTime() after which no more requests are sent.
+	 */
+	public long getEndTime()
+	{
+		return(endTime);
+	}
+
+
+	public boolean isStopped()
+	{
+		return(stopped);
+	}
+
+
+	protected void setPercentiles(Props p, String prefix, HTTPLatencyHistogram histogram)
+	{
+		for(int x=0;x<PERCENTILES.length;x++) {
+			p.setLong(prefix+PERCENTILE_NAMES[x],histogram.getValueAtPercentile(PERCENTILES[x]));
+		}
+		p.setLong(prefix+"mean",histogram.getMean());
+		p.setLong(prefix+"max",histogram.getMax());
+	}
+
+
+	protected void appendPercentiles(StringBuffer out, Props p, String prefix)
+	{
+		out.append(prefix.substring(0,prefix.length()-1));
+		out.append("_us");
+		for(int x=0;x<PERCENTILES.length;x++) {
+			out.append(' ');
+			out.append(PERCENTILE_NAMES[x]);
+			out.append('=');
+			out.append(p.getString(prefix+PERCENTILE_NAMES[x]));
+		}
+		out.append(" mean=");
+		out.append(p.getString(prefix+"mean"));
+		out.append(" max=");
+		out.append(p.getString(prefix+"max"));
+		out.append('\n');
+	}
+
+
+	/**
+	 * Runs the benchmark with the properties given as name=value arguments and prints its report.
+	 */
+	public static void main(String[] args)
+	{
+		HTTPLoadGeneratorAgent agent = new HTTPLoadGeneratorAgent();
+		Props p = new Props();
+
+		for(int x=0;x<args.length;x++) {
+			int index = args[x].indexOf('=');
+			if(index==-1) {
+				System.out.println("Usage: java com.cometway.httpd.HTTPLoadGeneratorAgent [name=value ...]");
+				System.out.println("Names: host, port, path, mode, connections, rate, duration, warmup, keep_alive, timeout, expected_interval");
+				return;
+			}
+			p.setProperty(args[x].substring(0,index),args[x].substring(index+1));
+		}
+
+		agent.setProps(p);
+		agent.initProps();
+		System.out.print(agent.formatReport(agent.runLoad()));
+	}
+}
@@ -0,0 +1,315 @@
+package com.cometway.httpd;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This KMethod is one of the connections of an HTTPLoadGeneratorAgent. Rather than checking a
+ * URL once, it sends requests for it over a keep-alive connection until the run ends, and records
+ * each response with the agent. The connection is opened again whenever the server closes it.
+ *
+ * When the agent has a request interval, each request has an intended start time, one interval
+ * after the previous one. The request is sent at that time, or as soon as the response before it
+ * has been read if that is later, and its latency is measured from the intended time. Otherwise
+ * the next request is sent as soon as the response is read.
+ */
+public class HTTPLoadKMethod extends HTTPCheckKMethod
+{
+	protected HTTPLoadGeneratorAgent generator;
+	protected long interval;
+	protected long firstStart;
+	protected boolean keepAlive;
+
+	/** The length of the body of the last response, which is read and discarded rather than kept in requestPage */
+	public long bodyLength;
+
+	protected Socket socket;
+	protected InputStream in;
+	protected OutputStream out;
+	protected byte[] requestBytes;
+	protected byte[] buffer = new byte[16384];
+	protected StringBuffer line = new StringBuffer(256);
+
+
+	/**
+	 * Creates a connection of the generator which sends its first request at the System.nanoTime()
+	 * firstStart and the following ones every interval nanoseconds, or as fast as the server answers
+	 * if the interval is 0.
+	 */
+	public HTTPLoadKMethod(HTTPLoadGeneratorAgent generator, String host, int port, String request, long firstStart, long interval, boolean keepAlive)
+	{
+		super(host,port,request);
+
+		this.generator = generator;
+		this.firstStart = firstStart;
+		this.interval = interval;
+		this.keepAlive = keepAlive;
+
+		String s = "GET "+request+" HTTP/1.1\r\nHost: "+host+":"+port+"\r\nUser-Agent: HTTPLoadGeneratorAgent\r\n";
+		if(keepAlive) {
+			s = s+"Connection: keep-alive\r\n\r\n";
+		}
+		else {
+			s = s+"Connection: close\r\n\r\n";
+		}
+		requestBytes = HTTPCannedResponse.getBytes(s);
+	}
+
+
+	/**
+	 * Sends requests until the generator's run ends.
+	 */
+	public void execute()
+	{
+		long next = firstStart;
+
+		try {
+			while(!generator.isStopped()) {
+				long intended = System.nanoTime();
+
+				if(interval>0) {
+					if(next>=generator.getEndTime()) {
+						break;
+					}
+					while(intended<next) {
+						LockSupport.parkNanos(next-intended);
+						intended = System.nanoTime();
+					}
+					intended = next;
+					next = next+interval;
+				}
+				else if(intended>=generator.getEndTime()) {
+					break;
+				}
+
+				sendRequest(intended);
+			}
+		}
+		finally {
+			close();
+			generator.connectionFinished(this);
+		}
+	}
+
+
+	/**
+	 * Sends one request and reads its response, recording the result with the generator.
+	 */
+	protected void sendRequest(long intended)
+	{
+		long sent = 0;
+
+		try {
+			if(socket==null) {
+				connect();
+			}
+			if(socket==null) {
+				return;
+			}
+
+			sent = System.nanoTime();
+			out.write(requestBytes);
+			out.flush();
+
+			requestResult = readResponse();
+			long done = System.nanoTime();
+			requestLatency = (done-sent)/1000;
+
+			generator.record(intended,sent,done,requestResult,bodyLength);
+
+			if(!keepAlive) {
+				close();
+			}
+		}
+		catch(InterruptedIOException e) {
+			requestResult = REQUEST_TIMEOUT;
+			generator.recordError(intended,REQUEST_TIMEOUT);
+			close();
+		}
+		catch(IOException e) {
+			requestResult = REQUEST_ERROR;
+			generator.recordError(intended,REQUEST_ERROR);
+			close();
+		}
+	}
+
+
+	protected void connect()
+	{
+		try {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host,port),timeout);
+			socket.setSoTimeout(timeout);
+			in = new BufferedInputStream(socket.getInputStream(),buffer.length);
+			out = socket.getOutputStream();
+			connectionResult = CONNECTED;
+		}
+		catch(java.net.ConnectException e) {
+			connectionResult = CONNECTION_REFUSED;
+		}
+		catch(java.net.NoRouteToHostException e) {
+			connectionResult = NO_ROUTE_TO_HOST;
+		}
+		catch(java.net.UnknownHostException e) {
+			connectionResult = UNKNOWN_HOST;
+		}
+		catch(Exception e) {
+			connectionResult = CONNECT_ERROR;
+		}
+
+		if(connectionResult!=CONNECTED) {
+			close();
+			generator.recordConnectError(connectionResult);
+			// Do not spin while the server refuses connections
+			LockSupport.parkNanos(10000000L);
+		}
+	}
+
+
+	protected void close()
+	{
+		if(socket!=null) {
+			try {
+				socket.close();
+			}
+			catch(Exception e) {;}
+		}
+		socket = null;
+		in = null;
+		out = null;
+	}
+
+
+	/**
+	 * Reads a response, leaving the length of its body in bodyLength, and returns its request result.
+	 * The connection is closed if the server does not keep it alive.
+	 */
+	protected int readResponse() throws IOException
+	{
+		String statusLine = readLine();
+		String resultCode = null;
+		long contentLength = -1;
+		boolean chunked = false;
+		boolean close = false;
+
+		if(statusLine==null) {
+			throw(new IOException("The connection was closed before the response"));
+		}
+		if(statusLine.startsWith("HTTP/")) {
+			int index = statusLine.indexOf(' ');
+			if(index!=-1) {
+				resultCode = statusLine.substring(index+1,Math.min(statusLine.length(),index+4));
+			}
+			close = statusLine.startsWith("HTTP/1.0");
+		}
+
+		String field = readLine();
+		while(field!=null && field.length()>0) {
+			int index = field.indexOf(':');
+			if(index!=-1) {
+				String name = field.substring(0,index).trim();
+				String value = field.substring(index+1).trim();
+				if(name.equalsIgnoreCase("Content-Length")) {
+					contentLength = Long.parseLong(value);
+				}
+				else if(name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.toLowerCase().indexOf("chunked")!=-1;
+				}
+				else if(name.equalsIgnoreCase("Connection")) {
+					close = value.toLowerCase().indexOf("close")!=-1;
+					if(value.toLowerCase().indexOf("keep-alive")!=-1) {
+						close = false;
+					}
+				}
+			}
+			field = readLine();
+		}
+
+		long length = 0;
+		if(chunked) {
+			String size = readLine();
+			while(size!=null) {
+				int index = size.indexOf(';');
+				long chunk = Long.parseLong((index==-1 ? size : size.substring(0,index)).trim(),16);
+				if(chunk==0) {
+					// the trailer ends with a blank line
+					field = readLine();
+					while(field!=null && field.length()>0) {
+						field = readLine();
+					}
+					break;
+				}
+				length = length+skip(chunk);
+				readLine();
+				size = readLine();
+			}
+		}
+		else if(contentLength>=0) {
+			length = skip(contentLength);
+		}
+		else {
+			length = skip(Long.MAX_VALUE);
+			close = true;
+		}
+
+		if(close) {
+			close();
+		}
+
+		bodyLength = length;
+
+		return(getRequestResult(resultCode,length==0));
+	}
+
+
+	/**
+	 * Reads a line without its line end, or returns null at the end of the stream.
+	 */
+	protected String readLine() throws IOException
+	{
+		line.setLength(0);
+
+		int c = in.read();
+		if(c==-1) {
+			return(null);
+		}
+		while(c!=-1 && c!='\n') {
+			if(c!='\r') {
+				line.append((char)c);
+			}
+			c = in.read();
+		}
+
+		return(line.toString());
+	}
+
+
+	/**
+	 * Reads and discards count bytes, or up to the end of the stream. Returns the number read.
+	 */
+	protected long skip(long count) throws IOException
+	{
+		long rval = 0;
+
+		while(rval<count) {
+			int read = in.read(buffer,0,(int)Math.min(buffer.length,count-rval));
+			if(read<0) {
+				if(count!=Long.MAX_VALUE) {
+					throw(new IOException("The connection was closed during the response"));
+				}
+				break;
+			}
+			rval = rval+read;
+		}
+
+		return(rval);
+	}
+}
@@ -0,0 +1,192 @@
+package com.cometway.httpd;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+
+/**
+ * This class keeps the latency histograms of a WebServer, which the ConnectionKMethod records
+ * requests in. Each histogram has a name:
+ *
+ * total - every request, from its request line being read until the response has been written.
+ * host.[host] - the requests to a virtual host, by the Host field without the port.
+ * status.[code] - the requests answered with a status code.
+ * extension.[class] - the time a WebServerExtension took to handle the requests it handled.
+ * agent.[service_name] - the time a RequestAgent took to handle its requests.
+ * queue_wait - the time between a connection being ready and a PooledThread starting on it.
+ *
+ * Since the Host field is chosen by the client, at most max_hosts host histograms are kept, further
+ * hosts are counted together as host.other. The other histograms are always kept.
+ */
+public class HTTPMetrics
+{
+	public static final String TOTAL = "total";
+	public static final String HOST = "host.";
+	public static final String STATUS = "status.";
+	public static final String EXTENSION = "extension.";
+	public static final String AGENT = "agent.";
+	public static final String QUEUE_WAIT = "queue_wait";
+
+	protected int max_hosts;
+	protected int hosts;
+	protected Hashtable histograms = new Hashtable();
+	protected long started = System.currentTimeMillis();
+
+
+	/**
+	 * Creates a set of histograms which holds at most max_hosts host histograms.
+	 */
+	public HTTPMetrics(int max_hosts)
+	{
+		this.max_hosts = max_hosts;
+	}
+
+
+	/**
+	 * Records a request which was answered with the status, latency microseconds after its
+	 * request line was read. The host is the Host field of the request, which may include a port.
+	 */
+	public void recordRequest(String host, String status, long latency)
+	{
+		getHistogram(TOTAL).record(latency);
+
+		if(host==null || host.length()==0) {
+			host = "default";
+		}
+		else {
+			int index = host.indexOf(':');
+			if(index!=-1) {
+				host = host.substring(0,index);
+			}
+			host = host.toLowerCase().trim();
+		}
+		HTTPLatencyHistogram histogram = getHistogram(HOST+host);
+		if(histogram==null) {
+			histogram = getHistogram(HOST+"other");
+		}
+		histogram.record(latency);
+
+		if(status!=null) {
+			histogram = getHistogram(STATUS+status);
+			if(histogram!=null) {
+				histogram.record(latency);
+			}
+		}
+	}
+
+
+	/**
+	 * Records the microseconds a WebServerExtension took to handle a request.
+	 */
+	public void recordExtension(WebServerExtension extension, long latency)
+	{
+		String name = extension.getClass().getName();
+		record(EXTENSION+name.substring(name.lastIndexOf('.')+1),latency);
+	}
+
+
+	/**
+	 * Records the microseconds a RequestAgent took to handle a request.
+	 */
+	public void recordAgent(String serviceName, long latency)
+	{
+		record(AGENT+serviceName,latency);
+	}
+
+
+	/**
+	 * Records the microseconds a connection waited for a PooledThread.
+	 */
+	public void recordQueueWait(long latency)
+	{
+		record(QUEUE_WAIT,latency);
+	}
+
+
+	/**
+	 * Records a latency in the named histogram, unless it is a host histogram and max_hosts of
+	 * them are already kept.
+	 */
+	public void record(String name, long latency)
+	{
+		HTTPLatencyHistogram histogram = getHistogram(name);
+
+		if(histogram!=null) {
+			histogram.record(latency);
+		}
+	}
+
+
+	/**
+	 * Returns the named histogram, which is created if needed. Returns null if it is a host
+	 * histogram which does not exist and max_hosts of them are already kept.
+	 */
+	public HTTPLatencyHistogram getHistogram(String name)
+	{
+		HTTPLatencyHistogram rval = (HTTPLatencyHistogram)histograms.get(name);
+
+		if(rval==null) {
+			synchronized(histograms) {
+				rval = (HTTPLatencyHistogram)histograms.get(name);
+				if(rval==null) {
+					if(!name.startsWith(HOST) || name.equals(HOST+"other")) {
+						rval = new HTTPLatencyHistogram();
+					}
+					else if(hosts<max_hosts) {
+						rval = new HTTPLatencyHistogram();
+						hosts++;
+					}
+					if(rval!=null) {
+						histograms.put(name,rval);
+					}
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the names of the histograms, sorted.
+	 */
+	public Vector getNames()
+	{
+		Vector rval = new Vector();
+
+		Enumeration e = histograms.keys();
+		while(e.hasMoreElements()) {
+			String name = (String)e.nextElement();
+			int x = 0;
+			while(x<rval.size() && ((String)rval.elementAt(x)).compareTo(name)<0) {
+				x++;
+			}
+			rval.insertElementAt(name,x);
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the milliseconds since the histograms were created or reset.
+	 */
+	public long getUptime()
+	{
+		return(System.currentTimeMillis()-started);
+	}
+
+
+	/**
+	 * Removes every histogram.
+	 */
+	public void reset()
+	{
+		synchronized(histograms) {
+			histograms.clear();
+			hosts = 0;
+			started = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.cometway.httpd;
+
+import com.cometway.ak.AgentRequest;
+import com.cometway.ak.RequestAgent;
+import com.cometway.props.Props;
+import com.cometway.util.Pair;
+import com.cometway.util.ThreadPool;
+import java.util.Enumeration;
+import java.util.Vector;
+
+
+/**
+ * This agent shows the latency histograms a WebServer keeps in its HTTPMetrics, as text or, when
+ * the format parameter is json or the client accepts application/json, as JSON. Every latency is
+ * in microseconds. When the reset property of the agent is true, the histograms are cleared after
+ * being shown, so each request shows the requests since the one before.
+ *
+ * The text format has a line for each histogram:
+ * [name] count=[n] mean=[us] p50=[us] p90=[us] p99=[us] p999=[us] max=[us]
+ *
+ * When the WebServer has an HTTPAdmissionControl, its counts of connections are shown as well,
+ * and so are the counters of the WebServer's HTTPAccessLogAgent, of the HTTPBandwidthScheduler
+ * and of the HTTPProxyAgent, HTTPcgi and HTTPMicroCache extensions of the WebServer, each on a
+ * line of its own:
+ * [name] [counter]=[value] ...
+ *
+ * The name is access_log, bandwidth, or proxy_pool, proxy_cache, proxy_balancer, cgi_worker_pool,
+ * cgi_workers or micro_cache followed by a dot and the agent the counters are from.
+ */
+public class HTTPMetricsAgent extends RequestAgent
+{
+	protected static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	protected static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+	protected static final String[] ADMISSION_NAMES = {"admitted", "queued", "refused", "expired", "priority", "waiting", "average_hold_ms", "average_priority_hold_ms"};
+
+
+	/**
+	 * service_name - The path the metrics are shown at (default: /metrics.agent)
+	 * webserver_service_name - The service name of the WebServer whose metrics are shown (default: WebServer-80)
+	 * reset - Clears the histograms each time they are shown (default: false)
+	 * bandwidth_scheduler - The service name of the HTTPBandwidthScheduler whose counters are shown (default: bandwidth_scheduler)
+	 */
+	public void initProps()
+	{
+		setDefault("service_name","/metrics.agent");
+		setDefault("webserver_service_name","WebServer-80");
+		setDefault("reset","false");
+		setDefault("bandwidth_scheduler","bandwidth_scheduler");
+	}
+
+
+	public void handleRequest(AgentRequest request)
+	{
+		HTTPAgentRequest httpRequest = (HTTPAgentRequest)request;
+		WebServer server = (WebServer)getServiceImpl(getString("webserver_service_name"));
+		HTTPMetrics metrics = server==null ? null : server.getMetrics();
+		boolean json = request.getString("format").equalsIgnoreCase("json");
+
+		if(!request.hasProperty("format")) {
+			String accept = httpRequest.getHeader("Accept");
+			json = accept!=null && accept.indexOf("application/json")!=-1;
+		}
+
+		httpRequest.bufferOutput = true;
+		if(request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
+			request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+		}
+
+		if(metrics==null) {
+			httpRequest.defaultResponse = "HTTP/1.1 404 Not Found\n";
+			request.setProperty("content_type","text/plain");
+			request.println("Metrics are not collected by "+getString("webserver_service_name"));
+			return;
+		}
+
+		StringBuffer out = new StringBuffer(4096);
+		Vector components = getComponentMetrics(server);
+		if(json) {
+			request.setProperty("content_type","application/json");
+			formatJSON(out,metrics,server.getThreadPool(),server.getAdmissionControl(),components);
+		}
+		else {
+			request.setProperty("content_type","text/plain");
+			formatText(out,metrics,server.getThreadPool(),server.getAdmissionControl(),components);
+		}
+		request.print(out.toString());
+
+		if(getBoolean("reset")) {
+			metrics.reset();
+		}
+	}
+
+
+	/**
+	 * Returns a Pair of the name and counters of each access log, bandwidth scheduler, proxy,
+	 * cgi and micro cache the WebServer uses.
+	 */
+	protected Vector getComponentMetrics(WebServer server)
+	{
+		Vector rval = new Vector();
+
+		if(server.getLogger() instanceof HTTPAccessLogAgent) {
+			addComponent(rval,"access_log",((HTTPAccessLogAgent)server.getLogger()).getMetrics());
+		}
+
+		Object scheduler = getServiceImpl(getString("bandwidth_scheduler"));
+		if(scheduler instanceof HTTPBandwidthScheduler) {
+			addComponent(rval,"bandwidth",((HTTPBandwidthScheduler)scheduler).getMetrics());
+		}
+
+		Vector extensions = server.getAllExtensions();
+		for(int x=0;x<extensions.size();x++) {
+			Object extension = extensions.elementAt(x);
+			if(extension instanceof HTTPProxyAgent) {
+				HTTPProxyAgent proxy = (HTTPProxyAgent)extension;
+				addComponent(rval,"proxy_pool."+proxy,proxy.getConnectionPoolMetrics());
+				addComponent(rval,"proxy_cache."+proxy,proxy.getCacheMetrics());
+				addComponent(rval,"proxy_balancer."+proxy,proxy.getLoadBalancerMetrics());
+			}
+			else if(extension instanceof HTTPcgi) {
+				HTTPcgi cgi = (HTTPcgi)extension;
+				addComponent(rval,"cgi_worker_pool."+cgi,cgi.getWorkerPoolMetrics());
+				addComponent(rval,"cgi_workers."+cgi,cgi.getWorkerMetrics());
+			}
+			else if(extension instanceof HTTPMicroCache) {
+				addComponent(rval,"micro_cache."+extension,((HTTPMicroCache)extension).getMetrics());
+			}
+		}
+
+		return(rval);
+	}
+
+
+	protected void addComponent(Vector components, String name, Props p)
+	{
+		if(p!=null) {
+			components.addElement(new Pair(name,p));
+		}
+	}
+
+
+	/**
+	 * Returns the keys of the Props, sorted.
+	 */
+	protected Vector getSortedKeys(Props p)
+	{
+		Vector rval = new Vector();
+
+		Enumeration e = p.enumerateKeys();
+		while(e.hasMoreElements()) {
+			String key = (String)e.nextElement();
+			int x = 0;
+			while(x<rval.size() && ((String)rval.elementAt(x)).compareTo(key)<0) {
+				x++;
+			}
+			rval.insertElementAt(key,x);
+		}
+
+		return(rval);
+	}
+
+
+	protected void formatText(StringBuffer out, HTTPMetrics metrics, ThreadPool threadPool, HTTPAdmissionControl admission, Vector components)
+	{
+		out.append("uptime_ms ");
+		out.append(metrics.getUptime());
+		out.append('\n');
+		if(threadPool!=null) {
+			out.append("threads total=");
+			out.append(threadPool.totalThreads());
+			out.append(" free=");
+			out.append(threadPool.freeThreads());
+			out.append('\n');
+		}
+		if(admission!=null) {
+			Props p = admission.getMetrics();
+			out.append("admission");
+			for(int x=0;x<ADMISSION_NAMES.length;x++) {
+				out.append(' ');
+				out.append(ADMISSION_NAMES[x]);
+				out.append('=');
+				out.append(p.getLong(ADMISSION_NAMES[x]));
+			}
+			out.append('\n');
+		}
+		for(int x=0;x<components.size();x++) {
+			Pair component = (Pair)components.elementAt(x);
+			Props p = (Props)component.second();
+			Vector keys = getSortedKeys(p);
+			out.append(component.first());
+			for(int y=0;y<keys.size();y++) {
+				String key = (String)keys.elementAt(y);
+				out.append(' ');
+				out.append(key);
+				out.append('=');
+				out.append(p.getString(key));
+			}
+			out.append('\n');
+		}
+
+		Vector names = metrics.getNames();
+		for(int x=0;x<names.size();x++) {
+			String name = (String)names.elementAt(x);
+			HTTPLatencyHistogram histogram = metrics.getHistogram(name);
+
+			out.append(name);
+			out.append(" count=");
+			out.append(histogram.getCount());
+			out.append(" mean=");
+			out.append(histogram.getMean());
+			for(int y=0;y<PERCENTILES.length;y++) {
+				out.append(' ');
+				out.append(PERCENTILE_NAMES[y]);
+				out.append('=');
+				out.append(histogram.getValueAtPercentile(PERCENTILES[y]));
+			}
+			out.append(" max=");
+			out.append(histogram.getMax());
+			out.append('\n');
+		}
+	}
+
+
+	protected void formatJSON(StringBuffer out, HTTPMetrics metrics, ThreadPool threadPool, HTTPAdmissionControl admission, Vector components)
+	{
+		out.append("{\"uptime_ms\":");
+		out.append(metrics.getUptime());
+		out.append(",\"unit\":\"us\"");
+		if(threadPool!=null) {
+			out.append(",\"threads\":{\"total\":");
+			out.append(threadPool.totalThreads());
+			out.append(",\"free\":");
+			out.append(threadPool.freeThreads());
+			out.append('}');
+		}
+		if(admission!=null) {
+			Props p = admission.getMetrics();
+			out.append(",\"admission\":{");
+			for(int x=0;x<ADMISSION_NAMES.length;x++) {
+				if(x>0) {
+					out.append(',');
+				}
+				out.append('"');
+				out.append(ADMISSION_NAMES[x]);
+				out.append("\":");
+				out.append(p.getLong(ADMISSION_NAMES[x]));
+			}
+			out.append('}');
+		}
+		for(int x=0;x<components.size();x++) {
+			Pair component = (Pair)components.elementAt(x);
+			Props p = (Props)component.second();
+			Vector keys = getSortedKeys(p);
+			out.append(',');
+			appendJSONString(out,(String)component.first());
+			out.append(":{");
+			for(int y=0;y<keys.size();y++) {
+				String key = (String)keys.elementAt(y);
+				Object value = p.getProperty(key);
+				if(y>0) {
+					out.append(',');
+				}
+				appendJSONString(out,key);
+				out.append(':');
+				if(value instanceof Number || value instanceof Boolean) {
+					out.append(value);
+				}
+				else {
+					appendJSONString(out,p.getString(key));
+				}
+			}
+			out.append('}');
+		}
+		out.append(",\"histograms\":{");
+
+		Vector names = metrics.getNames();
+		for(int x=0;x<names.size();x++) {
+			String name = (String)names.elementAt(x);
+			HTTPLatencyHistogram histogram = metrics.getHistogram(name);
+
+			if(x>0) {
+				out.append(',');
+			}
+			appendJSONString(out,name);
+			out.append(":{\"count\":");
+			out.append(histogram.getCount());
+			out.append(",\"mean\":");
+			out.append(histogram.getMean());
+			for(int y=0;y<PERCENTILES.length;y++) {
+				out.append(",\"");
+				out.append(PERCENTILE_NAMES[y]);
+				out.append("\":");
+				out.append(histogram.getValueAtPercentile(PERCENTILES[y]));
+			}
+			out.append(",\"max\":");
+			out.append(histogram.getMax());
+			out.append('}');
+		}
+
+		out.append("}}\n");
+	}
+
+
+	protected void appendJSONString(StringBuffer out, String s)
+	{
+		out.append('"');
+		for(int x=0;x<s.length();x++) {
+			char c = s.charAt(x);
+			if(c=='"' || c=='\\') {
+				out.append('\\');
+				out.append(c);
+			}
+			else if(c<0x20) {
+				String hex = Integer.toHexString(c);
+				out.append("\\u");
+				for(int y=hex.length();y<4;y++) {
+					out.append('0');
+				}
+				out.append(hex);
+			}
+			else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+}
@@ -0,0 +1,665 @@
+package com.cometway.httpd;
+
+import com.cometway.ak.RequestAgent;
+import com.cometway.props.Props;
+import com.cometway.util.StringTools;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * This WebServerExtension coalesces concurrent identical GET requests for RequestAgents into one
+ * call to the agent, and keeps the response for ttl milliseconds so the agent is not called again
+ * for identical requests within that time. It is meant for agents which render expensive pages that
+ * are the same for every client, such as a directory of services or a log viewer.
+ *
+ * The first request for a key calls the agent with its output captured, and the requests arriving
+ * while it runs wait at most wait_timeout milliseconds for its response. Requests are identical when
+ * they have the same Host field, request URI (the path and query) and values of the key_fields.
+ * Requests with an Authorization or Cookie field are passed on to the agent as usual unless that
+ * field is one of the key_fields. A response is only shared if its status is cacheable, it has no
+ * Set-Cookie field, its Cache-Control field does not have no-store, no-cache or private, its Vary
+ * field only names key_fields and its body is at most max_entry_size bytes; waiting requests are
+ * passed on to the agent when it is not. A response which grows past max_entry_size is no longer
+ * captured but sent to the client as the agent writes it.
+ *
+ * Since the agent is called directly, the extensions which follow this one in the chain of a domain
+ * are skipped for the requests it answers. It should follow the HTTPAccessRestriction,
+ * HTTPAuthenticationAgent, HTTPPathRewrite, HTTPSetProperty and HTTPRedirectAgent extensions of its
+ * domains; requests are passed on uncached while one of those follows it.
+ *
+ * Shared responses are sent with their own Date, Age, Content-Length and Connection fields, so each
+ * client may keep its connection alive whether or not the agent supports it.
+ */
+public class HTTPMicroCache extends WebServerExtension
+{
+	/** The bytes captured for the response header in addition to the max_entry_size of the body. */
+	protected static final int MAX_HEADER_SIZE = 16384;
+
+	protected WebServer webServer;
+	protected String[] paths;
+	protected String[] keyFields;
+	protected long ttl;
+	protected int maxEntries;
+	protected int maxEntrySize;
+	protected long waitTimeout;
+
+	protected LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+	protected Hashtable flights = new Hashtable();
+
+	protected long requests;
+	protected long hits;
+	protected long misses;
+	protected long coalesced;
+	protected long stored;
+	protected long uncacheable;
+
+
+	/**
+	 * webserver_service_name - The WebServer whose RequestAgents are called (default: none)
+	 * domains - The domains this extension applies to (default: none)
+	 * paths - Comma separated prefixes of the paths cached, or all for every .agent path (default: all)
+	 * key_fields - Comma separated request fields whose values are part of the key (default: Accept-Encoding)
+	 * ttl - The milliseconds a response is kept, 0 only coalesces concurrent requests (default: 1000)
+	 * max_entries - The number of responses kept (default: 1000)
+	 * max_entry_size - The size of the largest body kept, in bytes (default: 1048576)
+	 * wait_timeout - The milliseconds a request waits for an identical one to be answered (default: 30000)
+	 */
+	public void initProps()
+	{
+		setDefault("service_name","extension://.*");
+		setDefault("webserver_service_name","none");
+		setDefault("domains","none");
+		setDefault("paths","all");
+		setDefault("key_fields","Accept-Encoding");
+		setDefault("ttl","1000");
+		setDefault("max_entries","1000");
+		setDefault("max_entry_size","1048576");
+		setDefault("wait_timeout","30000");
+	}
+
+
+	public void start()
+	{
+		webServer = (WebServer)getServiceImpl(getString("webserver_service_name"));
+		paths = getTrimmedString("paths").equals("all") ? new String[0] : StringTools.commaToArray(getTrimmedString("paths"));
+		keyFields = StringTools.commaToArray(getTrimmedString("key_fields"));
+		ttl = getLong("ttl");
+		maxEntries = getInteger("max_entries");
+		maxEntrySize = getInteger("max_entry_size");
+		waitTimeout = getLong("wait_timeout");
+
+		super.start();
+	}
+
+
+	public void stop()
+	{
+		super.stop();
+
+		synchronized(this) {
+			entries.clear();
+		}
+	}
+
+
+	public boolean handleRequest(HTTPAgentRequest request)
+	{
+		String path = request.getString("path");
+		String key = getKey(request);
+
+		if(key==null || !isCachedPath(path)) {
+			return(false);
+		}
+
+		String host = request.getString("host").toLowerCase();
+		int index = host.indexOf(':');
+		if(index!=-1) {
+			host = host.substring(0,index);
+		}
+		RequestAgent agent = webServer==null ? null : webServer.getRequestAgent(host.trim(),path);
+		if(agent==null || isBypassed(host.trim())) {
+			return(false);
+		}
+
+		synchronized(this) {
+			requests++;
+		}
+
+		try {
+			Entry entry = lookup(key);
+			if(entry!=null) {
+				synchronized(this) {
+					hits++;
+				}
+				writeEntry(request,entry);
+				return(true);
+			}
+
+			Flight flight = null;
+			boolean leader = false;
+			synchronized(flights) {
+				flight = (Flight)flights.get(key);
+				if(flight==null) {
+					flight = new Flight();
+					flights.put(key,flight);
+					leader = true;
+				}
+			}
+
+			if(leader) {
+				handleMiss(request,agent,key,flight);
+				return(true);
+			}
+
+			synchronized(this) {
+				coalesced++;
+			}
+			entry = waitForFlight(flight);
+			if(entry!=null) {
+				writeEntry(request,entry);
+				return(true);
+			}
+		}
+		catch(IOException e) {
+			debug("Could not send the response to "+key+": "+e);
+			return(true);
+		}
+
+		// The response could not be shared, the agent is called for this request as usual
+		return(false);
+	}
+
+
+	/**
+	 * Returns the counts of requests, hits, misses, coalesced requests (which waited for an identical
+	 * request), stored responses and uncacheable responses, and the number of entries.
+	 */
+	public synchronized Props getMetrics()
+	{
+		Props rval = new Props();
+
+		rval.setLong("requests",requests);
+		rval.setLong("hits",hits);
+		rval.setLong("misses",misses);
+		rval.setLong("coalesced",coalesced);
+		rval.setLong("stored",stored);
+		rval.setLong("uncacheable",uncacheable);
+		rval.setInteger("entries",entries.size());
+
+		return(rval);
+	}
+
+
+	/**
+	 * Removes every response kept.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+
+	/**
+	 * Returns the key of a GET request, or null if the request is not cached.
+	 */
+	protected String getKey(HTTPAgentRequest request)
+	{
+		String requestLine = request.getString("request");
+		if(!requestLine.startsWith("GET ")) {
+			return(null);
+		}
+
+		HTTPHeaders headers = request.getHeaders();
+		if((headers.contains("Authorization") && !isKeyField("Authorization")) || (headers.contains("Cookie") && !isKeyField("Cookie"))) {
+			return(null);
+		}
+
+		int end = requestLine.indexOf(' ',4);
+		int lineEnd = requestLine.indexOf('\n');
+		if(end==-1 || (lineEnd!=-1 && end>lineEnd)) {
+			end = lineEnd==-1 ? requestLine.length() : lineEnd;
+		}
+
+		StringBuffer rval = new StringBuffer(128);
+		rval.append(request.getString("host").toLowerCase());
+		rval.append(' ');
+		rval.append(requestLine.substring(4,end).trim());
+		for(int x=0;x<keyFields.length;x++) {
+			String value = headers.get(keyFields[x]);
+			rval.append('\n');
+			rval.append(keyFields[x]);
+			rval.append(": ");
+			if(value!=null) {
+				rval.append(value);
+			}
+		}
+
+		return(rval.toString());
+	}
+
+
+	protected boolean isKeyField(String name)
+	{
+		for(int x=0;x<keyFields.length;x++) {
+			if(keyFields[x].equalsIgnoreCase(name)) {
+				return(true);
+			}
+		}
+
+		return(false);
+	}
+
+
+	/**
+	 * Returns true if an extension which may refuse, answer or change a request before its agent
+	 * is called follows this one in the chain of the host.
+	 */
+	protected boolean isBypassed(String host)
+	{
+		WebServerExtension[] chain = webServer.getExtensionChain(host);
+		boolean found = false;
+
+		for(int x=0;x<chain.length;x++) {
+			if(chain[x]==this) {
+				found = true;
+			}
+			else if(found) {
+				if(chain[x] instanceof HTTPAccessRestriction || chain[x] instanceof HTTPAuthenticationAgent || chain[x] instanceof HTTPPathRewrite
+					|| chain[x] instanceof HTTPSetProperty || chain[x] instanceof HTTPRedirectAgent) {
+					debug("Not caching requests for "+host+", "+chain[x].getClass().getName()+" follows this extension");
+					return(true);
+				}
+			}
+		}
+
+		return(false);
+	}
+
+
+	protected boolean isCachedPath(String path)
+	{
+		if(!path.endsWith(".agent")) {
+			return(false);
+		}
+		if(paths.length==0) {
+			return(true);
+		}
+
+		for(int x=0;x<paths.length;x++) {
+			if(path.startsWith(paths[x])) {
+				return(true);
+			}
+		}
+
+		return(false);
+	}
+
+
+	/**
+	 * Calls the agent for the first of the identical requests, answers it, and hands the response
+	 * to the requests waiting for it.
+	 */
+	protected void handleMiss(HTTPAgentRequest request, RequestAgent agent, String key, Flight flight) throws IOException
+	{
+		Entry entry = null;
+		CaptureStream captured = new CaptureStream(request.getOutputStream(),maxEntrySize+MAX_HEADER_SIZE);
+		CaptureRequest capture = null;
+
+		synchronized(this) {
+			misses++;
+		}
+
+		try {
+			capture = new CaptureRequest(request,captured);
+			agent.handleRequest(capture);
+			if(capture.bufferOutput || capture.chunkedOutput) {
+				capture.close();
+			}
+
+			if(!captured.streaming) {
+				entry = createEntry(captured.buffer.toByteArray());
+			}
+			if(entry!=null && entry.shared) {
+				if(ttl>0) {
+					put(key,entry);
+				}
+			}
+			else {
+				synchronized(this) {
+					uncacheable++;
+				}
+			}
+		}
+		finally {
+			synchronized(flights) {
+				flights.remove(key);
+			}
+			synchronized(flight) {
+				flight.entry = (entry!=null && entry.shared) ? entry : null;
+				flight.done = true;
+				flight.notifyAll();
+			}
+		}
+
+		if(captured.streaming) {
+			// The response was too large to keep and has been sent as the agent wrote it
+			if(capture.hasProperty(ConnectionKMethod.KEEP_ALIVE)) {
+				request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+			}
+			else {
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+			}
+			request.returnVal = capture.returnVal;
+			captured.flush();
+		}
+		else if(entry!=null) {
+			writeEntry(request,entry);
+		}
+		else {
+			// The response could not be parsed, it is sent as the agent wrote it and the connection is closed
+			request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+			OutputStream out = request.getOutputStream();
+			captured.buffer.writeTo(out);
+			out.flush();
+		}
+	}
+
+
+	/**
+	 * Waits at most wait_timeout milliseconds for the first of the identical requests to be answered,
+	 * and returns its response, or null if it cannot be shared.
+	 */
+	protected Entry waitForFlight(Flight flight)
+	{
+		long start = System.currentTimeMillis();
+
+		synchronized(flight) {
+			long remaining = waitTimeout;
+			while(!flight.done && remaining>0) {
+				try {
+					flight.wait(remaining);
+				}
+				catch(InterruptedException e) {
+					break;
+				}
+				remaining = waitTimeout-(System.currentTimeMillis()-start);
+			}
+
+			return(flight.entry);
+		}
+	}
+
+
+	protected synchronized Entry lookup(String key)
+	{
+		Entry rval = (Entry)entries.get(key);
+
+		if(rval!=null && System.currentTimeMillis()>=rval.expires) {
+			entries.remove(key);
+			rval = null;
+		}
+
+		return(rval);
+	}
+
+
+	protected synchronized void put(String key, Entry entry)
+	{
+		entry.expires = entry.created+ttl;
+		entries.put(key,entry);
+		stored++;
+
+		Iterator i = entries.keySet().iterator();
+		while(entries.size()>maxEntries && i.hasNext()) {
+			i.next();
+			i.remove();
+		}
+	}
+
+
+	/**
+	 * Parses the response an agent wrote, returning null if it has no complete header.
+	 */
+	protected Entry createEntry(byte[] data) throws IOException
+	{
+		int headerEnd = getHeaderEnd(data);
+		if(headerEnd==-1) {
+			return(null);
+		}
+
+		String header = new String(data,0,headerEnd,"ISO-8859-1");
+		int index = header.indexOf('\n');
+		String statusLine = header.substring(0,index).trim();
+		HTTPHeaders fields = HTTPHeaders.parse(header);
+
+		int bodyLength = data.length-headerEnd;
+		String contentLength = fields.get("Content-Length");
+		if(contentLength!=null) {
+			try {
+				bodyLength = Math.min(bodyLength,Integer.parseInt(contentLength.trim()));
+			}
+			catch(NumberFormatException e) {;}
+		}
+
+		Entry rval = new Entry();
+		rval.status = statusLine.length()>12 ? statusLine.substring(9,12) : "200";
+		rval.body = new byte[bodyLength];
+		System.arraycopy(data,headerEnd,rval.body,0,bodyLength);
+		rval.shared = isShareable(rval.status,fields) && bodyLength<=maxEntrySize;
+
+		StringBuffer b = new StringBuffer(header.length());
+		b.append(statusLine);
+		b.append("\r\n");
+		for(int x=0;x<fields.size();x++) {
+			String name = fields.getName(x);
+			if(!name.equalsIgnoreCase("Date") && !HTTPProxyCache.isUncachedField(name)) {
+				b.append(name);
+				b.append(": ");
+				b.append(fields.getValue(x));
+				b.append("\r\n");
+			}
+		}
+		rval.header = b.toString().getBytes("ISO-8859-1");
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if a response with the status and header fields may be sent to other clients.
+	 */
+	protected boolean isShareable(String status, HTTPHeaders fields)
+	{
+		boolean rval = false;
+
+		for(int x=0;x<HTTPProxyCache.CACHEABLE_STATUS.length;x++) {
+			if(status.equals(Integer.toString(HTTPProxyCache.CACHEABLE_STATUS[x]))) {
+				rval = true;
+			}
+		}
+
+		if(fields.contains("Set-Cookie") || fields.contains("Transfer-Encoding")) {
+			rval = false;
+		}
+		if(HTTPProxyCache.getDirective(fields,"no-store")!=null || HTTPProxyCache.getDirective(fields,"no-cache")!=null || HTTPProxyCache.getDirective(fields,"private")!=null) {
+			rval = false;
+		}
+
+		// The key only tells requests apart by the key_fields
+		String vary = fields.get("Vary");
+		if(vary!=null) {
+			String[] names = StringTools.commaToArray(vary);
+			for(int x=0;x<names.length;x++) {
+				String name = names[x].trim();
+				if(name.length()>0 && !isKeyField(name)) {
+					rval = false;
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Sends a response to the client, keeping the connection alive if the client asked for it.
+	 */
+	protected void writeEntry(HTTPAgentRequest request, Entry entry) throws IOException
+	{
+		OutputStream out = request.getOutputStream();
+		StringBuffer b = new StringBuffer(128);
+
+		b.append("Age: ");
+		b.append((System.currentTimeMillis()-entry.created)/1000);
+		b.append("\r\nContent-Length: ");
+		b.append(entry.body.length);
+		b.append("\r\n");
+		if(request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD) && request.getHeaders().containsToken("Connection","keep-alive")) {
+			request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+			b.append(request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD));
+			b.append("\r\nConnection: Keep-Alive\r\n");
+		}
+		else {
+			request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+			b.append("Connection: close\r\n");
+		}
+		b.append("\r\n");
+
+		out.write(entry.header);
+		out.write(HTTPDate.getDateField());
+		out.write(b.toString().getBytes("ISO-8859-1"));
+		out.write(entry.body);
+		out.flush();
+
+		request.returnVal = entry.status;
+	}
+
+
+	/**
+	 * Returns the index following the blank line which ends the response header, or -1.
+	 */
+	protected static int getHeaderEnd(byte[] data)
+	{
+		if(data.length<5 || data[0]!='H' || data[1]!='T' || data[2]!='T' || data[3]!='P' || data[4]!='/') {
+			return(-1);
+		}
+
+		for(int x=0;x<data.length;x++) {
+			if(data[x]=='\n') {
+				if(x+1<data.length && data[x+1]=='\n') {
+					return(x+2);
+				}
+				else if(x+2<data.length && data[x+1]=='\r' && data[x+2]=='\n') {
+					return(x+3);
+				}
+			}
+		}
+
+		return(-1);
+	}
+
+
+
+	/**
+	 * A response kept for identical requests.
+	 */
+	protected static class Entry
+	{
+		String status;
+		byte[] header;
+		byte[] body;
+		boolean shared;
+		long created = System.currentTimeMillis();
+		long expires;
+	}
+
+
+
+	/**
+	 * The call to an agent which identical requests are waiting for.
+	 */
+	protected static class Flight
+	{
+		boolean done;
+		Entry entry;
+	}
+
+
+
+	/**
+	 * The stream a response is captured in. Once more than limit bytes are written, the bytes
+	 * captured so far and everything written after them are sent to the client instead.
+	 */
+	protected static class CaptureStream extends OutputStream
+	{
+		OutputStream out;
+		int limit;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+		boolean streaming;
+
+
+		CaptureStream(OutputStream out, int limit)
+		{
+			this.out = out;
+			this.limit = limit;
+		}
+
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte)b},0,1);
+		}
+
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if(!streaming && buffer.size()+len>limit) {
+				streaming = true;
+				buffer.writeTo(out);
+				buffer = null;
+			}
+
+			if(streaming) {
+				out.write(b,off,len);
+			}
+			else {
+				buffer.write(b,off,len);
+			}
+		}
+
+
+		public void flush() throws IOException
+		{
+			if(streaming) {
+				out.flush();
+			}
+		}
+	}
+
+
+
+	/**
+	 * A copy of a request whose response is written to a buffer. The body is never chunked, since
+	 * the buffer is complete when the agent returns.
+	 */
+	protected static class CaptureRequest extends HTTPAgentRequest
+	{
+		CaptureRequest(HTTPAgentRequest request, OutputStream out)
+		{
+			super(new Props(),out,System.out,request.getClientInputStream());
+			copyFrom(request);
+			headers = request.getHeaders();
+		}
+
+
+		protected boolean isChunked()
+		{
+			return(false);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.cometway.httpd;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * This buffered OutputStream carries the responses on a connection which may have pipelined
+ * requests. While the ConnectionKMethod knows the client has already sent its next request,
+ * it sets the stream to hold back flushes, so the responses to a burst of pipelined requests
+ * are written to the socket together, in the order the requests were received, instead of
+ * one small write per response. The buffer is still written whenever it fills, and the last
+ * response of a burst is flushed before the connection waits for more requests.
+ *
+ * While flushes are held back, HTTPFileTransfer.getSocketChannel() returns null so file data
+ * is written through this stream rather than around the buffered responses.
+ */
+public class HTTPPipelineOutputStream extends BufferedOutputStream
+{
+	protected boolean holdFlush;
+
+
+	public HTTPPipelineOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+
+
+	public HTTPPipelineOutputStream(OutputStream out, int size)
+	{
+		super(out, size);
+	}
+
+
+	/**
+	 * When set to true, calls to flush() have no effect until it is set to false again.
+	 */
+	public synchronized void setHoldFlush(boolean holdFlush)
+	{
+		this.holdFlush = holdFlush;
+	}
+
+
+	/**
+	 * Returns true if flushes are being held back.
+	 */
+	public synchronized boolean isHoldingFlush()
+	{
+		return(holdFlush);
+	}
+
+
+	public synchronized void flush() throws IOException
+	{
+		if(!holdFlush) {
+			super.flush();
+		}
+	}
+
+
+	/**
+	 * Writes out the buffered data and flushes the underlying stream, even if flushes are being held back.
+	 */
+	public synchronized void flushBuffer() throws IOException
+	{
+		super.flush();
+	}
+
+
+	public void close() throws IOException
+	{
+		try {
+			flushBuffer();
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.net.*;
 import com.cometway.util.*;
 
 import com.cometway.ak.*;
+import com.cometway.props.Props;
 
 /**
  * This agent handles proxies to other web servers. A file needs to be provided
@@ -43,7 +44,14 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 	protected boolean stopRunning;
 	protected Thread thread;
 	protected Object syncObject = new Object();
-	protected Hashtable socketHash;
+	protected HTTPConnectionPool connectionPool;
+	protected HTTPProxyCache cache;
+	protected HTTPLoadBalancer balancer;
+
+	// The size of the buffer used to relay response bodies, and the longest status, header or chunk size line accepted
+	protected static final int RELAY_BUFFER_SIZE = 32768;
+	protected static final int MAX_LINE_LENGTH = 8192;
+	protected static final byte[] CRLF = { '\r', '\n' };
 
 	/** 
 	*Initializes this agent's properties by providing default
@@ -55,7 +63,28 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 	* (default: 300000), "initial_wait_time" specifies the time to 
 	* wait initially before checking a proxy (default: 60000).
 	* The proxy_socket_cache_timeout property denotes how long cached sockets
-	* should be considered alive (in milliseconds, default: 1000).
+	* should be considered alive (in milliseconds, default: 10000).
+	* The proxy_pool_size property is the largest number of connections kept to
+	* each proxied host (default: 16), and proxy_pool_wait_timeout is how long a
+	* request waits for a connection when all of them are in use (in milliseconds,
+	* default: 5000). A pooled connection which has been idle for proxy_pool_probe_time
+	* milliseconds is checked with a read before it is reused (default: 1000); a GET, HEAD,
+	* OPTIONS or TRACE request sent on a pooled connection the proxy host closed without
+	* answering is sent once more on a new connection.
+	* When proxy_cache is true, cacheable responses are stored in the memory of the
+	* proxy (default: false), under the proxy host, the Host field sent to it and the request
+	* target: proxy_cache_memory_size is the number of bytes of
+	* responses kept in memory (default: 16777216) and proxy_cache_max_memory_entry
+	* is the largest body kept in memory (default: 1048576). If proxy_cache_directory
+	* is set, responses evicted from memory and larger bodies are kept in files in
+	* that directory (default: none), up to proxy_cache_disk_size bytes (default:
+	* 268435456), with bodies of up to proxy_cache_max_entry bytes (default: 33554432).
+	* When a path is proxied to several hosts, proxy_balancing_policy chooses the host of
+	* each request: round_robin, least_outstanding, ewma, or the name of a subclass of
+	* HTTPLoadBalancer (default: round_robin). A host is skipped for proxy_ejection_time
+	* milliseconds (default: 30000) after proxy_failure_threshold failed requests in a row
+	* (default: 5), or when its average response time is more than
+	* proxy_outlier_latency_factor times the median of the other hosts (default: 3, 0 disables).
 	*/
 
 	public void initProps()
@@ -69,6 +98,19 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 		setDefault("initial_wait_time","60000");
 		setDefault("proxy_socket_timeout","5000");
 		setDefault("proxy_socket_cache_timeout","10000");
+		setDefault("proxy_pool_size","16");
+		setDefault("proxy_pool_wait_timeout","5000");
+		setDefault("proxy_pool_probe_time","1000");
+		setDefault("proxy_balancing_policy",HTTPLoadBalancer.ROUND_ROBIN);
+		setDefault("proxy_failure_threshold","5");
+		setDefault("proxy_ejection_time","30000");
+		setDefault("proxy_outlier_latency_factor","3");
+		setDefault("proxy_cache","false");
+		setDefault("proxy_cache_memory_size","16777216");
+		setDefault("proxy_cache_max_memory_entry","1048576");
+		setDefault("proxy_cache_directory","");
+		setDefault("proxy_cache_disk_size","268435456");
+		setDefault("proxy_cache_max_entry","33554432");
 
 		setDefault("modify_proxied_request","true");
 	}
@@ -80,8 +122,18 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 	
 	public void start()
 	{
+		balancer = createLoadBalancer();
 		readProxyFile();
-		socketHash = new Hashtable();
+		connectionPool = new HTTPConnectionPool(getInteger("proxy_pool_size"),getInteger("proxy_socket_cache_timeout"),getInteger("proxy_pool_wait_timeout"),getInteger("proxy_socket_timeout"));
+		connectionPool.setProbeTime(getInteger("proxy_pool_probe_time"));
+
+		if(getBoolean("proxy_cache")) {
+			File directory = null;
+			if(getString("proxy_cache_directory").trim().length()>0) {
+				directory = new File(getString("proxy_cache_directory").trim());
+			}
+			cache = new HTTPProxyCache(getLong("proxy_cache_memory_size"),getInteger("proxy_cache_max_memory_entry"),directory,getLong("proxy_cache_disk_size"),getLong("proxy_cache_max_entry"));
+		}
 
 		if(getInteger("check_interval")>0) {
 			try {
@@ -98,24 +150,46 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 	}
 
 
+	/**
+	 * Creates the load balancer named by the proxy_balancing_policy property.
+	 */
+	protected HTTPLoadBalancer createLoadBalancer()
+	{
+		String policy = getTrimmedString("proxy_balancing_policy");
+		int failureThreshold = getInteger("proxy_failure_threshold");
+		int ejectionTime = getInteger("proxy_ejection_time");
+		double outlierFactor = getDouble("proxy_outlier_latency_factor");
+
+		if(!policy.equals(HTTPLoadBalancer.ROUND_ROBIN) && !policy.equals(HTTPLoadBalancer.LEAST_OUTSTANDING) && !policy.equals(HTTPLoadBalancer.EWMA)) {
+			try {
+				Class c = Class.forName(policy);
+				return((HTTPLoadBalancer)c.getConstructor(new Class[] { String.class, Integer.TYPE, Integer.TYPE, Double.TYPE }).newInstance(new Object[] { policy, Integer.valueOf(failureThreshold), Integer.valueOf(ejectionTime), Double.valueOf(outlierFactor) }));
+			}
+			catch(Exception e) {
+				error("Cannot create load balancer: "+policy+", using "+HTTPLoadBalancer.ROUND_ROBIN,e);
+				policy = HTTPLoadBalancer.ROUND_ROBIN;
+			}
+		}
+
+		return(new HTTPLoadBalancer(policy,failureThreshold,ejectionTime,outlierFactor));
+	}
+
+
 	public void stop()
 	{
 		// stop the thread
 		stopRunning = true;
 
 		// make sure all the sockets are closed
-		Enumeration e = socketHash.elements();
-		while(e.hasMoreElements()) {
-			Socket s = (Socket)e.nextElement();
-			try {
-				s.close();
-			}
-			catch(Exception ex) {;}
+		connectionPool.close();
+
+		if(cache!=null) {
+			cache.clear();
+			cache = null;
 		}
 
 		thread = null;
 		proxies= null;
-		socketHash = null;
 	}
 
 	/**
@@ -166,7 +240,6 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 		boolean rval = false;
 		String path = request.getProps().getString("path");
 		String host = request.getProps().getString("host");
-		Socket sock = null;
 		String hostname = "";
 		int port = 80;
 
@@ -178,10 +251,6 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 		}
 		if(isProxied(path,host)) {
 			String httpRequest = request.getProps().getString("request");
-			boolean keepAlive = request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD);
-			
-			BufferedOutputStream out = null;
-			InputStream in = null;
 			try {
 				// extract the proxy path, the hostname and port
 				String proxy = "";
@@ -245,271 +314,711 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 						}
 					}
 				}
-				// Sometimes requests sent by certain browsers don't conform to the \r\n standard
-				mark1 = 0;
-				mark2 = httpRequest.indexOf("\n",mark1);
-				while(mark2!=-1) {
-					if(httpRequest.charAt(mark2-1)!='\r') {
-						httpRequest = httpRequest.substring(0,mark2)+"\r"+httpRequest.substring(mark2);
-						if(mark1 + 1 == mark2) {
-								break;
-						}
-						mark1 = mark2+1;
+				httpRequest = formatProxyRequest(httpRequest);
+
+				String cacheKey = null;
+				if(cache!=null) {
+					// The Host field sent is part of the key, a proxy host may serve several virtual hosts
+					String target = hostname+":"+port+" "+getRequestHost(httpRequest)+getRequestTarget(httpRequest);
+					if(HTTPProxyCache.isCacheableRequest(request)) {
+						cacheKey = target;
 					}
-					else {
-						if(mark1 + 2 == mark2) {
-							break;
-						}
-						mark1 = mark2+1;
-					}
-					mark2 = httpRequest.indexOf("\n",mark1);
-				}
-				
-				// fetch a Socket, it's possible a keep-alive was used before so we should use the same Socket as before
-				sock = getProxySocket(hostname,port,httpRequest);
-				if(sock==null) {
-					try {
-						request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.BAD_GATEWAY).getBytes());
-						request.getOutputStream().flush();
-					}
-					catch(Exception e) {;}
-				}
-				else {
-					in = sock.getInputStream();
-					out = new BufferedOutputStream(sock.getOutputStream());
-					
-					byte[] buffer = new byte[1024];
-					int bytesRead = 0;
-					int contentLength = -1;
-					int contentCount = 0;
-					StringBuffer headerBuffer = new StringBuffer();
-					try {
-						bytesRead = in.read(buffer);
-					}
-					catch(SocketTimeoutException ste) {
-						// proxy socket timed out, need to respond
-						request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.GATEWAY_TIMEOUT).getBytes());
-						request.getOutputStream().flush();
-						bytesRead = -1;
-					}
-					if(bytesRead!=-1) {
-						while(bytesRead>0) {
-							request.getOutputStream().write(buffer,0,bytesRead);
-							request.getOutputStream().flush();
-							if(contentLength==-1) {
-								headerBuffer.append(new String(buffer,0,bytesRead));
-								try {
-									((HTTPAgentRequest)request).returnVal = headerBuffer.toString().substring(headerBuffer.indexOf(" "),headerBuffer.indexOf(" ")+4).trim();
-									println("Return value is: "+((HTTPAgentRequest)request).returnVal);
-								}
-								catch(Exception e) {;}
-								if(headerBuffer.toString().startsWith("HTTP/1.1 ")) {
-									if(headerBuffer.indexOf("\r\n\r\n")!=-1) {
-										contentCount = headerBuffer.length() - (headerBuffer.indexOf("\r\n\r\n")+4);
-										String tmp = headerBuffer.toString();
-										if(tmp.toLowerCase().indexOf("content-length:")!=-1) {
-											tmp = tmp.substring(tmp.toLowerCase().indexOf("content-length:")+15).trim();
-											contentLength = Integer.parseInt(tmp.substring(0,tmp.indexOf("\n")).trim());
-											if(contentCount>=contentLength) {
-												break;
-											}
-										}
-										else {
-											contentLength=-2;
-										}
-									}
-									else if(headerBuffer.indexOf("\n\n")!=-1) {
-										contentCount = headerBuffer.length() - (headerBuffer.indexOf("\n\n")+2);
-										String tmp = headerBuffer.toString();
-										if(tmp.toLowerCase().indexOf("content-length:")!=-1) {
-											tmp = tmp.substring(tmp.toLowerCase().indexOf("content-length:")+15).trim();
-											contentLength = Integer.parseInt(tmp.substring(0,tmp.indexOf("\n")).trim());
-											if(contentCount>=contentLength) {
-												break;
-											}
-										}
-										else {
-											contentLength=-2;
-										}
-									}
-								}
-								else {
-									// Well, dunno what the response is, but we'll read it anyways
-									contentLength=-2;
-									//									break;
-								}
-							}
-							else if(contentLength>0) {
-								contentCount = contentCount + bytesRead;
-								if(contentCount>=contentLength) {
-									break;
-								}
-							}
-							bytesRead = in.read(buffer);
-						}
-						if(keepAlive && headerBuffer.toString().toLowerCase().indexOf("connection: keep-alive")!=-1) {
-							println("Proxied response is keep-alive");
-							request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
-						}
-						if(contentLength==-2) {
-							request.setProperty(ConnectionKMethod.KEEP_ALIVE,"false");
-						}
+					else if(!HTTPProxyCache.isSafeRequest(request)) {
+						// The response of the proxy host may change the cached resource
+						cache.invalidate(target);
 					}
 				}
+
+				forwardRequest(request,hostname,port,httpRequest,cacheKey);
 			}
 			catch(Exception e) {
 				//			e.printStackTrace();
 				error("Exception handling request",e);
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
 			}
-			
+
 			if(!request.getBoolean(ConnectionKMethod.KEEP_ALIVE)) {
 				try {
 					request.getOutputStream().close();
 				}
 				catch(Exception e) {;}
+			}
 
-				try {
-					in.close();
+			rval = true;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Sends the request to the proxy host and relays its response to the client. If cacheKey is
+	 * not null, the response is looked up in the cache first: a fresh cached response is sent
+	 * without contacting the proxy host, a stale one is revalidated with a conditional request,
+	 * and a cacheable response from the proxy host is stored while it is relayed. Concurrent
+	 * requests for a resource which is not cached wait for the first one's response rather than
+	 * each fetching it from the proxy host. The load balancer is told how long the proxy host took
+	 * to answer, or that it failed to.
+	 */
+	protected void forwardRequest(HTTPAgentRequest request, String hostname, int port, String httpRequest, String cacheKey) throws IOException
+	{
+		Socket sock = null;
+		boolean reusable = false;
+		boolean fetching = false;
+		HTTPProxyCache.Entry cached = null;
+		HTTPProxyCache.Capture capture = null;
+		String backendKey = hostname+":"+port;
+		long started = 0;
+		boolean responded = false;
+
+		try {
+			if(cacheKey!=null) {
+				cached = cache.get(cacheKey,request.getHeaders());
+				if((cached==null || !cache.isFresh(cached,request)) && !request.isHeadRequest()) {
+					fetching = cache.startFetch(cacheKey);
+					if(!fetching) {
+						cached = cache.waitForFetch(cacheKey,request.getHeaders(),getInteger("proxy_socket_timeout"));
+					}
 				}
-				catch(Exception e) {;}
+
+				if(cached!=null && cache.isFresh(cached,request)) {
+					cache.countHit();
+					writeCachedResponse(request,cached);
+					return;
+				}
+				if(cached!=null) {
+					httpRequest = HTTPProxyCache.addValidators(httpRequest,cached);
+				}
+			}
+
+			balancer.begin(backendKey);
+			started = System.currentTimeMillis();
+
+			// fetch a Socket, it's possible a keep-alive was used before so we should use the same Socket as before
+			// A request which cannot be sent again is only sent on a pooled connection which has been checked
+			sock = getProxySocket(hostname,port,httpRequest,!HTTPProxyCache.isSafeRequest(request));
+			if(sock==null) {
+				balancer.recordFailure(backendKey);
 				try {
-					out.close();
+					WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.BAD_GATEWAY);
+					request.getOutputStream().flush();
 				}
 				catch(Exception e) {;}
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+				return;
+			}
+
+			HTTPRequestParser in = new HTTPRequestParser(sock.getInputStream());
+			HTTPHeaders headers = new HTTPHeaders();
+			try {
+				OutputStream out = request.getOutputStream();
+				String statusLine = null;
 				try {
-					sock.close();
+					statusLine = readResponseHeader(in,headers,out);
+				}
+				catch(NoResponseException e) {
+					if(!HTTPProxyCache.isSafeRequest(request)) {
+						throw(e);
+					}
+					// The proxy host closed the pooled connection without answering, send the request once more on a new one
+					connectionPool.discardSocket(hostname,port,sock);
+					sock = null;
+					sock = connectionPool.getSocket(hostname,port,false);
+					if(sock==null) {
+						throw(e);
+					}
+					sendProxyRequest(sock,httpRequest);
+					in = new HTTPRequestParser(sock.getInputStream());
+					statusLine = readResponseHeader(in,headers,out);
+				}
+				int status = getStatusCode(statusLine);
+				balancer.recordResponse(backendKey,System.currentTimeMillis()-started,status);
+				responded = true;
+
+				if(cached!=null && status==304) {
+					// The cached response is still current
+					cached = cache.revalidate(cached,headers);
+					writeCachedResponse(request,cached);
+					reusable = isPersistent(statusLine,headers,true) && in.buffered()==0;
+				}
+				else {
+					if(cacheKey!=null && !request.isHeadRequest()) {
+						if(cache.isCacheable(status,headers)) {
+							capture = cache.createCapture();
+						}
+						else {
+							cache.remove(cacheKey,request.getHeaders());
+						}
+					}
+
+					boolean complete = relayResponse(request,in,statusLine,headers,out,capture);
+					reusable = complete && isPersistent(statusLine,headers,request.isHeadRequest()) && in.buffered()==0;
+
+					if(capture!=null && complete) {
+						cache.put(cacheKey,request.getHeaders(),statusLine,headers,capture);
+					}
 				}
-				catch(Exception e) {;}
 			}
-			else {
-				returnProxySocket(hostname,port,sock);
+			catch(IOException e) {
+				if(!responded) {
+					balancer.recordFailure(backendKey);
+				}
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+				if(request.returnVal==null) {
+					// Nothing has been sent to the client yet, so it can still be told what happened
+					if(e instanceof SocketTimeoutException) {
+						WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.GATEWAY_TIMEOUT);
+					}
+					else {
+						WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.BAD_GATEWAY);
+					}
+					request.getOutputStream().flush();
+				}
+				else {
+					throw(e);
+				}
+			}
+		}
+		finally {
+			if(started>0) {
+				balancer.end(backendKey);
+			}
+			if(capture!=null) {
+				capture.discard();
+			}
+			if(fetching) {
+				cache.endFetch(cacheKey);
 			}
 
-			rval = true;
+			// The connection to the proxy host is only reused if the whole response was read from it
+			if(sock!=null) {
+				if(reusable) {
+					returnProxySocket(hostname,port,sock);
+				}
+				else {
+					connectionPool.discardSocket(hostname,port,sock);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Sends a cached response to the client, or a 304 response if the client's conditional
+	 * request matches it.
+	 */
+	protected void writeCachedResponse(HTTPAgentRequest request, HTTPProxyCache.Entry entry) throws IOException
+	{
+		OutputStream out = request.getOutputStream();
+		boolean notModified = HTTPProxyCache.isNotModified(request,entry);
+		String statusLine = entry.getStatusLine();
+		if(notModified) {
+			statusLine = "HTTP/1.1 304 Not Modified";
+		}
+
+		HTTPHeaders headers = cache.getResponseHeaders(entry,notModified);
+		String keepAliveField = getKeepAliveField(request,true);
+
+		request.returnVal = Integer.toString(getStatusCode(statusLine));
+		out.write(formatResponseHeader(statusLine,headers,keepAliveField).getBytes("ISO-8859-1"));
+		if(!notModified && !request.isHeadRequest()) {
+			cache.writeBody(entry,request);
+		}
+		out.flush();
+	}
+
+
+	/**
+	 * Returns the request target (the path and query) of the request line.
+	 */
+	protected static String getRequestTarget(String httpRequest)
+	{
+		String rval = "/";
+
+		int end = httpRequest.indexOf("\n");
+		String firstLine = (end==-1 ? httpRequest : httpRequest.substring(0,end)).trim();
+		int mark1 = firstLine.indexOf(" ");
+		if(mark1!=-1) {
+			int mark2 = firstLine.indexOf(" ",mark1+1);
+			if(mark2==-1) {
+				mark2 = firstLine.length();
+			}
+			rval = firstLine.substring(mark1+1,mark2);
 		}
 
 		return(rval);
 	}
 
+
 	/**
-	 * This method gets or creates a Socket to a proxy host and sends the HTTP request.
-	 * If a proxy host could not be reached, the socket will be null.
+	 * Returns the lower case value of the Host field of the request, or an empty String if it has none.
 	 */
-	protected Socket getProxySocket(String hostname, int port, String request)
+	protected static String getRequestHost(String httpRequest)
 	{
-		Socket rval = null;
-		boolean socketOK = false;
+		String rval = "";
 
-		// grab a Socket if one's in the hash
-		Pair p = (Pair)socketHash.remove(hostname+":"+port);
-		if(p!=null) {
-			// Check to see if it's too old
-			if(Long.valueOf((String)p.first()).longValue() + getInteger("proxy_socket_cache_timeout") > System.currentTimeMillis()) {
-				rval = (Socket)p.second();
+		int end = httpRequest.indexOf("\r\n\r\n");
+		if(end==-1) {
+			end = httpRequest.length();
+		}
+		int index = httpRequest.toLowerCase().indexOf("\nhost:");
+		if(index!=-1 && index<end) {
+			int lineEnd = httpRequest.indexOf("\n",index+1);
+			if(lineEnd==-1) {
+				lineEnd = httpRequest.length();
 			}
-			else {
-				// too old
-				try {
-					rval.close();
-				}
-				catch(Exception e) {;}
-				rval = null;
-			}				
+			rval = httpRequest.substring(index+6,lineEnd).trim().toLowerCase();
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Converts the 'request' property of an HTTPAgentRequest, which has '\n' line ends and a
+	 * '\n' after the request body, to the request sent to the proxy host: CRLF line ends, a
+	 * single blank line after the header, and the body exactly as it was received. The client's
+	 * Connection and Keep-Alive fields are replaced, since the connection to the proxy host is
+	 * kept alive for the next request regardless of the client's connection.
+	 */
+	protected String formatProxyRequest(String httpRequest)
+	{
+		String header = httpRequest;
+		String body = "";
+
+		int index = httpRequest.indexOf("\n\n");
+		if(index!=-1) {
+			header = httpRequest.substring(0,index+1);
+			body = httpRequest.substring(index+2);
+			if(body.endsWith("\n")) {
+				body = body.substring(0,body.length()-1);
+			}
+		}
+		else if(!header.endsWith("\n")) {
+			header = header + "\n";
+		}
+
+		StringBuffer rval = new StringBuffer(httpRequest.length()+64);
+		int start = 0;
+		while(start<header.length()) {
+			int end = header.indexOf("\n",start);
+			String line = header.substring(start,end);
+			if(line.endsWith("\r")) {
+				line = line.substring(0,line.length()-1);
+			}
+			start = end+1;
+
+			String lowerLine = line.toLowerCase();
+			if(lowerLine.startsWith("connection:") || lowerLine.startsWith("keep-alive:") || lowerLine.startsWith("proxy-connection:")) {
+				continue;
+			}
+			rval.append(line);
+			rval.append("\r\n");
 		}
+		rval.append("Connection: keep-alive\r\n\r\n");
+		rval.append(body);
 
+		return(rval.toString());
+	}
+
+
+	/**
+	 * Reads the header of the proxy host's response into headers and returns its status line.
+	 * Interim 1xx responses which precede it are relayed to the client's OutputStream as they are.
+	 */
+	protected String readResponseHeader(HTTPRequestParser in, HTTPHeaders headers, OutputStream out) throws IOException
+	{
+		String statusLine = null;
+		int status = 0;
 
-		if(rval==null) {
-			// There was no previous Socket for this hostname and port, create a new one
+		do {
 			try {
-				rval = new Socket(hostname,port);
-				//				System.out.println("Socket is new");
+				statusLine = in.readLine(MAX_LINE_LENGTH);
 			}
-			catch(IOException ioe) {
-				// Proxy not there
-				try {
-					rval.close();   // paranoid
+			catch(SocketException e) {
+				if(status==0) {
+					throw(new NoResponseException(e.getMessage()));
 				}
-				catch(Exception e) {;}
-				rval = null;
+				throw(e);
+			}
+			if(statusLine==null && status==0) {
+				throw(new NoResponseException("The proxy host closed the connection without a response"));
+			}
+			if(statusLine==null || in.lineOverflowed()) {
+				throw(new EOFException("Invalid response from the proxy host"));
+			}
+			if(statusLine.length()==0) {
+				continue;
+			}
+
+			headers.clear();
+			if(in.readHeaders(headers,MAX_LINE_LENGTH,null)!=HTTPRequestParser.HEADERS_COMPLETE) {
+				throw(new EOFException("Invalid response header from the proxy host"));
+			}
+			status = getStatusCode(statusLine);
+
+			if(status>=100 && status<200 && status!=101) {
+				out.write(formatResponseHeader(statusLine,headers,null).getBytes("ISO-8859-1"));
 			}
 		}
-		else {
-			// There was a Socket in the old Socket in the Hashtable
+		while(statusLine.length()==0 || (status>=100 && status<200 && status!=101));
+
+		return(statusLine);
+	}
+
+
+	/**
+	 * Relays the proxy host's response, whose header has been read, to the client's OutputStream.
+	 * The body is copied according to how it is delimited: by its Content-Length, by the chunked
+	 * transfer-coding (the chunks are relayed as they are), or by the proxy host closing the
+	 * connection. Data is copied through a large buffer and the client's stream is only flushed
+	 * when the proxy host has nothing more to read yet, and at the end. If copy is not null, the
+	 * body data (without the chunked transfer-coding) is also written to it.
+	 *
+	 * The client's connection is kept alive if it asked for it and the end of the response can be
+	 * told without closing the connection. Returns true if the whole response was read.
+	 */
+	protected boolean relayResponse(HTTPAgentRequest request, HTTPRequestParser in, String statusLine, HTTPHeaders headers, OutputStream out, OutputStream copy) throws IOException
+	{
+		int status = getStatusCode(statusLine);
+		boolean bodyless = isBodyless(status,request.isHeadRequest());
+		boolean chunked = !bodyless && headers.containsToken("Transfer-Encoding","chunked");
+		long contentLength = -1;
+		if(!bodyless && !chunked && headers.contains("Content-Length")) {
 			try {
-				rval.getOutputStream().write(request.getBytes());
-				rval.getOutputStream().write(("\r\n\r\n").getBytes());
-				rval.getOutputStream().flush();
+				contentLength = Long.parseLong(headers.get("Content-Length").trim());
+			}
+			catch(NumberFormatException e) {
+				throw(new IOException("Invalid Content-Length from the proxy host: "+headers.get("Content-Length")));
+			}
+		}
+		boolean delimited = bodyless || chunked || contentLength>=0;
+
+		request.returnVal = Integer.toString(status);
+		debug("Return value is: "+request.returnVal);
+
+		String keepAliveField = getKeepAliveField(request,delimited);
+		out.write(formatResponseHeader(statusLine,headers,keepAliveField).getBytes("ISO-8859-1"));
+
+		boolean complete = true;
+		byte[] buffer = new byte[RELAY_BUFFER_SIZE];
+
+		if(chunked) {
+			complete = relayChunks(in,out,copy,buffer);
+		}
+		else if(contentLength>0) {
+			complete = (relayBytes(in,out,copy,buffer,contentLength)==contentLength);
+		}
+		else if(!delimited) {
+			relayBytes(in,out,copy,buffer,Long.MAX_VALUE);
+		}
+
+		if(!complete) {
+			// The client cannot tell the response was cut short unless its connection is closed
+			request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+		}
+
+		out.flush();
+
+		return(complete);
+	}
+
+
+	/**
+	 * Returns true if a response with the status code has no body.
+	 */
+	protected static boolean isBodyless(int status, boolean headRequest)
+	{
+		return(headRequest || status==204 || status==304);
+	}
+
+
+	/**
+	 * Returns true if the end of the response can be told without the proxy host closing the
+	 * connection, and the proxy host will keep the connection open for the next request.
+	 */
+	protected static boolean isPersistent(String statusLine, HTTPHeaders headers, boolean headRequest)
+	{
+		boolean rval = isBodyless(getStatusCode(statusLine),headRequest) || headers.containsToken("Transfer-Encoding","chunked") || headers.contains("Content-Length");
+
+		rval = rval && !headers.containsToken("Connection","close");
+		if(!statusLine.startsWith("HTTP/1.1")) {
+			rval = rval && headers.containsToken("Connection","keep-alive");
+		}
+
+		return(rval);
+	}
 
-				// Socket is OK, don't send the request again
-				socketOK = true;
-				//				System.out.println("Socket is ok");
+
+	/**
+	 * Keeps the client's connection alive if it asked for it and the response is delimited, and
+	 * returns the Keep-Alive field to send with the response, or null if the connection will be closed.
+	 */
+	protected String getKeepAliveField(HTTPAgentRequest request, boolean delimited)
+	{
+		String rval = null;
+
+		if(delimited && request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
+			rval = request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD);
+			request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+		}
+		else {
+			request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Copies up to count bytes from the proxy host to the client, and to copy if it is not null.
+	 * Returns the number of bytes copied, which is less than count if the proxy host closed the connection.
+	 */
+	protected long relayBytes(HTTPRequestParser in, OutputStream out, OutputStream copy, byte[] buffer, long count) throws IOException
+	{
+		long rval = 0;
+
+		while(rval<count) {
+			if(in.available()==0) {
+				// Let the client have what was received so far while waiting for the proxy host
+				out.flush();
 			}
-			catch(Exception e) {
-				// Socket has been closed, make a new one
-				try {
-					rval.close();
-				}
-				catch(Exception ex) {;}
-				try {
-					rval = new Socket(hostname,port);
-					//					System.out.println("Socket is old");
-				}
-				catch(IOException ioe) {
-					// Proxy not there
-					try {
-						rval.close();   // paranoid
+			int bytesRead = in.read(buffer,0,(int)Math.min(buffer.length,count-rval));
+			if(bytesRead==-1) {
+				break;
+			}
+			out.write(buffer,0,bytesRead);
+			if(copy!=null) {
+				copy.write(buffer,0,bytesRead);
+			}
+			rval = rval + bytesRead;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Copies a chunked body from the proxy host to the client, including the last chunk and the
+	 * trailer. Only the chunk data is written to copy, if it is not null. Returns false if the proxy host closed the connection before the end of the body.
+	 */
+	protected boolean relayChunks(HTTPRequestParser in, OutputStream out, OutputStream copy, byte[] buffer) throws IOException
+	{
+		while(true) {
+			String line = in.readLine(MAX_LINE_LENGTH);
+			if(line==null || in.lineOverflowed()) {
+				return(false);
+			}
+			out.write(line.getBytes("ISO-8859-1"));
+			out.write(CRLF);
+
+			int index = line.indexOf(";");
+			String size = (index==-1 ? line : line.substring(0,index)).trim();
+			if(size.length()==0) {
+				// Tolerate the line break of the previous chunk sent late
+				continue;
+			}
+
+			long chunkSize = 0;
+			try {
+				chunkSize = Long.parseLong(size,16);
+			}
+			catch(NumberFormatException e) {
+				throw(new IOException("Invalid chunk size from the proxy host: "+line));
+			}
+
+			if(chunkSize==0) {
+				// The trailer ends with a blank line
+				do {
+					line = in.readLine(MAX_LINE_LENGTH);
+					if(line==null || in.lineOverflowed()) {
+						return(false);
 					}
-					catch(Exception ex) {;}
-					rval = null;
+					out.write(line.getBytes("ISO-8859-1"));
+					out.write(CRLF);
 				}
+				while(line.length()>0);
+
+				return(true);
+			}
+
+			// The chunk data is followed by CRLF, which is relayed with the next size line
+			if(relayBytes(in,out,copy,buffer,chunkSize)<chunkSize) {
+				return(false);
 			}
+			line = in.readLine(MAX_LINE_LENGTH);
+			if(line==null) {
+				return(false);
+			}
+			out.write(CRLF);
 		}
+	}
 
-		// If Socket is OK and the request hasn't already been sent
-		if(rval!=null && !socketOK) {
-			try {
-				rval.setSoTimeout(getInteger("proxy_socket_timeout"));
+
+	/**
+	 * Returns the response header to send to the client: the status line and the header fields
+	 * from the proxy host, without the fields which only apply to the connection to the proxy
+	 * host. If keepAliveField is not null, it is sent with Connection: Keep-Alive, otherwise the
+	 * client is told the connection will be closed. Interim responses are given a null keepAliveField
+	 * and no Connection field.
+	 */
+	protected String formatResponseHeader(String statusLine, HTTPHeaders headers, String keepAliveField)
+	{
+		StringBuffer rval = new StringBuffer(512);
+		int status = getStatusCode(statusLine);
+		boolean interim = status>=100 && status<200 && status!=101;
+
+		rval.append(statusLine);
+		rval.append("\r\n");
+		for(int x=0;x<headers.size();x++) {
+			String name = headers.getName(x);
+			if(name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive") || name.equalsIgnoreCase("Proxy-Connection")) {
+				continue;
+			}
+			rval.append(name);
+			rval.append(": ");
+			rval.append(headers.getValue(x));
+			rval.append("\r\n");
+		}
+
+		if(keepAliveField!=null) {
+			rval.append(keepAliveField);
+			rval.append("\r\nConnection: Keep-Alive\r\n");
+		}
+		else if(!interim) {
+			rval.append("Connection: close\r\n");
+		}
+		rval.append("\r\n");
+
+		return(rval.toString());
+	}
+
+
+	/**
+	 * Returns the status code of a response's status line, or 0 if there is none.
+	 */
+	protected static int getStatusCode(String statusLine)
+	{
+		int rval = 0;
+
+		int index = statusLine.indexOf(" ");
+		if(index!=-1) {
+			int end = index+1;
+			while(end<statusLine.length() && Character.isDigit(statusLine.charAt(end))) {
+				end++;
 			}
-			catch(Exception e) {;}
 			try {
-				rval.getOutputStream().write(request.getBytes());
-				rval.getOutputStream().write(("\r\n\r\n").getBytes());
-				rval.getOutputStream().flush();
+				rval = Integer.parseInt(statusLine.substring(index+1,end));
 			}
-			catch(Exception e) {
+			catch(NumberFormatException e) {;}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * This method gets a pooled or new Socket to a proxy host and sends the HTTP request.
+	 * If a proxy host could not be reached, or all the connections to it stayed busy,
+	 * the socket will be null.
+	 */
+	protected Socket getProxySocket(String hostname, int port, String request)
+	{
+		return(getProxySocket(hostname,port,request,false));
+	}
+
+
+	/**
+	 * This method gets a pooled or new Socket to a proxy host and sends the HTTP request. If
+	 * probe is true, a pooled connection is always checked before it is used.
+	 */
+	protected Socket getProxySocket(String hostname, int port, String request, boolean probe)
+	{
+		Socket rval = null;
+
+		try {
+			rval = connectionPool.getSocket(hostname,port,true,probe);
+			if(rval!=null) {
 				try {
-					rval.close();
+					sendProxyRequest(rval,request);
+				}
+				catch(IOException e) {
+					// The proxy host closed the pooled connection after it was checked, use a new one
+					connectionPool.discardSocket(hostname,port,rval);
+					rval = connectionPool.getSocket(hostname,port,false);
+					if(rval!=null) {
+						try {
+							sendProxyRequest(rval,request);
+						}
+						catch(IOException ioe) {
+							connectionPool.discardSocket(hostname,port,rval);
+							rval = null;
+						}
+					}
 				}
-				catch(Exception ex) {;}
-				rval = null;
 			}
 		}
+		catch(IOException ioe) {
+			// Proxy not there
+			rval = null;
+		}
 
 		return(rval);
 	}
 
 
 	/**
-	 * Returns a keep-alive connection to the SocketHash
+	 * Writes the request to the proxy host.
+	 */
+	protected void sendProxyRequest(Socket sock, String request) throws IOException
+	{
+		OutputStream out = sock.getOutputStream();
+		out.write(request.getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+
+	/**
+	 * Returns a keep-alive connection to the connection pool
 	 */ 
 	public void returnProxySocket(String hostname, int port, Socket s)
 	{
 		if(s!=null) {
-			Pair p = (Pair)socketHash.put(hostname+":"+port,new Pair(""+System.currentTimeMillis(),s));
-			if(p!=null) {
-				// If there was an old one, close it
-				Socket oldSock = (Socket)p.second();
-				if(oldSock!=null) {
-					try {
-						oldSock.close();
-					}
-					catch(Exception e) {;}
-				}
-			}
+			connectionPool.returnSocket(hostname,port,s);
 		}
 	}
 
 
+	/**
+	 * Returns the counters of the pool of connections to the proxied hosts, as described
+	 * by HTTPConnectionPool.getMetrics().
+	 */
+	public Props getConnectionPoolMetrics()
+	{
+		return(connectionPool.getMetrics());
+	}
+
+
+	/**
+	 * Returns the counters of the load balancer, as described by HTTPLoadBalancer.getMetrics().
+	 */
+	public Props getLoadBalancerMetrics()
+	{
+		return(balancer.getMetrics());
+	}
+
+
+	/**
+	 * Returns the counters of the response cache, as described by HTTPProxyCache.getMetrics(),
+	 * or null if the cache is not enabled.
+	 */
+	public Props getCacheMetrics()
+	{
+		HTTPProxyCache cache = this.cache;
+		return(cache==null ? null : cache.getMetrics());
+	}
+
+
 	/**
 	* Checks to see if a path is Proxied.
 	*/
@@ -571,6 +1080,18 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 	}
 
 
+	/**
+	 * Thrown when the proxy host closed the connection before sending any of its response.
+	 */
+	protected static class NoResponseException extends EOFException
+	{
+		public NoResponseException(String message)
+		{
+			super(message);
+		}
+	}
+
+
 	/**
 	* Class for Proxy Hash table.  Methods define how to place an object in or take out of the hash table.
 	*/
@@ -777,25 +1298,7 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 			if(strictProxies.containsKey(key)) {
 				Object o = strictProxies.get(key);
 				if(o instanceof Vector) {
-					synchronized(o) {
-						Vector v = (Vector)o;
-						for(int x=0;x<v.size();x++) {
-							rval = (String)v.elementAt(0);
-							v.removeElementAt(0);
-							v.addElement(rval);
-							if(getInteger("check_interval")>0) {
-								if(!isUp(rval)) {
-									rval = null;
-								}
-								else {
-									break;
-								}
-							}
-							else {
-								break;
-							}
-						}
-					}
+					rval = select(key,(Vector)o);
 				}
 				else {
 					rval = (String)o;
@@ -814,25 +1317,7 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 					if(key.startsWith(looseKey)) {
 						Object o = looseProxies.get(looseKey);
 						if(o instanceof Vector) {
-							Vector v = (Vector)o;
-							synchronized(v) {
-								for(int x=0;x<v.size();x++) {
-									rval = (String)v.elementAt(0);
-									v.removeElementAt(0);
-									v.addElement(rval);
-									if(getInteger("check_interval")>0) {
-										if(!isUp(rval)) {
-											rval = null;
-										}
-										else {
-											break;
-										}
-									}
-									else {
-										break;
-									}
-								}
-							}
+							rval = select(looseKey,(Vector)o);
 						}
 						else {
 							rval = (String)o;
@@ -855,6 +1340,26 @@ public class HTTPProxyAgent extends WebServerExtension implements Runnable
 			return(rval);
 		}
 
+	/**
+	* Returns the proxy the load balancer chooses among those of the key which are up.
+	*/
+
+		protected String select(String key, Vector v)
+		{
+			Vector candidates = v;
+
+			if(getInteger("check_interval")>0) {
+				candidates = new Vector();
+				for(int x=0;x<v.size();x++) {
+					if(isUp((String)v.elementAt(x))) {
+						candidates.addElement(v.elementAt(x));
+					}
+				}
+			}
+
+			return(balancer.select(key,candidates));
+		}
+
 	/**
 	* Gets the size of the proxy hash table.
 	*/
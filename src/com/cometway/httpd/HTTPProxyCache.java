@@ -0,0 +1,1134 @@
+package com.cometway.httpd;
+
+import com.cometway.props.Props;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+
+/**
+ * This class caches the responses of the hosts the HTTPProxyAgent forwards requests to, following
+ * the rules of a shared HTTP/1.1 cache. Only complete responses to GET requests without credentials
+ * are stored, and only if they have an explicit freshness lifetime (Cache-Control s-maxage or max-age,
+ * or Expires) or a validator (ETag or Last-Modified). Responses marked no-store or private, with
+ * Vary: * or with Set-Cookie are never stored. A response marked no-cache, or without a freshness
+ * lifetime, is revalidated with the proxy host each time it is used.
+ *
+ * Each URL may have a response stored for each combination of the request fields named by its
+ * Vary field. Responses are kept in two least recently used tiers: a memory tier of at most
+ * memory_size bytes, and an optional disk tier of at most disk_size bytes of files in a directory.
+ * Responses evicted from memory move to the disk tier, and bodies larger than max_memory_entry_size
+ * are stored on disk directly. Bodies larger than max_entry_size are not cached.
+ *
+ * Stale responses are revalidated with a conditional request (If-None-Match or If-Modified-Since),
+ * and a 304 response from the proxy host refreshes the stored one. The startFetch(), waitForFetch()
+ * and endFetch() methods coalesce concurrent misses, so only one request for a URL is sent to the
+ * proxy host while the others wait for its response to be cached.
+ */
+public class HTTPProxyCache
+{
+	// Response fields which only apply to one connection, or are computed when the response is sent
+	protected static final String[] UNCACHED_FIELDS = { "Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding", "TE", "Trailer", "Upgrade", "Age", "Content-Length" };
+
+	// The fields of a stored response which are sent with a 304 response
+	protected static final String[] NOT_MODIFIED_FIELDS = { "Date", "ETag", "Cache-Control", "Expires", "Vary", "Content-Location", "Last-Modified" };
+
+	// The status codes of responses which may be cached
+	protected static final int[] CACHEABLE_STATUS = { 200, 203, 300, 301, 404, 410 };
+
+	// A rough count of the bytes used by an entry besides its body
+	protected static final int ENTRY_OVERHEAD = 512;
+
+	protected long memory_size;
+	protected int max_memory_entry_size;
+	protected File directory;
+	protected long disk_size;
+	protected long max_entry_size;
+
+	protected LinkedHashMap memory = new LinkedHashMap(64, 0.75f, true);
+	protected LinkedHashMap disk = new LinkedHashMap(64, 0.75f, true);
+	protected Hashtable varies = new Hashtable();
+	protected Hashtable fetches = new Hashtable();
+	protected long memoryUsed;
+	protected long diskUsed;
+	protected long fileCount = System.currentTimeMillis();
+
+	protected long requests;
+	protected long hits;
+	protected long revalidated;
+	protected long misses;
+	protected long coalesced;
+	protected long stored;
+	protected long spilled;
+	protected long evicted;
+
+
+	/**
+	 * Creates a cache which holds at most memory_size bytes of responses in memory, each with a body
+	 * of at most max_memory_entry_size bytes. If directory is not null, responses evicted from memory
+	 * and bodies of up to max_entry_size bytes are kept in files in the directory, up to disk_size bytes.
+	 */
+	public HTTPProxyCache(long memory_size, int max_memory_entry_size, File directory, long disk_size, long max_entry_size)
+	{
+		this.memory_size = memory_size;
+		this.max_memory_entry_size = max_memory_entry_size;
+		this.directory = directory;
+		this.disk_size = disk_size;
+		this.max_entry_size = max_entry_size;
+
+		if(directory!=null) {
+			directory.mkdirs();
+
+			// The files of a previous run cannot be used, their headers were only kept in memory
+			File[] files = directory.listFiles();
+			if(files!=null) {
+				for(int x=0;x<files.length;x++) {
+					if(files[x].getName().startsWith("proxy-") && files[x].getName().endsWith(".cache")) {
+						files[x].delete();
+					}
+				}
+			}
+		}
+		else {
+			this.max_entry_size = max_memory_entry_size;
+		}
+	}
+
+
+	/**
+	 * Returns true if the response to the request may be looked up and stored in the cache: a
+	 * GET or HEAD request without credentials which does not forbid storing the response.
+	 */
+	public static boolean isCacheableRequest(HTTPAgentRequest request)
+	{
+		String requestLine = request.getString("request");
+		HTTPHeaders headers = request.getHeaders();
+
+		return((requestLine.startsWith("GET ") || requestLine.startsWith("HEAD ")) && !headers.contains("Authorization") && getDirective(headers,"no-store")==null);
+	}
+
+
+	/**
+	 * Returns true if the request does not change the requested resource.
+	 */
+	public static boolean isSafeRequest(HTTPAgentRequest request)
+	{
+		String requestLine = request.getString("request");
+
+		return(requestLine.startsWith("GET ") || requestLine.startsWith("HEAD ") || requestLine.startsWith("OPTIONS ") || requestLine.startsWith("TRACE "));
+	}
+
+
+	/**
+	 * Returns true if a response with the status code and header fields may be stored.
+	 */
+	public boolean isCacheable(int status, HTTPHeaders headers)
+	{
+		boolean rval = false;
+
+		for(int x=0;x<CACHEABLE_STATUS.length;x++) {
+			if(CACHEABLE_STATUS[x]==status) {
+				rval = true;
+				break;
+			}
+		}
+
+		if(rval) {
+			rval = getDirective(headers,"no-store")==null && getDirective(headers,"private")==null;
+			rval = rval && !headers.contains("Set-Cookie") && !headers.containsToken("Vary","*");
+			rval = rval && (getFreshnessLifetime(headers)>0 || headers.contains("ETag") || headers.contains("Last-Modified"));
+			if(rval && headers.contains("Content-Length")) {
+				try {
+					rval = Long.parseLong(headers.get("Content-Length").trim())<=max_entry_size;
+				}
+				catch(NumberFormatException e) {
+					rval = false;
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the stored response for the URL which matches the request fields named by its Vary
+	 * field, or null if there is none. The response may be stale.
+	 */
+	public Entry get(String key, HTTPHeaders requestHeaders)
+	{
+		synchronized(this) {
+			requests++;
+		}
+
+		return(lookup(key,requestHeaders));
+	}
+
+
+	protected synchronized Entry lookup(String key, HTTPHeaders requestHeaders)
+	{
+		Entry rval = null;
+
+		String[] vary = (String[])varies.get(key);
+		if(vary!=null) {
+			String variantKey = getVariantKey(key,vary,requestHeaders);
+			rval = (Entry)memory.get(variantKey);
+			if(rval==null) {
+				rval = (Entry)disk.get(variantKey);
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if the stored response can be sent to the client of the request without being
+	 * revalidated. A client can ask for revalidation with Cache-Control no-cache or max-age, or
+	 * Pragma: no-cache.
+	 */
+	public boolean isFresh(Entry entry, HTTPAgentRequest request)
+	{
+		HTTPHeaders requestHeaders = request.getHeaders();
+		long age = entry.getAge(System.currentTimeMillis());
+		boolean rval = false;
+
+		synchronized(this) {
+			rval = age<entry.freshness;
+		}
+
+		if(rval) {
+			if(getDirective(requestHeaders,"no-cache")!=null || requestHeaders.containsToken("Pragma","no-cache")) {
+				rval = false;
+			}
+			else {
+				String maxAge = getDirective(requestHeaders,"max-age");
+				if(maxAge!=null) {
+					rval = age<parseSeconds(maxAge)*1000;
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if the client's conditional request (If-None-Match, or If-Modified-Since)
+	 * matches the stored response, so it can be answered with a 304 response.
+	 */
+	public static boolean isNotModified(HTTPAgentRequest request, Entry entry)
+	{
+		boolean rval = false;
+		String etag = entry.getETag();
+		long lastModified = entry.getLastModified();
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if(ifNoneMatch!=null) {
+			if(etag!=null) {
+				if(etag.startsWith("W/")) {
+					etag = etag.substring(2);
+				}
+				rval = HTTPFileCache.etagMatches(ifNoneMatch,etag);
+			}
+		}
+		else if(lastModified>0) {
+			Date modDate = request.getIfModifiedSince();
+			if(modDate!=null) {
+				rval = (lastModified/1000 <= modDate.getTime()/1000);
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the request to the proxy host, with the client's conditional fields replaced by the
+	 * validators of the stored response.
+	 */
+	public static String addValidators(String httpRequest, Entry entry)
+	{
+		int headerEnd = httpRequest.indexOf("\r\n\r\n");
+		if(headerEnd==-1) {
+			return(httpRequest);
+		}
+
+		StringBuffer rval = new StringBuffer(httpRequest.length()+128);
+		int start = 0;
+		while(start<headerEnd+2) {
+			int end = httpRequest.indexOf("\r\n",start)+2;
+			String line = httpRequest.substring(start,end).toLowerCase();
+			if(!line.startsWith("if-none-match:") && !line.startsWith("if-modified-since:")) {
+				rval.append(httpRequest.substring(start,end));
+			}
+			start = end;
+		}
+
+		String etag = entry.getETag();
+		if(etag!=null) {
+			rval.append("If-None-Match: ");
+			rval.append(etag);
+			rval.append("\r\n");
+		}
+		String lastModified = entry.headers.get("Last-Modified");
+		if(lastModified!=null) {
+			rval.append("If-Modified-Since: ");
+			rval.append(lastModified);
+			rval.append("\r\n");
+		}
+		rval.append(httpRequest.substring(headerEnd+2));
+
+		return(rval.toString());
+	}
+
+
+	/**
+	 * Returns a stream to write the body of a cacheable response to while it is relayed. The
+	 * stream is given to put() once the body is complete, and must be discarded otherwise.
+	 */
+	public Capture createCapture()
+	{
+		return(new Capture());
+	}
+
+
+	/**
+	 * Stores a complete response for the URL, replacing the response stored for the same request
+	 * fields named by its Vary field. Nothing is stored if the body was too large.
+	 */
+	public void put(String key, HTTPHeaders requestHeaders, String statusLine, HTTPHeaders headers, Capture capture) throws IOException
+	{
+		if(!capture.finish()) {
+			return;
+		}
+
+		String[] vary = getVaryFields(headers);
+		Entry entry = new Entry(getVariantKey(key,vary,requestHeaders),statusLine,headers);
+		entry.length = capture.length;
+		entry.body = capture.getBody();
+		entry.file = capture.file;
+		capture.consumed = true;
+
+		Vector spill = new Vector();
+
+		synchronized(this) {
+			varies.put(key,vary);
+			removeVariant(entry.key);
+
+			if(entry.body!=null) {
+				memory.put(entry.key,entry);
+				memoryUsed = memoryUsed + entry.getSize();
+
+				// The least recently used responses move to the disk tier
+				Iterator i = memory.values().iterator();
+				while(memoryUsed>memory_size && i.hasNext()) {
+					Entry eldest = (Entry)i.next();
+					i.remove();
+					memoryUsed = memoryUsed - eldest.getSize();
+					if(directory!=null && eldest.length<=max_entry_size) {
+						spill.addElement(eldest);
+					}
+					else {
+						evicted++;
+					}
+				}
+			}
+			else {
+				addToDisk(entry);
+			}
+
+			stored++;
+		}
+
+		for(int x=0;x<spill.size();x++) {
+			spill((Entry)spill.elementAt(x));
+		}
+	}
+
+
+	/**
+	 * Updates the stored response with the header fields of a 304 response from the proxy host,
+	 * and returns it.
+	 */
+	public Entry revalidate(Entry entry, HTTPHeaders notModifiedHeaders)
+	{
+		long now = System.currentTimeMillis();
+
+		synchronized(this) {
+			for(int x=0;x<notModifiedHeaders.size();x++) {
+				String name = notModifiedHeaders.getName(x);
+				if(!isUncachedField(name)) {
+					setField(entry.headers,name,notModifiedHeaders.getValue(x));
+				}
+			}
+			entry.update(now);
+			revalidated++;
+		}
+
+		return(entry);
+	}
+
+
+	/**
+	 * Removes the response stored for the URL and the request fields named by its Vary field.
+	 */
+	public synchronized void remove(String key, HTTPHeaders requestHeaders)
+	{
+		String[] vary = (String[])varies.get(key);
+		if(vary!=null) {
+			removeVariant(getVariantKey(key,vary,requestHeaders));
+		}
+	}
+
+
+	/**
+	 * Removes every response stored for the URL.
+	 */
+	public synchronized void invalidate(String key)
+	{
+		if(varies.remove(key)!=null) {
+			Vector keys = new Vector();
+			Iterator i = memory.keySet().iterator();
+			while(i.hasNext()) {
+				keys.addElement(i.next());
+			}
+			i = disk.keySet().iterator();
+			while(i.hasNext()) {
+				keys.addElement(i.next());
+			}
+
+			for(int x=0;x<keys.size();x++) {
+				String variantKey = (String)keys.elementAt(x);
+				if(variantKey.equals(key) || variantKey.startsWith(key+"\n")) {
+					removeVariant(variantKey);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Removes every stored response.
+	 */
+	public synchronized void clear()
+	{
+		Iterator i = disk.values().iterator();
+		while(i.hasNext()) {
+			((Entry)i.next()).file.delete();
+		}
+
+		memory.clear();
+		disk.clear();
+		varies.clear();
+		memoryUsed = 0;
+		diskUsed = 0;
+	}
+
+
+	/**
+	 * Returns the header fields to send with the stored response, including its Content-Length
+	 * and current Age. If notModified is true, only the fields sent with a 304 response are returned.
+	 */
+	public HTTPHeaders getResponseHeaders(Entry entry, boolean notModified)
+	{
+		HTTPHeaders rval = new HTTPHeaders();
+		long now = System.currentTimeMillis();
+
+		synchronized(this) {
+			for(int x=0;x<entry.headers.size();x++) {
+				String name = entry.headers.getName(x);
+				if(!notModified || isNotModifiedField(name)) {
+					rval.add(name,entry.headers.getValue(x));
+				}
+			}
+		}
+
+		if(!notModified) {
+			rval.add("Content-Length",Long.toString(entry.length));
+		}
+		rval.add("Age",Long.toString(entry.getAge(now)/1000));
+
+		return(rval);
+	}
+
+
+	/**
+	 * Sends the body of the stored response to the client of the request.
+	 */
+	public void writeBody(Entry entry, HTTPAgentRequest request) throws IOException
+	{
+		byte[] body = null;
+		FileInputStream in = null;
+
+		synchronized(this) {
+			body = entry.body;
+			if(body==null) {
+				// Opened while the file cannot be removed by an eviction
+				in = new FileInputStream(entry.file);
+			}
+		}
+
+		if(body!=null) {
+			request.getOutputStream().write(body);
+		}
+		else {
+			try {
+				FileChannel channel = in.getChannel();
+				HTTPFileTransfer.transfer(channel,0,entry.length,request);
+			}
+			finally {
+				try {
+					in.close();
+				}
+				catch(Exception e) {;}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns true if the caller is to fetch the URL from the proxy host, in which case it must
+	 * call endFetch() when done. Returns false if another request is already fetching it.
+	 */
+	public boolean startFetch(String key)
+	{
+		synchronized(fetches) {
+			if(fetches.containsKey(key)) {
+				return(false);
+			}
+			fetches.put(key,new Fetch());
+		}
+
+		synchronized(this) {
+			misses++;
+		}
+
+		return(true);
+	}
+
+
+	/**
+	 * Waits at most timeout milliseconds for the request fetching the URL to call endFetch(), and
+	 * returns the response then stored for the request, as get() does.
+	 */
+	public Entry waitForFetch(String key, HTTPHeaders requestHeaders, long timeout)
+	{
+		Fetch fetch = (Fetch)fetches.get(key);
+
+		if(fetch!=null) {
+			synchronized(this) {
+				coalesced++;
+			}
+
+			long start = System.currentTimeMillis();
+			synchronized(fetch) {
+				long remaining = timeout;
+				while(!fetch.done && remaining>0) {
+					try {
+						fetch.wait(remaining);
+					}
+					catch(InterruptedException e) {
+						break;
+					}
+					remaining = timeout-(System.currentTimeMillis()-start);
+				}
+			}
+		}
+
+		return(lookup(key,requestHeaders));
+	}
+
+
+	/**
+	 * Wakes up the requests waiting for the URL to be fetched.
+	 */
+	public void endFetch(String key)
+	{
+		Fetch fetch = null;
+
+		synchronized(fetches) {
+			fetch = (Fetch)fetches.remove(key);
+		}
+
+		if(fetch!=null) {
+			synchronized(fetch) {
+				fetch.done = true;
+				fetch.notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Counts a request answered with a fresh stored response.
+	 */
+	public synchronized void countHit()
+	{
+		hits++;
+	}
+
+
+	/**
+	 * Returns the counters of this cache: requests (lookups), hits (requests answered without
+	 * contacting the proxy host), revalidated (stale responses refreshed by a 304 response),
+	 * hit_rate (percent of requests answered with a stored response), misses (fetches from the
+	 * proxy host), coalesced (requests which waited for another request's fetch), stored, spilled
+	 * (responses moved from memory to disk), evicted, and the size and number of entries of each tier.
+	 */
+	public synchronized Props getMetrics()
+	{
+		Props rval = new Props();
+
+		rval.setLong("requests",requests);
+		rval.setLong("hits",hits);
+		rval.setLong("revalidated",revalidated);
+		rval.setLong("hit_rate",requests>0 ? (hits+revalidated)*100/requests : 0);
+		rval.setLong("misses",misses);
+		rval.setLong("coalesced",coalesced);
+		rval.setLong("stored",stored);
+		rval.setLong("spilled",spilled);
+		rval.setLong("evicted",evicted);
+		rval.setLong("memory_size",memoryUsed);
+		rval.setInteger("memory_entries",memory.size());
+		rval.setLong("disk_size",diskUsed);
+		rval.setInteger("disk_entries",disk.size());
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the value of a Cache-Control directive, an empty String if the directive has no
+	 * value, or null if it is not present.
+	 */
+	public static String getDirective(HTTPHeaders headers, String directive)
+	{
+		Vector values = headers.getAll("Cache-Control");
+
+		for(int x=0;x<values.size();x++) {
+			String value = (String)values.elementAt(x);
+			int start = 0;
+			while(start<value.length()) {
+				int end = value.indexOf(',',start);
+				if(end==-1) {
+					end = value.length();
+				}
+
+				String token = value.substring(start,end).trim();
+				int index = token.indexOf('=');
+				String name = (index==-1 ? token : token.substring(0,index).trim());
+				if(name.equalsIgnoreCase(directive)) {
+					String rval = "";
+					if(index!=-1) {
+						rval = token.substring(index+1).trim();
+						if(rval.startsWith("\"") && rval.endsWith("\"") && rval.length()>1) {
+							rval = rval.substring(1,rval.length()-1);
+						}
+					}
+					return(rval);
+				}
+
+				start = end+1;
+			}
+		}
+
+		return(null);
+	}
+
+
+	/**
+	 * Returns the freshness lifetime in milliseconds given by the response's s-maxage or max-age
+	 * directive, or its Expires and Date fields. Returns 0 if the response must be revalidated
+	 * each time it is used.
+	 */
+	protected static long getFreshnessLifetime(HTTPHeaders headers)
+	{
+		long rval = 0;
+
+		if(getDirective(headers,"no-cache")!=null) {
+			rval = 0;
+		}
+		else if(getDirective(headers,"s-maxage")!=null) {
+			rval = parseSeconds(getDirective(headers,"s-maxage"))*1000;
+		}
+		else if(getDirective(headers,"max-age")!=null) {
+			rval = parseSeconds(getDirective(headers,"max-age"))*1000;
+		}
+		else if(headers.contains("Expires")) {
+			Date expires = HTTPAgentRequest.parseDate(headers.get("Expires"));
+			Date date = null;
+			if(headers.contains("Date")) {
+				date = HTTPAgentRequest.parseDate(headers.get("Date"));
+			}
+			if(expires!=null) {
+				long now = (date==null ? System.currentTimeMillis() : date.getTime());
+				rval = Math.max(expires.getTime()-now,0);
+			}
+		}
+
+		return(rval);
+	}
+
+
+	protected static long parseSeconds(String value)
+	{
+		long rval = 0;
+
+		try {
+			rval = Math.max(Long.parseLong(value.trim()),0);
+		}
+		catch(NumberFormatException e) {;}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the names of the request fields listed by the response's Vary field.
+	 */
+	protected static String[] getVaryFields(HTTPHeaders headers)
+	{
+		Vector names = new Vector();
+
+		Vector values = headers.getAll("Vary");
+		for(int x=0;x<values.size();x++) {
+			String value = (String)values.elementAt(x);
+			int start = 0;
+			while(start<value.length()) {
+				int end = value.indexOf(',',start);
+				if(end==-1) {
+					end = value.length();
+				}
+				String name = value.substring(start,end).trim();
+				if(name.length()>0) {
+					names.addElement(name);
+				}
+				start = end+1;
+			}
+		}
+
+		String[] rval = new String[names.size()];
+		names.copyInto(rval);
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the key of the response stored for the URL and the values of the request fields
+	 * named by its Vary field.
+	 */
+	protected static String getVariantKey(String key, String[] vary, HTTPHeaders requestHeaders)
+	{
+		if(vary.length==0) {
+			return(key);
+		}
+
+		StringBuffer rval = new StringBuffer(key);
+		for(int x=0;x<vary.length;x++) {
+			String value = requestHeaders.get(vary[x]);
+			rval.append("\n");
+			rval.append(vary[x].toLowerCase());
+			rval.append("=");
+			if(value!=null) {
+				rval.append(value.trim());
+			}
+		}
+
+		return(rval.toString());
+	}
+
+
+	protected static boolean isUncachedField(String name)
+	{
+		for(int x=0;x<UNCACHED_FIELDS.length;x++) {
+			if(UNCACHED_FIELDS[x].equalsIgnoreCase(name)) {
+				return(true);
+			}
+		}
+
+		return(false);
+	}
+
+
+	protected static boolean isNotModifiedField(String name)
+	{
+		for(int x=0;x<NOT_MODIFIED_FIELDS.length;x++) {
+			if(NOT_MODIFIED_FIELDS[x].equalsIgnoreCase(name)) {
+				return(true);
+			}
+		}
+
+		return(false);
+	}
+
+
+	/**
+	 * Replaces the value of a field, or adds the field if it is not present.
+	 */
+	protected static void setField(HTTPHeaders headers, String name, String value)
+	{
+		for(int x=0;x<headers.size();x++) {
+			if(headers.getName(x).equalsIgnoreCase(name)) {
+				headers.values[x] = value;
+				return;
+			}
+		}
+
+		headers.add(name,value);
+	}
+
+
+	/**
+	 * Removes the stored response with the variant key from either tier. Must be called while
+	 * synchronized on this cache.
+	 */
+	protected void removeVariant(String variantKey)
+	{
+		Entry old = (Entry)memory.remove(variantKey);
+		if(old!=null) {
+			memoryUsed = memoryUsed - old.getSize();
+		}
+
+		old = (Entry)disk.remove(variantKey);
+		if(old!=null) {
+			diskUsed = diskUsed - old.getSize();
+			old.file.delete();
+		}
+	}
+
+
+	/**
+	 * Adds an entry whose body is in a file to the disk tier, and removes the least recently used
+	 * entries beyond disk_size. Must be called while synchronized on this cache.
+	 */
+	protected void addToDisk(Entry entry)
+	{
+		disk.put(entry.key,entry);
+		diskUsed = diskUsed + entry.getSize();
+
+		Iterator i = disk.values().iterator();
+		while(diskUsed>disk_size && i.hasNext()) {
+			Entry eldest = (Entry)i.next();
+			i.remove();
+			diskUsed = diskUsed - eldest.getSize();
+			eldest.file.delete();
+			evicted++;
+		}
+	}
+
+
+	/**
+	 * Writes the body of an entry evicted from memory to a file and adds it to the disk tier,
+	 * unless a newer response has been stored for it meanwhile.
+	 */
+	protected void spill(Entry entry)
+	{
+		File file = null;
+
+		try {
+			file = createFile();
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(entry.body);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch(IOException e) {
+			if(file!=null) {
+				file.delete();
+			}
+			synchronized(this) {
+				evicted++;
+			}
+			return;
+		}
+
+		synchronized(this) {
+			if(memory.containsKey(entry.key) || disk.containsKey(entry.key)) {
+				file.delete();
+				evicted++;
+			}
+			else {
+				entry.file = file;
+				entry.body = null;
+				addToDisk(entry);
+				spilled++;
+			}
+		}
+	}
+
+
+	protected File createFile()
+	{
+		long count = 0;
+
+		synchronized(this) {
+			count = fileCount++;
+		}
+
+		return(new File(directory,"proxy-"+Long.toHexString(count)+".cache"));
+	}
+
+
+
+	/**
+	 * A stored response. The header fields are those of the proxy host's response, without the
+	 * fields which only apply to one connection. The body is held either in memory or in a file.
+	 */
+	public static class Entry
+	{
+		String key;
+		String statusLine;
+		HTTPHeaders headers;
+		byte[] body;
+		File file;
+		long length;
+		long responseTime;
+		long initialAge;
+		long freshness;
+
+
+		Entry(String key, String statusLine, HTTPHeaders responseHeaders)
+		{
+			this.key = key;
+			this.statusLine = statusLine;
+
+			headers = new HTTPHeaders();
+			for(int x=0;x<responseHeaders.size();x++) {
+				if(!isUncachedField(responseHeaders.getName(x))) {
+					headers.add(responseHeaders.getName(x),responseHeaders.getValue(x));
+				}
+			}
+
+			long ageValue = 0;
+			if(responseHeaders.contains("Age")) {
+				ageValue = parseSeconds(responseHeaders.get("Age"))*1000;
+			}
+			update(System.currentTimeMillis());
+			initialAge = Math.max(initialAge,ageValue);
+		}
+
+
+		/**
+		 * Computes the age and freshness lifetime of the response from its header fields, as
+		 * received at the time given.
+		 */
+		void update(long now)
+		{
+			responseTime = now;
+			initialAge = 0;
+
+			String date = headers.get("Date");
+			if(date!=null) {
+				Date dateValue = HTTPAgentRequest.parseDate(date);
+				if(dateValue!=null) {
+					initialAge = Math.max(now-dateValue.getTime(),0);
+				}
+			}
+
+			freshness = getFreshnessLifetime(headers);
+		}
+
+
+		/**
+		 * Returns the age of the response in milliseconds at the time given.
+		 */
+		long getAge(long now)
+		{
+			return(initialAge+Math.max(now-responseTime,0));
+		}
+
+
+		/**
+		 * Returns the number of bytes held by this entry.
+		 */
+		long getSize()
+		{
+			return(length+ENTRY_OVERHEAD);
+		}
+
+
+		public String getStatusLine()
+		{
+			return(statusLine);
+		}
+
+
+		public String getETag()
+		{
+			return(headers.get("ETag"));
+		}
+
+
+		/**
+		 * Returns the time given by the Last-Modified field, or 0 if there is none.
+		 */
+		public long getLastModified()
+		{
+			long rval = 0;
+
+			String value = headers.get("Last-Modified");
+			if(value!=null) {
+				Date date = HTTPAgentRequest.parseDate(value);
+				if(date!=null) {
+					rval = date.getTime();
+				}
+			}
+
+			return(rval);
+		}
+
+
+		public long getLength()
+		{
+			return(length);
+		}
+	}
+
+
+
+	/**
+	 * Collects the body of a response while it is relayed to the client. The body is kept in
+	 * memory until it is larger than max_memory_entry_size, and is then written to a file if there
+	 * is a disk tier. The capture gives up once the body is larger than max_entry_size.
+	 */
+	public class Capture extends OutputStream
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		File file;
+		FileOutputStream fileOut;
+		long length;
+		boolean overflowed;
+		boolean consumed;
+
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b },0,1);
+		}
+
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if(overflowed) {
+				return;
+			}
+
+			length = length + len;
+			if(length>max_entry_size) {
+				overflowed = true;
+				discard();
+			}
+			else if(fileOut!=null) {
+				writeFile(b,off,len);
+			}
+			else if(length>max_memory_entry_size) {
+				if(directory==null) {
+					overflowed = true;
+					discard();
+				}
+				else {
+					try {
+						file = createFile();
+						fileOut = new FileOutputStream(file);
+						buffer.writeTo(fileOut);
+						buffer = null;
+					}
+					catch(IOException e) {
+						overflowed = true;
+						discard();
+						return;
+					}
+					writeFile(b,off,len);
+				}
+			}
+			else {
+				buffer.write(b,off,len);
+			}
+		}
+
+
+		/**
+		 * Ends the capture and returns true if the whole body was captured.
+		 */
+		boolean finish()
+		{
+			if(fileOut!=null) {
+				try {
+					fileOut.close();
+				}
+				catch(IOException e) {
+					overflowed = true;
+					discard();
+				}
+				fileOut = null;
+			}
+
+			return(!overflowed);
+		}
+
+
+		byte[] getBody()
+		{
+			return(buffer==null ? null : buffer.toByteArray());
+		}
+
+
+		/**
+		 * Releases the captured data, unless it has been stored by put().
+		 */
+		public void discard()
+		{
+			if(!consumed) {
+				buffer = null;
+				if(fileOut!=null) {
+					try {
+						fileOut.close();
+					}
+					catch(Exception e) {;}
+					fileOut = null;
+				}
+				if(file!=null) {
+					file.delete();
+					file = null;
+				}
+			}
+		}
+
+
+		protected void writeFile(byte[] b, int off, int len)
+		{
+			try {
+				fileOut.write(b,off,len);
+			}
+			catch(IOException e) {
+				// A full disk only stops this response from being cached
+				overflowed = true;
+				discard();
+			}
+		}
+	}
+
+
+
+	/**
+	 * A fetch from the proxy host other requests for the same URL wait for.
+	 */
+	protected static class Fetch
+	{
+		boolean done;
+	}
+}
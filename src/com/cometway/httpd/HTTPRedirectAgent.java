@@ -187,7 +187,7 @@ public class HTTPRedirectAgent extends WebServerExtension implements Runnable
 			}
 
 			if(location!=null) {
-				socketOut.write(WebServer.getHTMLByCode(WebServer.MOVED,null,"Connection: Close\nLocation: "+location+"\n").getBytes());
+				WebServer.writeHTMLByCode(socketOut,WebServer.MOVED,null,"Connection: Close\nLocation: "+location+"\n");
 				((HTTPAgentRequest)request).returnVal = "302";
 				socketOut.flush();
 				rval = true;
@@ -0,0 +1,368 @@
+package com.cometway.httpd;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * This buffered InputStream reads the request line and header fields of HTTP requests.
+ * Lines are scanned directly in the stream's byte buffer, and the name and value of each
+ * header field are created straight from the buffered bytes into an HTTPHeaders object,
+ * without building a String for each line first. Names of common fields are not allocated at all.
+ *
+ * Bytes following the header (the request body, or pipelined requests) stay in the buffer
+ * and are returned by the read() methods, so the same stream can be handed to the agent
+ * handling the request.
+ */
+public class HTTPRequestParser extends FilterInputStream
+{
+	/** Returned by readHeaders() when the blank line ending the header has been read. */
+	public static final int HEADERS_COMPLETE = 0;
+
+	/** Returned by readHeaders() when the stream ended before the header was complete. */
+	public static final int END_OF_STREAM = -1;
+
+	/** Returned by readHeaders() when a header field was longer than the maximum length. */
+	public static final int LINE_TOO_LONG = 1;
+
+	/** The initial size of the buffer, it grows as needed to hold the longest line read. */
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	// The names of common header fields, used instead of creating a new String for each name
+	protected static final String[] COMMON_FIELDS = {
+		"Host", "Connection", "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language",
+		"User-Agent", "Referer", "Cookie", "Content-Length", "Content-Type", "Authorization",
+		"If-Modified-Since", "If-None-Match", "If-Range", "Range", "Keep-Alive", "Cache-Control",
+		"Pragma", "Transfer-Encoding", "Expect", "Upgrade", "Via", "X-Forwarded-For"
+	};
+
+	protected byte[] buffer;
+	protected int pos;
+	protected int limit;
+	protected boolean overflow;
+
+
+	public HTTPRequestParser(InputStream in)
+	{
+		this(in, null);
+	}
+
+
+	/**
+	 * Creates a parser that returns the prefetched bytes before reading from the stream.
+	 */
+	public HTTPRequestParser(InputStream in, byte[] prefetched)
+	{
+		super(in);
+
+		int size = DEFAULT_BUFFER_SIZE;
+		if(prefetched!=null && prefetched.length>size) {
+			size = prefetched.length;
+		}
+		buffer = new byte[size];
+
+		if(prefetched!=null) {
+			System.arraycopy(prefetched,0,buffer,0,prefetched.length);
+			limit = prefetched.length;
+		}
+	}
+
+
+	/**
+	 * Reads a line, without its line terminator. Returns null if the stream ends before the
+	 * line does. If maxLength is greater than 0 and the line is longer than maxLength bytes,
+	 * only the first maxLength bytes are read and returned, and lineOverflowed() returns true.
+	 */
+	public String readLine(int maxLength) throws IOException
+	{
+		String rval = null;
+		int end = scanLine(maxLength);
+
+		overflow = (end==-2);
+
+		if(overflow) {
+			rval = new String(buffer,pos,maxLength,StandardCharsets.ISO_8859_1);
+			pos = pos + maxLength;
+		}
+		else if(end>=0) {
+			int lineEnd = end;
+			if(lineEnd>pos && buffer[lineEnd-1]=='\r') {
+				lineEnd--;
+			}
+			rval = new String(buffer,pos,lineEnd-pos,StandardCharsets.ISO_8859_1);
+			pos = end+1;
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if the last line read was longer than the maximum length.
+	 */
+	public boolean lineOverflowed()
+	{
+		return(overflow);
+	}
+
+
+	/**
+	 * Reads header fields into the HTTPHeaders until the blank line which ends the header.
+	 * Each field line is also appended to raw, followed by a '\n'. Returns HEADERS_COMPLETE,
+	 * END_OF_STREAM or LINE_TOO_LONG.
+	 */
+	public int readHeaders(HTTPHeaders headers, int maxLength, StringBuffer raw) throws IOException
+	{
+		while(true) {
+			int end = scanLine(maxLength);
+			if(end==-1) {
+				return(END_OF_STREAM);
+			}
+			else if(end==-2) {
+				overflow = true;
+				return(LINE_TOO_LONG);
+			}
+
+			int lineEnd = end;
+			if(lineEnd>pos && buffer[lineEnd-1]=='\r') {
+				lineEnd--;
+			}
+			if(lineEnd==pos) {
+				pos = end+1;
+				return(HEADERS_COMPLETE);
+			}
+
+			if(raw!=null) {
+				for(int x=pos;x<lineEnd;x++) {
+					raw.append((char)(buffer[x]&0xFF));
+				}
+				raw.append('\n');
+			}
+
+			if(buffer[pos]==' ' || buffer[pos]=='\t') {
+				// a continuation of the previous field
+				int start = skipWhitespace(pos,lineEnd);
+				headers.appendToLast(new String(buffer,start,trimWhitespace(start,lineEnd)-start,StandardCharsets.ISO_8859_1));
+			}
+			else {
+				int colon = pos;
+				while(colon<lineEnd && buffer[colon]!=':') {
+					colon++;
+				}
+				if(colon<lineEnd) {
+					String name = getFieldName(pos,trimWhitespace(pos,colon));
+					int start = skipWhitespace(colon+1,lineEnd);
+					headers.add(name,new String(buffer,start,trimWhitespace(start,lineEnd)-start,StandardCharsets.ISO_8859_1));
+				}
+			}
+
+			pos = end+1;
+		}
+	}
+
+
+	public int read() throws IOException
+	{
+		if(pos<limit) {
+			return(buffer[pos++]&0xFF);
+		}
+		else {
+			return(in.read());
+		}
+	}
+
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len==0) {
+			return(0);
+		}
+		else if(pos<limit) {
+			int count = Math.min(len,limit-pos);
+			System.arraycopy(buffer,pos,b,off,count);
+			pos = pos + count;
+			return(count);
+		}
+		else {
+			return(in.read(b,off,len));
+		}
+	}
+
+
+	public long skip(long n) throws IOException
+	{
+		if(pos<limit) {
+			int count = (int)Math.min(n,limit-pos);
+			pos = pos + count;
+			return(count);
+		}
+		else {
+			return(in.skip(n));
+		}
+	}
+
+
+	public int available() throws IOException
+	{
+		return((limit-pos)+in.available());
+	}
+
+
+	/**
+	 * Discards the line breaks a client may send after a request, as far as they can be read
+	 * without blocking. Returns the number of bytes which can then be read without blocking.
+	 */
+	public int skipLineBreaks() throws IOException
+	{
+		while(true) {
+			while(pos<limit && (buffer[pos]=='\r' || buffer[pos]=='\n')) {
+				pos++;
+			}
+			if(pos<limit) {
+				return(limit-pos);
+			}
+
+			int count = in.available();
+			if(count<=0) {
+				return(0);
+			}
+
+			pos = 0;
+			limit = 0;
+			int bytesRead = in.read(buffer,0,Math.min(count,buffer.length));
+			if(bytesRead<=0) {
+				return(0);
+			}
+			limit = bytesRead;
+		}
+	}
+
+
+	/**
+	 * Returns the number of bytes read from the stream which have not been consumed yet.
+	 */
+	public int buffered()
+	{
+		return(limit-pos);
+	}
+
+
+	public boolean markSupported()
+	{
+		return(false);
+	}
+
+
+	public void mark(int readlimit)
+	{
+		;
+	}
+
+
+	public void reset() throws IOException
+	{
+		throw(new IOException("mark/reset not supported"));
+	}
+
+
+	/**
+	 * Makes sure a complete line is in the buffer starting at pos. Returns the index of its '\n',
+	 * -1 if the stream ended first, or -2 if maxLength is greater than 0 and the line is longer.
+	 */
+	protected int scanLine(int maxLength) throws IOException
+	{
+		int scanned = pos;
+
+		while(true) {
+			for(int x=scanned;x<limit;x++) {
+				if(buffer[x]=='\n') {
+					if(maxLength>0 && x-pos>=maxLength) {
+						return(-2);
+					}
+					return(x);
+				}
+			}
+			if(maxLength>0 && limit-pos>=maxLength) {
+				return(-2);
+			}
+			scanned = limit;
+
+			if(limit==buffer.length) {
+				if(pos>0) {
+					System.arraycopy(buffer,pos,buffer,0,limit-pos);
+					scanned = scanned - pos;
+					limit = limit - pos;
+					pos = 0;
+				}
+				else {
+					byte[] tmp = new byte[buffer.length*2];
+					System.arraycopy(buffer,0,tmp,0,limit);
+					buffer = tmp;
+				}
+			}
+
+			int bytesRead = in.read(buffer,limit,buffer.length-limit);
+			if(bytesRead==-1) {
+				return(-1);
+			}
+			limit = limit + bytesRead;
+		}
+	}
+
+
+	protected int skipWhitespace(int start, int end)
+	{
+		while(start<end && (buffer[start]==' ' || buffer[start]=='\t')) {
+			start++;
+		}
+		return(start);
+	}
+
+
+	protected int trimWhitespace(int start, int end)
+	{
+		while(end>start && (buffer[end-1]==' ' || buffer[end-1]=='\t')) {
+			end--;
+		}
+		return(end);
+	}
+
+
+	/**
+	 * Returns the field name in the buffer between start and end, using one of the
+	 * COMMON_FIELDS when it matches.
+	 */
+	protected String getFieldName(int start, int end)
+	{
+		int length = end-start;
+
+		for(int x=0;x<COMMON_FIELDS.length;x++) {
+			String field = COMMON_FIELDS[x];
+			if(field.length()==length) {
+				int y = 0;
+				while(y<length) {
+					int c = buffer[start+y];
+					if(c>='A' && c<='Z') {
+						c = c + ('a'-'A');
+					}
+					int f = field.charAt(y);
+					if(f>='A' && f<='Z') {
+						f = f + ('a'-'A');
+					}
+					if(c!=f) {
+						break;
+					}
+					y++;
+				}
+				if(y==length) {
+					return(field);
+				}
+			}
+		}
+
+		return(new String(buffer,start,length,StandardCharsets.ISO_8859_1));
+	}
+}
+
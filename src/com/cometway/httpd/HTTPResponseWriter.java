@@ -0,0 +1,194 @@
+package com.cometway.httpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * This class writes the responses HTTPAgentRequests build in their output buffer. The
+ * header is separated from the body and its line endings are changed to CRLF in a single pass,
+ * a Content-Length field is added when the response does not have one, and the header and body
+ * are sent to the client together. When the client Socket has a blocking SocketChannel the
+ * two buffers are sent with a single gathering write.
+ */
+public class HTTPResponseWriter
+{
+	/**
+	 * Returns the String with every line feed that is not preceded by a carriage return
+	 * changed to CRLF. The String itself is returned if it needs no changes.
+	 */
+	public static String normalizeLineEnds(String s)
+	{
+		int length = s.length();
+		int x = 0;
+
+		// Most Strings have nothing to change, in which case nothing is copied
+		while(x<length) {
+			if(s.charAt(x)=='\n' && (x==0 || s.charAt(x-1)!='\r')) {
+				break;
+			}
+			x++;
+		}
+
+		if(x==length) {
+			return(s);
+		}
+
+		StringBuffer rval = new StringBuffer(length+16);
+		rval.append(s,0,x);
+		while(x<length) {
+			char c = s.charAt(x);
+			if(c=='\n' && (x==0 || s.charAt(x-1)!='\r')) {
+				rval.append('\r');
+			}
+			rval.append(c);
+			x++;
+		}
+
+		return(rval.toString());
+	}
+
+
+	/**
+	 * Returns the index following the blank line which ends the response header at the start of
+	 * the buffer, or -1 if there is none. Blank lines may end with LF or CRLF.
+	 */
+	public static int getHeaderEnd(CharSequence data)
+	{
+		int length = data.length();
+
+		for(int x=0;x<length;x++) {
+			if(data.charAt(x)=='\n') {
+				if(x+1<length && data.charAt(x+1)=='\n') {
+					return(x+2);
+				}
+				else if(x+2<length && data.charAt(x+1)=='\r' && data.charAt(x+2)=='\n') {
+					return(x+3);
+				}
+			}
+		}
+
+		return(-1);
+	}
+
+
+	/**
+	 * Writes the response held in the buffer to the client of the request. If the buffer holds
+	 * an HTTP response header, its line endings are normalized and it is given a Content-Length
+	 * field if it does not have one. The body is not sent for HEAD requests.
+	 */
+	public static void write(HTTPAgentRequest request, CharSequence data, boolean headRequest, boolean byteWise) throws IOException
+	{
+		Charset charset = Charset.defaultCharset();
+		ByteBuffer header = null;
+		ByteBuffer body = null;
+		int headerEnd = -1;
+
+		if(startsWith(data,"HTTP/")) {
+			headerEnd = getHeaderEnd(data);
+		}
+
+		if(headerEnd!=-1) {
+			body = charset.encode(CharBuffer.wrap(data,headerEnd,data.length()));
+			header = StandardCharsets.ISO_8859_1.encode(createHeader(data.subSequence(0,headerEnd).toString(),body.remaining()));
+			if(headRequest) {
+				body.position(body.limit());
+			}
+		}
+		else {
+			header = ByteBuffer.allocate(0);
+			body = charset.encode(CharBuffer.wrap(data));
+		}
+
+		OutputStream out = request.getOutputStream();
+		SocketChannel channel = HTTPFileTransfer.getSocketChannel(request);
+
+		if(byteWise) {
+			writeByteWise(out,header);
+			writeByteWise(out,body);
+		}
+		else if(channel!=null) {
+			out.flush();
+
+			ByteBuffer[] buffers = { header, body };
+			while(header.hasRemaining() || body.hasRemaining()) {
+				channel.write(buffers);
+			}
+		}
+		else {
+			out.write(header.array(),header.arrayOffset()+header.position(),header.remaining());
+			out.write(body.array(),body.arrayOffset()+body.position(),body.remaining());
+			out.flush();
+		}
+	}
+
+
+	/**
+	 * Returns the header with CRLF line endings, adding the Content-Length field after the
+	 * status line if there is none.
+	 */
+	protected static String createHeader(String header, int contentLength)
+	{
+		StringBuffer rval = new StringBuffer(header.length()+32);
+		boolean hasContentLength = false;
+		int length = header.length();
+		int lineStart = 0;
+
+		for(int x=0;x<length;x++) {
+			char c = header.charAt(x);
+			if(c=='\n') {
+				if(x==0 || header.charAt(x-1)!='\r') {
+					rval.append('\r');
+				}
+				rval.append(c);
+				lineStart = x+1;
+			}
+			else {
+				if(x==lineStart && (c=='C' || c=='c') && header.regionMatches(true,x,"Content-Length:",0,15)) {
+					hasContentLength = true;
+				}
+				rval.append(c);
+			}
+		}
+
+		if(!hasContentLength) {
+			int statusEnd = rval.indexOf("\r\n");
+			if(statusEnd!=-1) {
+				rval.insert(statusEnd+2,"Content-Length: "+contentLength+"\r\n");
+			}
+		}
+
+		return(rval.toString());
+	}
+
+
+	protected static boolean startsWith(CharSequence data, String prefix)
+	{
+		if(data.length()<prefix.length()) {
+			return(false);
+		}
+
+		for(int x=0;x<prefix.length();x++) {
+			if(data.charAt(x)!=prefix.charAt(x)) {
+				return(false);
+			}
+		}
+
+		return(true);
+	}
+
+
+	protected static void writeByteWise(OutputStream out, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining()) {
+			out.write(buffer.get());
+			out.flush();
+		}
+	}
+}
+
@@ -0,0 +1,144 @@
+package com.cometway.httpd;
+
+import com.cometway.ak.RequestAgent;
+import com.cometway.ak.ServiceListener;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * This class remembers which RequestAgent handles each host and path requested from a
+ * WebServer, so the service names tried by WebServer.lookupRequestAgent() only need to be
+ * built and looked up in the ServiceManager the first time a path is requested for a host.
+ * After that a request is routed with two Hashtable lookups, no matter how many virtual
+ * hosts are being served.
+ *
+ * Since the scheme and port are the same for every request to a WebServer, the table is
+ * keyed by host and then by path. Paths that have no RequestAgent are remembered apart from
+ * the routes, in a small table of the MAX_MISSES most recent ones, so clients requesting
+ * paths which do not exist cannot push the routes out. The table is a ServiceListener, and is emptied whenever a service is registered or
+ * unregistered, since that may change the RequestAgent that handles any path.
+ */
+public class HTTPRouteTable implements ServiceListener
+{
+	/** The number of paths without a RequestAgent which are remembered. */
+	protected static final int MAX_MISSES = 1024;
+
+	protected WebServer server;
+	protected int max_routes;
+	protected volatile Hashtable hosts = new Hashtable();
+	protected int routeCount;
+
+	// The host and path of the requests which have no RequestAgent, oldest first
+	protected LinkedHashMap misses = new LinkedHashMap();
+
+
+	/**
+	 * Creates a route table for the WebServer which remembers at most max_routes paths.
+	 */
+	public HTTPRouteTable(WebServer server, int max_routes)
+	{
+		this.server = server;
+		this.max_routes = max_routes;
+	}
+
+
+	/**
+	 * Returns the RequestAgent which handles the path for the host, or null if there is none.
+	 */
+	public RequestAgent getRequestAgent(String host, String path)
+	{
+		Hashtable table = hosts;
+		Hashtable paths = (Hashtable)table.get(host);
+		Object o = null;
+
+		if(paths!=null) {
+			o = paths.get(path);
+		}
+
+		if(o==null) {
+			String miss = host+" "+path;
+			synchronized(this) {
+				if(misses.containsKey(miss)) {
+					return(null);
+				}
+			}
+
+			o = server.lookupRequestAgent(host,path);
+			if(o==null) {
+				synchronized(this) {
+					if(table==hosts) {
+						misses.put(miss,miss);
+						Iterator i = misses.keySet().iterator();
+						while(misses.size()>MAX_MISSES && i.hasNext()) {
+							i.next();
+							i.remove();
+						}
+					}
+				}
+
+				return(null);
+			}
+
+			synchronized(this) {
+				// The table may have been emptied while the ServiceManager was searched
+				if(table==hosts) {
+					if(routeCount>=max_routes) {
+						hosts = new Hashtable();
+						table = hosts;
+						routeCount = 0;
+						paths = null;
+					}
+
+					if(paths==null) {
+						paths = (Hashtable)table.get(host);
+						if(paths==null) {
+							paths = new Hashtable();
+							table.put(host,paths);
+						}
+					}
+
+					if(paths.put(path,o)==null) {
+						routeCount++;
+					}
+				}
+			}
+		}
+
+		return((RequestAgent)o);
+	}
+
+
+	/**
+	 * Forgets all routes.
+	 */
+	public synchronized void clear()
+	{
+		hosts = new Hashtable();
+		routeCount = 0;
+		misses.clear();
+	}
+
+
+	/**
+	 * Returns the number of routes remembered, not counting the paths without a RequestAgent.
+	 */
+	public synchronized int size()
+	{
+		return(routeCount);
+	}
+
+
+	public void serviceRegistered(String serviceName, Object serviceImpl)
+	{
+		clear();
+	}
+
+
+	public void serviceUnregistered(String serviceName, Object serviceImpl)
+	{
+		clear();
+	}
+}
+
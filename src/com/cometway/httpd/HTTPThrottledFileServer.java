@@ -8,6 +8,7 @@ import java.util.*;
 import java.io.*;
 import com.cometway.util.*;
 import com.cometway.net.*;
+import java.nio.channels.FileChannel;
 
 /**
 * This agent is used by the WebServer to handle requests for HTML files and
@@ -26,6 +27,7 @@ public class HTTPThrottledFileServer extends HTTPFileServerAgent
    protected int currentSessions;
    protected Object sync;
    protected FileWriter logOut;
+   protected HTTPBandwidthScheduler localScheduler;
 
 	/** 
 	*Initializes this agent's properties by providing default
@@ -34,18 +36,23 @@ public class HTTPThrottledFileServer extends HTTPFileServerAgent
 	* "html_directory" points to the root directory where HTML files are served (default: ./),
 	* "default_index" is the default file served when no filename is specified (default: index.html),
 	* "allow_directory_lists" when enabled, allows this agent to display links to files in a directory (default: yes)
-	* "max_sessions" denotes the maximum amount of concurrent connections downloading content at a single time (default: 4)
+	* "max_sessions" denotes the maximum amount of concurrent connections downloading content at a single time, 0 is unlimited (default: 4)
 	* "max_bandwidth" denotes the amount of bytes per second allowed for each connection (default: 5000)
 	* "log_file" denotes the file which bandwidth usage is to be logged (default: downloads.log)
+	* "bandwidth_scheduler" is the service name of the HTTPBandwidthScheduler which paces the downloads, if it is not
+	* registered each connection is only limited by max_bandwidth (default: bandwidth_scheduler)
+	* "file_cache_size" is 0 by default, files answered from the HTTPFileCache would not be throttled or logged
 	*/
 	public void initProps()
 	{
+		setDefault("file_cache_size","0");
 		super.initProps();
 
       setDefault("log_file","downloads.log");
 		setDefault("service_url","http://www.cometway.com:8080/");
 		setDefault("max_sessions","4");
 		setDefault("max_bandwidth","5000");
+		setDefault("bandwidth_scheduler","bandwidth_scheduler");
 	}
 	
 	/**
@@ -62,6 +69,7 @@ public class HTTPThrottledFileServer extends HTTPFileServerAgent
       }
 
 		sync = new Object();
+		localScheduler = new HTTPBandwidthScheduler();
 
 		super.start();
 	}
@@ -88,7 +96,8 @@ public class HTTPThrottledFileServer extends HTTPFileServerAgent
       boolean rval = false;
       try {
          synchronized(sync) {
-            if(currentSessions < getInteger("max_sessions")) {
+            int max_sessions = getInteger("max_sessions");
+            if(max_sessions<=0 || currentSessions < max_sessions) {
                rval = true;
                currentSessions++;
             }
@@ -119,51 +128,70 @@ public class HTTPThrottledFileServer extends HTTPFileServerAgent
 
 	protected void sendFile(File file, HTTPAgentRequest request) throws IOException
 	{
-		OutputStream socketOut = request.getOutputStream();
-		FileInputStream fis = new FileInputStream(file);
 		if(addSession()) {
-			int bytesSent = 0;
-			byte[] fileData = new byte[getInteger("max_bandwidth")];
-			int bytesread = fis.read(fileData);
-			while(bytesread>0) {
-				long timestamp = System.currentTimeMillis();
-				int start = 0;
-				int end = 1023;
-				while(end<bytesread) {
-					socketOut.write(fileData,start,end-start);
-					socketOut.flush();
-					bytesSent = bytesSent+(end-start);
-					start=start+1024;
-					if(start>=bytesread) {
-						break;
-					}
-					end=end+1024;
-					if(end>=bytesread) {
-						end=bytesread-1;
-					}
-					if(start==end) {
-						break;
-					}
-				}
-				bytesread = fis.read(fileData);
-									
-				long time = System.currentTimeMillis()-timestamp;
-				if(time<1000) {
-					try {
-						Thread.sleep(1000-time);
-					}
-					catch(Exception e) {;}
+			long bytesSent = 0;
+			long length = file.length();
+			FileInputStream fis = null;
+			HTTPBandwidthScheduler.Session session = getBandwidthScheduler().openSession(request.getString("host"),getInteger("max_bandwidth"));
+			try {
+				fis = new FileInputStream(file);
+				session.transfer(fis.getChannel(),0,length,request);
+			}
+			catch(IOException e) {;}
+			finally {
+				bytesSent = session.getBytesSent();
+				session.close();
+				try {
+					fis.close();
 				}
+				catch(Exception e) {;}
+				removeSession();
 			}
 
-			if(bytesSent==file.length()) {
+			if(bytesSent==length) {
 				printLog("Sent "+bytesSent+" bytes successfully", request);
 			}
 			else {
-				printLog("Sent "+bytesSent+" bytes out of "+file.length()+", the connection was closed by the client",request);
+				printLog("Sent "+bytesSent+" bytes out of "+length+", the connection was closed by the client",request);
 			}
-			removeSession();
+		}
+		else {
+			printTryAgain(request);
+			printLog("---------- Max connections has been reached, sent try again message",request);
+		}
+	}
 
+
+	protected void sendRanges(FileChannel channel, long[][] ranges, long length, String contentType, HTTPAgentRequest request) throws IOException
+	{
+		if(addSession()) {
+			long bytesSent = 0;
+			long count = 0;
+			for(int x=0;x<ranges.length;x++) {
+				count = count + ranges[x][1]-ranges[x][0]+1;
+			}
+			HTTPBandwidthScheduler.Session session = getBandwidthScheduler().openSession(request.getString("host"),getInteger("max_bandwidth"));
+			try {
+				if(ranges.length==1) {
+					session.transfer(channel,ranges[0][0],count,request);
+				}
+				else {
+					HTTPByteRanges.sendMultipart(channel,ranges,length,contentType,request,session);
+				}
+			}
+			catch(IOException e) {;}
+			finally {
+				bytesSent = session.getBytesSent();
+				session.close();
+				removeSession();
+			}
+
+			if(bytesSent==count) {
+				printLog("Sent "+bytesSent+" bytes of "+ranges.length+" ranges successfully", request);
+			}
+			else {
+				printLog("Sent "+bytesSent+" bytes of "+ranges.length+" ranges out of "+count+", the connection was closed by the client",request);
+			}
 		}
 		else {
 			printTryAgain(request);
@@ -172,13 +200,29 @@ public class HTTPThrottledFileServer extends HTTPFileServerAgent
 	}
 
 
+	/**
+	 * Returns the HTTPBandwidthScheduler registered as the bandwidth_scheduler service, or a scheduler
+	 * which only limits each connection if none is registered.
+	 */
+	protected HTTPBandwidthScheduler getBandwidthScheduler()
+	{
+		Object scheduler = ServiceManager.getService(getString("bandwidth_scheduler"));
+		if(scheduler instanceof HTTPBandwidthScheduler) {
+			return((HTTPBandwidthScheduler)scheduler);
+		}
+		else {
+			return(localScheduler);
+		}
+	}
+
+
 	/**
 	 * This method generates the message when the maximum number of connections has been reached.
 	 */
 	protected void printTryAgain(HTTPAgentRequest request)
 	{
 		request.print("HTTP/1.1 200 Ok\r\n");
-		request.print("Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\n");
+		request.print("Date: "+HTTPDate.getDate()+"\r\n");
 		request.print("Connection: close\r\n");
 		request.print("Content-Type: text/html\r\n\r\n");
 		request.print("<HTML><HEAD><TITLE>Please Try again Later</TITLE></HEAD><BODY><H1>The Download Server has reached its maximum number of connections</H1>Please wait a few minutes and try again. You should be able to try again by refreshing or reloading the current page. Sorry for the inconvenience.</BODY></HTML>\n");
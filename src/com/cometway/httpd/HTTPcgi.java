@@ -1,10 +1,20 @@
 package com.cometway.httpd;
 
 import java.util.Vector;
-import java.util.Date;
+import java.util.Hashtable;
+import java.util.StringTokenizer;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 
 import com.cometway.ak.*;
+import com.cometway.props.Props;
 import com.cometway.util.ExecuteCommand;
 import com.cometway.util.ThreadPool;
 import com.cometway.util.StringTools;
@@ -18,12 +28,33 @@ import com.cometway.util.jGrep;
  * the process is killed. This extension requires the inet address methods flag to be set
  * to true in the WebServer or else some scripts that depend on the client's IP address
  * may break. This extension currently does NOT support local redirects.
+ *
+ * When fastcgi is true, scripts are instead run by persistent FastCGI responders, which stay
+ * running between requests so no process is started per request. The responders are either
+ * started by this extension, fastcgi_workers copies of fastcgi_command each listening on its own
+ * loopback port from fastcgi_port up, or already running at fastcgi_addresses (such as php-fpm).
+ * Each request goes to the responder with the fewest requests in progress, and connections to the
+ * responders are kept open between requests. The output of the script is passed on to the client
+ * as it is produced, chunked for HTTP/1.1 clients when the script does not give a Content-Length,
+ * so the connection to the client can be kept alive. Responders started by this extension are
+ * restarted when they exit, and killed when a script produces no output for max_exec_time_ms.
  */
 public class HTTPcgi extends WebServerExtension
 {
+	// The longest CGI header accepted from a persistent worker
+	protected static final int MAX_HEADER_LENGTH = 65536;
+
+	// How long a worker which has just been started is given to start listening
+	protected static final int WORKER_STARTUP_TIME = 10000;
+
 	ThreadPool threadPool;
 	String[] scripts;
 
+	protected Vector workerAddresses;
+	protected Hashtable workers;
+	protected HTTPConnectionPool workerPool;
+	protected HTTPLoadBalancer workerBalancer;
+
 	/**
 	 * max_exec_time_ms - The longest time to wait for a script to run before it is killed and an error returned (default: 10000)
 	 * script_uri - The URI path to access the script(s) (default: /cgi-bin/)
@@ -34,6 +65,14 @@ public class HTTPcgi extends WebServerExtension
 	 * server_name - The SERVER_NAME to pass to the script. This is either a hostname or IP address (default: 127.0.0.1)
 	 * server_port - The SERVER_PORT to pass to the script. (default: 80)
 	 * server_root_path - This is required for path translation, it is the location of the root HTML directory (default: ./html)
+	 *
+	 * fastcgi - Run scripts with persistent FastCGI workers instead of a process per request (default: false)
+	 * fastcgi_command - The command which starts a worker, {port} is replaced with the port it should listen on, for example php-cgi -b 127.0.0.1:{port} (default: none)
+	 * fastcgi_workers - The number of workers to start with fastcgi_command (default: 4)
+	 * fastcgi_port - The loopback port of the first worker started, the others use the ports following it (default: 9000)
+	 * fastcgi_addresses - A comma separated list of host:port of workers which are already running, used instead of fastcgi_command (default: none)
+	 * fastcgi_connections - The maximum number of connections to each worker (default: 1)
+	 * fastcgi_idle_timeout - Milliseconds after which an idle connection to a worker is closed (default: 60000)
 	 */
 	public void initProps()
 	{
@@ -50,6 +89,14 @@ public class HTTPcgi extends WebServerExtension
 		setDefault("server_name","127.0.0.1");
 		setDefault("server_port","80");
 		setDefault("server_root_path","./html");
+
+		setDefault("fastcgi","false");
+		setDefault("fastcgi_command","");
+		setDefault("fastcgi_workers","4");
+		setDefault("fastcgi_port","9000");
+		setDefault("fastcgi_addresses","");
+		setDefault("fastcgi_connections","1");
+		setDefault("fastcgi_idle_timeout","60000");
 	}
 
 	public void start()
@@ -68,11 +115,17 @@ public class HTTPcgi extends WebServerExtension
 		}
 		catch(Exception e) {;}
 
+		if(getBoolean("fastcgi")) {
+			startWorkers();
+		}
+
 		super.start();
 	}
 
 	public void stop()
 	{
+		stopWorkers();
+
 		try {
 			threadPool.stop();
 			scripts = null;
@@ -117,55 +170,60 @@ public class HTTPcgi extends WebServerExtension
 					if(scriptFile.isFile() && scriptFile.canRead()) {
 						// Setup the script environment
 						String[] environment = generateEnvironmentVariables(request, script, pathInfo, params);
-						ExecuteCommand command = new ExecuteCommand(scriptFile.getAbsolutePath());
-						StringBuffer out = new StringBuffer();
-						StringBuffer err = new StringBuffer();
-						if(request.getContentLength()>0) {
-							command = new ExecuteCommand(scriptFile.getAbsolutePath(),request.getRequestBody());
+						if(workers!=null) {
+							rval = executeWorkerRequest(request,scriptFile,environment);
 						}
-						command.environment = environment;
-						command.workingDirectory = parent;
-						command.processOut = out;
-						command.processErr = err;
-						command.finishedWaitTime = 100;
-						//						command.waitForProcessReaders = true;
-
-						debug("Executing CGI Script: "+scriptFile.getAbsolutePath()+" environment: "+environment+" workingDir: "+parent);
-						if(threadPool.getThread(command,command,getInteger("max_exec_time_ms"))) {
-							command.stopProcess();
-							if(out.length()>0) {
-								rval = processCGIOutput(request,out);
-							}
-							if(err.length()>0) {
-								warning("Received stderr from script '"+scriptFile+"': "+err);
+						else {
+							ExecuteCommand command = new ExecuteCommand(scriptFile.getAbsolutePath());
+							StringBuffer out = new StringBuffer();
+							StringBuffer err = new StringBuffer();
+							if(request.getContentLength()>0) {
+								command = new ExecuteCommand(scriptFile.getAbsolutePath(),request.getRequestBody());
 							}
+							command.environment = environment;
+							command.workingDirectory = parent;
+							command.processOut = out;
+							command.processErr = err;
+							command.finishedWaitTime = 100;
+							//						command.waitForProcessReaders = true;
+
+							debug("Executing CGI Script: "+scriptFile.getAbsolutePath()+" environment: "+environment+" workingDir: "+parent);
+							if(threadPool.getThread(command,command,getInteger("max_exec_time_ms"))) {
+								command.stopProcess();
+								if(out.length()>0) {
+									rval = processCGIOutput(request,out);
+								}
+								if(err.length()>0) {
+									warning("Received stderr from script '"+scriptFile+"': "+err);
+								}
 
-							// There was an error somewhere
-							if(!rval) {
+								// There was an error somewhere
+								if(!rval) {
+									try {
+										WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.SERVER_ERROR);
+										request.getOutputStream().flush();
+									}
+									catch(Exception e) {;}
+									request.returnVal = "500";
+									rval = true;
+								}
+							}
+							else {
+								// Ran out of pooled threads
 								try {
-									request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.SERVER_ERROR).getBytes());
+									WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.SERVICE_UNAVAILABLE);
 									request.getOutputStream().flush();
 								}
 								catch(Exception e) {;}
-								request.returnVal = "500";
+								request.returnVal = "503";
 								rval = true;
+								warning("Warning, the script: '"+scriptFile+"' is not a file or could not be read");
 							}
 						}
-						else {
-							// Ran out of pooled threads
-							try {
-								request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.SERVICE_UNAVAILABLE).getBytes());
-								request.getOutputStream().flush();
-							}
-							catch(Exception e) {;}
-							request.returnVal = "503";
-							rval = true;
-							warning("Warning, the script: '"+scriptFile+"' is not a file or could not be read");
-						}
 					}
 					else {
 						try {
-							request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.SERVER_ERROR).getBytes());
+							WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.SERVER_ERROR);
 							request.getOutputStream().flush();
 						}
 						catch(Exception e) {;}
@@ -176,7 +234,7 @@ public class HTTPcgi extends WebServerExtension
 				}
 				else {
 					try {
-						request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.URL_NOT_FOUND).getBytes());
+						WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.URL_NOT_FOUND);
 						request.getOutputStream().flush();
 					}
 					catch(Exception e) {;}
@@ -186,7 +244,7 @@ public class HTTPcgi extends WebServerExtension
 			}
 			else {
 				try {
-					request.getOutputStream().write(WebServer.getHTMLByCode(WebServer.FORBIDDEN).getBytes());
+					WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.FORBIDDEN);
 					request.getOutputStream().flush();
 				}
 				catch(Exception e) {;}
@@ -198,6 +256,356 @@ public class HTTPcgi extends WebServerExtension
 	}
 
 
+	/**
+	 * Starts the workers given by fastcgi_command, or records the ones at fastcgi_addresses.
+	 */
+	protected void startWorkers()
+	{
+		workerAddresses = new Vector();
+		workers = new Hashtable();
+
+		String addresses = getTrimmedString("fastcgi_addresses");
+		if(addresses.length()>0) {
+			String[] list = StringTools.commaToArray(addresses);
+			for(int x=0;x<list.length;x++) {
+				Worker worker = new Worker(HTTPLoadBalancer.getBackendKey(list[x].trim()),null);
+				workerAddresses.addElement(worker.address);
+				workers.put(worker.address,worker);
+			}
+		}
+		else if(getTrimmedString("fastcgi_command").length()>0) {
+			int port = getInteger("fastcgi_port");
+			for(int x=0;x<getInteger("fastcgi_workers");x++) {
+				String command = getTrimmedString("fastcgi_command");
+				int index = command.indexOf("{port}");
+				while(index!=-1) {
+					command = command.substring(0,index)+(port+x)+command.substring(index+6);
+					index = command.indexOf("{port}");
+				}
+				Worker worker = new Worker("127.0.0.1:"+(port+x),command);
+				workerAddresses.addElement(worker.address);
+				workers.put(worker.address,worker);
+				startWorker(worker);
+			}
+		}
+
+		if(workerAddresses.size()==0) {
+			warning("fastcgi is true but neither fastcgi_command nor fastcgi_addresses are set, scripts are run by a process per request");
+			workers = null;
+		}
+		else {
+			int timeout = getInteger("max_exec_time_ms");
+			workerPool = new HTTPConnectionPool(getInteger("fastcgi_connections"),getInteger("fastcgi_idle_timeout"),timeout,timeout);
+			workerBalancer = new HTTPLoadBalancer(HTTPLoadBalancer.LEAST_OUTSTANDING,0,0,0);
+		}
+	}
+
+
+	/**
+	 * Closes the connections to the workers and stops the ones this extension started.
+	 */
+	protected void stopWorkers()
+	{
+		if(workerPool!=null) {
+			workerPool.close();
+			workerPool = null;
+		}
+
+		if(workers!=null) {
+			for(int x=0;x<workerAddresses.size();x++) {
+				Worker worker = (Worker)workers.get(workerAddresses.elementAt(x));
+				synchronized(worker) {
+					worker.stopped = true;
+					if(worker.process!=null) {
+						worker.process.destroy();
+						worker.process = null;
+					}
+				}
+			}
+			workers = null;
+		}
+	}
+
+
+	/**
+	 * Starts the process of the worker if it has a command and is not running.
+	 */
+	protected void startWorker(Worker worker)
+	{
+		synchronized(worker) {
+			if(worker.command!=null && !worker.stopped && !worker.isRunning()) {
+				try {
+					Vector args = new Vector();
+					StringTokenizer tokens = new StringTokenizer(worker.command);
+					while(tokens.hasMoreTokens()) {
+						args.addElement(tokens.nextToken());
+					}
+
+					ProcessBuilder builder = new ProcessBuilder(args);
+					builder.directory(new File(getString("script_directory")));
+					builder.redirectErrorStream(true);
+					builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+					worker.process = builder.start();
+					worker.started = System.currentTimeMillis();
+					worker.starts++;
+
+					debug("Started FastCGI worker on "+worker.address+": "+worker.command);
+				}
+				catch(Exception e) {
+					error("Could not start FastCGI worker: "+worker.command,e);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Kills the process of a worker which stopped responding, it is started again for the next request.
+	 */
+	protected void killWorker(Worker worker)
+	{
+		synchronized(worker) {
+			if(worker.process!=null) {
+				warning("Killing FastCGI worker on "+worker.address+" which did not respond within "+getString("max_exec_time_ms")+"ms");
+				worker.process.destroy();
+				worker.process = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns a connection to the worker, or null if all of its connections stayed in use.
+	 * A worker which has just been started is given time to start listening.
+	 */
+	protected Socket getWorkerSocket(Worker worker) throws IOException
+	{
+		return(getWorkerSocket(worker,true));
+	}
+
+
+	/**
+	 * Returns a connection to the worker, which is a new one unless reuse is true, or null if
+	 * all of its connections stayed in use. A worker which has just been started is given time
+	 * to start listening.
+	 */
+	protected Socket getWorkerSocket(Worker worker, boolean reuse) throws IOException
+	{
+		Socket rval = null;
+
+		while(true) {
+			startWorker(worker);
+			try {
+				rval = workerPool.getSocket(worker.host,worker.port,reuse);
+				break;
+			}
+			catch(ConnectException e) {
+				if(!worker.isStarting()) {
+					throw(e);
+				}
+				try {
+					Thread.sleep(50);
+				}
+				catch(InterruptedException ie) {
+					throw(e);
+				}
+			}
+		}
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns true if the exception shows the connection was closed by the worker.
+	 */
+	protected static boolean isClosedConnection(IOException e)
+	{
+		return(e instanceof EOFException || (e instanceof SocketException && !(e instanceof ConnectException)));
+	}
+
+
+	/**
+	 * Runs the script with a persistent worker, passing its output on to the client as it arrives.
+	 */
+	protected boolean executeWorkerRequest(HTTPAgentRequest request, File scriptFile, String[] environment)
+	{
+		String address = workerBalancer.select(workerAddresses);
+		Worker worker = (Worker)workers.get(address);
+		CGIResponseStream response = new CGIResponseStream(request);
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		Socket socket = null;
+		boolean reuse = false;
+		String error = null;
+
+		workerBalancer.begin(address);
+		try {
+			socket = getWorkerSocket(worker);
+			if(socket==null) {
+				error = "503";
+			}
+			else {
+				HTTPFastCGIClient client = new HTTPFastCGIClient(socket);
+				byte[] body = request.getRequestBody().getBytes("ISO-8859-1");
+				if(body.length>request.getContentLength()) {
+					// The stored request may end with a line break which is not part of the body
+					byte[] tmp = new byte[Math.max(request.getContentLength(),0)];
+					System.arraycopy(body,0,tmp,0,tmp.length);
+					body = tmp;
+				}
+
+				long start = System.currentTimeMillis();
+				try {
+					client.sendRequest(generateWorkerEnvironment(request,scriptFile,environment),body);
+					client.readResponse(response,err);
+				}
+				catch(IOException e) {
+					if(!isClosedConnection(e) || response.headerSent || response.header.size()>0 || err.size()>0) {
+						throw(e);
+					}
+
+					// The worker closed the pooled connection before answering, as php-cgi does when it
+					// exits after PHP_FCGI_MAX_REQUESTS, so the request is sent once more on a new one
+					debug("Retrying the FastCGI request to "+address+" on a new connection: "+e);
+					workerPool.discardSocket(worker.host,worker.port,socket);
+					socket = null;
+					socket = getWorkerSocket(worker,false);
+					if(socket==null) {
+						throw(e);
+					}
+					client = new HTTPFastCGIClient(socket);
+					client.sendRequest(generateWorkerEnvironment(request,scriptFile,environment),body);
+					client.readResponse(response,err);
+				}
+				reuse = client.isComplete();
+
+				if(!client.isComplete()) {
+					error = "503";
+				}
+				else if(!response.finish()) {
+					error = "500";
+				}
+				else {
+					workerBalancer.recordResponse(address,System.currentTimeMillis()-start,200);
+				}
+			}
+		}
+		catch(SocketTimeoutException e) {
+			killWorker(worker);
+			workerBalancer.recordFailure(address);
+			error = "500";
+		}
+		catch(IOException e) {
+			warning("FastCGI request to "+address+" failed: "+e);
+			workerBalancer.recordFailure(address);
+			error = "500";
+		}
+		finally {
+			workerBalancer.end(address);
+			if(socket!=null) {
+				if(reuse) {
+					workerPool.returnSocket(worker.host,worker.port,socket);
+				}
+				else {
+					workerPool.discardSocket(worker.host,worker.port,socket);
+				}
+			}
+		}
+
+		if(err.size()>0) {
+			warning("Received stderr from script '"+scriptFile+"': "+err);
+		}
+
+		if(error!=null) {
+			if(response.headerSent) {
+				// The response cannot be completed, the client sees it end early
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+			}
+			else {
+				try {
+					if(error.equals("503")) {
+						WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.SERVICE_UNAVAILABLE);
+					}
+					else {
+						WebServer.writeHTMLByCode(request.getOutputStream(),WebServer.SERVER_ERROR);
+					}
+					request.getOutputStream().flush();
+				}
+				catch(Exception e) {;}
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+				request.returnVal = error;
+			}
+		}
+
+		return(true);
+	}
+
+
+	/**
+	 * Adds the variables a worker needs to find and run the script to the CGI environment.
+	 */
+	protected String[] generateWorkerEnvironment(HTTPAgentRequest request, File scriptFile, String[] environment)
+	{
+		String[] rval = new String[environment.length+4];
+		String uri = request.getString("path");
+		String requestLine = request.getString("request");
+
+		int index = requestLine.indexOf(' ');
+		if(index!=-1) {
+			int end = requestLine.indexOf(' ',index+1);
+			int newline = requestLine.indexOf('\n');
+			if(end==-1 || (newline!=-1 && newline<end)) {
+				end = newline;
+			}
+			if(end!=-1) {
+				uri = requestLine.substring(index+1,end).trim();
+			}
+		}
+
+		System.arraycopy(environment,0,rval,0,environment.length);
+		rval[environment.length] = "SCRIPT_FILENAME="+scriptFile.getAbsolutePath();
+		rval[environment.length+1] = "DOCUMENT_ROOT="+new File(getString("server_root_path")).getAbsolutePath();
+		rval[environment.length+2] = "REQUEST_URI="+uri;
+		// php-cgi refuses to run scripts which were not passed on by a web server
+		rval[environment.length+3] = "REDIRECT_STATUS=200";
+
+		return(rval);
+	}
+
+
+	/**
+	 * Returns the counters of the connections to the workers, as described by
+	 * HTTPConnectionPool.getMetrics(), or null if fastcgi is not enabled.
+	 */
+	public Props getWorkerPoolMetrics()
+	{
+		HTTPConnectionPool workerPool = this.workerPool;
+		return(workerPool==null ? null : workerPool.getMetrics());
+	}
+
+
+	/**
+	 * Returns the requests, failures, outstanding requests and latency of each worker, as described
+	 * by HTTPLoadBalancer.getMetrics(), and the number of times each worker was started, named
+	 * worker.[host:port].starts. Returns null if fastcgi is not enabled.
+	 */
+	public Props getWorkerMetrics()
+	{
+		Props rval = null;
+		Hashtable workers = this.workers;
+
+		if(workers!=null) {
+			rval = workerBalancer.getMetrics();
+			for(int x=0;x<workerAddresses.size();x++) {
+				Worker worker = (Worker)workers.get(workerAddresses.elementAt(x));
+				rval.setInteger("worker."+worker.address+".starts",worker.starts);
+			}
+		}
+
+		return(rval);
+	}
+
+
 	protected String[] generateEnvironmentVariables(HTTPAgentRequest request, String scriptName, String scriptPath, String getParams)
 	{
 		Vector vars = new Vector();
@@ -365,7 +773,7 @@ public class HTTPcgi extends WebServerExtension
 			}
 			index = outstr.indexOf("Date:");
 			if(index==-1) {
-				out.insert(0,"Date: "+WebServer.dateFormat_RFC822.format(new Date())+"\r\n");
+				out.insert(0,"Date: "+HTTPDate.getDate()+"\r\n");
 			}
 			out.insert(0,"Connection: close\r\n");
 			index = outstr.indexOf("Status:");
@@ -408,4 +816,237 @@ public class HTTPcgi extends WebServerExtension
 
 		return(rval);
 	}
+
+
+	/**
+	 * A persistent worker, either started by this extension from its command or already running.
+	 */
+	protected static class Worker
+	{
+		String address;
+		String host;
+		int port;
+		String command;
+		Process process;
+		long started;
+		int starts;
+		boolean stopped;
+
+
+		Worker(String address, String command)
+		{
+			this.address = address;
+			this.command = command;
+
+			int index = address.lastIndexOf(':');
+			host = address.substring(0,index);
+			port = Integer.parseInt(address.substring(index+1));
+		}
+
+
+		boolean isRunning()
+		{
+			return(process!=null && process.isAlive());
+		}
+
+
+		/**
+		 * Returns true if the worker was started recently enough that it may not be listening yet.
+		 */
+		boolean isStarting()
+		{
+			return(isRunning() && System.currentTimeMillis()-started<WORKER_STARTUP_TIME);
+		}
+	}
+
+
+
+	/**
+	 * Receives the output of a script from a worker and passes it on to the client. The CGI header
+	 * is held until the blank line which ends it, then sent as the HTTP response header, after which
+	 * the body is written to the client as it arrives. If the client goes away, the rest of the output
+	 * is discarded so the connection to the worker can still be reused.
+	 */
+	protected class CGIResponseStream extends OutputStream
+	{
+		HTTPAgentRequest request;
+		ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+		OutputStream body;
+		HTTPChunkedOutputStream chunked;
+		boolean headerSent;
+		boolean bodyless;
+		boolean failed;
+		int newlines;
+
+
+		CGIResponseStream(HTTPAgentRequest request)
+		{
+			this.request = request;
+		}
+
+
+		public void write(int b) throws IOException
+		{
+			byte[] data = new byte[1];
+			data[0] = (byte)b;
+			write(data,0,1);
+		}
+
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			int end = off+len;
+
+			while(!headerSent && off<end) {
+				byte c = b[off++];
+				header.write(c);
+				if(c=='\n') {
+					newlines++;
+					if(newlines==2) {
+						sendHeader();
+					}
+				}
+				else if(c!='\r') {
+					newlines = 0;
+				}
+			}
+
+			if(!headerSent && header.size()>MAX_HEADER_LENGTH) {
+				throw(new IOException("The CGI header is longer than "+MAX_HEADER_LENGTH+" bytes"));
+			}
+
+			if(headerSent && off<end && !bodyless && !failed) {
+				try {
+					body.write(b,off,end-off);
+					body.flush();
+				}
+				catch(IOException e) {
+					failed = true;
+				}
+			}
+		}
+
+
+		/**
+		 * Completes the response once the script has finished. Returns false if the script
+		 * produced no output.
+		 */
+		boolean finish()
+		{
+			if(!headerSent) {
+				if(header.size()==0) {
+					return(false);
+				}
+				// The output was only a header, without the blank line which ends it
+				sendHeader();
+			}
+
+			if(!failed) {
+				try {
+					if(chunked!=null) {
+						chunked.finish();
+					}
+					else {
+						body.flush();
+					}
+				}
+				catch(IOException e) {
+					failed = true;
+				}
+			}
+
+			if(failed) {
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+			}
+
+			return(true);
+		}
+
+
+		/**
+		 * Sends the response header made from the CGI header. The body is chunked when the script
+		 * does not give its length and the client supports it, otherwise the connection is closed
+		 * after the body.
+		 */
+		void sendHeader()
+		{
+			HTTPHeaders fields = HTTPHeaders.parse("\n"+toString(header));
+			String status = fields.get("Status");
+			int code = 200;
+
+			if(status==null) {
+				status = fields.contains("Location") ? "302 Found" : "200 OK";
+			}
+			try {
+				code = Integer.parseInt(new StringTokenizer(status).nextToken());
+			}
+			catch(Exception e) {;}
+
+			String requestLine = request.getString("request");
+			int index = requestLine.indexOf('\n');
+			if(index!=-1) {
+				requestLine = requestLine.substring(0,index);
+			}
+
+			bodyless = request.isHeadRequest() || code==204 || code==304 || (code>=100 && code<200);
+			boolean delimited = bodyless || fields.contains("Content-Length");
+			boolean chunk = !delimited && requestLine.indexOf("HTTP/1.1")!=-1;
+
+			StringBuffer response = new StringBuffer(512);
+			response.append("HTTP/1.1 ");
+			response.append(status.trim());
+			response.append("\r\n");
+			for(int x=0;x<fields.size();x++) {
+				String name = fields.getName(x);
+				if(name.equalsIgnoreCase("Status") || name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive") || name.equalsIgnoreCase("Transfer-Encoding")) {
+					continue;
+				}
+				response.append(name);
+				response.append(": ");
+				response.append(fields.getValue(x));
+				response.append("\r\n");
+			}
+			if(!fields.contains("Date")) {
+				response.append("Date: "+HTTPDate.getDate()+"\r\n");
+			}
+			if(chunk) {
+				response.append("Transfer-Encoding: chunked\r\n");
+			}
+			if((delimited || chunk) && request.hasProperty(ConnectionKMethod.KEEP_ALIVE_FIELD)) {
+				response.append(request.getString(ConnectionKMethod.KEEP_ALIVE_FIELD));
+				response.append("\r\nConnection: Keep-Alive\r\n");
+				request.setProperty(ConnectionKMethod.KEEP_ALIVE,"true");
+			}
+			else {
+				response.append("Connection: close\r\n");
+				request.removeProperty(ConnectionKMethod.KEEP_ALIVE);
+			}
+			response.append("\r\n");
+
+			headerSent = true;
+			request.returnVal = Integer.toString(code);
+			body = request.getOutputStream();
+			try {
+				body.write(response.toString().getBytes("ISO-8859-1"));
+				if(chunk) {
+					chunked = new HTTPChunkedOutputStream(body);
+					body = chunked;
+				}
+			}
+			catch(IOException e) {
+				failed = true;
+			}
+		}
+
+
+		String toString(ByteArrayOutputStream data)
+		{
+			try {
+				return(data.toString("ISO-8859-1"));
+			}
+			catch(Exception e) {
+				return(data.toString());
+			}
+		}
+	}
 }
@@ -100,6 +100,7 @@ public class LogViewerPage extends RequestAgent implements Runnable
 	{
 
 		printMem("+ handleRequest()");
+		HTTPAgentRequest.useChunkedOutput(request);
 		if (counts.size() == 0) // We haven't scanned yet.
 		{
 			updateLogCache();
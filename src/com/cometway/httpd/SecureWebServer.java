@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.net.ServerSocket;
 import java.net.InetAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyFactory;
 import java.security.KeyStore;
 import java.security.PrivateKey;
@@ -130,6 +131,16 @@ public class SecureWebServer extends WebServer
 		return (rval);
 	}
 
+
+    /**
+     * SSL connections cannot be multiplexed by the ConnectionSelector, so the nio connection engine
+     * is never used by this server.
+     */
+	protected ServerSocketChannel getServerSocketChannel(String bind_address, int port) throws java.io.IOException
+	{
+		return (null);
+	}
+
     
 	protected byte[] readBinaryFile(File file)
 	{
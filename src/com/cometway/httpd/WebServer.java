@@ -9,19 +9,22 @@ import com.cometway.props.Props;
 import com.cometway.props.PropsList;
 import com.cometway.props.PropsListServiceManager;
 import com.cometway.util.ThreadPool;
+import com.cometway.util.VirtualThreadPool;
 import com.cometway.util.StringTools;
 import com.cometway.util.Pair;
 import com.cometway.util.jGrep;
 import java.util.Vector;
 import java.util.List;
 import java.util.Hashtable;
-import java.util.Date;
 import java.util.Enumeration;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import javax.net.ServerSocketFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 
 
@@ -38,6 +41,9 @@ public class WebServer extends Agent implements Runnable
 	/**  The server has fulfilled the request and the user agent SHOULD reset the document view which caused the request to be sent. This response is primarily intended to allow input for actions to take place via user input, followed by a clearing of the form in which the input is given so that the user can easily initiate another input action. The response MUST NOT include an entity. */
 	public static final int RESET_CONTENT = 205;
 
+	/** The server has fulfilled the partial GET request for the resource. The request MUST have included a Range header field indicating the desired range. The response MUST include either a Content-Range header field indicating the range included with this response, or a multipart/byteranges Content-Type including Content-Range fields for each part. */
+	public static final int PARTIAL_CONTENT = 206;
+
 
 	/** The requested resource has been assigned a new permanent URI and any future references to this resource SHOULD use one of the returned URIs. Clients with link editing capabilities ought to automatically re-link references to the Request-URI to one or more of the new references returned by the server, where possible. This response is cacheable unless indicated otherwise. */
 	public static final int MOVED_PERMANENTLY = 301;
@@ -145,8 +151,13 @@ public class WebServer extends Agent implements Runnable
 
 	protected int numConnections;
 	protected ThreadPool threadPool;
+	protected boolean virtualThreads;
 	protected Thread runThread;
 	protected FileLoggerAgent logger;
+	protected ConnectionSelector connectionSelector;
+	protected HTTPRouteTable routeTable;
+	protected HTTPMetrics metrics;
+	protected HTTPAdmissionControl admission;
 
 
 	// used for debugging at the moment
@@ -155,11 +166,167 @@ public class WebServer extends Agent implements Runnable
 	// used for default HTML responses
 	public static HTMLResponseInterface responseAgent;
 
+	// The generic responses of getHTMLByCode(), by return code
+	protected static final HTTPCannedResponse[] cannedResponses = new HTTPCannedResponse[600];
+
+	static
+	{
+		addCannedResponse(NO_CONTENT, "HTTP/1.1 204 No Content.", null);
+		addCannedResponse(RESET_CONTENT, "HTTP/1.1 205 Reset Content.", null);
+		addCannedResponse(MOVED_PERMANENTLY, "HTTP/1.1 301 Moved Permanently.",
+			"<HTML>\n<HEAD><TITLE>301 Moved Permanently</TITLE></HEAD>\n" +
+			"<BODY><H1>301 Moved Permanently</H1></BODY>\n" +
+			"The requested URL has been permanently moved to another location.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(MOVED, "HTTP/1.1 302 Moved.",
+			"<HTML>\n<HEAD><TITLE>302 Moved</TITLE></HEAD>\n" +
+			"<BODY><H1>302 Moved</H1></BODY>\n" +
+			"The requested URL has been moved to another location.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(USE_GET, "HTTP/1.1 303 See Other.",
+			"<HTML>\n<HEAD><TITLE>303 See Other</TITLE></HEAD>\n" +
+			"<BODY><H1>303 See Other</H1></BODY>\n" +
+			"The requested URL has been moved to another location and a GET request must be used to retrieve it.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(NOT_MODIFIED, "HTTP/1.1 304 Not Modified.", null);
+		addCannedResponse(USE_PROXY, "HTTP/1.1 305 Use Proxy.",
+			"<HTML>\n<HEAD><TITLE>305 Use Proxy</TITLE></HEAD>\n" +
+			"<BODY><H1>305 Use Proxy</H1></BODY>\n" +
+			"The requested URL requires the use of the given proxy.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(TEMPORARY_REDIRECT, "HTTP/1.1 307 .",
+			"<HTML>\n<HEAD><TITLE>307 Temporary Redirect</TITLE></HEAD>\n" +
+			"<BODY><H1>307 Temporary Redirect</H1></BODY>\n" +
+			"The requested URL has been temporarily moved to another location\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(BAD_REQUEST, "HTTP/1.1 400 Bad Request.",
+			"<HTML>\n<HEAD><TITLE>400 BAD Request</TITLE></HEAD>\n" +
+			"<BODY><H1>400 Bad Request</H1></BODY>\n" +
+			"The server could not understand your request.\n" +
+			"If this problem persists contact the administrator.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(UNAUTHORIZED, "HTTP/1.1 401 Unauthorized.",
+			"<HTML>\n<HEAD><TITLE>401 Unauthorized</TITLE></HEAD>\n" +
+			"<BODY><H1>401 Unauthorized</H1>\n" +
+			"You are not authorized to access this url." +
+			"</BODY></HTML>\n");
+		addCannedResponse(FORBIDDEN, "HTTP/1.1 403 Forbidden.",
+			"<HTML>\n<HEAD><TITLE>403 Forbidden</TITLE></HEAD>\n" +
+			"<BODY><H1>403 Forbidden</H1>\n" +
+			"The administrator has deemed this area of the server forbidden.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(URL_NOT_FOUND, "HTTP/1.1 404 URL not found.",
+			"<HTML>\n<HEAD><TITLE>404 URL not found</TITLE></HEAD>\n" +
+			"<BODY><H1>404 URL not found</H1>\n" +
+			"The URL was not found on the server. \n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(METHOD_NOT_ALLOWED, "HTTP/1.1 405 Method Not Allowed",
+			"<HTML>\n<HEAD><TITLE>405 Method Not Allowed</TITLE></HEAD>\n" +
+			"<BODY><H1>405 Method Not Allowed</H1>\n" +
+			"The requested method is not allowed.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(ACCEPT_NOT_ALLOWED, "HTTP/1.1 406 Accept Not Allowed",
+			"<HTML>\n<HEAD><TITLE>406 Accept Not Allowed</TITLE></HEAD>\n" +
+			"<BODY><H1>406 Accept Not Allowed</H1>\n" +
+			"One or more of the accept content characteristics is not allowed.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(PROXY_AUTHENTICATION_REQUIRED, "HTTP/1.1 407 Proxy Authentication Required",
+			"<HTML>\n<HEAD><TITLE>407 Proxy Authentication Required</TITLE></HEAD>\n" +
+			"<BODY><H1>407 Proxy Authentication Required</H1>\n" +
+			"You must first authenticate with your proxy server first.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(REQUEST_TIMED_OUT, "HTTP/1.1 408 Request Timed Out.",
+			"<HTML>\n<HEAD><TITLE>408 Request Timed Out</TITLE></HEAD>\n" +
+			"<BODY><H1>408 Request Timed Out.</H1>\n" +
+			"The webserver did not receive a valid request within the time the server was prepared to wait. Try resending the request.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(REQUEST_CONFLICT, "HTTP/1.1 409 Conflict.",
+			"<HTML>\n<HEAD><TITLE>409 Request Conflict</TITLE></HEAD>\n" +
+			"<BODY><H1>409 Request Conflict.</H1>\n" +
+			"The request could not be completed due to a conflict with the current state of the resource.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(GONE, "HTTP/1.1 410 Gone.",
+			"<HTML>\n<HEAD><TITLE>410 Resource No Longer Available</TITLE></HEAD>\n" +
+			"<BODY><H1>410 Resource No Longer Available.</H1>\n" +
+			"The requested resource is no longer available at the server and no forwarding address is known. This condition is expected to be considered permanent.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(LENGTH_REQUIRED, "HTTP/1.1 411 Length Required.",
+			"<HTML>\n<HEAD><TITLE>411 Length Required</TITLE></HEAD>\n" +
+			"<BODY><H1>411 Length Required.</H1>\n" +
+			"The request did not contain a Length field, which is required.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(PRECONDITION_FAILED, "HTTP/1.1 412 Precondition Failed.",
+			"<HTML>\n<HEAD><TITLE>412 Precondition Failed</TITLE></HEAD>\n" +
+			"<BODY><H1>412 Precondition Failed.</H1>\n" +
+			"The precondition given in one or more of the request-header fields evaluated to false when it was tested on the server.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(REQUEST_ENTITY_TOO_LARGE, "HTTP/1.1 413 Request Entity Too Large.",
+			"<HTML>\n<HEAD><TITLE>413 Request Entity Too Large</TITLE></HEAD>\n" +
+			"<BODY><H1>413 Request Entity Too Large.</H1>\n" +
+			"The server is refusing to process a request because the request entity is larger than the server is willing or able to process.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(REQUEST_URI_TOO_LONG, "HTTP/1.1 414 Request URI Too Long.",
+			"<HTML>\n<HEAD><TITLE>414 Request URI Too Long</TITLE></HEAD>\n" +
+			"<BODY><H1>414 Request URI Too Long.</H1>\n" +
+			"The server is refusing to service the request because the Request-URI is longer than the server is willing to interpret.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(UNSUPPORTED_MEDIA_TYPE, "HTTP/1.1 415 Unsupported Media Type.",
+			"<HTML>\n<HEAD><TITLE>415 Unsupported Media Type</TITLE></HEAD>\n" +
+			"<BODY><H1>415 Unsupported Media Type.</H1>\n" +
+			"The media type given in the request is not supported.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(CANNOT_SATISFY_REQUEST_RANGE, "HTTP/1.1 416 Cannot Satisfy Request Range.",
+			"<HTML>\n<HEAD><TITLE>416 Cannot Satisfy Request Range</TITLE></HEAD>\n" +
+			"<BODY><H1>416 Cannot Satisfy Request Range.</H1>\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(EXPECTATION_FAILED, "HTTP/1.1 417 Expectation Failed.",
+			"<HTML>\n<HEAD><TITLE>417 Expectation Failed</TITLE></HEAD>\n" +
+			"<BODY><H1>417 Expectation Failed.</H1>\n" +
+			"The expectation given in an Expect request-header field could not be met by this server.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(SERVER_ERROR, "HTTP/1.1 500 Server Error.",
+			"<HTML>\n<HEAD><TITLE>500 Server Error</TITLE></HEAD>\n" +
+			"<BODY><H1>500 Server Error.</H1>\n" +
+			"An internal server error has occured. \n" +
+			"Please contact the administrator about this possible problem.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(NOT_IMPLEMENTED, "HTTP/1.1 501 Not Implemented.",
+			"<HTML>\n<HEAD><TITLE>501 Not Implemented</TITLE></HEAD>\n" +
+			"<BODY><H1>501 Not Implemented.</H1>\n" +
+			"The server does not support the functionality required to fulfill the request.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(BAD_GATEWAY, "HTTP/1.1 502 Bad Gateway.",
+			"<HTML>\n<HEAD><TITLE>502 Bad Gateway</TITLE></HEAD>\n" +
+			"<BODY><H1>502 Bad Gateway.</H1>\n" +
+			"The server, while acting as a gateway or proxy, received an invalid response from the upstream server it accessed in attempting to fulfill the request.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(SERVICE_UNAVAILABLE, "HTTP/1.1 503 Service Unavailable.",
+			"<HTML>\n<HEAD><TITLE>503 Service Unavailable</TITLE></HEAD>\n" +
+			"<BODY><H1>503 Service Unavailable.</H1>\n" +
+			"The server is currently unable to handle the request due to a temporary overloading or maintenance of the server. Please try again later.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(GATEWAY_TIMEOUT, "HTTP/1.1 504 Gateway Timed Out.",
+			"<HTML>\n<HEAD><TITLE>504 Gateway Timed Out</TITLE></HEAD>\n" +
+			"<BODY><H1>504 Gateway Timed Out.</H1>\n" +
+			"The server, while acting as a gateway or proxy, did not receive a timely response from the upstream server specified by the URI.\n" +
+			"</BODY></HTML>\n");
+		addCannedResponse(VERSION_NOT_SUPPORTED, "HTTP/1.1 505 Version not supported.",
+			"<HTML>\n<HEAD><TITLE>505 Version Not Supported</TITLE></HEAD>\n" +
+			"<BODY><H1>505 Version Not Supported</H1>\n" +
+			"The HTTP Version (HTTP/1.0) is not supported by this server.\n" +
+			"Please upgrade your browser to an (HTTP/1.1) compliant HTTP client.\n" +
+			"</BODY></HTML>\n");
+	}
+
 
 	// Webserver Extensions
 	protected Hashtable extensions;
 	protected Vector undefinedDomains;
 
+	// The sorted WebServerExtension[] for each domain, replaced whenever extensions are added or removed
+	protected volatile Hashtable extensionChains = new Hashtable();
+	protected static final WebServerExtension[] NO_EXTENSIONS = new WebServerExtension[0];
+
 
 	/**
 	* Initializes this agent's properties by providing default
@@ -174,7 +341,7 @@ public class WebServer extends Agent implements Runnable
 	* 'multihome' (default: false)
 	* 'strict_http_version' (default:false)
 	* 'socket_linger_time' (default: 2000)
-	* 'thread_pool_timeout' (default: 0)
+	* 'thread_pool_timeout' (default: 0) how long a connection waits for a PooledThread, not used when 'admission_control' is on
 	* 'use_inet_address_methods' (default: true)
 	* 'socket_timeout' (default:30000)
 	* 'socket_initial_timeout' (default:3000)
@@ -182,6 +349,21 @@ public class WebServer extends Agent implements Runnable
 	* 'max_field_length' (default:128)
 	* 'html_response_agent' (default:none)
 	* 'cache_extensions' (default:true)
+	* 'connection_engine' (default:blocking) set to 'nio' to park idle connections in a java.nio Selector
+	* 'nio_header_buffer_size' (default:16384)
+	* 'thread_engine' (default:pool) set to 'virtual' to run each connection on a virtual thread, the pool is used if the JVM has none
+	* 'max_virtual_threads' (default:10000) the number of connections handled at once by virtual threads
+	* 'virtual_thread_queue_size' (default:1000) the number of connections that may wait for a virtual thread
+	* 'virtual_thread_admission_timeout' (default:5000) how long a connection may wait before it gets a 503 response
+	* 'route_table_size' (default:10000) the number of host and path routes to RequestAgents remembered, 0 disables the route table
+	* 'collect_metrics' (default:true) records latency histograms of the requests, which an HTTPMetricsAgent shows
+	* 'max_metrics_hosts' (default:1000) the number of virtual host latency histograms kept, see HTTPMetrics
+	* 'admission_control' (default:true) refuses connections with a 503 response when the ThreadPool is exhausted, see HTTPAdmissionControl
+	* 'admission_queue_size' (default:1000) the number of connections that may wait for a PooledThread
+	* 'admission_queue_timeout' (default:5000) how long a connection may wait before it gets a 503 response
+	* 'admission_wait_budget' (default:2000) connections whose estimated wait is longer get a 503 response at once
+	* 'priority_paths' (default:/health,/metrics.agent,/logviewer.agent) path prefixes of requests which are not refused
+	* 'priority_threads' (default:4) the threads which handle priority requests while the ThreadPool is exhausted
 	*
 	* 'service_name' (default:WebServer-'bind_port')
 	*/
@@ -207,6 +389,21 @@ public class WebServer extends Agent implements Runnable
 		setDefault("max_multipart_length","10240000");
 		setDefault("html_response_agent","none");
 		setDefault("cache_extensions","true");
+		setDefault("connection_engine","blocking");
+		setDefault("nio_header_buffer_size","16384");
+		setDefault("thread_engine","pool");
+		setDefault("max_virtual_threads","10000");
+		setDefault("virtual_thread_queue_size","1000");
+		setDefault("virtual_thread_admission_timeout","5000");
+		setDefault("route_table_size","10000");
+		setDefault("collect_metrics","true");
+		setDefault("max_metrics_hosts","1000");
+		setDefault("admission_control","true");
+		setDefault("admission_queue_size","1000");
+		setDefault("admission_queue_timeout","5000");
+		setDefault("admission_wait_budget","2000");
+		setDefault("priority_paths","/health,/metrics.agent,/logviewer.agent");
+		setDefault("priority_threads","4");
 
 		setDefault("service_name","WebServer-"+getString("bind_port"));
 	}
@@ -220,7 +417,34 @@ public class WebServer extends Agent implements Runnable
 	{
 		try
 		{
-			threadPool = new ThreadPool(getInteger("max_connections"));
+			virtualThreads = getString("thread_engine").equals("virtual");
+
+			if (virtualThreads && !VirtualThreadPool.isVirtualThreadSupported())
+			{
+				error("Virtual threads are not supported by this JVM, using a ThreadPool of max_connections threads");
+				virtualThreads = false;
+			}
+
+			if (virtualThreads)
+			{
+				threadPool = new VirtualThreadPool(getInteger("max_virtual_threads"), getInteger("virtual_thread_queue_size"), getInteger("virtual_thread_admission_timeout"));
+			}
+			else
+			{
+				threadPool = new ThreadPool(getInteger("max_connections"));
+			}
+
+			if (getBoolean("collect_metrics"))
+			{
+				metrics = new HTTPMetrics(getInteger("max_metrics_hosts"));
+			}
+
+			// The VirtualThreadPool has its own admission queue
+			if (getBoolean("admission_control") && !virtualThreads)
+			{
+				admission = new HTTPAdmissionControl(this, threadPool);
+			}
+
 			runThread = new Thread(this, "HTTPDAgent");
 
 			runThread.setPriority(Thread.NORM_PRIORITY);
@@ -234,6 +458,7 @@ public class WebServer extends Agent implements Runnable
 		multihome = getBoolean("multihome");
 
 		extensions = new Hashtable();
+		extensionChains = new Hashtable();
 		undefinedDomains = new Vector();
 
 		try
@@ -265,10 +490,82 @@ public class WebServer extends Agent implements Runnable
 			}
 		}
 
+		if (getInteger("route_table_size") > 0)
+		{
+			routeTable = new HTTPRouteTable(this, getInteger("route_table_size"));
+
+			ServiceManager.addServiceListener(routeTable);
+		}
+
 		register();
 	}
 
 
+	/**
+	* Returns the latency histograms of the requests handled, or null if 'collect_metrics' is false.
+	*/
+
+	public HTTPMetrics getMetrics()
+	{
+		return (metrics);
+	}
+
+
+	/**
+	* Returns the HTTPAdmissionControl of this server, or null if there is none.
+	*/
+
+	public HTTPAdmissionControl getAdmissionControl()
+	{
+		return (admission);
+	}
+
+
+	/**
+	* Returns the pool of threads which handle connections.
+	*/
+
+	public ThreadPool getThreadPool()
+	{
+		return (threadPool);
+	}
+
+
+	/**
+	* Returns the logger_agent the requests are logged to, or null if they are not logged.
+	*/
+
+	public FileLoggerAgent getLogger()
+	{
+		return (logger);
+	}
+
+
+	/**
+	* Returns the WebServerExtensions in the chains of every domain, each once.
+	*/
+
+	public Vector getAllExtensions()
+	{
+		Vector rval = new Vector();
+
+		Enumeration en = extensionChains.elements();
+		while (en.hasMoreElements())
+		{
+			WebServerExtension[] chain = (WebServerExtension[]) en.nextElement();
+			for (int x = 0; x < chain.length; x++)
+			{
+				if (!rval.contains(chain[x]))
+				{
+					rval.addElement(chain[x]);
+				}
+			}
+		}
+
+		return (rval);
+	}
+
+
 	/**
 	* Right now you can't stop this agent because the threadPool threads
 	* can't be cleaned up absolutely.
@@ -276,6 +573,15 @@ public class WebServer extends Agent implements Runnable
 
 	public void stop()
 	{
+		if (routeTable != null)
+		{
+			ServiceManager.removeServiceListener(routeTable);
+		}
+
+		if (admission != null)
+		{
+			admission.stop();
+		}
 	}
 
 
@@ -299,6 +605,26 @@ public class WebServer extends Agent implements Runnable
 
 
 
+	/**
+	 * This creates the ServerSocketChannel used by the nio connection engine. Classes that
+	 * extend WebServer and cannot use a plain channel should override this method and return null,
+	 * in which case the blocking connection engine is used.
+	 */
+	protected ServerSocketChannel getServerSocketChannel(String bind_address, int port) throws IOException
+	{
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		if (bind_address.equals("all")) {
+			channel.socket().bind(new InetSocketAddress(port),getInteger("serversocket_queue_size"));
+		}
+		else {
+			InetAddress address = InetAddress.getByName(bind_address);
+			channel.socket().bind(new InetSocketAddress(address, port),getInteger("serversocket_queue_size"));
+		}
+		return(channel);
+	}
+
+
+
 	/**
 	* Starts WebServer, attempts to bind port.
 	*/
@@ -307,6 +633,39 @@ public class WebServer extends Agent implements Runnable
 	{
 		String bind_address = getTrimmedString("bind_address");
 		int port = getInteger("bind_port");
+
+		if (getString("connection_engine").equals("nio"))
+		{
+			try
+			{
+				ServerSocketChannel channel = getServerSocketChannel(bind_address,port);
+
+				if (channel != null)
+				{
+					println(VERSION_STR);
+					println("Starting WebServer (nio) and listening to " + bind_address + " on port " + port + "...");
+
+					connectionSelector = new ConnectionSelector(this, channel);
+
+					println("Server bound successfully.");
+
+					connectionSelector.run();
+
+					return;
+				}
+				else
+				{
+					warning("The nio connection engine is not supported by this server, using blocking connections.");
+				}
+			}
+			catch (Exception e)
+			{
+				error("Error binding server socket channel (port " + port + ")", e);
+
+				return;
+			}
+		}
+
 		int socket_linger_time = getInteger("socket_linger_time");
 		int thread_pool_timeout = getInteger("thread_pool_timeout");
 		ServerSocket ssock = null;
@@ -320,13 +679,20 @@ public class WebServer extends Agent implements Runnable
 
 			println("Server bound successfully.");
 
+			if (admission != null)
+			{
+				Thread t = new Thread(admission, "Admission-" + getString("service_name"));
+				t.setDaemon(true);
+				t.start();
+			}
+
 			while (true)
 			{
 				Socket socket = null;
 
 				try
 				{
-					if(thread_pool_timeout<=0) {
+					if(thread_pool_timeout<=0 && !virtualThreads && admission==null) {
 						if(threadPool.totalThreads() >= getInteger("max_connections")) {
 							while(threadPool.freeThreads()==0) {
 								try {
@@ -341,8 +707,18 @@ public class WebServer extends Agent implements Runnable
 					socket = ssock.accept();
 
 					ConnectionKMethod kMethod = new ConnectionKMethod(this, socket, socket_linger_time);
+					kMethod.queuedAt = System.nanoTime();
 
-					if(thread_pool_timeout>0) {
+					if(virtualThreads) {
+						// The VirtualThreadPool refuses connections once its admission queue is full
+						if(!threadPool.getThread(kMethod)) {
+							kMethod.reject();
+						}
+					}
+					else if(admission!=null) {
+						admission.admit(kMethod);
+					}
+					else if(thread_pool_timeout>0) {
 						threadPool.getThreadOrWait(kMethod, thread_pool_timeout);
 					}
 					else {
@@ -381,6 +757,22 @@ public class WebServer extends Agent implements Runnable
 	 * Retrieve an Agent that will handle an HTTPAgentRequest
 	 */
 	public RequestAgent getRequestAgent(String host, String serviceName)
+	{
+		if(routeTable!=null) {
+			return(routeTable.getRequestAgent(host,serviceName));
+		}
+		else {
+			return(lookupRequestAgent(host,serviceName));
+		}
+	}
+
+
+	/**
+	 * Looks up the Agent that will handle an HTTPAgentRequest in the ServiceManager. The service
+	 * names tried are, in order: the scheme, host and path, the scheme, host, port and path, the host,
+	 * port and path, the host and path, the path, and the path without its leading slash.
+	 */
+	protected RequestAgent lookupRequestAgent(String host, String serviceName)
 	{
 		RequestAgent agent = null;
 		String prefix = "http://";
@@ -423,16 +815,16 @@ public class WebServer extends Agent implements Runnable
 	 */
 	public void addExtension(String domain, String priority, WebServerExtension service)
 	{
-		Vector allExtensions = new Vector();
-		if(extensions.containsKey("all")) {
-			allExtensions = (Vector)extensions.get("all");
-		}
-		else {
-			extensions.put("all",allExtensions);
-		}
-
 		Pair p = new Pair(priority,service);
-		synchronized(extensions) {  		// This is just being paranoid
+		synchronized(extensions) {
+			Vector allExtensions = new Vector();
+			if(extensions.containsKey("all")) {
+				allExtensions = (Vector)extensions.get("all");
+			}
+			else {
+				extensions.put("all",allExtensions);
+			}
+
 			if(domain.equals("all")) {
 				if(!hasExtension(allExtensions,service)) {
 					allExtensions.addElement(p);
@@ -481,11 +873,95 @@ public class WebServer extends Agent implements Runnable
 					warning("An extension '"+service+"' has already been added to the '"+domain+"' domain. Second instance ignored.");
 				}
 			}
+
+			rebuildExtensionChains();
+		}
+	}
+
+
+	/**
+	 * Removes an extension added using addExtension. If the domain is 'all', the extension
+	 * is removed from every domain.
+	 */
+	public void removeExtension(String domain, WebServerExtension service)
+	{
+		synchronized(extensions) {
+			Enumeration en = extensions.keys();
+			while(en.hasMoreElements()) {
+				String domainString = (String)en.nextElement();
+				if(domain.equals("all") || domain.equals(domainString)) {
+					Vector domainExtensions = (Vector)extensions.get(domainString);
+					for(int x=domainExtensions.size()-1;x>=0;x--) {
+						if(((Pair)domainExtensions.elementAt(x)).second().equals(service)) {
+							domainExtensions.removeElementAt(x);
+						}
+					}
+				}
+			}
+			println("Extension: '"+service+"' removed from domain: "+domain);
+
+			rebuildExtensionChains();
+		}
+	}
+
+
+	/**
+	 * Builds the WebServerExtension[] chain of each domain from the sorted extension lists and
+	 * replaces all the chains at once. The caller must synchronize on the extensions Hashtable.
+	 */
+	protected void rebuildExtensionChains()
+	{
+		Hashtable chains = new Hashtable();
+
+		Enumeration en = extensions.keys();
+		while(en.hasMoreElements()) {
+			String domainString = (String)en.nextElement();
+			Vector domainExtensions = (Vector)extensions.get(domainString);
+			WebServerExtension[] chain = new WebServerExtension[domainExtensions.size()];
+			for(int x=0;x<chain.length;x++) {
+				chain[x] = (WebServerExtension)((Pair)domainExtensions.elementAt(x)).second();
+			}
+			chains.put(domainString,chain);
+		}
+
+		extensionChains = chains;
+	}
+
+
+	/**
+	 * This is used by the ConnectionKMethod to get the WebServerExtensions for a domain, in the
+	 * order they should be run. The array is shared and must not be modified.
+	 */
+	public WebServerExtension[] getExtensionChain(String domain)
+	{
+		WebServerExtension[] rval = null;
+
+		if(ServiceManager.getServiceManager() instanceof PropsListServiceManager.PropsListServiceManagerImpl) {
+			if(getBoolean("cache_extensions")) {
+				rval = (WebServerExtension[])extensionChains.get(domain);
+			}
+			if(rval==null) {
+				Vector v = getExtensions(domain);
+				rval = new WebServerExtension[v.size()];
+				v.copyInto(rval);
+			}
+		}
+		else {
+			Hashtable chains = extensionChains;
+			rval = (WebServerExtension[])chains.get(domain);
+			if(rval==null) {
+				rval = (WebServerExtension[])chains.get("default");
+				if(rval==null) {
+					rval = NO_EXTENSIONS;
+				}
+			}
 		}
+
+		return(rval);
 	}
 
 	/**
-	 * This is used by the ConnectionKMethod to get a WebServerExtension.
+	 * Returns a new Vector containing the WebServerExtensions for a domain, in the order they should be run.
 	 */
 	public Vector getExtensions(String domain)
 	{
@@ -493,16 +969,11 @@ public class WebServer extends Agent implements Runnable
 
 		if(ServiceManager.getServiceManager() instanceof PropsListServiceManager.PropsListServiceManagerImpl) {
 			if(getBoolean("cache_extensions")) {
-				if(extensions.containsKey(domain)) {
-					rval = new Vector();
-					Vector domainExtensions = (Vector)extensions.get(domain);
-					for(int x=0;x<domainExtensions.size();x++) {
-						try {
-							rval.addElement(((Pair)domainExtensions.elementAt(x)).second());
-						}
-						catch(Exception e) {
-							error("Error getting extension for domain: "+domain,e);
-						}
+				WebServerExtension[] chain = (WebServerExtension[])extensionChains.get(domain);
+				if(chain!=null) {
+					rval = new Vector(chain.length);
+					for(int x=0;x<chain.length;x++) {
+						rval.addElement(chain[x]);
 					}
 				}
 			}
@@ -532,20 +1003,10 @@ public class WebServer extends Agent implements Runnable
 			}
 		}
 		else {
-			rval = new Vector();
-			if(!extensions.containsKey(domain)) {
-				domain = "default";
-			}
-			if(extensions.containsKey(domain)) {
-				Vector domainExtensions = (Vector)extensions.get(domain);
-				for(int x=0;x<domainExtensions.size();x++) {
-					try {
-						rval.addElement(((Pair)domainExtensions.elementAt(x)).second());
-					}
-					catch(Exception e) {
-						error("Error getting extension for domain: "+domain);
-					}
-				}
+			WebServerExtension[] chain = getExtensionChain(domain);
+			rval = new Vector(chain.length);
+			for(int x=0;x<chain.length;x++) {
+				rval.addElement(chain[x]);
 			}
 		}
 
@@ -559,6 +1020,7 @@ public class WebServer extends Agent implements Runnable
 	public void clearExtensionsCache()
 	{
 		extensions = new Hashtable();
+		extensionChains = new Hashtable();
 	}
 
 
@@ -624,7 +1086,6 @@ public class WebServer extends Agent implements Runnable
 	{
 		return(getHTMLByCode(code, keepAliveField, null));
 	}
-
 	/**
 	 * This method uses the return codes (static final int) in this Class to return a generic response.
 	 * This method also supports the keepAliveField parameter as well as any extra headers that needs to
@@ -632,371 +1093,81 @@ public class WebServer extends Agent implements Runnable
 	 */
 	public static String getHTMLByCode(int code, String keepAliveField, String extraHeaders)
 	{
-		try {
-			return(responseAgent.getHTMLByCode(code,keepAliveField,extraHeaders));
-		}
-		catch(Exception e) {
-			StringBuffer b = new StringBuffer();
-			StringBuffer content = new StringBuffer();
-			StringBuffer conn = new StringBuffer();
-			
-			if(extraHeaders!=null) {
-				if(extraHeaders.trim().length()>0) {
-					conn.append(extraHeaders);
-					if(extraHeaders.charAt(extraHeaders.length()-1)!='\n') {
-						conn.append('\n');
-					}
-				}
-			}
-			
-			if (keepAliveField != null)
-			{
-				keepAliveField = keepAliveField.trim();
-				
-				if ((keepAliveField.length() > 0) && keepAliveField.toLowerCase().startsWith("keep-alive"))
-				{
-					conn.append("Connection: Keep-Alive\n");
-					conn.append(keepAliveField);
-					conn.append("\n\n");
-				}
-			}
-			
-			if (conn.length() == 0)
-			{
-				conn.append("Connection: close\n\n");
-			}
-			
-			if(conn.toString().lastIndexOf("\n\n")!=conn.length()-2) {
-				conn.append("\n");
-			}
-			
-			if(code == NO_CONTENT) {
-				b.append("HTTP/1.1 204 No Content.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				b.append(conn);
-			}
-			else if(code == RESET_CONTENT) {
-				b.append("HTTP/1.1 205 Reset Content.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				b.append(conn);
-			}
-			else if(code == MOVED_PERMANENTLY) {
-				b.append("HTTP/1.1 301 Moved Permanently.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>301 Moved Permanently</TITLE></HEAD>\n");
-				content.append("<BODY><H1>301 Moved Permanently</H1></BODY>\n");
-				content.append("The requested URL has been permanently moved to another location.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}			
-			else if(code == MOVED) {
-				b.append("HTTP/1.1 302 Moved.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>302 Moved</TITLE></HEAD>\n");
-				content.append("<BODY><H1>302 Moved</H1></BODY>\n");
-				content.append("The requested URL has been moved to another location.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}			
-			else if(code == USE_GET) {
-				b.append("HTTP/1.1 303 See Other.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>303 See Other</TITLE></HEAD>\n");
-				content.append("<BODY><H1>303 See Other</H1></BODY>\n");
-				content.append("The requested URL has been moved to another location and a GET request must be used to retrieve it.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}			
-			else if(code == NOT_MODIFIED) {
-				b.append("HTTP/1.1 304 Not Modified.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				b.append(conn);
-			}
-			else if(code == USE_PROXY) {
-				b.append("HTTP/1.1 305 Use Proxy.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>305 Use Proxy</TITLE></HEAD>\n");
-				content.append("<BODY><H1>305 Use Proxy</H1></BODY>\n");
-				content.append("The requested URL requires the use of the given proxy.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if(code == TEMPORARY_REDIRECT) {
-				b.append("HTTP/1.1 307 .\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>307 Temporary Redirect</TITLE></HEAD>\n");
-				content.append("<BODY><H1>307 Temporary Redirect</H1></BODY>\n");
-				content.append("The requested URL has been temporarily moved to another location\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}			
-			else if (code == BAD_REQUEST)
-			{
-				b.append("HTTP/1.1 400 Bad Request.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>400 BAD Request</TITLE></HEAD>\n");
-				content.append("<BODY><H1>400 Bad Request</H1></BODY>\n");
-				content.append("The server could not understand your request.\n");
-				content.append("If this problem persists contact the administrator.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == UNAUTHORIZED)
-			{
-				b.append("HTTP/1.1 401 Unauthorized.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>401 Unauthorized</TITLE></HEAD>\n");
-				content.append("<BODY><H1>401 Unauthorized</H1>\n");
-				content.append("You are not authorized to access this url.");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == FORBIDDEN)
-			{
-				b.append("HTTP/1.1 403 Forbidden.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>403 Forbidden</TITLE></HEAD>\n");
-				content.append("<BODY><H1>403 Forbidden</H1>\n");
-				content.append("The administrator has deemed this area of the server forbidden.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == URL_NOT_FOUND)
-			{
-				b.append("HTTP/1.1 404 URL not found.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>404 URL not found</TITLE></HEAD>\n");
-				content.append("<BODY><H1>404 URL not found</H1>\n");
-				content.append("The URL was not found on the server. \n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == METHOD_NOT_ALLOWED)
-			{
-				b.append("HTTP/1.1 405 Method Not Allowed\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>405 Method Not Allowed</TITLE></HEAD>\n");
-				content.append("<BODY><H1>405 Method Not Allowed</H1>\n");
-				content.append("The requested method is not allowed.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == ACCEPT_NOT_ALLOWED)
-			{
-				b.append("HTTP/1.1 406 Accept Not Allowed\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>406 Accept Not Allowed</TITLE></HEAD>\n");
-				content.append("<BODY><H1>406 Accept Not Allowed</H1>\n");
-				content.append("One or more of the accept content characteristics is not allowed.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == PROXY_AUTHENTICATION_REQUIRED)
-			{
-				b.append("HTTP/1.1 407 Proxy Authentication Required\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>407 Proxy Authentication Required</TITLE></HEAD>\n");
-				content.append("<BODY><H1>407 Proxy Authentication Required</H1>\n");
-				content.append("You must first authenticate with your proxy server first.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == REQUEST_TIMED_OUT)
-			{
-				b.append("HTTP/1.1 408 Request Timed Out.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>408 Request Timed Out</TITLE></HEAD>\n");
-				content.append("<BODY><H1>408 Request Timed Out.</H1>\n");
-				content.append("The webserver did not receive a valid request within the time the server was prepared to wait. Try resending the request.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == REQUEST_CONFLICT)
-			{
-				b.append("HTTP/1.1 409 Conflict.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>409 Request Conflict</TITLE></HEAD>\n");
-				content.append("<BODY><H1>409 Request Conflict.</H1>\n");
-				content.append("The request could not be completed due to a conflict with the current state of the resource.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == GONE)
-			{
-				b.append("HTTP/1.1 410 Gone.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>410 Resource No Longer Available</TITLE></HEAD>\n");
-				content.append("<BODY><H1>410 Resource No Longer Available.</H1>\n");
-				content.append("The requested resource is no longer available at the server and no forwarding address is known. This condition is expected to be considered permanent.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == LENGTH_REQUIRED)
-			{
-				b.append("HTTP/1.1 411 Length Required.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>411 Length Required</TITLE></HEAD>\n");
-				content.append("<BODY><H1>411 Length Required.</H1>\n");
-				content.append("The request did not contain a Length field, which is required.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == PRECONDITION_FAILED)
-			{
-				b.append("HTTP/1.1 412 Precondition Failed.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>412 Precondition Failed</TITLE></HEAD>\n");
-				content.append("<BODY><H1>412 Precondition Failed.</H1>\n");
-				content.append("The precondition given in one or more of the request-header fields evaluated to false when it was tested on the server.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == REQUEST_ENTITY_TOO_LARGE)
-			{
-				b.append("HTTP/1.1 413 Request Entity Too Large.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>413 Request Entity Too Large</TITLE></HEAD>\n");
-				content.append("<BODY><H1>413 Request Entity Too Large.</H1>\n");
-				content.append("The server is refusing to process a request because the request entity is larger than the server is willing or able to process.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == REQUEST_URI_TOO_LONG)
-			{
-				b.append("HTTP/1.1 414 Request URI Too Long.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>414 Request URI Too Long</TITLE></HEAD>\n");
-				content.append("<BODY><H1>414 Request URI Too Long.</H1>\n");
-				content.append("The server is refusing to service the request because the Request-URI is longer than the server is willing to interpret.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == UNSUPPORTED_MEDIA_TYPE)
-			{
-				b.append("HTTP/1.1 415 Unsupported Media Type.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>415 Unsupported Media Type</TITLE></HEAD>\n");
-				content.append("<BODY><H1>415 Unsupported Media Type.</H1>\n");
-				content.append("The media type given in the request is not supported.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == CANNOT_SATISFY_REQUEST_RANGE)
-			{
-				b.append("HTTP/1.1 416 Cannot Satisfy Request Range.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>416 Cannot Satisfy Request Range</TITLE></HEAD>\n");
-				content.append("<BODY><H1>416 Cannot Satisfy Request Range.</H1>\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == EXPECTATION_FAILED)
-			{
-				b.append("HTTP/1.1 417 Expectation Failed.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>417 Expectation Failed</TITLE></HEAD>\n");
-				content.append("<BODY><H1>417 Expectation Failed.</H1>\n");
-				content.append("The expectation given in an Expect request-header field could not be met by this server.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == SERVER_ERROR)
-			{
-				b.append("HTTP/1.1 500 Server Error.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>500 Server Error</TITLE></HEAD>\n");
-				content.append("<BODY><H1>500 Server Error.</H1>\n");
-				content.append("An internal server error has occured. \n");
-				content.append("Please contact the administrator about this possible problem.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == NOT_IMPLEMENTED)
-			{
-				b.append("HTTP/1.1 501 Not Implemented.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>501 Not Implemented</TITLE></HEAD>\n");
-				content.append("<BODY><H1>501 Not Implemented.</H1>\n");
-				content.append("The server does not support the functionality required to fulfill the request.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == BAD_GATEWAY)
-			{
-				b.append("HTTP/1.1 502 Bad Gateway.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>502 Bad Gateway</TITLE></HEAD>\n");
-				content.append("<BODY><H1>502 Bad Gateway.</H1>\n");
-				content.append("The server, while acting as a gateway or proxy, received an invalid response from the upstream server it accessed in attempting to fulfill the request.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
-			}
-			else if (code == SERVICE_UNAVAILABLE)
-			{
-				b.append("HTTP/1.1 503 Service Unavailable.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>503 Service Unavailable</TITLE></HEAD>\n");
-				content.append("<BODY><H1>503 Service Unavailable.</H1>\n");
-				content.append("The server is currently unable to handle the request due to a temporary overloading or maintenance of the server. Please try again later.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
+		if(responseAgent!=null) {
+			try {
+				return(responseAgent.getHTMLByCode(code,keepAliveField,extraHeaders));
 			}
-			else if (code == GATEWAY_TIMEOUT)
-			{
-				b.append("HTTP/1.1 504 Gateway Timed Out.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>504 Gateway Timed Out</TITLE></HEAD>\n");
-				content.append("<BODY><H1>504 Gateway Timed Out.</H1>\n");
-				content.append("The server, while acting as a gateway or proxy, did not receive a timely response from the upstream server specified by the URI.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
+			catch(Exception e) {;}
+		}
+
+		HTTPCannedResponse canned = getCannedResponse(code);
+		if(canned==null) {
+			return("");
+		}
+
+		return(canned.toString(keepAliveField,extraHeaders));
+	}
+
+
+	/**
+	 * This method writes the generic response of a return code (static final int) in this Class.
+	 */
+	public static void writeHTMLByCode(OutputStream out, int code) throws IOException
+	{
+		writeHTMLByCode(out,code,null,null);
+	}
+
+
+	/**
+	 * This method writes the generic response of a return code (static final int) in this Class,
+	 * with a 'Connection: Keep-Alive' field when the keepAliveField is given.
+	 */
+	public static void writeHTMLByCode(OutputStream out, int code, String keepAliveField) throws IOException
+	{
+		writeHTMLByCode(out,code,keepAliveField,null);
+	}
+
+
+	/**
+	 * This method writes the generic response of a return code (static final int) in this Class. Unless
+	 * a responseAgent is set the response is written from byte arrays made once for each code, so
+	 * nothing is built for it but the Date field once a second.
+	 */
+	public static void writeHTMLByCode(OutputStream out, int code, String keepAliveField, String extraHeaders) throws IOException
+	{
+		if(responseAgent!=null) {
+			String response = null;
+			try {
+				response = responseAgent.getHTMLByCode(code,keepAliveField,extraHeaders);
 			}
-			else if (code == VERSION_NOT_SUPPORTED)
-			{
-				b.append("HTTP/1.1 505 Version not supported.\n");
-				b.append("Date: "+dateFormat_RFC822.format(new Date())+"\n");
-				content.append("<HTML>\n<HEAD><TITLE>505 Version Not Supported</TITLE></HEAD>\n");
-				content.append("<BODY><H1>505 Version Not Supported</H1>\n");
-				content.append("The HTTP Version (HTTP/1.0) is not supported by this server.\n");
-				content.append("Please upgrade your browser to an (HTTP/1.1) compliant HTTP client.\n");
-				content.append("</BODY></HTML>\n");
-				b.append("Content-Length: "+content.length()+"\n");
-				b.append(conn);
+			catch(Exception e) {;}
+
+			if(response!=null) {
+				out.write(response.getBytes());
+				return;
 			}
+		}
 
-			b = new StringBuffer(jGrep.grepAndReplaceText("([^\\r])\\n","$1\r\n",b.toString(),false));
+		HTTPCannedResponse canned = getCannedResponse(code);
+		if(canned!=null) {
+			canned.write(out,keepAliveField,extraHeaders);
+		}
+	}
 
-			b.append(content);
 
-			return (b.toString());
+	protected static HTTPCannedResponse getCannedResponse(int code)
+	{
+		if(code>=0 && code<cannedResponses.length) {
+			return(cannedResponses[code]);
 		}
+
+		return(null);
+	}
+
+
+	protected static void addCannedResponse(int code, String statusLine, String content)
+	{
+		cannedResponses[code] = new HTTPCannedResponse(statusLine,content);
 	}
 
 
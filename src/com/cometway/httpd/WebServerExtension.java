@@ -42,6 +42,23 @@ public abstract class WebServerExtension extends ServiceAgent
 		}
 	}
 
+	/**
+	 * Removes this extension from the WebServer and unregisters it from the ServiceManager.
+	 */
+	public void stop()
+	{
+		if(! (ServiceManager.getServiceManager() instanceof com.cometway.props.PropsListServiceManager.PropsListServiceManagerImpl)) {
+			WebServer webServer = (WebServer)getServiceImpl(getString("webserver_service_name"));
+			if(webServer!=null) {
+				String[] domains = StringTools.commaToArray(getString("domains"));
+				for(int x=0;x<domains.length;x++) {
+					webServer.removeExtension(domains[x], this);
+				}
+			}
+		}
+		super.stop();
+	}
+
 	/**
 	 * This will be called by the WebServer (specifically the ConnectionKMethod) to handle
 	 * an HTTPAgentRequest. If the request has been handled, true is returned and no other
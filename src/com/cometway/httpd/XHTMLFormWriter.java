@@ -401,42 +401,6 @@ public class XHTMLFormWriter extends HTMLFormWriter
 	}
 
 
-    protected String encode(String in)
-    {
-		StringBuffer rval = new StringBuffer();
-		int index = in.indexOf("&");
-		int lastIndex = 0;
-
-		while(index!=-1)
-		{
-			index++;
-			rval.append(in.substring(lastIndex,index));
-			rval.append("amp;");
-			lastIndex = index;
-			index = in.indexOf("&",index);
-		}
-
-		rval.append(in.substring(lastIndex));
-		in = rval.toString();
-		rval = new StringBuffer();
-		index = in.indexOf("\"");
-		lastIndex = 0;
-
-		while(index!=-1)
-		{
-			rval.append(in.substring(lastIndex,index));
-			index++;
-			rval.append("&quot;");
-			lastIndex = index;
-			index = in.indexOf("\"",index);
-		}
-
-		rval.append(in.substring(lastIndex));
-
-		return (rval.toString());
-    }
-
-
 	protected void writeLabel(String title) throws IOException
 	{
 		if (title.length() > 0)
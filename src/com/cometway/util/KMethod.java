@@ -91,6 +91,18 @@ public class KMethod
 	}
 
 
+	/**
+	 * This is called instead of execute() when a ThreadPool accepted this KMethod
+	 * but could not run it in time. Subclasses which hold resources should release them here.
+	 */
+
+
+	public void reject()
+	{
+		error("reject: KMethod was not executed");
+	}
+
+
 	protected void error(String s, Exception e)
 	{
 		error(s + ", " + e);
@@ -515,6 +515,16 @@ public class ThreadPool
 	
 
 
+	/**
+	 * This returns the maximum number of PooledThreads this pool will allocate.
+	 */
+	public int getMaxThreads()
+	{
+		return(max_threads);
+	}
+
+
+
 	/**
 	 * This returns the number of allocated PooledThreads that are free
 	 */
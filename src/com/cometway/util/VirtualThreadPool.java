@@ -0,0 +1,361 @@
+package com.cometway.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+* This ThreadPool runs each KMethod on its own virtual thread instead of a PooledThread.
+* Blocking KMethods are cheap to park on a virtual thread, so the pool can run far more of
+* them at once than a pool of platform threads.
+*
+* The number of KMethods executing at once is capped by max_threads. KMethods that arrive
+* while the cap is reached wait for up to the admission timeout; at most max_waiting of them
+* may be waiting at once, beyond that getThread() returns false. A KMethod that was admitted
+* but could not start before the admission timeout is not executed, its reject() method
+* is called instead.
+*
+* Virtual threads require Java 21. On older JVMs the pool falls back to starting a
+* platform thread for each KMethod, with the same limits, which is only reasonable for
+* small limits; callers should check isVirtualThreadSupported() first.
+*/
+
+public class VirtualThreadPool extends ThreadPool
+{
+	protected static Method startVirtualThread;
+	protected static boolean virtualThreadsChecked;
+
+	protected Semaphore permits;
+	protected int max_waiting;
+	protected int admission_timeout;
+	protected int running;
+	protected int waiting;
+	protected Object countSync = new Object();
+
+
+	/**
+	 * Creates a VirtualThreadPool that executes at most max_threads KMethods at once,
+	 * with at most max_waiting KMethods waiting up to admission_timeout milliseconds to start.
+	 */
+
+	public VirtualThreadPool(int max_threads, int max_waiting, int admission_timeout)
+	{
+		super(max_threads);
+
+		this.max_waiting = max_waiting;
+		this.admission_timeout = admission_timeout;
+
+		permits = new Semaphore(max_threads, true);
+
+		checkVirtualThreads();
+	}
+
+
+	/**
+	 * Returns true if this JVM supports virtual threads.
+	 */
+
+	public static boolean isVirtualThreadSupported()
+	{
+		checkVirtualThreads();
+
+		return (startVirtualThread != null);
+	}
+
+
+	protected static synchronized void checkVirtualThreads()
+	{
+		if (!virtualThreadsChecked)
+		{
+			virtualThreadsChecked = true;
+
+			try
+			{
+				startVirtualThread = Thread.class.getMethod("startVirtualThread", new Class[] { Runnable.class });
+			}
+			catch (Exception e)
+			{
+				startVirtualThread = null;
+
+				System.out.println("{VirtualThreadPool} WARNING: Virtual threads are not supported by this JVM.");
+			}
+		}
+	}
+
+
+	/**
+	 * Starts the KMethod on a new virtual thread, and returns immediately.
+	 * Returns false if the pool is stopped or too many KMethods are already waiting to start.
+	 */
+
+	public boolean getThread(KMethod method)
+	{
+		return (start(method, null));
+	}
+
+
+	/**
+	 * Starts the KMethod on a new virtual thread and waits until it has finished executing.
+	 */
+
+	public boolean getThread(KMethod method, Object obj)
+	{
+		boolean rval = false;
+
+		try
+		{
+			synchronized (obj)
+			{
+				if (start(method, obj))
+				{
+					obj.wait();
+
+					rval = true;
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			error("Exception caught while initiating KMethod execution", e);
+		}
+
+		return (rval);
+	}
+
+
+	/**
+	 * Starts the KMethod on a new virtual thread and waits until it has finished executing,
+	 * or the timeout has expired.
+	 */
+
+	public boolean getThread(KMethod method, Object obj, int timeout)
+	{
+		boolean rval = false;
+
+		try
+		{
+			synchronized (obj)
+			{
+				if (start(method, obj))
+				{
+					obj.wait(timeout);
+
+					rval = true;
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			;
+		}
+		catch (Exception e)
+		{
+			error("Exception caught while initiating KMethod execution", e);
+		}
+
+		return (rval);
+	}
+
+
+	/**
+	 * The admission timeout takes the place of the timeout parameter in this pool.
+	 */
+
+	public boolean getThreadOrWait(KMethod method, int timeout)
+	{
+		return (start(method, null));
+	}
+
+
+	/**
+	 * The admission timeout takes the place of the timeout parameter in this pool.
+	 */
+
+	public boolean getThreadOrWait(KMethod method, Object obj, int timeout)
+	{
+		return (start(method, obj));
+	}
+
+
+	/**
+	 * Returns the number of KMethods executing and waiting to execute.
+	 */
+
+	public int totalThreads()
+	{
+		synchronized (countSync)
+		{
+			return (running + waiting);
+		}
+	}
+
+
+	/**
+	 * Returns the number of KMethods executing.
+	 */
+
+	public int usedThreads()
+	{
+		synchronized (countSync)
+		{
+			return (running);
+		}
+	}
+
+
+	/**
+	 * Returns the number of KMethods that can start executing immediately.
+	 */
+
+	public int freeThreads()
+	{
+		return (permits.availablePermits());
+	}
+
+
+	/**
+	 * Returns the number of KMethods waiting for the number of executing KMethods to drop below the cap.
+	 */
+
+	public int waitingThreads()
+	{
+		synchronized (countSync)
+		{
+			return (waiting);
+		}
+	}
+
+
+	protected boolean start(KMethod method, Object obj)
+	{
+		boolean rval = false;
+
+		if (!stopped)
+		{
+			synchronized (countSync)
+			{
+				if (running + waiting < max_threads + max_waiting)
+				{
+					waiting++;
+
+					rval = true;
+				}
+			}
+
+			if (rval)
+			{
+				Runnable r = new Admission(method, obj);
+
+				try
+				{
+					if (startVirtualThread != null)
+					{
+						startVirtualThread.invoke(null, new Object[] { r });
+					}
+					else
+					{
+						Thread t = new Thread(r, threadPoolName + " " + method);
+
+						t.setDaemon(false);
+						t.start();
+					}
+				}
+				catch (Exception e)
+				{
+					synchronized (countSync)
+					{
+						waiting--;
+					}
+
+					error("Exception caught while starting KMethod thread", e);
+
+					rval = false;
+				}
+			}
+		}
+
+		return (rval);
+	}
+
+
+
+	/**
+	 * Waits for a permit, executes the KMethod and notifies the object waiting for it.
+	 */
+
+	protected class Admission implements Runnable
+	{
+		KMethod method;
+		Object obj;
+
+
+		Admission(KMethod method, Object obj)
+		{
+			this.method = method;
+			this.obj = obj;
+		}
+
+
+		public void run()
+		{
+			boolean admitted = false;
+
+			try
+			{
+				admitted = permits.tryAcquire(admission_timeout, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				;
+			}
+
+			synchronized (countSync)
+			{
+				waiting--;
+
+				if (admitted)
+				{
+					running++;
+				}
+			}
+
+			try
+			{
+				if (admitted)
+				{
+					method.execute();
+				}
+				else
+				{
+					method.reject();
+				}
+			}
+			catch (Exception e)
+			{
+				;
+			}
+			finally
+			{
+				if (admitted)
+				{
+					synchronized (countSync)
+					{
+						running--;
+					}
+
+					permits.release();
+				}
+			}
+
+			if (obj != null)
+			{
+				synchronized (obj)
+				{
+					obj.notifyAll();
+				}
+			}
+		}
+	}
+}
+
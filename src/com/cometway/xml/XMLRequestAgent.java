@@ -5,6 +5,7 @@ package com.cometway.xml;
 import com.cometway.ak.AgentRequest;
 import com.cometway.ak.RequestAgent;
 import com.cometway.ak.RequestAgentInterface;
+import com.cometway.httpd.HTTPAgentRequest;
 import com.cometway.net.HTTPLoader;
 import com.cometway.io.StringBufferOutputStream;
 import com.cometway.props.Props;
@@ -504,10 +505,12 @@ public abstract class XMLRequestAgent extends RequestAgent
 	/**
 	* Writes the <TT>&lt;?xml version="1.0"?&gt; identifier,
 	* suitable for the declaration of XML 1.0 format compatibility.
+	* HTTP responses are streamed using the chunked transfer-coding.
 	*/
 
 	public final static void writeXMLHeader(AgentRequest request)
 	{
+		HTTPAgentRequest.useChunkedOutput(request);
 		request.println("<?xml version=\"1.0\"?>");
 	}
 }